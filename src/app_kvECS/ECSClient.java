@@ -2,38 +2,131 @@ package app_kvECS;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.file.Paths;
-import java.util.NavigableMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import ecs.ECSNode;
 import ecs.ECSRing;
+import ecs.ReplicationMode;
 import logger.LogSetup;
 import org.apache.commons.cli.*;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import shared.HashUtils;
+import shared.Metrics;
+import shared.MetricsHttpServer;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
 
 public class ECSClient implements Runnable {
+    public static final int DEFAULT_REPLICATION_FACTOR = 1;
+    /**
+     * Interval the KVServers send heartbeats at, the failure detectors' estimate until they learned better.
+     */
+    public static final long HEARTBEAT_INTERVAL_MILLIS = 500;
+    public static final long DEFAULT_ACCEPTABLE_HEARTBEAT_PAUSE_MILLIS = 2000;
+    private static final long MIN_HEARTBEAT_STD_DEVIATION_MILLIS = 100;
+    private static final long FAILURE_CHECK_INTERVAL_MILLIS = 100;
+    private static final int STATS_TIMEOUT_MILLIS = 1000;
+    private static final int SPLIT_POINT_TIMEOUT_MILLIS = 5000;
+    /**
+     * How many times its fair share of the load the most loaded server has to carry before the rebalancer
+     * moves another server into its range.
+     */
+    static final double REBALANCE_IMBALANCE = 1.5;
+    public static final int DEFAULT_HOT_KEY_REPLICAS = 2;
     private static final Logger LOGGER = Logger.getRootLogger();
 
     private final ECSRing<Object> ring = new ECSRing<Object>();
+    /**
+     * Held while metadata is sent, taken before the lock of the ring.
+     */
+    private final Object broadcastLock = new Object();
     private final ServerSocket serverSocket;
-    private boolean running;
+    /**
+     * Number of servers storing each key: the one responsible for it and its successors on the ring.
+     */
+    private final int replicationFactor;
+    private final ReplicationMode replicationMode;
+    /**
+     * Threads of the connected KVServers, by the hash of their node on the ring.
+     */
+    private final Map<String, ECSThread> connectedNodes = new ConcurrentHashMap<>();
+    /**
+     * Silence beyond the usual heartbeat interval tolerated before a KVServer is suspected, e.g. for GC pauses.
+     */
+    private final long acceptableHeartbeatPauseMillis;
+    private volatile boolean running;
+    private MetricsHttpServer metricsEndpoint;
+    private volatile boolean loadAwarePlacement;
+    private Thread rebalancer;
+    /**
+     * Null unless hot keys are replicated.
+     */
+    private volatile HotKeys hotKeys;
 
-    public ECSClient(InetAddress address, int port) throws IOException {
+    /**
+     * @param acceptableHeartbeatPauseMillis how long a KVServer may stay silent beyond its usual heartbeat
+     *                                       interval before it is suspected; lower values detect failures
+     *                                       faster but wrongly remove servers that merely pause
+     */
+    public ECSClient(InetAddress address, int port, int replicationFactor, ReplicationMode replicationMode,
+                     long acceptableHeartbeatPauseMillis) throws IOException {
+        if (replicationFactor < 1) {
+            throw new IllegalArgumentException("replicationFactor must be at least 1");
+        }
+        if (acceptableHeartbeatPauseMillis < 0) {
+            throw new IllegalArgumentException("acceptableHeartbeatPauseMillis cannot be negative");
+        }
         this.serverSocket = new ServerSocket(port, 50, address);
+        this.replicationFactor = replicationFactor;
+        this.replicationMode = replicationMode;
+        this.acceptableHeartbeatPauseMillis = acceptableHeartbeatPauseMillis;
+    }
+
+    public ECSClient(InetAddress address, int port, int replicationFactor, ReplicationMode replicationMode) throws IOException {
+        this(address, port, replicationFactor, replicationMode, DEFAULT_ACCEPTABLE_HEARTBEAT_PAUSE_MILLIS);
+    }
+
+    public ECSClient(InetAddress address, int port, int replicationFactor) throws IOException {
+        this(address, port, replicationFactor, ReplicationMode.PRIMARY_BACKUP);
+    }
+
+    public ECSClient(InetAddress address, int port) throws IOException {
+        this(address, port, DEFAULT_REPLICATION_FACTOR);
     }
 
     public ECSClient(int port) throws IOException {
-        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLocalHost());
+        this(InetAddress.getLocalHost(), port, DEFAULT_REPLICATION_FACTOR);
+    }
+
+    public int getReplicationFactor() {
+        return this.replicationFactor;
+    }
+
+    public ReplicationMode getReplicationMode() {
+        return this.replicationMode;
     }
 
     public void run() {
         this.running = true;
 
+        Thread failureDetection = new Thread(this::detectFailures, "failure-detection");
+        failureDetection.setDaemon(true);
+        failureDetection.start();
+
         while (this.running) {
             try {
                 Socket socket = this.serverSocket.accept();
@@ -52,38 +145,488 @@ public class ECSClient implements Runnable {
         }
 
         this.running = false;
+        synchronized (this) {
+            if (this.metricsEndpoint != null) {
+                this.metricsEndpoint.close();
+                this.metricsEndpoint = null;
+            }
+            if (this.rebalancer != null) {
+                this.rebalancer.interrupt();
+                this.rebalancer = null;
+            }
+        }
+    }
+
+    /**
+     * Removes the KVServers whose heartbeats stopped from the ring until the ECS stops. A removed KVServer's
+     * connection is closed, so it has to connect again to rejoin.
+     */
+    private void detectFailures() {
+        while (this.running) {
+            try {
+                Thread.sleep(FAILURE_CHECK_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, ECSThread> node : this.connectedNodes.entrySet()) {
+                double phi = node.getValue().phi(now);
+                if (phi > PhiAccrualFailureDetector.DEFAULT_THRESHOLD) {
+                    LOGGER.warn("node " + node.getValue().getClientAddress() + " stopped sending heartbeats (phi " + phi + ")");
+                    disconnectNode(node.getValue());
+                    node.getValue().close();
+                }
+            }
+
+            HotKeys hotKeys = this.hotKeys;
+            if (hotKeys != null && hotKeys.expire(now)) {
+                broadcastHotKeys(hotKeys);
+            }
+        }
+    }
+
+    PhiAccrualFailureDetector newFailureDetector() {
+        return new PhiAccrualFailureDetector(HEARTBEAT_INTERVAL_MILLIS, MIN_HEARTBEAT_STD_DEVIATION_MILLIS,
+                this.acceptableHeartbeatPauseMillis, PhiAccrualFailureDetector.DEFAULT_MAX_SAMPLE_SIZE,
+                System.currentTimeMillis());
     }
 
     public void clearNodes() {
-        this.ring.clearNodes();
+        synchronized (this.ring) {
+            this.ring.clearNodes();
+        }
     }
 
     public String addNode(String host, Integer port) throws IllegalArgumentException, UnknownHostException {
-        String startHash = this.ring.addNode(host, port);
-        String nextKey = this.ring.getMap().higherKey(startHash);
-        String endHash = nextKey != null ? HashUtils.hashSubtractOne(nextKey) : HashUtils.hashSubtractOne(this.ring.getMap().firstKey());
+        synchronized (this.ring) {
+            String startHash = this.ring.addNode(host, port);
+            String nextKey = this.ring.getMap().higherKey(startHash);
+            String endHash = nextKey != null ? HashUtils.hashSubtractOne(nextKey) : HashUtils.hashSubtractOne(this.ring.getMap().firstKey());
+
+            return startHash + "," + endHash + "," + host + ":" + port;
+        }
+    }
 
-        return startHash + "," + endHash + "," + host + ":" + port;
+    /**
+     * Places KVServers that join the ring where they take over half of the load of the most loaded server,
+     * instead of at the hash of their address. The servers are asked for their load when one joins.
+     */
+    public void setLoadAwarePlacement(boolean loadAwarePlacement) {
+        this.loadAwarePlacement = loadAwarePlacement;
+    }
+
+    /**
+     * Adds a connected KVServer to the ring and sends the new metadata to every connected KVServer.
+     *
+     * @return the hash of the node on the ring
+     */
+    String connectNode(ECSThread thread, String host, int port) throws IllegalArgumentException, UnknownHostException {
+        String splitPoint = this.loadAwarePlacement ? splitMostLoadedRange() : null;
+        String startHash;
+        synchronized (this.ring) {
+            // a server that joined meanwhile may have been placed there already
+            if (splitPoint == null || this.ring.getMap().containsKey(splitPoint)) {
+                startHash = this.ring.addNode(host, port);
+            } else {
+                this.ring.addNode(splitPoint, host, port);
+                startHash = splitPoint;
+            }
+            this.connectedNodes.put(startHash, thread);
+            thread.setNodeHash(startHash);
+        }
+        LOGGER.info("added node " + host + ":" + port + " at " + startHash);
+        broadcastMetadata();
+        HotKeys hotKeys = this.hotKeys;
+        if (hotKeys != null) {
+            synchronized (hotKeys) {
+                if (!hotKeys.getHotKeys().isEmpty()) {
+                    sendHotKeys(thread, hotKeys.encode());
+                }
+            }
+        }
+        return startHash;
+    }
+
+    /**
+     * Removes a KVServer that disconnected or failed from the ring and sends the new metadata to the remaining ones.
+     */
+    void disconnectNode(ECSThread thread) {
+        String startHash;
+        synchronized (this.ring) {
+            startHash = thread.getNodeHash();
+            if (startHash == null || !this.connectedNodes.remove(startHash, thread)) {
+                return;
+            }
+            this.ring.removeNode(startHash);
+        }
+        LOGGER.info("removed node " + thread.getClientAddress() + " at " + startHash);
+        broadcastMetadata();
+        HotKeys hotKeys = this.hotKeys;
+        if (hotKeys != null && hotKeys.remove(thread, System.currentTimeMillis())) {
+            broadcastHotKeys(hotKeys);
+        }
+    }
+
+    /**
+     * Removes a server that asked to leave the ring. Unlike a failed one, it is sent the metadata without
+     * itself, upon which it hands its keys to the servers that took over its ranges, and then
+     * DISCONNECT_SUCCESS. The last server of the ring has no one to hand its keys to.
+     */
+    void leaveNode(ECSThread thread) {
+        disconnectNode(thread);
+        // after any broadcast that still included the server
+        synchronized (this.broadcastLock) {
+            String metadata = buildMetadata();
+            try {
+                if (!metadata.isEmpty()) {
+                    thread.sendMetadata(metadata, this.replicationFactor, this.replicationMode);
+                }
+                thread.sendDisconnectSuccess();
+            } catch (IOException e) {
+                LOGGER.warn("could not confirm that " + thread.getClientAddress() + " left the ring", e);
+            }
+        }
+    }
+
+    /**
+     * Replicates the keys the servers get at least the given number of GETs per second for to extra servers,
+     * the ones following their regular replicas on the ring, and lets clients spread their GETs over them.
+     *
+     * @param extraReplicas number of servers storing a hot key in addition to its regular replicas
+     */
+    public void enableHotKeyReplication(long requestsPerSecond, int extraReplicas) {
+        if (requestsPerSecond <= 0) {
+            throw new IllegalArgumentException("requestsPerSecond must be positive");
+        }
+        if (extraReplicas < 1) {
+            throw new IllegalArgumentException("extraReplicas must be at least 1");
+        }
+        this.hotKeys = new HotKeys(requestsPerSecond, extraReplicas);
+    }
+
+    /**
+     * @return the keys currently replicated to extra servers
+     */
+    public List<String> getHotKeys() {
+        HotKeys hotKeys = this.hotKeys;
+        return hotKeys == null ? Collections.emptyList() : hotKeys.getHotKeys();
+    }
+
+    void hotKeysReported(ECSThread thread, Map<String, Long> rates) {
+        HotKeys hotKeys = this.hotKeys;
+        if (hotKeys != null && hotKeys.report(thread, rates, System.currentTimeMillis())) {
+            broadcastHotKeys(hotKeys);
+        }
+    }
+
+    /**
+     * Sends the current hot keys to every connected KVServer. The hot keys are locked while they are sent,
+     * so concurrent changes reach all KVServers in the same order and the last one sent is the latest.
+     */
+    private void broadcastHotKeys(HotKeys hotKeys) {
+        synchronized (hotKeys) {
+            String encoded = hotKeys.encode();
+            LOGGER.info("hot keys changed: " + hotKeys.getHotKeys());
+            for (ECSThread thread : this.connectedNodes.values()) {
+                sendHotKeys(thread, encoded);
+            }
+        }
+    }
+
+    private static void sendHotKeys(ECSThread thread, String hotKeys) {
+        try {
+            thread.sendHotKeys(hotKeys);
+        } catch (IOException e) {
+            LOGGER.error("could not send hot keys to " + thread.getClientAddress(), e);
+        }
+    }
+
+    /**
+     * Sends the metadata to every connected KVServer. It is sent under the broadcast lock, so the ring
+     * changes reach all KVServers in the order they were made and the last metadata sent is the latest, as
+     * METADATA_UPDATE carries no epoch the KVServers could order them by.
+     */
+    private void broadcastMetadata() {
+        synchronized (this.broadcastLock) {
+            String metadata;
+            List<ECSThread> threads;
+            synchronized (this.ring) {
+                metadata = buildMetadata();
+                threads = new ArrayList<>(this.connectedNodes.values());
+            }
+
+            for (ECSThread thread : threads) {
+                try {
+                    thread.sendMetadata(metadata, this.replicationFactor, this.replicationMode);
+                } catch (IOException e) {
+                    LOGGER.error("could not send metadata to " + thread.getClientAddress(), e);
+                }
+            }
+        }
     }
 
     /**
      * @return semicolon separate triples kr-from, kr-to, ip:port
      */
     public String buildMetadata() {
-        StringBuilder metadata = new StringBuilder();
-        NavigableMap<String, ECSNode<Object>> map = this.ring.getMap();
-        String[] keys = map.keySet().toArray(new String[0]);
-        System.out.println(keys.length);
+        synchronized (this.ring) {
+            return this.ring.toMetadata(1);
+        }
+    }
 
-        for (int i = 0; i < keys.length; i++) {
-            String currentKey = keys[i];
-            String nextKey = i + 1 < keys.length ? keys[i + 1] : keys[0]; // handle wrap around
-            metadata.append(currentKey + ",");
-            metadata.append(HashUtils.hashSubtractOne(nextKey) + ",");
-            metadata.append(map.get(currentKey).getNodeIpAndPort() + ";");
+    /**
+     * Same as {@link #buildMetadata()}, but each range also covers the keys the node replicates.
+     *
+     * @return semicolon separate triples kr-from, kr-to, ip:port
+     */
+    public String buildReadMetadata() {
+        synchronized (this.ring) {
+            return this.ring.toMetadata(this.replicationFactor);
+        }
+    }
+
+    /**
+     * Sends STATS to every server of the ring and combines their metrics, see {@link Metrics#aggregate}.
+     * Servers that do not respond within STATS_TIMEOUT_MILLIS are left out and counted in
+     * "unreachable_servers".
+     */
+    public Metrics collectStats() {
+        Map<String, InetSocketAddress> servers = ringServers();
+        Map<String, Metrics> collected = collectStats(servers);
+        return Metrics.aggregate(collected.values()).set("unreachable_servers", servers.size() - collected.size());
+    }
+
+    /**
+     * @return the addresses of the servers of the ring, by their hash
+     */
+    private Map<String, InetSocketAddress> ringServers() {
+        Map<String, InetSocketAddress> servers = new LinkedHashMap<>();
+        synchronized (this.ring) {
+            for (Map.Entry<String, ECSNode<Object>> node : this.ring.getMap().entrySet()) {
+                servers.put(node.getKey(), node.getValue().getSocketAddress());
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Sends STATS to the servers in parallel.
+     *
+     * @return the metrics of the servers that responded, by hash
+     */
+    private static Map<String, Metrics> collectStats(Map<String, InetSocketAddress> servers) {
+        Map<String, CompletableFuture<Metrics>> responses = new LinkedHashMap<>();
+        for (Map.Entry<String, InetSocketAddress> server : servers.entrySet()) {
+            responses.put(server.getKey(), CompletableFuture.supplyAsync(() -> {
+                try {
+                    return requestStats(server.getValue());
+                } catch (IOException | IllegalArgumentException e) {
+                    LOGGER.warn("could not collect the metrics of " + server.getValue(), e);
+                    return null;
+                }
+            }));
+        }
+
+        Map<String, Metrics> collected = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<Metrics>> response : responses.entrySet()) {
+            Metrics metrics = response.getValue().join();
+            if (metrics != null) {
+                collected.put(response.getKey(), metrics);
+            }
+        }
+        return collected;
+    }
+
+    /**
+     * The load of a server is the mean of its share of the requests per second and its share of the stored
+     * bytes of the ring. Requests and bytes are left out while no server has any.
+     *
+     * @return the load of each server, by hash, adding up to 1 unless the ring is idle and empty
+     */
+    static Map<String, Double> loadShares(Map<String, Metrics> stats) {
+        double requests = 0;
+        double bytes = 0;
+        for (Metrics metrics : stats.values()) {
+            requests += valueOf(metrics, "requests_per_second");
+            bytes += valueOf(metrics, "storage_off_heap_bytes");
+        }
+
+        Map<String, Double> shares = new LinkedHashMap<>();
+        for (Map.Entry<String, Metrics> server : stats.entrySet()) {
+            double share = 0;
+            int parts = 0;
+            if (requests > 0) {
+                share += valueOf(server.getValue(), "requests_per_second") / requests;
+                parts++;
+            }
+            if (bytes > 0) {
+                share += valueOf(server.getValue(), "storage_off_heap_bytes") / bytes;
+                parts++;
+            }
+            shares.put(server.getKey(), parts == 0 ? 0 : share / parts);
+        }
+        return shares;
+    }
+
+    private static double valueOf(Metrics metrics, String name) {
+        double value = metrics.get(name);
+        return Double.isNaN(value) ? 0 : value;
+    }
+
+    /**
+     * @return the hash splitting the range of the most loaded server in halves of about the same load, null if
+     * the ring is empty or idle, or the server did not answer
+     */
+    private String splitMostLoadedRange() {
+        Map<String, InetSocketAddress> servers = ringServers();
+        Map<String, Double> shares = loadShares(collectStats(servers));
+        String mostLoaded = null;
+        for (Map.Entry<String, Double> share : shares.entrySet()) {
+            if (share.getValue() > 0 && (mostLoaded == null || share.getValue() > shares.get(mostLoaded))) {
+                mostLoaded = share.getKey();
+            }
+        }
+        return mostLoaded == null ? null : requestSplitPoint(servers.get(mostLoaded));
+    }
+
+    /**
+     * Moves the least loaded server to the split point of the most loaded one, see {@link #loadShares}, if
+     * the most loaded server carries REBALANCE_IMBALANCE times its fair share. The predecessor of the moved
+     * server takes over its range, so the server is only moved if the two of them carry less than the most
+     * loaded one; otherwise the move would only shift the hotspot. The servers hand the keys of the ranges
+     * they lost to their new coordinators.
+     *
+     * @return true if a server was moved
+     */
+    public boolean rebalance() {
+        Map<String, InetSocketAddress> servers = ringServers();
+        if (servers.size() < 3) {
+            return false;
+        }
+        Map<String, Metrics> stats = collectStats(servers);
+        if (stats.size() < servers.size()) {
+            // the load of the ring is not known while servers do not answer
+            return false;
+        }
+
+        Map<String, Double> shares = loadShares(stats);
+        List<String> hashes = new ArrayList<>(shares.keySet());
+        String mostLoaded = hashes.get(0);
+        String leastLoaded = hashes.get(0);
+        for (String hash : hashes) {
+            if (shares.get(hash) > shares.get(mostLoaded)) {
+                mostLoaded = hash;
+            }
+            if (shares.get(hash) < shares.get(leastLoaded)) {
+                leastLoaded = hash;
+            }
+        }
+        // the ring is sorted by hash, so is the list
+        String predecessor = hashes.get(Math.floorMod(hashes.indexOf(leastLoaded) - 1, hashes.size()));
+        if (shares.get(mostLoaded) < REBALANCE_IMBALANCE / servers.size() || predecessor.equals(mostLoaded)
+                || shares.get(leastLoaded) + shares.get(predecessor) >= shares.get(mostLoaded)) {
+            return false;
+        }
+
+        String splitPoint = requestSplitPoint(servers.get(mostLoaded));
+        if (splitPoint == null) {
+            return false;
+        }
+        ECSNode<Object> node;
+        synchronized (this.ring) {
+            node = this.ring.getNodeByHash(leastLoaded);
+            ECSThread thread = this.connectedNodes.get(leastLoaded);
+            // the ring changed meanwhile
+            if (node == null || thread == null || this.ring.getNodeByHash(mostLoaded) == null
+                    || this.ring.getMap().containsKey(splitPoint)) {
+                return false;
+            }
+            try {
+                this.ring.addNode(splitPoint, node.getSocketAddress().getHostString(), node.getSocketAddress().getPort());
+            } catch (IllegalArgumentException | UnknownHostException e) {
+                LOGGER.error("could not move node " + node.getNodeIpAndPort(), e);
+                return false;
+            }
+            this.ring.removeNode(leastLoaded);
+            this.connectedNodes.remove(leastLoaded);
+            this.connectedNodes.put(splitPoint, thread);
+            thread.setNodeHash(splitPoint);
+        }
+        LOGGER.info("moved node " + node.getNodeIpAndPort() + " from " + leastLoaded + " to " + splitPoint
+                + " to split the range of " + mostLoaded);
+        broadcastMetadata();
+        return true;
+    }
+
+    /**
+     * Calls {@link #rebalance()} at the given interval until the ECS stops. The servers measure their request
+     * rate over the last ten seconds, so shorter intervals move servers before the last move took effect.
+     */
+    public synchronized void startRebalancer(long intervalMillis) {
+        if (this.rebalancer != null) {
+            return;
+        }
+        this.rebalancer = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Thread.sleep(intervalMillis);
+                    rebalance();
+                }
+            } catch (InterruptedException e) {
+                // the ECS stopped
+            }
+        }, "rebalancer");
+        this.rebalancer.setDaemon(true);
+        this.rebalancer.start();
+    }
+
+    /**
+     * @return the split point the server sent, see {@link IKVMessage.StatusType#SPLIT_POINT}, null if it
+     * did not send one
+     */
+    private static String requestSplitPoint(InetSocketAddress server) {
+        try (Socket socket = new Socket()) {
+            socket.connect(server, SPLIT_POINT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(SPLIT_POINT_TIMEOUT_MILLIS);
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.SPLIT_POINT));
+            KVMessage response = socketMessenger.receiveMessage();
+            if (response.getStatus() != IKVMessage.StatusType.SPLIT_POINT_SUCCESS || !HashUtils.isHash(response.getKey())) {
+                LOGGER.warn(server + " did not send a split point: " + response.getStatus());
+                return null;
+            }
+            return response.getKey();
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("could not get the split point of " + server, e);
+            return null;
+        }
+    }
+
+    private static Metrics requestStats(InetSocketAddress server) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(server, STATS_TIMEOUT_MILLIS);
+            socket.setSoTimeout(STATS_TIMEOUT_MILLIS);
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.STATS));
+            KVMessage response = socketMessenger.receiveMessage();
+            if (response.getStatus() != IKVMessage.StatusType.STATS_SUCCESS) {
+                throw new IOException("expected STATS_SUCCESS, got " + response.getStatus());
+            }
+            return Metrics.decode(response.getKey());
         }
+    }
 
-        return metadata.toString();
+    /**
+     * Serves the metrics of the whole ring in the Prometheus text format on the loopback interface.
+     *
+     * @return the port the endpoint listens on
+     */
+    public synchronized int startMetricsEndpoint(int port) throws IOException {
+        if (this.metricsEndpoint == null) {
+            this.metricsEndpoint = new MetricsHttpServer(port, this::collectStats);
+        }
+        return this.metricsEndpoint.getPort();
     }
 
     private static void printUsage(Options options) {
@@ -106,6 +649,13 @@ public class ECSClient implements Runnable {
                 .addOption("a", true, "The address ECS will listen on. Default is localhost")
                 .addOption("l", true, "Relative path of the logfile, e.g., “echo.log”. Default is current directory")
                 .addOption("ll", true, "Loglevel, e.g., INFO, ALL, …. Default is ALL")
+                .addOption("n", true, "Number of servers storing each key. Default is 1")
+                .addOption("m", true, "How replicas are updated, either PRIMARY_BACKUP or CHAIN. Default is PRIMARY_BACKUP")
+                .addOption("mp", true, "Serve the metrics of all servers in the Prometheus text format on localhost at this port. Default is no endpoint")
+                .addOption("lp", false, "Place joining servers where they take over half of the load of the most loaded server. Default is the hash of their address")
+                .addOption("rb", true, "Move servers from idle ranges into the range of the most loaded server every this many seconds. Default is no rebalancing")
+                .addOption("hk", true, "Replicate keys getting at least this many GETs per second to extra servers. Default is no hot key replication")
+                .addOption("hr", true, "Number of extra servers storing each hot key. Default is " + DEFAULT_HOT_KEY_REPLICAS)
                 .addOption("h", false, "Display this help text");
 
         return options;
@@ -146,6 +696,81 @@ public class ECSClient implements Runnable {
             System.exit(1);
         }
 
+        int replicationFactor = DEFAULT_REPLICATION_FACTOR;
+        try {
+            replicationFactor = Integer.parseInt(cmd.getOptionValue("n", String.valueOf(DEFAULT_REPLICATION_FACTOR)));
+        } catch (NumberFormatException e) {
+            replicationFactor = 0;
+        }
+        if (replicationFactor < 1) {
+            System.out.println("argument n must be a positive integer");
+            printUsage(options);
+            System.exit(1);
+        }
+
+        ReplicationMode replicationMode = null;
+        try {
+            replicationMode = ReplicationMode.valueOf(cmd.getOptionValue("m", ReplicationMode.PRIMARY_BACKUP.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("argument m must be either PRIMARY_BACKUP or CHAIN");
+            printUsage(options);
+            System.exit(1);
+        }
+
+        int metricsPort = -1;
+        if (cmd.hasOption("mp")) {
+            try {
+                metricsPort = Integer.parseInt(cmd.getOptionValue("mp"));
+            } catch (NumberFormatException e) {
+                metricsPort = -1;
+            }
+            if (metricsPort < 0 || metricsPort > 65535) {
+                System.out.println("argument mp must be a port number");
+                printUsage(options);
+                System.exit(1);
+            }
+        }
+
+        long rebalanceSeconds = 0;
+        if (cmd.hasOption("rb")) {
+            try {
+                rebalanceSeconds = Long.parseLong(cmd.getOptionValue("rb"));
+            } catch (NumberFormatException e) {
+                rebalanceSeconds = 0;
+            }
+            if (rebalanceSeconds <= 0) {
+                System.out.println("argument rb must be a positive integer");
+                printUsage(options);
+                System.exit(1);
+            }
+        }
+
+        long hotKeyThreshold = 0;
+        if (cmd.hasOption("hk")) {
+            try {
+                hotKeyThreshold = Long.parseLong(cmd.getOptionValue("hk"));
+            } catch (NumberFormatException e) {
+                hotKeyThreshold = 0;
+            }
+            if (hotKeyThreshold <= 0) {
+                System.out.println("argument hk must be a positive integer");
+                printUsage(options);
+                System.exit(1);
+            }
+        }
+
+        int hotKeyReplicas = DEFAULT_HOT_KEY_REPLICAS;
+        try {
+            hotKeyReplicas = Integer.parseInt(cmd.getOptionValue("hr", String.valueOf(DEFAULT_HOT_KEY_REPLICAS)));
+        } catch (NumberFormatException e) {
+            hotKeyReplicas = 0;
+        }
+        if (hotKeyReplicas < 1) {
+            System.out.println("argument hr must be a positive integer");
+            printUsage(options);
+            System.exit(1);
+        }
+
         String logfilePath = cmd.getOptionValue("l", String.valueOf(Paths.get(System.getProperty("user.dir"), "echo.log")));
         String logLevel = cmd.getOptionValue("ll", "ALL");
 
@@ -164,7 +789,17 @@ public class ECSClient implements Runnable {
         }
 
         try {
-            ECSClient ecs = new ECSClient(address, port);
+            ECSClient ecs = new ECSClient(address, port, replicationFactor, replicationMode);
+            if (metricsPort >= 0) {
+                ecs.startMetricsEndpoint(metricsPort);
+            }
+            ecs.setLoadAwarePlacement(cmd.hasOption("lp"));
+            if (rebalanceSeconds > 0) {
+                ecs.startRebalancer(TimeUnit.SECONDS.toMillis(rebalanceSeconds));
+            }
+            if (hotKeyThreshold > 0) {
+                ecs.enableHotKeyReplication(hotKeyThreshold, hotKeyReplicas);
+            }
             ecs.run();
         } catch (IOException e) {
             LOGGER.error("Failed to start ECS", e);
@@ -1,5 +1,6 @@
 package app_kvECS;
 
+import ecs.ReplicationMode;
 import org.apache.log4j.Logger;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
@@ -8,9 +9,17 @@ import shared.UnexpectedMessageException;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ECSThread extends Thread {
     private static final Logger LOGGER = Logger.getRootLogger();
+    /**
+     * Time a KVServer has to send CONNECT after opening the connection.
+     */
+    static final int CONNECT_TIMEOUT_MILLIS = 5000;
 
     private final Socket socket;
     private final ECSClient ecs;
@@ -20,6 +29,11 @@ public class ECSThread extends Thread {
     private boolean ready;
     private String clientAddress;
     private String ringAddress;
+    // Hash of the KVServer on the ring, null if its address could not be added to the ring; changes when the
+    // ECS moves the KVServer, guarded by the ring
+    private volatile String nodeHash;
+    // Created once the KVServer joins the ring, which counts as its first heartbeat
+    private volatile PhiAccrualFailureDetector failureDetector;
 
     public ECSThread(Socket socket, ECSClient ecs) throws IOException {
         this.socket = socket;
@@ -31,17 +45,29 @@ public class ECSThread extends Thread {
 
     @Override
     public void run() {
-        try (Socket socket = this.socket) {
+        try {
             waitForConnect();
-            // TODO: add this KVServer to hash ring
             sendConnectSuccess();
+            addToRing();
 
             while (this.ready) {
                 KVMessage msg = this.socketMessenger.receiveMessage();
                 if (msg.getStatus() == IKVMessage.StatusType.DISCONNECT) {
+                    this.ecs.leaveNode(this);
                     this.ready = false;
                     break;
                 }
+                if (msg.getStatus() == IKVMessage.StatusType.HEARTBEAT) {
+                    PhiAccrualFailureDetector failureDetector = this.failureDetector;
+                    if (failureDetector != null) {
+                        failureDetector.heartbeat(System.currentTimeMillis());
+                    }
+                    continue;
+                }
+                if (msg.getStatus() == IKVMessage.StatusType.HOT_KEYS) {
+                    reportHotKeys(msg);
+                    continue;
+                }
 
                 // TODO: Handle other messages (i.e. TRANSFER_SUCCESS)
             }
@@ -49,12 +75,17 @@ public class ECSThread extends Thread {
             LOGGER.error("Communications error occurred with client", e);
         } catch (UnexpectedMessageException e) {
             LOGGER.warn("KVServer sent unexpected messages", e);
+        } finally {
+            close();
+            this.ecs.disconnectNode(this);
         }
     }
 
     private void waitForConnect() throws IOException, UnexpectedMessageException {
-        // TODO: explore adding a timeout for this
+        // A peer that never sends CONNECT would otherwise hold this thread forever
+        this.socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
         KVMessage connectMsg = this.socketMessenger.receiveMessage();
+        this.socket.setSoTimeout(0);
         if (connectMsg.getStatus() != IKVMessage.StatusType.CONNECT) {
             throw new UnexpectedMessageException(connectMsg,
                     "expected CONNECT as the first message");
@@ -65,12 +96,91 @@ public class ECSThread extends Thread {
     }
 
     private void sendConnectSuccess() throws IOException {
-        System.out.println("sent connect");
         KVMessage msg = new KVMessage(IKVMessage.StatusType.CONNECT_SUCCESS);
         this.socketMessenger.sendMessage(msg);
         this.ready = true;
     }
 
+    private void addToRing() {
+        // clientAddress should look like: <address>:<port>
+        String[] addressPort = this.clientAddress.split(":");
+        try {
+            if (addressPort.length != 2) {
+                throw new IllegalArgumentException("expected <address>:<port>");
+            }
+            this.failureDetector = this.ecs.newFailureDetector();
+            this.ecs.connectNode(this, addressPort[0], Integer.parseInt(addressPort[1]));
+        } catch (IllegalArgumentException | UnknownHostException e) {
+            LOGGER.warn("KVServer connected with invalid address " + this.clientAddress + ", it is not added to the ring", e);
+        }
+    }
+
+    private void reportHotKeys(KVMessage msg) {
+        // the key should look like: <key> <GETs per second> <key> <GETs per second> ...
+        String[] parts = msg.getKey().split(" ");
+        Map<String, Long> rates = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i + 1 < parts.length; i += 2) {
+                rates.put(parts[i], Long.parseLong(parts[i + 1]));
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.warn("KVServer " + this.clientAddress + " sent invalid hot keys", e);
+            return;
+        }
+        this.ecs.hotKeysReported(this, rates);
+    }
+
+    /**
+     * Sends HOT_KEYS_UPDATE to the KVServer, safe to call while this thread waits for messages.
+     *
+     * @param hotKeys the number of extra replicas followed by the space separated hot keys
+     */
+    void sendHotKeys(String hotKeys) throws IOException {
+        this.socketMessenger.sendMessage(new KVMessage(hotKeys, IKVMessage.StatusType.HOT_KEYS_UPDATE));
+    }
+
+    /**
+     * Sends METADATA_UPDATE to the KVServer, safe to call while this thread waits for messages.
+     */
+    void sendMetadata(String metadata, int replicationFactor, ReplicationMode replicationMode) throws IOException {
+        byte[] mode = replicationMode.name().toLowerCase().getBytes(StandardCharsets.UTF_8);
+        this.socketMessenger.sendMessage(new KVMessage(metadata, replicationFactor, mode, IKVMessage.StatusType.METADATA_UPDATE));
+    }
+
+    /**
+     * Confirms that the KVServer left the ring, after which the connection is closed.
+     */
+    void sendDisconnectSuccess() throws IOException {
+        this.socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.DISCONNECT_SUCCESS));
+    }
+
+    /**
+     * @return suspicion that the KVServer failed, 0 until it joined the ring
+     */
+    double phi(long nowMillis) {
+        PhiAccrualFailureDetector failureDetector = this.failureDetector;
+        return failureDetector == null ? 0 : failureDetector.phi(nowMillis);
+    }
+
+    /**
+     * Closes the connection to the KVServer, which ends this thread.
+     */
+    void close() {
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            LOGGER.warn("could not close connection to " + this.clientAddress, e);
+        }
+    }
+
+    String getNodeHash() {
+        return this.nodeHash;
+    }
+
+    void setNodeHash(String nodeHash) {
+        this.nodeHash = nodeHash;
+    }
+
     public String getClientAddress() {
         return this.clientAddress;
     }
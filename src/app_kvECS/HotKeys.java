@@ -0,0 +1,116 @@
+package app_kvECS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which keys are hot from the HOT_KEYS reports of the KVServers. A key is hot once the GETs per
+ * second all servers report for it reach the threshold, and stays hot until they drop below half of it,
+ * so a key around the threshold is not replicated and dropped over and over. At most MAX_HOT_KEYS keys,
+ * the most requested ones, are hot at a time.
+ */
+class HotKeys {
+    static final int MAX_HOT_KEYS = 16;
+    /**
+     * Servers report once a second while they get GETs, older reports are from servers that got none since.
+     */
+    static final long REPORT_LIFETIME_MILLIS = 3000;
+
+    private final long threshold;
+    private final int extraReplicas;
+    private final Map<ECSThread, Report> reports = new HashMap<>();
+    private List<String> hot = Collections.emptyList();
+
+    private static final class Report {
+        final Map<String, Long> rates;
+        final long receivedAt;
+
+        Report(Map<String, Long> rates, long receivedAt) {
+            this.rates = rates;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    /**
+     * @param threshold     GETs per second that make a key hot
+     * @param extraReplicas number of servers storing a hot key in addition to its regular replicas
+     */
+    HotKeys(long threshold, int extraReplicas) {
+        this.threshold = threshold;
+        this.extraReplicas = extraReplicas;
+    }
+
+    /**
+     * @param rates GETs per second of the keys the server got the most GETs for
+     * @return true if the hot keys changed
+     */
+    synchronized boolean report(ECSThread server, Map<String, Long> rates, long now) {
+        this.reports.put(server, new Report(rates, now));
+        return update(now);
+    }
+
+    /**
+     * Forgets the report of a server that left the ring.
+     *
+     * @return true if the hot keys changed
+     */
+    synchronized boolean remove(ECSThread server, long now) {
+        return this.reports.remove(server) != null && update(now);
+    }
+
+    /**
+     * Forgets the reports that were not renewed, which cools down the keys of servers that get no GETs.
+     *
+     * @return true if the hot keys changed
+     */
+    synchronized boolean expire(long now) {
+        return update(now);
+    }
+
+    synchronized List<String> getHotKeys() {
+        return this.hot;
+    }
+
+    /**
+     * @return the key of HOT_KEYS_UPDATE, the number of extra replicas followed by the hot keys
+     */
+    synchronized String encode() {
+        StringBuilder encoded = new StringBuilder(Integer.toString(this.extraReplicas));
+        for (String key : this.hot) {
+            encoded.append(' ').append(key);
+        }
+        return encoded.toString();
+    }
+
+    private boolean update(long now) {
+        this.reports.values().removeIf(report -> now - report.receivedAt > REPORT_LIFETIME_MILLIS);
+        Map<String, Long> totals = new HashMap<>();
+        for (Report report : this.reports.values()) {
+            for (Map.Entry<String, Long> rate : report.rates.entrySet()) {
+                totals.merge(rate.getKey(), rate.getValue(), Long::sum);
+            }
+        }
+
+        List<String> hot = new ArrayList<>();
+        for (Map.Entry<String, Long> total : totals.entrySet()) {
+            long threshold = this.hot.contains(total.getKey()) ? this.threshold / 2 : this.threshold;
+            if (total.getValue() >= threshold) {
+                hot.add(total.getKey());
+            }
+        }
+        hot.sort((a, b) -> Long.compare(totals.get(b), totals.get(a)));
+        if (hot.size() > MAX_HOT_KEYS) {
+            hot = hot.subList(0, MAX_HOT_KEYS);
+        }
+
+        if (new HashSet<>(hot).equals(new HashSet<>(this.hot))) {
+            return false;
+        }
+        this.hot = Collections.unmodifiableList(new ArrayList<>(hot));
+        return true;
+    }
+}
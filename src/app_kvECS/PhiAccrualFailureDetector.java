@@ -0,0 +1,77 @@
+package app_kvECS;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.) for the heartbeats of one KVServer.
+ * <p>
+ * Instead of a fixed timeout, the detector learns the distribution of the intervals between heartbeats and
+ * reports phi, the suspicion that the server failed: phi = -log10(P(a heartbeat arrives later than now)).
+ * A phi of 8 means the silence would have been a one in 10^8 chance for a live server. Servers with
+ * jittery heartbeats thus get more time before they are suspected, and regular ones are detected quickly.
+ * The normal distribution is approximated with a logistic function, as in Akka.
+ */
+public class PhiAccrualFailureDetector {
+    public static final double DEFAULT_THRESHOLD = 8.0;
+    public static final int DEFAULT_MAX_SAMPLE_SIZE = 200;
+
+    private final long minStdDeviationMillis;
+    private final long acceptableHeartbeatPauseMillis;
+    private final long[] intervals;
+    private int sampleCount;
+    private int nextSample;
+    private long intervalSum;
+    private long intervalSquaredSum;
+    private long lastHeartbeatMillis;
+
+    /**
+     * @param firstHeartbeatEstimateMillis expected interval between heartbeats, used until some arrived
+     * @param minStdDeviationMillis        lower bound for the deviation of the intervals, so perfectly
+     *                                     regular heartbeats do not make the detector overly sensitive
+     * @param acceptableHeartbeatPauseMillis pause on top of the mean interval that is not held against the
+     *                                     server, e.g. for garbage collection
+     * @param nowMillis                    current time, which counts as the first heartbeat
+     */
+    public PhiAccrualFailureDetector(long firstHeartbeatEstimateMillis, long minStdDeviationMillis,
+                                     long acceptableHeartbeatPauseMillis, int maxSampleSize, long nowMillis) {
+        if (firstHeartbeatEstimateMillis <= 0 || minStdDeviationMillis <= 0 || maxSampleSize < 2) {
+            throw new IllegalArgumentException("estimates must be positive and the sample size at least 2");
+        }
+        this.minStdDeviationMillis = minStdDeviationMillis;
+        this.acceptableHeartbeatPauseMillis = acceptableHeartbeatPauseMillis;
+        this.intervals = new long[maxSampleSize];
+        this.lastHeartbeatMillis = nowMillis;
+
+        // bootstrap with two intervals around the estimate
+        long stdDeviation = firstHeartbeatEstimateMillis / 4;
+        addInterval(firstHeartbeatEstimateMillis - stdDeviation);
+        addInterval(firstHeartbeatEstimateMillis + stdDeviation);
+    }
+
+    public synchronized void heartbeat(long nowMillis) {
+        addInterval(Math.max(0, nowMillis - this.lastHeartbeatMillis));
+        this.lastHeartbeatMillis = nowMillis;
+    }
+
+    public synchronized double phi(long nowMillis) {
+        double mean = (double) this.intervalSum / this.sampleCount;
+        double variance = (double) this.intervalSquaredSum / this.sampleCount - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(0, variance)), this.minStdDeviationMillis);
+
+        double y = (nowMillis - this.lastHeartbeatMillis - mean - this.acceptableHeartbeatPauseMillis) / stdDeviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    private void addInterval(long interval) {
+        if (this.sampleCount == this.intervals.length) {
+            long evicted = this.intervals[this.nextSample];
+            this.intervalSum -= evicted;
+            this.intervalSquaredSum -= evicted * evicted;
+        } else {
+            this.sampleCount++;
+        }
+        this.intervals[this.nextSample] = interval;
+        this.nextSample = (this.nextSample + 1) % this.intervals.length;
+        this.intervalSum += interval;
+        this.intervalSquaredSum += interval * interval;
+    }
+}
@@ -0,0 +1,206 @@
+package app_kvServer;
+
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log of the requests a server handled, kept apart from the diagnostic log.
+ * <p>
+ * Request threads only copy a few fields into a preallocated slot of a ring buffer, which a background
+ * thread formats and writes to the file. Only the first MAX_LOGGED_VALUE_BYTES of a value are kept, and
+ * optionally only one in sampleEvery requests is logged. When the writer falls behind by the capacity of
+ * the buffer, entries are dropped rather than delaying requests, and the number of dropped entries is
+ * written to the log instead.
+ */
+public class AccessLog implements Closeable {
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int MAX_LOGGED_VALUE_BYTES = 32;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Slot[] slots;
+    private final int mask;
+    private final int sampleEvery;
+    private final Writer output;
+    private final Thread writer;
+    /**
+     * Sequence of the next entry to claim, entries below are claimed by a request thread.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * Sequence of the next entry to write, entries below are written and their slots free again.
+     */
+    private volatile long consumed;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean closed;
+    private IOException failure;
+
+    private static final class Slot {
+        // sequence of the entry held, set once all other fields are filled in
+        volatile long published = -1;
+        long timestampMillis;
+        String client;
+        StatusType request;
+        String key;
+        int valueLength;
+        int prefixLength;
+        final byte[] valuePrefix = new byte[MAX_LOGGED_VALUE_BYTES];
+        StatusType response;
+        long durationNanos;
+    }
+
+    /**
+     * @param path        file the entries are appended to
+     * @param capacity    entries the buffer holds, rounded up to a power of two
+     * @param sampleEvery log one in this many requests, 1 to log all of them
+     */
+    public AccessLog(String path, int capacity, int sampleEvery) throws IOException {
+        this(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), capacity, sampleEvery);
+    }
+
+    AccessLog(Writer output, int capacity, int sampleEvery) {
+        if (capacity <= 0 || sampleEvery <= 0) {
+            throw new IllegalArgumentException("capacity and sampleEvery must be positive");
+        }
+        int size = Integer.highestOneBit(capacity - 1 << 1 | 1);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            this.slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.sampleEvery = sampleEvery;
+        this.output = new BufferedWriter(output, WRITE_BUFFER_SIZE);
+        this.writer = new Thread(this::write, "access-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Adds an entry for a request without blocking.
+     *
+     * @param client        remote address of the connection
+     * @param response      status of the response, null if none was sent
+     * @param durationNanos time from receiving the request to sending the response
+     */
+    public void record(String client, KVMessage request, StatusType response, long durationNanos) {
+        if (this.closed || (this.sampleEvery > 1 && ThreadLocalRandom.current().nextInt(this.sampleEvery) != 0)) {
+            return;
+        }
+
+        long sequence;
+        do {
+            sequence = this.claimed.get();
+            if (sequence - this.consumed >= this.slots.length) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.claimed.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = this.slots[(int) sequence & this.mask];
+        slot.timestampMillis = System.currentTimeMillis();
+        slot.client = client;
+        slot.request = request.getStatus();
+        slot.key = request.getKey();
+        byte[] value = request.getValueBytes();
+        slot.valueLength = value == null ? -1 : value.length;
+        slot.prefixLength = value == null ? 0 : Math.min(value.length, MAX_LOGGED_VALUE_BYTES);
+        if (value != null) {
+            System.arraycopy(value, 0, slot.valuePrefix, 0, slot.prefixLength);
+        }
+        slot.response = response;
+        slot.durationNanos = durationNanos;
+        slot.published = sequence;
+    }
+
+    /**
+     * @return the number of entries dropped because the buffer was full
+     */
+    public long dropped() {
+        return this.dropped.sum();
+    }
+
+    private void write() {
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        boolean unflushed = false;
+        try {
+            while (true) {
+                long next = this.consumed;
+                Slot slot = this.slots[(int) next & this.mask];
+                if (slot.published == next) {
+                    line.setLength(0);
+                    format(slot, line);
+                    this.output.append(line);
+                    unflushed = true;
+                    this.consumed = next + 1;
+                    continue;
+                }
+
+                if (this.closed && this.claimed.get() == next) {
+                    break;
+                }
+                long drops = this.dropped.sum();
+                if (drops != reportedDrops) {
+                    this.output.append(Instant.now().toString()).append(" dropped ").append(String.valueOf(drops - reportedDrops))
+                            .append(" entries\n");
+                    reportedDrops = drops;
+                    unflushed = true;
+                }
+                if (unflushed) {
+                    // the buffer is drained, so the file is at most one idle period behind
+                    this.output.flush();
+                    unflushed = false;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            this.output.flush();
+        } catch (IOException e) {
+            this.failure = e;
+            this.closed = true;
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(slot.timestampMillis)).append(' ')
+                .append(slot.client).append(' ')
+                .append(slot.request).append(' ')
+                .append(slot.key);
+        if (slot.valueLength >= 0) {
+            line.append(' ').append(slot.valueLength).append(" \"");
+            String prefix = new String(slot.valuePrefix, 0, slot.prefixLength, StandardCharsets.UTF_8);
+            for (int i = 0; i < prefix.length(); i++) {
+                char c = prefix.charAt(i);
+                line.append(c < ' ' || c == '"' ? '?' : c);
+            }
+            line.append(slot.valueLength > slot.prefixLength ? "...\"" : "\"");
+        }
+        line.append(' ').append(slot.response == null ? "-" : slot.response)
+                .append(' ').append(TimeUnit.NANOSECONDS.toMicros(slot.durationNanos)).append("us\n");
+    }
+
+    /**
+     * Writes the remaining entries and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.output.close();
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package app_kvServer;
+
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the client connections, the client requests being handled at a time and the bytes of their keys
+ * and values, so an overloaded server answers SERVER_BUSY right away instead of queueing ever more work
+ * until every request is late. A limit of 0 disables it.
+ * <p>
+ * Only the requests of clients are limited. Replicated writes, anti-entropy, handoffs and the queries of
+ * the ECS arrive on the client port as well, but shedding them would leave replicas behind or the ECS
+ * blind exactly when the ring is busiest. Replicas forward some writes and hints as client requests, their
+ * senders retry those that were refused.
+ */
+class AdmissionControl {
+    /**
+     * Bytes a request takes in addition to its key and value, roughly those of the status and separators.
+     */
+    static final int REQUEST_OVERHEAD_BYTES = 32;
+
+    private volatile int maxConnections;
+    private volatile int maxInFlight;
+    private volatile long maxQueuedBytes;
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxConnections connections with client requests open at a time, 0 for no limit
+     * @param maxInFlight    client requests being handled at a time, 0 for no limit
+     * @param maxQueuedBytes bytes of the client requests being handled at a time, 0 for no limit
+     */
+    void setLimits(int maxConnections, int maxInFlight, long maxQueuedBytes) {
+        this.maxConnections = maxConnections;
+        this.maxInFlight = maxInFlight;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * @return true for the requests of clients, which are limited
+     */
+    static boolean isLimited(StatusType request) {
+        switch (request) {
+            case PUT:
+            case PUT_TTL:
+            case PUT_HINTED:
+            case PUT_VERSIONED:
+            case CAS:
+            case CAS_VERSION:
+            case INCREMENT:
+            case APPEND:
+            case GET:
+            case GET_VERSIONED:
+            case SUBSCRIBE:
+            case WATCH:
+            case WATCH_RANGE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the bytes the request is counted with against the queued bytes limit
+     */
+    static long sizeOf(KVMessage request) {
+        String key = request.getKey();
+        byte[] value = request.getValueBytes();
+        return REQUEST_OVERHEAD_BYTES + (key == null ? 0 : key.length()) + (value == null ? 0 : value.length);
+    }
+
+    /**
+     * Counts a connection once it sent its first client request.
+     *
+     * @return false if too many are open, in which case the connection is not counted and should be closed
+     */
+    boolean tryOpenConnection() {
+        int maxConnections = this.maxConnections;
+        if (this.connections.incrementAndGet() > maxConnections && maxConnections > 0) {
+            this.connections.decrementAndGet();
+            this.rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called once a connection counted by {@link #tryOpenConnection()} closed.
+     */
+    void connectionClosed() {
+        this.connections.decrementAndGet();
+    }
+
+    /**
+     * Counts a client request until it was answered.
+     *
+     * @param bytes see {@link #sizeOf}
+     * @return false if too many requests or bytes are being handled, in which case the request is not counted
+     * and should be answered with SERVER_BUSY
+     */
+    boolean admit(long bytes) {
+        int maxInFlight = this.maxInFlight;
+        long maxQueuedBytes = this.maxQueuedBytes;
+        int inFlight = this.inFlight.incrementAndGet();
+        long queuedBytes = this.queuedBytes.addAndGet(bytes);
+        // a single request larger than the limit is let through while nothing else is queued
+        if ((maxInFlight > 0 && inFlight > maxInFlight)
+                || (maxQueuedBytes > 0 && queuedBytes > maxQueuedBytes && queuedBytes > bytes)) {
+            release(bytes);
+            this.rejected.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called once a request counted by {@link #admit} was answered.
+     */
+    void release(long bytes) {
+        this.inFlight.decrementAndGet();
+        this.queuedBytes.addAndGet(-bytes);
+    }
+
+    int inFlight() {
+        return this.inFlight.get();
+    }
+
+    long queuedBytes() {
+        return this.queuedBytes.get();
+    }
+
+    /**
+     * @return the number of connections and requests refused so far
+     */
+    long rejected() {
+        return this.rejected.sum();
+    }
+}
@@ -0,0 +1,453 @@
+package app_kvServer;
+
+import ecs.ECSNode;
+import ecs.ECSRing;
+import org.apache.log4j.Logger;
+import shared.HashUtils;
+import shared.jfr.TransferEvent;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+import storage.KVStorage;
+import storage.VersionedValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static shared.messages.IKVMessage.StatusType.*;
+
+/**
+ * Background repair of replicas that drifted apart, e.g. because one of them missed writes while it was
+ * down.
+ * <p>
+ * The server keeps a {@link MerkleTree} for every range it stores, which follows the changes to the
+ * storage. Every interval, the coordinator of a range compares its tree with the tree of each replica
+ * top-down, one level per request, descending only into nodes whose hashes differ. The replica then lists
+ * the keys of the differing leaves with their versions and digests, and only the keys whose digests differ
+ * are sent: the coordinator's copy is pushed, unless the replica holds a newer version written by a quorum
+ * client, which is fetched instead.
+ */
+class AntiEntropy extends Thread {
+    static final long DEFAULT_INTERVAL_MILLIS = 30_000;
+    private static final int LEAVES_PER_REQUEST = 64;
+    private static final long REQUEST_TIMEOUT_SECONDS = 10;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final KVServer server;
+    private final KVStorage storage;
+    private final long intervalMillis;
+    private volatile Trees trees = Trees.EMPTY;
+    private final Object repairLock = new Object();
+
+    /**
+     * Trees of the ranges this server stores under one version of the metadata.
+     */
+    private static final class Trees implements KVStorage.ChangeListener {
+        static final Trees EMPTY = new Trees(new ECSRing<>(), 1, Collections.emptyList());
+
+        final ECSRing<Object> ring;
+        final int replicationFactor;
+        final List<MerkleTree> trees;
+
+        Trees(ECSRing<Object> ring, int replicationFactor, List<MerkleTree> trees) {
+            this.ring = ring;
+            this.replicationFactor = replicationFactor;
+            this.trees = trees;
+        }
+
+        @Override
+        public void changed(String key, long previousDigest, long digest) {
+            String hash = HashUtils.md5(key);
+            MerkleTree tree = treeFor(hash);
+            if (tree != null) {
+                tree.update(hash, previousDigest, digest);
+            }
+        }
+
+        MerkleTree treeFor(String hash) {
+            for (MerkleTree tree : this.trees) {
+                if (tree.contains(hash)) {
+                    return tree;
+                }
+            }
+            return null;
+        }
+
+        MerkleTree treeOf(String range) {
+            for (MerkleTree tree : this.trees) {
+                if (tree.getRange().equals(range)) {
+                    return tree;
+                }
+            }
+            return null;
+        }
+    }
+
+    AntiEntropy(KVServer server, KVStorage storage, long intervalMillis) {
+        super("anti-entropy");
+        this.server = server;
+        this.storage = storage;
+        this.intervalMillis = intervalMillis;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                Thread.sleep(this.intervalMillis);
+                int repaired = repair();
+                if (repaired > 0) {
+                    LOGGER.info("anti-entropy repaired " + repaired + " keys");
+                }
+            }
+        } catch (InterruptedException e) {
+            // the server is closing
+        }
+    }
+
+    /**
+     * Builds the trees of the ranges this server stores under new metadata. The trees are kept if the
+     * ranges did not change. Without replicas there is nothing to compare, so changes are not followed.
+     */
+    synchronized void updateMetadata(ECSRing<Object> ring, int replicationFactor) {
+        if (replicationFactor <= 1 || ring.getMap().isEmpty()) {
+            this.storage.setChangeListener(null);
+            this.trees = Trees.EMPTY;
+            return;
+        }
+
+        List<String> ranges = new ArrayList<>();
+        String self = this.server.getNodeIpAndPort();
+        for (String hash : ring.getMap().keySet()) {
+            if (containsNode(ring.getReplicas(hash, replicationFactor), self)) {
+                String next = ring.getMap().higherKey(hash);
+                ranges.add(hash + "," + HashUtils.hashSubtractOne(next == null ? ring.getMap().firstKey() : next));
+            }
+        }
+
+        Trees current = this.trees;
+        List<String> currentRanges = new ArrayList<>();
+        for (MerkleTree tree : current.trees) {
+            currentRanges.add(tree.getRange());
+        }
+        if (current != Trees.EMPTY && currentRanges.equals(ranges)) {
+            // the registered listener keeps updating the same trees
+            this.trees = new Trees(ring, replicationFactor, current.trees);
+            return;
+        }
+
+        List<MerkleTree> trees = new ArrayList<>();
+        for (String range : ranges) {
+            String[] bounds = range.split(",");
+            trees.add(new MerkleTree(bounds[0], bounds[1]));
+        }
+        Trees updated = new Trees(ring, replicationFactor, trees);
+        this.storage.setChangeListener(updated);
+        this.trees = updated;
+    }
+
+    /**
+     * Compares the ranges this server coordinates with their replicas and repairs the differences. Repairs
+     * take round trips to the replicas, so they do not hold the lock metadata updates are applied under.
+     *
+     * @return the number of keys that were sent or fetched
+     */
+    int repair() throws InterruptedException {
+        synchronized (this.repairLock) {
+            Trees trees = this.trees;
+            String self = this.server.getNodeIpAndPort();
+            int repaired = 0;
+            for (MerkleTree tree : trees.trees) {
+                List<ECSNode<Object>> replicas = trees.ring.getReplicas(tree.getFrom(), trees.replicationFactor);
+                if (replicas.isEmpty() || !replicas.get(0).getNodeIpAndPort().equals(self)) {
+                    continue;
+                }
+
+                for (ECSNode<Object> replica : replicas.subList(1, replicas.size())) {
+                    try (ReplicaLink link = new ReplicaLink(replica.getSocketAddress())) {
+                        repaired += repair(tree, link);
+                    } catch (IOException e) {
+                        LOGGER.warn("could not compare range " + tree.getRange() + " with " + replica.getNodeIpAndPort(), e);
+                    }
+                }
+            }
+            return repaired;
+        }
+    }
+
+    private int repair(MerkleTree tree, ReplicaLink link) throws IOException, InterruptedException {
+        List<Integer> leaves = differingLeaves(tree, link);
+        int repaired = 0;
+        for (int i = 0; i < leaves.size(); i += LEAVES_PER_REQUEST) {
+            repaired += repairLeaves(tree, link, leaves.subList(i, Math.min(i + LEAVES_PER_REQUEST, leaves.size())));
+        }
+        return repaired;
+    }
+
+    /**
+     * Walks both trees down from the root, one level per request.
+     */
+    private List<Integer> differingLeaves(MerkleTree tree, ReplicaLink link) throws IOException, InterruptedException {
+        List<Integer> leaves = new ArrayList<>();
+        List<Integer> nodes = Collections.singletonList(MerkleTree.ROOT);
+        while (!nodes.isEmpty()) {
+            KVMessage response = await(link.send(new KVMessage(tree.getRange(), join(nodes), SYNC_TREE)));
+            expectStatus(response, SYNC_TREE_SUCCESS);
+            String[] hashes = response.getValue().split(",");
+            if (hashes.length != nodes.size()) {
+                throw new IOException("replica sent " + hashes.length + " hashes for " + nodes.size() + " nodes");
+            }
+
+            List<Integer> next = new ArrayList<>();
+            for (int i = 0; i < hashes.length; i++) {
+                int node = nodes.get(i);
+                if (parseHex(hashes[i]) == tree.hash(node)) {
+                    continue;
+                }
+                if (MerkleTree.isLeaf(node)) {
+                    leaves.add(node);
+                } else {
+                    next.add(2 * node);
+                    next.add(2 * node + 1);
+                }
+            }
+            nodes = next;
+        }
+        return leaves;
+    }
+
+    private int repairLeaves(MerkleTree tree, ReplicaLink link, List<Integer> leaves) throws IOException, InterruptedException {
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        KVMessage response = await(link.send(new KVMessage(tree.getRange(), join(leaves), SYNC_LEAF)));
+        expectStatus(response, SYNC_LEAF_SUCCESS);
+        Map<String, long[]> remote = new HashMap<>();
+        String[] fields = response.getValue().isEmpty() ? new String[0] : response.getValue().split(" ");
+        if (fields.length % 3 != 0) {
+            throw new IOException("replica sent incomplete leaf entries");
+        }
+        for (int i = 0; i < fields.length; i += 3) {
+            remote.put(fields[i], new long[]{parseHex(fields[i + 1]), parseHex(fields[i + 2])});
+        }
+        Map<String, long[]> local = entriesOf(tree, new HashSet<>(leaves));
+
+        Set<String> keys = new HashSet<>(local.keySet());
+        keys.addAll(remote.keySet());
+        List<CompletableFuture<KVMessage>> pushes = new ArrayList<>();
+        int repaired = 0;
+        long pushedBytes = 0;
+        for (String key : keys) {
+            long[] localEntry = local.get(key);
+            long[] remoteEntry = remote.get(key);
+            if (localEntry != null && remoteEntry != null && localEntry[1] == remoteEntry[1]) {
+                continue;
+            }
+
+            long localVersion = localEntry == null ? KVStorage.NO_VERSION : localEntry[0];
+            long remoteVersion = remoteEntry == null ? KVStorage.NO_VERSION : remoteEntry[0];
+            if (remoteVersion > localVersion) {
+                fetch(link, key);
+            } else {
+                KVMessage push = pushRequest(key, remoteEntry == null ? 0 : remoteEntry[1]);
+                long bytes = push.getValueBytes() == null ? 0 : push.getValueBytes().length;
+                this.server.getTransferThrottle().acquire(bytes);
+                pushedBytes += bytes;
+                pushes.add(link.send(push));
+            }
+            repaired++;
+        }
+
+        // fetched keys were applied here already
+        int applied = repaired - pushes.size();
+        for (CompletableFuture<KVMessage> push : pushes) {
+            KVMessage pushResponse = await(push);
+            if (pushResponse.getStatus() != PUT_SUCCESS && pushResponse.getStatus() != DELETE_SUCCESS) {
+                // e.g. because the key changed on the replica in the meantime, it is compared again next round
+                LOGGER.warn("replica did not apply the repair of <" + pushResponse.getKey() + ">: " + pushResponse.getStatus());
+            } else {
+                applied++;
+            }
+        }
+        event.finish(TransferEvent.ANTI_ENTROPY, link.getAddress().getHostString() + ":" + link.getAddress().getPort(),
+                repaired, applied, pushedBytes);
+        return repaired;
+    }
+
+    /**
+     * @return version and digest of the local keys in the given leaves
+     */
+    private Map<String, long[]> entriesOf(MerkleTree tree, Set<Integer> leaves) {
+        Map<String, long[]> entries = new HashMap<>();
+        this.storage.forEachDigest((key, version, digest) -> {
+            String hash = HashUtils.md5(key);
+            if (tree.contains(hash) && leaves.contains(tree.leafOf(hash))) {
+                entries.put(key, new long[]{version, digest});
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * @param listedDigest digest the replica listed the key with, 0 if it did not list it
+     */
+    private KVMessage pushRequest(String key, long listedDigest) {
+        VersionedValue value = this.storage.getVersioned(key);
+        if (value == null) {
+            return syncPut(key, KVStorage.NO_EXPIRY, listedDigest, null);
+        }
+        if (value.getVersion() != KVStorage.NO_VERSION) {
+            return new KVMessage(key, value.getVersion(), value.getValue(), PUT_VERSIONED);
+        }
+        return syncPut(key, value.getExpiresAt(), listedDigest, value.getValue());
+    }
+
+    static KVMessage syncPut(String key, long expiresAt, long listedDigest, byte[] value) {
+        byte[] digest = Long.toHexString(listedDigest).getBytes(StandardCharsets.UTF_8);
+        if (value == null) {
+            return new KVMessage(key, expiresAt, digest, SYNC_PUT);
+        }
+        byte[] packed = Arrays.copyOf(digest, digest.length + 1 + value.length);
+        packed[digest.length] = ' ';
+        System.arraycopy(value, 0, packed, digest.length + 1, value.length);
+        return new KVMessage(key, expiresAt, packed, SYNC_PUT);
+    }
+
+    /**
+     * @return the digest the replica listed the key of a SYNC_PUT with
+     * @throws IllegalArgumentException if the request does not start with a digest
+     */
+    static long listedDigest(KVMessage request) {
+        byte[] packed = request.getValueBytes();
+        try {
+            return Long.parseUnsignedLong(new String(packed, 0, digestLength(packed), StandardCharsets.UTF_8), 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("SYNC_PUT should start with a digest", e);
+        }
+    }
+
+    /**
+     * @return the value of a SYNC_PUT, null if it deletes the key
+     */
+    static byte[] repairedValue(KVMessage request) {
+        byte[] packed = request.getValueBytes();
+        int digestLength = digestLength(packed);
+        return digestLength == packed.length ? null : Arrays.copyOfRange(packed, digestLength + 1, packed.length);
+    }
+
+    private static int digestLength(byte[] packed) {
+        for (int i = 0; i < packed.length; i++) {
+            if (packed[i] == ' ') {
+                return i;
+            }
+        }
+        return packed.length;
+    }
+
+    private void fetch(ReplicaLink link, String key) throws IOException, InterruptedException {
+        KVMessage response = await(link.send(new KVMessage(key, GET_VERSIONED)));
+        if (response.getStatus() == GET_VERSIONED_SUCCESS) {
+            this.server.putVersionedKVBytes(key, response.getValueBytes(), response.getParameter());
+        }
+    }
+
+    /**
+     * Answers a SYNC_TREE request with the hashes of the requested nodes.
+     */
+    KVMessage treeHashes(KVMessage request) {
+        MerkleTree tree = this.trees.treeOf(request.getKey());
+        if (tree == null) {
+            return new KVMessage(SERVER_NOT_RESPONSIBLE);
+        }
+
+        StringJoiner hashes = new StringJoiner(",");
+        try {
+            for (String node : request.getValue().split(",")) {
+                int index = Integer.parseInt(node);
+                if (!MerkleTree.isNode(index)) {
+                    return new KVMessage("no tree node " + node, FAILED);
+                }
+                hashes.add(Long.toHexString(tree.hash(index)));
+            }
+        } catch (NumberFormatException e) {
+            return new KVMessage("tree nodes should be numbers", FAILED);
+        }
+        return new KVMessage(request.getKey(), hashes.toString(), SYNC_TREE_SUCCESS);
+    }
+
+    /**
+     * Answers a SYNC_LEAF request with the key, version and digest of every key in the requested leaves.
+     */
+    KVMessage leafEntries(KVMessage request) {
+        MerkleTree tree = this.trees.treeOf(request.getKey());
+        if (tree == null) {
+            return new KVMessage(SERVER_NOT_RESPONSIBLE);
+        }
+
+        Set<Integer> leaves = new HashSet<>();
+        try {
+            for (String leaf : request.getValue().split(",")) {
+                int index = Integer.parseInt(leaf);
+                if (!MerkleTree.isNode(index) || !MerkleTree.isLeaf(index)) {
+                    return new KVMessage("no tree leaf " + leaf, FAILED);
+                }
+                leaves.add(index);
+            }
+        } catch (NumberFormatException e) {
+            return new KVMessage("tree leaves should be numbers", FAILED);
+        }
+
+        StringJoiner entries = new StringJoiner(" ");
+        for (Map.Entry<String, long[]> entry : entriesOf(tree, leaves).entrySet()) {
+            entries.add(entry.getKey());
+            entries.add(Long.toHexString(entry.getValue()[0]));
+            entries.add(Long.toHexString(entry.getValue()[1]));
+        }
+        return new KVMessage(request.getKey(), entries.toString(), SYNC_LEAF_SUCCESS);
+    }
+
+    private static KVMessage await(CompletableFuture<KVMessage> response) throws IOException, InterruptedException {
+        try {
+            return response.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("replica did not respond", e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("replica did not respond within " + REQUEST_TIMEOUT_SECONDS + " seconds", e);
+        }
+    }
+
+    private static void expectStatus(KVMessage response, StatusType status) throws IOException {
+        if (response.getStatus() != status) {
+            throw new IOException("expected " + status + " but the replica sent " + response.getStatus());
+        }
+    }
+
+    private static long parseHex(String value) throws IOException {
+        try {
+            return Long.parseUnsignedLong(value, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("replica sent a malformed hash " + value, e);
+        }
+    }
+
+    private static String join(List<Integer> values) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int value : values) {
+            joiner.add(Integer.toString(value));
+        }
+        return joiner.toString();
+    }
+
+    private static boolean containsNode(List<ECSNode<Object>> nodes, String nodeIpAndPort) {
+        for (ECSNode<Object> node : nodes) {
+            if (node.getNodeIpAndPort().equals(nodeIpAndPort)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
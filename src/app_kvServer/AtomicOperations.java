@@ -0,0 +1,167 @@
+package app_kvServer;
+
+import shared.messages.KVMessage;
+import storage.KVStorage;
+import storage.VersionedValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static shared.messages.IKVMessage.StatusType.*;
+
+/**
+ * Read-modify-write requests executed by the coordinator of the key: CAS and CAS_VERSION, INCREMENT and
+ * APPEND. The new value is computed and applied under the write lock of the key, so no other write can
+ * come in between, and replicated like a PUT.
+ * <p>
+ * INCREMENT and APPEND keep the expiry of the value they change, and treat a missing key as 0 or as an
+ * empty value respectively.
+ */
+class AtomicOperations {
+    private final KVServer server;
+
+    /**
+     * A write computed from the current value of a key, or only a response if nothing is written.
+     */
+    static final class Update {
+        final KVMessage response;
+        final boolean write;
+        final byte[] value;
+        final long expiresAt;
+        // KVStorage.NO_VERSION for writes without a version
+        final long version;
+        // time the write was made at, recorded with writes without a version
+        final long writtenAt;
+
+        private Update(KVMessage response, boolean write, byte[] value, long expiresAt, long version, long writtenAt) {
+            this.response = response;
+            this.write = write;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.version = version;
+            this.writtenAt = writtenAt;
+        }
+
+        static Update none(KVMessage response) {
+            return new Update(response, false, null, KVStorage.NO_EXPIRY, KVStorage.NO_VERSION, KVStorage.NO_WRITE_TIME);
+        }
+
+        static Update write(byte[] value, long expiresAt, KVMessage response) {
+            return new Update(response, true, value, expiresAt, KVStorage.NO_VERSION, System.currentTimeMillis());
+        }
+
+        /**
+         * A write another server made at the given time, see {@link RangeHandoff}.
+         */
+        static Update writeHandedOff(byte[] value, long expiresAt, long writtenAt, KVMessage response) {
+            return new Update(response, true, value, expiresAt, KVStorage.NO_VERSION, writtenAt);
+        }
+
+        static Update writeVersioned(byte[] value, long version, KVMessage response) {
+            return new Update(response, true, value, KVStorage.NO_EXPIRY, version, System.currentTimeMillis());
+        }
+    }
+
+    AtomicOperations(KVServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Applies the request to the key and its replicas.
+     *
+     * @return completes with the response once the replicas the write was forwarded to responded
+     */
+    CompletableFuture<KVMessage> apply(KVMessage request) throws IOException {
+        return this.server.updateAndReplicate(request.getKey(), current -> {
+            switch (request.getStatus()) {
+                case CAS:
+                    return compareAndSet(request, current);
+                case CAS_VERSION:
+                    return compareVersionAndSet(request, current);
+                case INCREMENT:
+                    return increment(request, current);
+                case APPEND:
+                    return append(request, current);
+                default:
+                    throw new IllegalArgumentException(request.getStatus() + " is not an atomic operation");
+            }
+        });
+    }
+
+    /**
+     * The parameter is 0 if the key must be absent, otherwise the length of the expected value plus one. The
+     * value holds the expected value followed by the new one.
+     */
+    private static Update compareAndSet(KVMessage request, VersionedValue current) {
+        byte[] bytes = request.getValueBytes();
+        byte[] expected = request.getParameter() == 0 ? null : Arrays.copyOf(bytes, (int) request.getParameter() - 1);
+        byte[] value = Arrays.copyOfRange(bytes, expected == null ? 0 : expected.length, bytes.length);
+        if (!Arrays.equals(valueOf(current), expected)) {
+            return Update.none(failed(request.getKey(), current));
+        }
+        return Update.write(value, expiresAtOf(current), new KVMessage(request.getKey(), KVStorage.NO_VERSION, null, CAS_SUCCESS));
+    }
+
+    /**
+     * The parameter is the expected version, as returned by GET_VERSIONED or a previous CAS; 0 matches a
+     * missing key and values written without a version.
+     */
+    private static Update compareVersionAndSet(KVMessage request, VersionedValue current) {
+        long currentVersion = versionOf(current);
+        if (currentVersion != request.getParameter()) {
+            return Update.none(failed(request.getKey(), current));
+        }
+        // ordered after the current version and, like the version stamps of clients, after earlier writes
+        long version = Math.max(currentVersion + 1, System.currentTimeMillis() << 16);
+        return Update.writeVersioned(request.getValueBytes(), version, new KVMessage(request.getKey(), version, null, CAS_SUCCESS));
+    }
+
+    private static Update increment(KVMessage request, VersionedValue current) {
+        long value;
+        try {
+            long delta = Long.parseLong(request.getValue());
+            byte[] currentValue = valueOf(current);
+            value = Math.addExact(currentValue == null ? 0 : Long.parseLong(new String(currentValue, StandardCharsets.UTF_8)), delta);
+        } catch (NumberFormatException | ArithmeticException e) {
+            // the delta or the current value is not a number, or the sum overflows
+            return Update.none(new KVMessage(request.getKey(), request.getValueBytes(), PUT_ERROR));
+        }
+        byte[] bytes = Long.toString(value).getBytes(StandardCharsets.UTF_8);
+        return Update.write(bytes, expiresAtOf(current), new KVMessage(request.getKey(), bytes, INCREMENT_SUCCESS));
+    }
+
+    private static Update append(KVMessage request, VersionedValue current) {
+        byte[] currentValue = valueOf(current);
+        byte[] suffix = request.getValueBytes();
+        if (currentValue == null) {
+            return Update.write(suffix, expiresAtOf(current), new KVMessage(request.getKey(), suffix, PUT_SUCCESS));
+        }
+        if (currentValue.length + suffix.length > KVMessage.MAX_VAL_BYTE_LENGTH) {
+            return Update.none(new KVMessage(request.getKey(), suffix, PUT_ERROR));
+        }
+        byte[] value = Arrays.copyOf(currentValue, currentValue.length + suffix.length);
+        System.arraycopy(suffix, 0, value, currentValue.length, suffix.length);
+        return Update.write(value, expiresAtOf(current), new KVMessage(request.getKey(), suffix, PUT_UPDATE));
+    }
+
+    /**
+     * @return CAS_FAILED with the current version and value, so the client can retry without a GET
+     */
+    private static KVMessage failed(String key, VersionedValue current) {
+        return new KVMessage(key, versionOf(current), valueOf(current), CAS_FAILED);
+    }
+
+    private static byte[] valueOf(VersionedValue current) {
+        return current == null ? null : current.getValue();
+    }
+
+    private static long versionOf(VersionedValue current) {
+        return current == null ? KVStorage.NO_VERSION : current.getVersion();
+    }
+
+    private static long expiresAtOf(VersionedValue current) {
+        return current == null || current.getValue() == null ? KVStorage.NO_EXPIRY : current.getExpiresAt();
+    }
+}
@@ -0,0 +1,200 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.HashUtils;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+import static shared.messages.IKVMessage.StatusType.*;
+
+/**
+ * Pushes the writes applied on this server to the clients that subscribed to them: invalidations of every
+ * written key for near caches, and the new values of watched keys and hash ranges. Watchers are only told
+ * about writes this server coordinates, so they receive every write once even though all replicas apply
+ * it.
+ * <p>
+ * Every subscriber has a queue and a thread of its own sending the queued messages, so a slow client never
+ * delays a write. A subscriber that falls behind by more than QUEUE_CAPACITY messages is disconnected,
+ * which tells the client that it missed changes.
+ */
+class ChangeFeed {
+    static final int QUEUE_CAPACITY = 10_000;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final Predicate<String> isCoordinator;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    final class Subscriber extends Thread {
+        private final Socket socket;
+        private final SocketMessenger socketMessenger;
+        private final BlockingQueue<KVMessage> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile boolean invalidations;
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+        // pairs of from and to hashes
+        private final List<String[]> ranges = new CopyOnWriteArrayList<>();
+
+        private Subscriber(Socket socket, SocketMessenger socketMessenger) {
+            super("change-feed-" + socket.getRemoteSocketAddress());
+            this.socket = socket;
+            this.socketMessenger = socketMessenger;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    this.socketMessenger.sendMessage(this.queue.take());
+                }
+            } catch (InterruptedException e) {
+                // the subscriber was removed
+            } catch (IOException e) {
+                LOGGER.info("subscriber " + this.socket.getRemoteSocketAddress() + " is gone");
+            } finally {
+                unsubscribe(this);
+            }
+        }
+
+        /**
+         * Sends an INVALIDATE for every key written from now on, acknowledged with SUBSCRIBE_SUCCESS.
+         */
+        synchronized void subscribeInvalidations() {
+            this.invalidations = true;
+            offer(new KVMessage(SUBSCRIBE_SUCCESS));
+        }
+
+        /**
+         * Sends the writes of the key this server coordinates from now on, acknowledged with WATCH_SUCCESS.
+         */
+        synchronized void watchKey(String key) {
+            this.keys.add(key);
+            offer(new KVMessage(WATCH_SUCCESS));
+        }
+
+        /**
+         * Sends the writes of keys in the hash range this server coordinates from now on, acknowledged with
+         * WATCH_SUCCESS.
+         */
+        synchronized void watchRange(String from, String to) {
+            this.ranges.add(new String[]{from, to});
+            offer(new KVMessage(WATCH_SUCCESS));
+        }
+
+        private boolean isWatching(String key, String hash) {
+            if (this.keys.contains(key)) {
+                return true;
+            }
+            for (String[] range : this.ranges) {
+                if (hash == null) {
+                    // a range was added after the caller checked for any
+                    hash = HashUtils.md5(key);
+                }
+                if (HashUtils.isInRange(hash, range[0], range[1])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // synchronized so a message published while a subscription is added is queued after its acknowledgement
+        private synchronized void offer(KVMessage message) {
+            if (!this.queue.offer(message)) {
+                LOGGER.warn("subscriber " + this.socket.getRemoteSocketAddress() + " fell behind, disconnecting it");
+                unsubscribe(this);
+            }
+        }
+    }
+
+    /**
+     * @param isCoordinator whether this server coordinates a key, only those writes are sent to watchers
+     */
+    ChangeFeed(Predicate<String> isCoordinator) {
+        this.isCoordinator = isCoordinator;
+    }
+
+    /**
+     * Registers the connection for pushed messages, which are sent once it subscribes to invalidations or
+     * watches keys.
+     */
+    Subscriber subscribe(Socket socket, SocketMessenger socketMessenger) {
+        Subscriber subscriber = new Subscriber(socket, socketMessenger);
+        this.subscribers.add(subscriber);
+        subscriber.start();
+        return subscriber;
+    }
+
+    /**
+     * Stops sending to the subscriber and closes its connection.
+     */
+    void unsubscribe(Subscriber subscriber) {
+        if (!this.subscribers.remove(subscriber)) {
+            return;
+        }
+        subscriber.interrupt();
+        try {
+            subscriber.socket.close();
+        } catch (IOException e) {
+            LOGGER.error("I/O error when attempting to close socket: ", e);
+        }
+    }
+
+    /**
+     * Sends the write to the subscribers interested in it, called after every write applied on this server.
+     *
+     * @param value UTF-8 encoded value, null for a delete
+     */
+    void publish(String key, byte[] value) {
+        if (this.subscribers.isEmpty()) {
+            return;
+        }
+
+        KVMessage invalidation = null;
+        KVMessage change = null;
+        // only computed if a subscriber watches a range
+        String hash = null;
+        Boolean coordinated = null;
+        for (Subscriber subscriber : this.subscribers) {
+            if (hash == null && !subscriber.ranges.isEmpty()) {
+                hash = HashUtils.md5(key);
+            }
+            if (subscriber.invalidations) {
+                if (invalidation == null) {
+                    invalidation = new KVMessage(key, INVALIDATE);
+                }
+                subscriber.offer(invalidation);
+            }
+            if (subscriber.isWatching(key, hash)) {
+                if (coordinated == null) {
+                    coordinated = this.isCoordinator.test(key);
+                }
+                if (!coordinated) {
+                    continue;
+                }
+                if (change == null) {
+                    change = value == null ? new KVMessage(key, WATCH_DELETE) : new KVMessage(key, value, WATCH_PUT);
+                }
+                subscriber.offer(change);
+            }
+        }
+    }
+
+    void close() {
+        for (Subscriber subscriber : this.subscribers) {
+            unsubscribe(subscriber);
+        }
+    }
+
+    int size() {
+        return this.subscribers.size();
+    }
+}
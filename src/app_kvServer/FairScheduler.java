@@ -0,0 +1,194 @@
+package app_kvServer;
+
+import shared.Metrics;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Isolates the clients of a server from each other. Each client, identified by its host, has a token bucket
+ * limiting its requests per second, and the requests of all clients take turns for a fixed number of
+ * slots: while all slots are taken, a finished request hands its slot to the next client in round robin
+ * rather than to whichever thread gets the storage lock first, so a client with many connections gets no
+ * more turns than one with a single connection. Both are disabled at 0, the usage of the clients is
+ * counted regardless.
+ * <p>
+ * Control-plane operations, like applying the metadata the ECS sent, have priority over all clients: while
+ * one is being applied, no client request is given a slot, slots or not.
+ */
+class FairScheduler {
+    /**
+     * Clients beyond this many share one entry, so the map stays small however many hosts connect.
+     */
+    static final int MAX_CLIENTS = 1024;
+    static final String OTHER_CLIENTS = "other";
+
+    private volatile double requestsPerSecond;
+    private volatile int slots;
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    // guarded by this
+    private int taken;
+    // clients with waiting requests, in the order they get their next turn; guarded by this
+    private final Queue<Client> turns = new ArrayDeque<>();
+    // control-plane operations being applied; guarded by this
+    private int prioritized;
+
+    static final class Client {
+        final String id;
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder throttled = new LongAdder();
+        final LongAdder waitNanos = new LongAdder();
+        // guarded by the scheduler
+        private final Queue<CountDownLatch> waiting = new ArrayDeque<>();
+        // token bucket, guarded by this
+        private double tokens = -1;
+        private long refilledAt;
+
+        Client(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param requestsPerSecond requests each client may send per second, with bursts of a second's worth;
+     *                          0 for no limit
+     * @param slots             client requests handled at a time, 0 to handle all of them right away
+     */
+    void setLimits(double requestsPerSecond, int slots) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.slots = slots;
+    }
+
+    Client client(String host) {
+        Client client = this.clients.get(host);
+        if (client != null) {
+            return client;
+        }
+        String id = this.clients.size() < MAX_CLIENTS ? host : OTHER_CLIENTS;
+        return this.clients.computeIfAbsent(id, Client::new);
+    }
+
+    /**
+     * Counts the request and takes a token from the bucket of its client.
+     *
+     * @return false if the client used up its rate, in which case the request should be answered with
+     * SERVER_BUSY
+     */
+    boolean tryAcquire(Client client, long bytes) {
+        client.requests.increment();
+        client.bytes.add(bytes);
+        double rate = this.requestsPerSecond;
+        if (rate <= 0) {
+            return true;
+        }
+        synchronized (client) {
+            long now = System.nanoTime();
+            double burst = Math.max(1, rate);
+            client.tokens = client.tokens < 0 ? burst
+                    : Math.min(burst, client.tokens + (now - client.refilledAt) * rate / TimeUnit.SECONDS.toNanos(1));
+            client.refilledAt = now;
+            if (client.tokens < 1) {
+                client.throttled.increment();
+                return false;
+            }
+            client.tokens--;
+            return true;
+        }
+    }
+
+    /**
+     * Waits for a slot, which has to be handed back with {@link #exit()} once the request was handled.
+     */
+    void enter(Client client) {
+        CountDownLatch turn;
+        synchronized (this) {
+            int slots = this.slots;
+            if (this.prioritized == 0 && (slots <= 0 || (this.taken < slots && this.turns.isEmpty()))) {
+                this.taken++;
+                return;
+            }
+            turn = new CountDownLatch(1);
+            if (client.waiting.isEmpty()) {
+                this.turns.add(client);
+            }
+            client.waiting.add(turn);
+        }
+
+        long start = System.nanoTime();
+        boolean interrupted = false;
+        // the slot may be handed over any time, so the thread waits for it even if interrupted
+        while (true) {
+            try {
+                turn.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        client.waitNanos.add(System.nanoTime() - start);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void exit() {
+        this.taken--;
+        grantTurns();
+    }
+
+    /**
+     * Holds back client requests until {@link #endPriority()}; those already handled are not interrupted.
+     */
+    synchronized void beginPriority() {
+        this.prioritized++;
+    }
+
+    synchronized void endPriority() {
+        this.prioritized--;
+        grantTurns();
+    }
+
+    /**
+     * @return true if client requests are waiting for a slot, which background work should yield to
+     */
+    synchronized boolean hasWaiting() {
+        return !this.turns.isEmpty();
+    }
+
+    /**
+     * Hands the free slots to the waiting clients in round robin, a client with more waiting requests moves
+     * to the back.
+     */
+    private void grantTurns() {
+        while (this.prioritized == 0 && !this.turns.isEmpty() && (this.slots <= 0 || this.taken < this.slots)) {
+            Client next = this.turns.poll();
+            this.taken++;
+            next.waiting.poll().countDown();
+            if (!next.waiting.isEmpty()) {
+                this.turns.add(next);
+            }
+        }
+    }
+
+    void collect(Metrics metrics) {
+        // the clients of one metric are kept together, as the Prometheus format expects
+        for (Client client : this.clients.values()) {
+            metrics.set("client_requests_total", client.id, client.requests.sum());
+        }
+        for (Client client : this.clients.values()) {
+            metrics.set("client_bytes_total", client.id, client.bytes.sum());
+        }
+        for (Client client : this.clients.values()) {
+            metrics.set("client_throttled_total", client.id, client.throttled.sum());
+        }
+        for (Client client : this.clients.values()) {
+            metrics.set("client_wait_ms_total", client.id, TimeUnit.NANOSECONDS.toMillis(client.waitNanos.sum()));
+        }
+    }
+}
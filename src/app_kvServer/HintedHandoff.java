@@ -0,0 +1,343 @@
+package app_kvServer;
+
+import ecs.ECSNode;
+import ecs.ECSRing;
+import org.apache.log4j.Logger;
+import shared.HashUtils;
+import shared.jfr.TransferEvent;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+import storage.KVStorage;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static shared.messages.IKVMessage.StatusType.*;
+
+/**
+ * Hinted handoff of writes to servers that are temporarily unavailable.
+ * <p>
+ * A client that cannot reach the coordinator of a key sends the write as PUT_HINTED to the next server on
+ * its ring, which records a hint for the intended owner. Once the ECS removed the owner from the ring, the
+ * server taking over its range applies the hints and records a hint for every further write it
+ * coordinates in that range. When the owner rejoins the ring, i.e. its heartbeats returned, the hints are
+ * replayed to it as HANDOFF in pipelined batches, like {@link RangeHandoff} does. Each hint carries the
+ * time of its write and the newer write wins: the owner applies a hint over the copy it came back with,
+ * but keeps a write it accepted since and answers HANDOFF_SKIPPED, upon which the hint is dropped. Only
+ * the latest write of each key is kept per owner.
+ * <p>
+ * An owner that stays away for longer than HINT_WINDOW_MILLIS is considered gone for good and its hints
+ * are dropped. Hints are kept in memory, so the hints of a server that restarts are lost; anti-entropy
+ * repairs them where the keys have replicas.
+ */
+class HintedHandoff extends Thread {
+    static final long REPLAY_INTERVAL_MILLIS = 1000;
+    static final long HINT_WINDOW_MILLIS = 3 * 60 * 60 * 1000;
+    static final int MAX_HINTS = 100_000;
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_TIMEOUT_SECONDS = 10;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final KVServer server;
+    private final Replicator replicator = new Replicator();
+    /**
+     * Unavailable servers with hints or an adopted range, by their address in the metadata.
+     */
+    private final Map<String, Owner> owners = new HashMap<>();
+    private volatile ECSRing<Object> ring = new ECSRing<>();
+    private volatile boolean hasAdoptions;
+    private int hintCount;
+    private boolean metadataChanged;
+
+    private static final class Owner {
+        final long unavailableSince;
+        final Map<String, Hint> hints = new LinkedHashMap<>();
+        // range of the owner this server coordinates while the owner is removed from the ring, null otherwise
+        String adoptedFrom;
+        String adoptedTo;
+
+        Owner(long unavailableSince) {
+            this.unavailableSince = unavailableSince;
+        }
+
+        boolean isAdopted() {
+            return this.adoptedFrom != null;
+        }
+    }
+
+    private static final class Hint {
+        final byte[] value;
+        final long expiresAt;
+        final long writtenAt;
+        // whether this server applied the write itself, while it coordinated the key; guarded by the HintedHandoff
+        boolean applied;
+
+        Hint(byte[] value, long expiresAt, long writtenAt, boolean applied) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.writtenAt = writtenAt;
+            this.applied = applied;
+        }
+    }
+
+    HintedHandoff(KVServer server) {
+        super("hinted-handoff");
+        this.server = server;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                synchronized (this) {
+                    if (!this.metadataChanged) {
+                        wait(REPLAY_INTERVAL_MILLIS);
+                    }
+                    this.metadataChanged = false;
+                }
+                int delivered = replay();
+                if (delivered > 0) {
+                    LOGGER.info("handed off " + delivered + " hinted writes");
+                }
+            }
+        } catch (InterruptedException e) {
+            // the server is closing
+        } finally {
+            this.replicator.close();
+        }
+    }
+
+    /**
+     * Records a write for a server that the client could not reach.
+     *
+     * @param owner     address of the server coordinating the key, as it appears in the metadata
+     * @param value     UTF-8 encoded value, null for a delete
+     * @param expiresAt expiry time of the value, KVStorage.NO_EXPIRY if it never expires
+     * @return false if the hint was rejected because MAX_HINTS are pending
+     */
+    synchronized boolean hint(String owner, String key, byte[] value, long expiresAt) {
+        return addHint(owner, key, new Hint(value, expiresAt, System.currentTimeMillis(), false));
+    }
+
+    /**
+     * Records a write this server applied as coordinator if its key belongs to the range of a removed
+     * server, so the server receives it once it is back. Called for every write, in the order they are
+     * applied.
+     *
+     * @param writtenAt time the write was made at, as recorded in the storage
+     */
+    void recordWrite(String key, byte[] value, long expiresAt, long writtenAt) {
+        if (!this.hasAdoptions) {
+            return;
+        }
+
+        String hash = HashUtils.md5(key);
+        synchronized (this) {
+            for (Map.Entry<String, Owner> owner : this.owners.entrySet()) {
+                Owner adopted = owner.getValue();
+                if (adopted.isAdopted() && HashUtils.isInRange(hash, adopted.adoptedFrom, adopted.adoptedTo)
+                        && !addHint(owner.getKey(), key, new Hint(value, expiresAt, writtenAt, true))) {
+                    LOGGER.warn("hint log is full, " + owner.getKey() + " will miss the write of <" + key + ">");
+                }
+            }
+        }
+    }
+
+    private boolean addHint(String owner, String key, Hint hint) {
+        Owner hints = this.owners.computeIfAbsent(owner, o -> new Owner(System.currentTimeMillis()));
+        if (hints.hints.containsKey(key)) {
+            hints.hints.put(key, hint);
+            return true;
+        }
+        if (this.hintCount >= MAX_HINTS) {
+            return false;
+        }
+        hints.hints.put(key, hint);
+        this.hintCount++;
+        return true;
+    }
+
+    /**
+     * Adopts the ranges of the servers that were removed from the ring if this server takes them over, and
+     * wakes up the replay for the servers that are back.
+     *
+     * @param previous ring of the metadata replaced by the new one
+     */
+    synchronized void updateMetadata(ECSRing<Object> previous, ECSRing<Object> ring) {
+        this.ring = ring;
+        String self = this.server.getNodeIpAndPort();
+        Set<String> present = new HashSet<>();
+        for (ECSNode<Object> node : ring.getMap().values()) {
+            present.add(node.getNodeIpAndPort());
+        }
+
+        for (Map.Entry<String, ECSNode<Object>> node : previous.getMap().entrySet()) {
+            String address = node.getValue().getNodeIpAndPort();
+            if (present.contains(address) || ring.getMap().isEmpty()) {
+                continue;
+            }
+            // the node preceding the removed one on the new ring extends its range over the removed one's
+            Map.Entry<String, ECSNode<Object>> heir = ring.getMap().floorEntry(node.getKey());
+            if (heir == null) {
+                heir = ring.getMap().lastEntry();
+            }
+            if (heir.getValue().getNodeIpAndPort().equals(self)) {
+                String next = previous.getMap().higherKey(node.getKey());
+                Owner owner = this.owners.computeIfAbsent(address, o -> new Owner(System.currentTimeMillis()));
+                owner.adoptedFrom = node.getKey();
+                owner.adoptedTo = HashUtils.hashSubtractOne(next == null ? previous.getMap().firstKey() : next);
+                LOGGER.info("took over the range of " + address + " until it is back");
+            }
+        }
+
+        boolean hasAdoptions = false;
+        for (Map.Entry<String, Owner> owner : this.owners.entrySet()) {
+            if (present.contains(owner.getKey())) {
+                owner.getValue().adoptedFrom = null;
+                owner.getValue().adoptedTo = null;
+            }
+            hasAdoptions |= owner.getValue().isAdopted();
+        }
+        this.hasAdoptions = hasAdoptions;
+        this.metadataChanged = true;
+        notifyAll();
+    }
+
+    /**
+     * Applies the hints of keys this server coordinates now and sends the others to their coordinators.
+     * Hints of a removed server this server took over are kept until the server is back.
+     *
+     * @return the number of hints handed over to other servers
+     */
+    int replay() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> owners = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        List<Hint> hints = new ArrayList<>();
+        List<Boolean> adopted = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, Owner>> it = this.owners.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Owner> owner = it.next();
+                if (now - owner.getValue().unavailableSince > HINT_WINDOW_MILLIS) {
+                    LOGGER.warn(owner.getKey() + " did not come back, dropping " + owner.getValue().hints.size() + " hints");
+                    this.hintCount -= owner.getValue().hints.size();
+                    it.remove();
+                    continue;
+                }
+                for (Map.Entry<String, Hint> hint : owner.getValue().hints.entrySet()) {
+                    owners.add(owner.getKey());
+                    keys.add(hint.getKey());
+                    hints.add(hint.getValue());
+                    adopted.add(owner.getValue().isAdopted());
+                }
+            }
+        }
+
+        ECSRing<Object> ring = this.ring;
+        String self = this.server.getNodeIpAndPort();
+        int delivered = 0;
+        List<Integer> batch = new ArrayList<>();
+        List<CompletableFuture<KVMessage>> responses = new ArrayList<>();
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        for (int i = 0; i < hints.size(); i++) {
+            Hint hint = hints.get(i);
+            ECSNode<Object> coordinator = ring.getNodeForKey(keys.get(i));
+            if (hint.expiresAt != KVStorage.NO_EXPIRY && hint.expiresAt <= now) {
+                remove(owners.get(i), keys.get(i), hint);
+            } else if (coordinator != null && coordinator.getNodeIpAndPort().equals(self)) {
+                if ((isApplied(hint) || apply(keys.get(i), hint)) && !adopted.get(i)) {
+                    remove(owners.get(i), keys.get(i), hint);
+                }
+            } else if (coordinator != null) {
+                KVMessage write = RangeHandoff.handOffRequest(keys.get(i), hint.value, hint.expiresAt, hint.writtenAt);
+                this.server.getTransferThrottle().acquire(hint.value == null ? 0 : hint.value.length);
+                batch.add(i);
+                responses.add(this.replicator.send(Collections.singletonList(coordinator), write).get(0));
+            }
+
+            if (responses.size() == BATCH_SIZE || (i == hints.size() - 1 && !batch.isEmpty())) {
+                // the writes of a batch are pipelined, the next batch is sent once all of them were answered
+                int acknowledged = 0;
+                long bytes = 0;
+                for (int j = 0; j < batch.size(); j++) {
+                    int index = batch.get(j);
+                    bytes += hints.get(index).value == null ? 0 : hints.get(index).value.length;
+                    StatusType status = status(responses.get(j), keys.get(index));
+                    if (status == PUT_SUCCESS || status == DELETE_SUCCESS) {
+                        remove(owners.get(index), keys.get(index), hints.get(index));
+                        acknowledged++;
+                    } else if (status == HANDOFF_SKIPPED) {
+                        // the owner holds a newer write of the key, the hint is obsolete
+                        remove(owners.get(index), keys.get(index), hints.get(index));
+                    }
+                }
+                // the writes of a batch may go to several coordinators
+                event.finish(TransferEvent.HINTED_HANDOFF, null, batch.size(), acknowledged, bytes);
+                event = new TransferEvent();
+                event.begin();
+                delivered += acknowledged;
+                batch.clear();
+                responses.clear();
+            }
+        }
+        return delivered;
+    }
+
+    private boolean apply(String key, Hint hint) {
+        try {
+            this.server.putAndReplicate(key, hint.value, hint.expiresAt);
+            markApplied(hint);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("could not apply hinted write of <" + key + ">", e);
+            return false;
+        }
+    }
+
+    private synchronized boolean isApplied(Hint hint) {
+        return hint.applied;
+    }
+
+    private synchronized void markApplied(Hint hint) {
+        hint.applied = true;
+    }
+
+    /**
+     * @return the status the owner answered a hint with, null if it did not answer in time
+     */
+    private static StatusType status(CompletableFuture<KVMessage> response, String key) throws InterruptedException {
+        try {
+            return response.get(BATCH_TIMEOUT_SECONDS, TimeUnit.SECONDS).getStatus();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("could not hand off write of <" + key + ">", e);
+            return null;
+        }
+    }
+
+    /**
+     * Removes a hint unless a newer write of its key replaced it in the meantime.
+     */
+    private synchronized void remove(String owner, String key, Hint hint) {
+        Owner hints = this.owners.get(owner);
+        if (hints == null || !hints.hints.remove(key, hint)) {
+            return;
+        }
+        this.hintCount--;
+        if (hints.hints.isEmpty() && !hints.isAdopted()) {
+            this.owners.remove(owner);
+        }
+    }
+
+    /**
+     * @return the number of writes waiting to be handed to their owners
+     */
+    synchronized int size() {
+        return this.hintCount;
+    }
+}
@@ -0,0 +1,126 @@
+package app_kvServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the keys a server gets the most GETs for in constant memory. The GETs of a window are counted in a
+ * count-min sketch, which may overestimate a key by the GETs of keys sharing its counters but never
+ * underestimates it, and the TOP_KEYS keys with the highest estimates are kept in a min-heap. Once a window
+ * ends, its top keys are published and counting starts over.
+ */
+class HotKeyDetector {
+    static final int TOP_KEYS = 8;
+    private static final int DEPTH = 4;
+    // a power of two, so a hash is turned into a column by masking
+    private static final int WIDTH = 1024;
+    private static final int[] SEEDS = {0x2545f491, 0x4f6cdd1d, 0x1b873593, 0x6a09e667};
+
+    private final int sampleEvery;
+    private final long windowMillis;
+    private final long[][] counts = new long[DEPTH][WIDTH];
+    private final PriorityQueue<Counter> top = new PriorityQueue<>(TOP_KEYS, (a, b) -> Long.compare(a.count, b.count));
+    private final Map<String, Counter> topByKey = new HashMap<>();
+    private long windowStart;
+    private long windowsCompleted;
+    private Map<String, Long> lastWindow = Collections.emptyMap();
+
+    private static final class Counter {
+        final String key;
+        long count;
+
+        Counter(String key, long count) {
+            this.key = key;
+            this.count = count;
+        }
+    }
+
+    /**
+     * @param sampleEvery  one in this many GETs is recorded, the rates are scaled up accordingly
+     * @param windowMillis length of the windows the GETs are counted in
+     */
+    HotKeyDetector(int sampleEvery, long windowMillis) {
+        this.sampleEvery = sampleEvery;
+        this.windowMillis = windowMillis;
+        this.windowStart = System.currentTimeMillis();
+    }
+
+    synchronized void record(String key) {
+        roll(System.currentTimeMillis());
+
+        int hash = key.hashCode();
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, ++this.counts[row][column(hash, row)]);
+        }
+
+        Counter counter = this.topByKey.get(key);
+        if (counter != null) {
+            // removed and added again, the heap does not notice a changed count
+            this.top.remove(counter);
+            counter.count = estimate;
+            this.top.add(counter);
+        } else if (this.top.size() < TOP_KEYS || estimate > this.top.peek().count) {
+            if (this.top.size() == TOP_KEYS) {
+                this.topByKey.remove(this.top.poll().key);
+            }
+            counter = new Counter(key, estimate);
+            this.top.add(counter);
+            this.topByKey.put(key, counter);
+        }
+    }
+
+    /**
+     * @return the number of windows that ended so far, which changes whenever {@link #lastWindow()} does
+     */
+    synchronized long windowsCompleted() {
+        roll(System.currentTimeMillis());
+        return this.windowsCompleted;
+    }
+
+    /**
+     * @return the top keys of the last window that ended with their estimated GETs per second, the most
+     * requested first; empty if the server got no GETs in it
+     */
+    synchronized Map<String, Long> lastWindow() {
+        roll(System.currentTimeMillis());
+        return this.lastWindow;
+    }
+
+    private void roll(long now) {
+        long elapsed = now - this.windowStart;
+        if (elapsed < this.windowMillis) {
+            return;
+        }
+
+        List<Counter> counters = new ArrayList<>(this.top);
+        counters.sort((a, b) -> Long.compare(b.count, a.count));
+        Map<String, Long> rates = new LinkedHashMap<>();
+        // the counts of a window that ended long ago say nothing about the last one
+        if (elapsed < 2 * this.windowMillis) {
+            for (Counter counter : counters) {
+                rates.put(counter.key, counter.count * this.sampleEvery * 1000 / this.windowMillis);
+            }
+        }
+        this.lastWindow = Collections.unmodifiableMap(rates);
+        this.windowsCompleted++;
+
+        for (long[] row : this.counts) {
+            Arrays.fill(row, 0);
+        }
+        this.top.clear();
+        this.topByKey.clear();
+        this.windowStart = now - elapsed % this.windowMillis;
+    }
+
+    private static int column(int hash, int row) {
+        int mixed = (hash ^ SEEDS[row]) * 0x9e3779b1;
+        return (mixed ^ (mixed >>> 16)) & (WIDTH - 1);
+    }
+}
@@ -1,5 +1,6 @@
 package app_kvServer;
 
+import ecs.ReplicationMode;
 import org.apache.log4j.Logger;
 import shared.messages.KVMessage;
 import shared.messages.SocketMessenger;
@@ -7,21 +8,38 @@ import shared.messages.SocketMessenger;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static shared.messages.IKVMessage.StatusType.*;
 
 public class KVECSThread extends Thread {
     private static final Logger LOGGER = Logger.getRootLogger();
+    /**
+     * Interval of the heartbeats the ECS detects failed servers by, the interval its detectors start out with.
+     */
+    static final long HEARTBEAT_INTERVAL_MILLIS = 500;
 
     private Socket socket;
     private SocketMessenger socketMessenger;
     private final InetSocketAddress ecsSocketAddress;
     private final KVServer server;
+    /**
+     * Counts down once the ECS confirmed that this server left the ring, or the connection ended.
+     */
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    private volatile boolean leaving;
+    private volatile boolean left;
 
     public KVECSThread(InetSocketAddress ecsSocketAddress, KVServer server) throws IOException {
         LOGGER.info("KVECSThread alive: " + this.getId());
         this.ecsSocketAddress = ecsSocketAddress;
         this.server = server;
+        // control traffic is handled ahead of the threads of client connections where the OS honours priorities
+        setPriority(Thread.MAX_PRIORITY);
     }
 
     public Socket getECSSocket() {
@@ -37,25 +55,86 @@ public class KVECSThread extends Thread {
             throw e;
         }
 
-        // TODO:
-        // send CONNECT
-        // receive METADATA_UPDATE
-        // receive CONNECT_SUCCESS
+        this.socketMessenger.sendMessage(new KVMessage(this.server.getNodeIpAndPort(),
+                this.server.getRingSocketAddress().getHostString() + ":" + this.server.getRingSocketAddress().getPort(),
+                CONNECT));
+        KVMessage response = this.socketMessenger.receiveMessage();
+        if (response.getStatus() != CONNECT_SUCCESS) {
+            LOGGER.error("ECS responded to CONNECT with " + response.getStatus());
+            return false;
+        }
+        // METADATA_UPDATE follows once the ECS has added this server to the ring
         return true;
     }
 
-    public boolean disconnect() {
-        // TODO:
-        // send DISCONNECT
-        // receive TRANSFER
-        // begin TRANSFER protocol
-        // send TRANSFER_SUCCESS
-        // maybe receive UPDATE_METADATA ?
-        // receive DISCONNECT_SUCCESS
-        return true;
+    /**
+     * Leaves the ring. The ECS answers DISCONNECT with the metadata without this server, upon which it hands
+     * its keys to the servers that took over its ranges, followed by DISCONNECT_SUCCESS. Heartbeats stop.
+     *
+     * @return true if the ECS confirmed within the timeout
+     */
+    public boolean disconnect(long timeoutMillis) throws InterruptedException {
+        if (this.socket == null || this.socket.isClosed()) {
+            return false;
+        }
+        this.leaving = true;
+        try {
+            this.socketMessenger.sendMessage(new KVMessage(DISCONNECT));
+        } catch (IOException e) {
+            LOGGER.warn("could not ask the ECS to leave the ring", e);
+            return false;
+        }
+        return this.disconnected.await(timeoutMillis, TimeUnit.MILLISECONDS) && this.left;
+    }
+
+    /**
+     * Sends HEARTBEAT to the ECS until the connection is closed. Without them, the ECS removes this server
+     * from the ring. The hot keys of every window that ended are reported along with the next heartbeat.
+     */
+    private void sendHeartbeats() {
+        HotKeyDetector hotKeys = this.server.getStats().hotKeys();
+        long reportedWindows = hotKeys.windowsCompleted();
+        try {
+            while (!this.socket.isClosed() && !this.leaving) {
+                this.socketMessenger.sendMessage(new KVMessage(HEARTBEAT));
+                long windows = hotKeys.windowsCompleted();
+                if (windows != reportedWindows) {
+                    reportedWindows = windows;
+                    sendHotKeys(hotKeys.lastWindow());
+                }
+                Thread.sleep(HEARTBEAT_INTERVAL_MILLIS);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("stopped sending heartbeats to the ECS", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends HOT_KEYS unless the server got no GETs; the ECS forgets reports that are not renewed.
+     */
+    private void sendHotKeys(Map<String, Long> rates) throws IOException {
+        if (rates.isEmpty()) {
+            return;
+        }
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> rate : rates.entrySet()) {
+            if (report.length() > 0) {
+                report.append(' ');
+            }
+            report.append(rate.getKey()).append(' ').append(rate.getValue());
+        }
+        this.socketMessenger.sendMessage(new KVMessage(report.toString(), HOT_KEYS));
     }
 
     public void run() {
+        Thread heartbeats = new Thread(this::sendHeartbeats, "ecs-heartbeats");
+        heartbeats.setDaemon(true);
+        // late heartbeats make the ECS suspect this server of having failed
+        heartbeats.setPriority(Thread.MAX_PRIORITY);
+        heartbeats.start();
+
         while (true) {
             try {
                 KVMessage request = null;
@@ -73,11 +152,46 @@ public class KVECSThread extends Thread {
                 }
 
                 switch (request.getStatus()) {
+                    case METADATA_UPDATE: {
+                        LOGGER.info("Request received: METADATA_UPDATE <" + request.getKey() + "> replication factor " + request.getParameter());
+                        try {
+                            ReplicationMode replicationMode = request.getValue() == null
+                                    ? ReplicationMode.PRIMARY_BACKUP
+                                    : ReplicationMode.valueOf(request.getValue().toUpperCase());
+                            this.server.updateMetadata(request.getKey(), (int) request.getParameter(), replicationMode);
+                        } catch (IllegalArgumentException | UnknownHostException e) {
+                            LOGGER.error("ECS sent invalid metadata", e);
+                        }
+                        break;
+                    }
+
+                    case HOT_KEYS_UPDATE: {
+                        LOGGER.info("Request received: HOT_KEYS_UPDATE <" + request.getKey() + ">");
+                        String[] parts = request.getKey().split(" ");
+                        try {
+                            this.server.updateHotKeys(Arrays.asList(parts).subList(1, parts.length), Integer.parseInt(parts[0]));
+                        } catch (NumberFormatException e) {
+                            LOGGER.error("ECS sent invalid hot keys", e);
+                        }
+                        break;
+                    }
+
+                    case DISCONNECT_SUCCESS: {
+                        LOGGER.info("Request received: DISCONNECT_SUCCESS");
+                        this.left = true;
+                        this.disconnected.countDown();
+                        break;
+                    }
+
                     default: {
                         LOGGER.error("Response StatusType provided for request: " + request.getStatus() + " only GET and PUT are accepted.");
                     }
                 }
             } catch (IOException socketMessengerException) {
+                if (this.left) {
+                    // the ECS closes the connection once this server left the ring
+                    break;
+                }
                 LOGGER.error("I/O error communicating via socket messenger: ", socketMessengerException);
                 try {
                     this.socket.close();
@@ -87,6 +201,7 @@ public class KVECSThread extends Thread {
                 break;
             }
         }
+        this.disconnected.countDown();
         LOGGER.info("KVECSThread finished: " + this.getId());
     }
 }
@@ -1,44 +1,145 @@
 package app_kvServer;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import ecs.ECSNode;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
 import logger.LogSetup;
 import org.apache.commons.cli.*;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import shared.HashUtils;
+import shared.Metrics;
+import shared.MetricsHttpServer;
 import shared.PerformanceMonitor;
+import shared.jfr.MetadataUpdateEvent;
+import shared.jfr.StorageEvent;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+import storage.CompressionStats;
+import storage.ExpiryReaper;
+import storage.KVStorage;
+import storage.VersionedValue;
 import sun.misc.Signal;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.net.*;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 public class KVServer implements IKVServer, Runnable {
     private static final String STORAGE_FILE = "store.json";
-    private static final String EMPTY_KV_STORE = "{}";
+    /**
+     * Where compressed storage used to be kept; moved to STORAGE_FILE, whose format is detected when loading.
+     */
+    private static final String LEGACY_COMPRESSED_STORAGE_FILE = "store.blk";
+    private static final int WRITE_LOCK_STRIPES = 64;
+    /**
+     * Stored keys considered at most when splitting the range of this server.
+     */
+    private static final int MAX_SPLIT_POINT_KEYS = 10_000;
+    /**
+     * Time {@link #close()} takes at most to leave the ring before the server stops regardless.
+     */
+    public static final long DEFAULT_DRAIN_MILLIS = 10_000;
+    private static final long DRAIN_POLL_MILLIS = 10;
     private static final Logger LOGGER = Logger.getRootLogger();
 
-    private final ObjectMapper objectMapper = new ObjectMapper();
-    private final Object lock = new Object();
     private final InetAddress address;
     private final int port;
     private final InetSocketAddress ecsSocketAddress;
     private final InetSocketAddress ringSocketAddress;
     private final int cacheSize;
     private final CacheStrategy cacheStrategy;
-    private final String storageFilePath;
+    private final KVStorage storage;
 
     private Socket ecsSocket;
+    private KVECSThread ecsThread;
+    private final Set<KVThread> connections = ConcurrentHashMap.newKeySet();
     private ServerSocket serverSocket;
     private boolean running;
+    // set by the first close or kill, later ones return right away
+    private final AtomicBoolean stopped = new AtomicBoolean();
     PerformanceMonitor performanceMonitor;
     /**
      * The latch will be zero when the socket is alive.
      */
     private CountDownLatch runningLatch;
+    private ExpiryReaper expiryReaper;
+    private final AntiEntropy antiEntropy;
+    private final HintedHandoff hintedHandoff;
+    private final RangeHandoff rangeHandoff;
+    private final ChangeFeed changeFeed = new ChangeFeed(this::isCoordinatorFor);
+    private final AtomicOperations atomicOperations = new AtomicOperations(this);
+    private volatile Metadata metadata = Metadata.EMPTY;
+    private volatile HotKeys hotKeys = HotKeys.EMPTY;
+    private final Replicator replicator = new Replicator();
+    private volatile AccessLog accessLog;
+    private final LatencyBreakdown latencyBreakdown = new LatencyBreakdown();
+    private final ServerStats stats = new ServerStats(this);
+    private final AdmissionControl admissionControl = new AdmissionControl();
+    private final FairScheduler scheduler = new FairScheduler();
+    private final TransferThrottle transferThrottle = new TransferThrottle(this.scheduler);
+    private MetricsHttpServer metricsEndpoint;
+    /**
+     * A write is applied and handed to the replicas under the lock of its stripe, so the replicas receive
+     * the writes of a key in the order they were applied here.
+     */
+    private final Object[] writeLocks = new Object[WRITE_LOCK_STRIPES];
+
+    /**
+     * Ring of the latest METADATA_UPDATE. It is replaced as a whole, so readers never see a partial update.
+     */
+    private static final class Metadata {
+        static final Metadata EMPTY = new Metadata(new ECSRing<>(), 1, ReplicationMode.PRIMARY_BACKUP);
+
+        final ECSRing<Object> ring;
+        final int replicationFactor;
+        final ReplicationMode replicationMode;
+        final String writeMetadata;
+        final String readMetadata;
+
+        Metadata(ECSRing<Object> ring, int replicationFactor, ReplicationMode replicationMode) {
+            this.ring = ring;
+            this.replicationFactor = replicationFactor;
+            this.replicationMode = replicationMode;
+            this.writeMetadata = ring.toMetadata(1);
+            this.readMetadata = ring.toMetadata(replicationFactor);
+        }
+    }
+
+    /**
+     * Keys the ECS found to be hot, which are replicated to extraReplicas servers following their regular
+     * replicas on the ring, so GETs of them can be spread over more servers. Replaced as a whole.
+     */
+    private static final class HotKeys {
+        static final HotKeys EMPTY = new HotKeys(Collections.emptySet(), 0);
+
+        final Set<String> keys;
+        final int extraReplicas;
+
+        HotKeys(Set<String> keys, int extraReplicas) {
+            this.keys = keys;
+            this.extraReplicas = extraReplicas;
+        }
+    }
 
     /**
      * Start KV Server at given address and port
@@ -51,9 +152,12 @@ public class KVServer implements IKVServer, Runnable {
      *                  is full and there is a GET- or PUT-request on a key that is
      *                  currently not contained in the cache. Options are "FIFO", "LRU",
      *                  and "LFU".
+     * @param compressionLevel deflate level (0-9) of the storage file blocks, KVStorage.NO_COMPRESSION to
+     *                         store plain JSON
      */
     public KVServer(InetAddress address, int port, InetSocketAddress ecsSocketAddress, InetSocketAddress ringSocketAddress,
-                    int cacheSize, String strategy, String directory, boolean performanceMonitorEnabled) throws UnknownHostException {
+                    int cacheSize, String strategy, String directory, boolean performanceMonitorEnabled,
+                    int compressionLevel) throws UnknownHostException {
         if (address == null) {
             LOGGER.error("Address address not found.");
             throw new UnknownHostException(ecsSocketAddress.getHostName());
@@ -66,13 +170,42 @@ public class KVServer implements IKVServer, Runnable {
         this.cacheSize = cacheSize;
         this.cacheStrategy = CacheStrategy.valueOf(strategy);
         this.running = false;
-        this.storageFilePath = String.valueOf(Paths.get(directory, STORAGE_FILE));
+        // the same file whether compressed or not, so turning compression on or off keeps the stored keys
+        Path storageFile = Paths.get(directory, STORAGE_FILE);
+        Path legacyStorageFile = Paths.get(directory, LEGACY_COMPRESSED_STORAGE_FILE);
+        if (Files.isRegularFile(legacyStorageFile) && !Files.exists(storageFile)) {
+            try {
+                Files.move(legacyStorageFile, storageFile);
+            } catch (IOException e) {
+                LOGGER.error("could not move " + legacyStorageFile + " to " + storageFile, e);
+            }
+        }
+        this.storage = new KVStorage(storageFile.toString(), KVStorage.DEFAULT_SEGMENT_COUNT, compressionLevel);
 
         if (performanceMonitorEnabled) {
             this.performanceMonitor = new PerformanceMonitor();
+            this.performanceMonitor.registerGauge("STORAGE_KEYS", this.storage::size);
+            this.performanceMonitor.registerGauge("STORAGE_OFF_HEAP_BYTES", this.storage::offHeapBytes);
+            CompressionStats compressionStats = this.storage.getCompressionStats();
+            this.performanceMonitor.registerGauge("COMPRESSION_RATIO", compressionStats::getRatio);
+            this.performanceMonitor.registerGauge("COMPRESSION_MB_PER_CPU_SECOND", compressionStats::getCompressMegabytesPerSecond);
+            this.performanceMonitor.registerGauge("COMPRESSION_CPU_MS", () -> compressionStats.getCompressNanos() / 1e6);
+            this.performanceMonitor.registerGauge("DECOMPRESSION_CPU_MS", () -> compressionStats.getDecompressNanos() / 1e6);
         }
 
+        this.antiEntropy = new AntiEntropy(this, this.storage, AntiEntropy.DEFAULT_INTERVAL_MILLIS);
+        this.hintedHandoff = new HintedHandoff(this);
+        this.rangeHandoff = new RangeHandoff(this, this.storage);
         this.runningLatch = new CountDownLatch(1);
+        for (int i = 0; i < WRITE_LOCK_STRIPES; i++) {
+            this.writeLocks[i] = new Object();
+        }
+    }
+
+    public KVServer(InetAddress address, int port, InetSocketAddress ecsSocketAddress, InetSocketAddress ringSocketAddress,
+                    int cacheSize, String strategy, String directory, boolean performanceMonitorEnabled) throws UnknownHostException {
+        this(address, port, ecsSocketAddress, ringSocketAddress, cacheSize, strategy, directory, performanceMonitorEnabled,
+                KVStorage.NO_COMPRESSION);
     }
 
     /**
@@ -133,8 +266,7 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public boolean inStorage(String key) {
-        // TODO Auto-generated method stub
-        return false;
+        return this.storage.contains(key);
     }
 
     @Override
@@ -145,20 +277,662 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public String getKV(String key) throws IOException {
-        synchronized (lock) {
-            HashMap<String, String> store = this.objectMapper.readValue(new File(this.storageFilePath), HashMap.class);
-            return store.get(key);
-        }
+        byte[] value = this.storage.get(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
     }
 
     @Override
     public String putKV(String key, String value) throws IOException {
-        synchronized (lock) {
-            HashMap<String, String> store = this.objectMapper.readValue(new File(this.storageFilePath), HashMap.class);
-            String previousValue = store.put(key, value);
-            this.objectMapper.writeValue(new File(this.storageFilePath), store);
-            return previousValue;
+        byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        byte[] previousValue = this.storage.getAndPut(key, valueBytes);
+        this.changeFeed.publish(key, valueBytes);
+        return previousValue == null ? null : new String(previousValue, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get the UTF-8 encoded value associated with the key
+     *
+     * @return value associated with key, null if there is none
+     */
+    public byte[] getKVBytes(String key) {
+        StorageEvent event = new StorageEvent();
+        event.begin();
+        byte[] value = this.storage.get(key);
+        event.finish("get", key, value, value != null);
+        return value;
+    }
+
+    /**
+     * Put the UTF-8 encoded value into storage, a null value deletes the key
+     *
+     * @return true if the key was associated with a value before
+     */
+    public boolean putKVBytes(String key, byte[] value) throws IOException {
+        StorageEvent event = new StorageEvent();
+        event.begin();
+        boolean hadPreviousValue = this.storage.put(key, value);
+        event.finish("put", key, value, hadPreviousValue);
+        this.changeFeed.publish(key, value);
+        return hadPreviousValue;
+    }
+
+    /**
+     * Put the UTF-8 encoded value into storage, expiring at the given time
+     *
+     * @param expiresAt time in milliseconds since the epoch, KVStorage.NO_EXPIRY if the value never expires
+     * @return true if the key was associated with an unexpired value before
+     */
+    public boolean putKVBytes(String key, byte[] value, long expiresAt) throws IOException {
+        StorageEvent event = new StorageEvent();
+        event.begin();
+        boolean hadPreviousValue = this.storage.put(key, value, expiresAt);
+        event.finish("put", key, value, hadPreviousValue);
+        this.changeFeed.publish(key, value);
+        return hadPreviousValue;
+    }
+
+    /**
+     * Applies a quorum write to this replica only, the client sends it to the other replicas itself.
+     *
+     * @param value UTF-8 encoded value, null to delete the key
+     * @return true if the value was stored, false if this replica already holds a newer version
+     */
+    public boolean putVersionedKVBytes(String key, byte[] value, long version) throws IOException {
+        StorageEvent event = new StorageEvent();
+        event.begin();
+        boolean stored = this.storage.putIfNewer(key, value, version);
+        event.finish("put_if_newer", key, value, stored);
+        if (stored) {
+            this.changeFeed.publish(key, value);
+            // the client only sends it to the regular replicas, the coordinator passes it on to the extra ones
+            List<ECSNode<Object>> hotReplicas = isCoordinatorFor(key) ? hotReplicas(key) : Collections.emptyList();
+            if (!hotReplicas.isEmpty()) {
+                this.replicator.send(hotReplicas, new KVMessage(key, version, value, IKVMessage.StatusType.PUT_VERSIONED));
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Applies an anti-entropy repair under the write lock of the key, like replicated writes, unless the key
+     * changed since this replica listed it with the given digest. Such a repair may hold an older value
+     * than a replicated write that overtook it on another connection; the key is compared again in the next
+     * round.
+     *
+     * @return false if the repair was skipped
+     */
+    boolean repairKVBytes(String key, byte[] value, long expiresAt, long listedDigest) throws IOException {
+        synchronized (this.writeLocks[Math.floorMod(key.hashCode(), WRITE_LOCK_STRIPES)]) {
+            if (this.storage.digest(key) != listedDigest) {
+                return false;
+            }
+            putKVBytes(key, value, expiresAt);
+            return true;
+        }
+    }
+
+    /**
+     * @return the value of the key and its version, null if there is none
+     */
+    public VersionedValue getVersionedKVBytes(String key) {
+        StorageEvent event = new StorageEvent();
+        event.begin();
+        VersionedValue value = this.storage.getVersioned(key);
+        event.finish("get_versioned", key, value == null ? null : value.getValue(), value != null);
+        return value;
+    }
+
+    /**
+     * @return address of this server as it appears in the metadata
+     */
+    public String getNodeIpAndPort() {
+        return this.address.getHostName() + ":" + this.port;
+    }
+
+    /**
+     * Replaces the metadata with the one sent by the ECS.
+     *
+     * @param metadata          semicolon separated triples kr-from, kr-to, ip:port
+     * @param replicationFactor number of servers storing each key
+     * @param replicationMode   how the servers storing a key are updated
+     */
+    public void updateMetadata(String metadata, int replicationFactor, ReplicationMode replicationMode)
+            throws IllegalArgumentException, UnknownHostException {
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(metadata);
+        MetadataUpdateEvent event = new MetadataUpdateEvent();
+        event.begin();
+        // client requests wait until the new ring is in place rather than competing with it for the locks
+        this.scheduler.beginPriority();
+        Metadata previous;
+        try {
+            previous = this.metadata;
+            this.metadata = new Metadata(ring, Math.max(1, replicationFactor), replicationMode);
+            this.antiEntropy.updateMetadata(ring, Math.max(1, replicationFactor));
+            this.hintedHandoff.updateMetadata(previous.ring, ring);
+            this.rangeHandoff.metadataChanged();
+            // servers that joined may be extra replicas of hot keys now
+            seedHotReplicas();
+        } finally {
+            this.scheduler.endPriority();
+        }
+        event.finish(getNodeIpAndPort(), ring.getMap().size(), !previous.readMetadata.equals(this.metadata.readMetadata));
+    }
+
+    /**
+     * Replaces the hot keys with the ones sent by the ECS. The hot keys this server coordinates are copied
+     * to their extra replicas, whose copies are kept up to date with every write from then on. Extra
+     * replicas of keys that are no longer hot hand them back to the coordinator like keys of a range they
+     * lost, see {@link RangeHandoff}.
+     *
+     * @param extraReplicas number of servers storing each hot key in addition to its regular replicas
+     */
+    public void updateHotKeys(Collection<String> keys, int extraReplicas) {
+        this.scheduler.beginPriority();
+        try {
+            this.hotKeys = keys.isEmpty() ? HotKeys.EMPTY
+                    : new HotKeys(Collections.unmodifiableSet(new HashSet<>(keys)), Math.max(0, extraReplicas));
+            seedHotReplicas();
+        } finally {
+            this.scheduler.endPriority();
+        }
+        this.rangeHandoff.metadataChanged();
+    }
+
+    /**
+     * @return the keys the ECS found to be hot
+     */
+    public Set<String> getHotKeys() {
+        return this.hotKeys.keys;
+    }
+
+    /**
+     * Sends the hot keys this server coordinates to their extra replicas. They are sent as REPLICATE under
+     * the write lock of the key, which replicas apply whether or not they know the key is hot yet, and which
+     * reaches them before any later write of the key.
+     */
+    private void seedHotReplicas() {
+        for (String key : this.hotKeys.keys) {
+            if (!isCoordinatorFor(key)) {
+                continue;
+            }
+            synchronized (this.writeLocks[Math.floorMod(key.hashCode(), WRITE_LOCK_STRIPES)]) {
+                VersionedValue value = this.storage.getVersioned(key);
+                List<ECSNode<Object>> hotReplicas = hotReplicas(key);
+                if (value != null && value.getValue() != null && !hotReplicas.isEmpty()) {
+                    this.replicator.send(hotReplicas, new KVMessage(key, value.getExpiresAt(), value.getValue(), IKVMessage.StatusType.REPLICATE));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the extra replicas of a hot key, the servers following its regular replicas on the ring; empty
+     * if the key is not hot
+     */
+    private List<ECSNode<Object>> hotReplicas(String key) {
+        HotKeys hotKeys = this.hotKeys;
+        if (!hotKeys.keys.contains(key)) {
+            return Collections.emptyList();
+        }
+        Metadata metadata = this.metadata;
+        List<ECSNode<Object>> replicas = metadata.ring.getReplicasForKey(key, metadata.replicationFactor + hotKeys.extraReplicas);
+        return replicas.size() <= metadata.replicationFactor
+                ? Collections.emptyList()
+                : replicas.subList(metadata.replicationFactor, replicas.size());
+    }
+
+    /**
+     * @return semicolon separated triples kr-from, kr-to, ip:port of the servers responsible for writes
+     */
+    public String getMetadata() {
+        return this.metadata.writeMetadata;
+    }
+
+    /**
+     * @return same as {@link #getMetadata()}, but the ranges include the keys each server replicates; each
+     * extra replica of a hot key follows as a range of the hash of the key only, marked by a fourth field
+     * "hot"
+     */
+    public String getReadMetadata() {
+        Metadata metadata = this.metadata;
+        HotKeys hotKeys = this.hotKeys;
+        if (hotKeys.keys.isEmpty()) {
+            return metadata.readMetadata;
+        }
+        StringBuilder readMetadata = new StringBuilder(metadata.readMetadata);
+        for (String key : hotKeys.keys) {
+            String hash = HashUtils.md5(key);
+            for (ECSNode<Object> replica : hotReplicas(key)) {
+                readMetadata.append(hash).append(',').append(hash).append(',')
+                        .append(replica.getNodeIpAndPort()).append(",hot;");
+            }
+        }
+        return readMetadata.toString();
+    }
+
+    /**
+     * @return true if PUTs of the key are handled by this server, which is also the case as long as the ECS
+     * has not sent any metadata
+     */
+    public boolean isCoordinatorFor(String key) {
+        ECSNode<Object> node = this.metadata.ring.getNodeForKey(key);
+        return node == null || node.getNodeIpAndPort().equals(getNodeIpAndPort());
+    }
+
+    /**
+     * @return the server coordinating the key, null as long as the ECS has not sent any metadata
+     */
+    ECSNode<Object> coordinatorOf(String key) {
+        return this.metadata.ring.getNodeForKey(key);
+    }
+
+    /**
+     * @return true if this server stores the key, either as its coordinator or as one of its replicas,
+     * including the extra replicas of a hot key
+     */
+    public boolean isReplicaFor(String key) {
+        Metadata metadata = this.metadata;
+        List<ECSNode<Object>> replicas = metadata.ring.getReplicasForKey(key, metadata.replicationFactor);
+        if (replicas.isEmpty()) {
+            return true;
+        }
+        for (ECSNode<Object> replica : replicas) {
+            if (replica.getNodeIpAndPort().equals(getNodeIpAndPort())) {
+                return true;
+            }
+        }
+        for (ECSNode<Object> replica : hotReplicas(key)) {
+            if (replica.getNodeIpAndPort().equals(getNodeIpAndPort())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Applies a write and forwards it to the replicas that follow this server for the key: all of them if
+     * this server coordinates the key, or only the next one in chain replication. A replica that does not
+     * acknowledge the write is logged, the write is kept here regardless.
+     *
+     * @param value     UTF-8 encoded value, null for a delete
+     * @param expiresAt expiry time of the value, KVStorage.NO_EXPIRY if it never expires
+     * @return completes with whether the key had an unexpired value before, once the replicas the write was
+     * forwarded to responded
+     */
+    public CompletableFuture<Boolean> putAndReplicate(String key, byte[] value, long expiresAt) throws IOException {
+        List<ECSNode<Object>> downstream = downstreamReplicas(key);
+        boolean hadPreviousValue;
+        List<CompletableFuture<KVMessage>> acknowledgements;
+        LatencyBreakdown.Timer timer = LatencyBreakdown.Timer.current();
+        long lockStart = System.nanoTime();
+        synchronized (this.writeLocks[Math.floorMod(key.hashCode(), WRITE_LOCK_STRIPES)]) {
+            long storageStart = System.nanoTime();
+            StorageEvent event = new StorageEvent();
+            event.begin();
+            long writtenAt = System.currentTimeMillis();
+            hadPreviousValue = this.storage.put(key, value, expiresAt, writtenAt);
+            event.finish("put", key, value, hadPreviousValue);
+            if (timer != null) {
+                timer.add(LatencyBreakdown.Stage.LOCK_WAIT, storageStart - lockStart);
+                timer.add(LatencyBreakdown.Stage.STORAGE, System.nanoTime() - storageStart);
+            }
+            this.hintedHandoff.recordWrite(key, value, expiresAt, writtenAt);
+            this.changeFeed.publish(key, value);
+            acknowledgements = this.replicator.send(downstream, new KVMessage(key, expiresAt, value, IKVMessage.StatusType.REPLICATE),
+                    chainPosition(key));
+        }
+
+        return CompletableFuture.allOf(acknowledgements.toArray(new CompletableFuture<?>[0])).handle((ignored, e) -> {
+            if (e != null) {
+                LOGGER.error("write of <" + key + "> was not acknowledged by all replicas", e);
+            }
+            return hadPreviousValue;
+        });
+    }
+
+    /**
+     * Computes a write from the current value of the key, applies it and forwards it to the replicas without
+     * any other write of the key coming in between. Versioned writes are sent to all other replicas as
+     * PUT_VERSIONED, other writes are replicated as by {@link #putAndReplicate}.
+     *
+     * @param update computes the write from the current value, null if the key is absent
+     * @return completes with the response of the update once the replicas the write was forwarded to
+     * responded
+     */
+    CompletableFuture<KVMessage> updateAndReplicate(String key, Function<VersionedValue, AtomicOperations.Update> update)
+            throws IOException {
+        AtomicOperations.Update applied;
+        List<CompletableFuture<KVMessage>> acknowledgements = Collections.emptyList();
+        LatencyBreakdown.Timer timer = LatencyBreakdown.Timer.current();
+        long lockStart = System.nanoTime();
+        synchronized (this.writeLocks[Math.floorMod(key.hashCode(), WRITE_LOCK_STRIPES)]) {
+            long storageStart = System.nanoTime();
+            if (timer != null) {
+                timer.add(LatencyBreakdown.Stage.LOCK_WAIT, storageStart - lockStart);
+            }
+            StorageEvent event = new StorageEvent();
+            event.begin();
+            VersionedValue current = this.storage.getVersioned(key);
+            event.finish("get_versioned", key, current == null ? null : current.getValue(), current != null);
+            applied = update.apply(current);
+            boolean versioned = applied.version != KVStorage.NO_VERSION;
+            if (applied.write) {
+                event = new StorageEvent();
+                event.begin();
+                boolean found = versioned
+                        ? this.storage.putIfNewer(key, applied.value, applied.version)
+                        : this.storage.put(key, applied.value, applied.expiresAt, applied.writtenAt);
+                event.finish(versioned ? "put_if_newer" : "put", key, applied.value, found);
+            }
+            if (timer != null) {
+                timer.add(LatencyBreakdown.Stage.STORAGE, System.nanoTime() - storageStart);
+            }
+
+            if (applied.write) {
+                // versioned writes never expire
+                this.hintedHandoff.recordWrite(key, applied.value, applied.expiresAt, applied.writtenAt);
+                this.changeFeed.publish(key, applied.value);
+                acknowledgements = versioned
+                        ? this.replicator.send(otherReplicas(key),
+                        new KVMessage(key, applied.version, applied.value, IKVMessage.StatusType.PUT_VERSIONED))
+                        : this.replicator.send(downstreamReplicas(key),
+                        new KVMessage(key, applied.expiresAt, applied.value, IKVMessage.StatusType.REPLICATE), chainPosition(key));
+            }
+        }
+
+        return CompletableFuture.allOf(acknowledgements.toArray(new CompletableFuture<?>[0])).handle((ignored, e) -> {
+            if (e != null) {
+                LOGGER.error("write of <" + key + "> was not acknowledged by all replicas", e);
+            }
+            return applied.response;
+        });
+    }
+
+    /**
+     * Applies a write another server made while it stood in for this one, see {@link RangeHandoff} and
+     * {@link HintedHandoff}, and replicates it like a PUT. The newer write wins: a copy of the key this server
+     * wrote at the same time or later, even a tombstone, is kept.
+     *
+     * @param value     UTF-8 encoded value, null for a delete
+     * @param writtenAt time the write was made at
+     * @return completes with PUT_SUCCESS or DELETE_SUCCESS once the replicas the write was forwarded to
+     * responded, or with HANDOFF_SKIPPED if the copy of this server was kept
+     */
+    CompletableFuture<KVMessage> handOffAndReplicate(String key, byte[] value, long expiresAt, long writtenAt) throws IOException {
+        KVMessage acknowledgement = new KVMessage(key, value,
+                value == null ? IKVMessage.StatusType.DELETE_SUCCESS : IKVMessage.StatusType.PUT_SUCCESS);
+        return updateAndReplicate(key, current -> {
+            if (current != null && current.getWrittenAt() >= writtenAt) {
+                return AtomicOperations.Update.none(new KVMessage(key, IKVMessage.StatusType.HANDOFF_SKIPPED));
+            }
+            if (current == null && value == null) {
+                return AtomicOperations.Update.none(acknowledgement);
+            }
+            return AtomicOperations.Update.writeHandedOff(value, expiresAt, writtenAt, acknowledgement);
+        });
+    }
+
+    /**
+     * Deletes a key whose coordinator confirmed that it holds the copy handed off or a newer one, unless this
+     * server stores the key again by now or wrote it since the copy was sent.
+     *
+     * @param handedOff the copy of the key that was sent to the coordinator
+     */
+    void dropHandedOff(String key, VersionedValue handedOff) throws IOException {
+        synchronized (this.writeLocks[Math.floorMod(key.hashCode(), WRITE_LOCK_STRIPES)]) {
+            VersionedValue current = this.storage.getVersioned(key);
+            if (current != null && current.getWrittenAt() == handedOff.getWrittenAt()
+                    && current.getVersion() == handedOff.getVersion()
+                    && Arrays.equals(current.getValue(), handedOff.getValue()) && !isReplicaFor(key)) {
+                this.storage.put(key, null);
+            }
+        }
+    }
+
+    /**
+     * @return the hash splitting the range this server coordinates into halves with about the same load,
+     * see {@link ServerStats#splitPoint}; null if it coordinates no range or the range cannot be split
+     */
+    String splitPoint() {
+        ECSRing<Object> ring = this.metadata.ring;
+        String self = getNodeIpAndPort();
+        for (Map.Entry<String, ECSNode<Object>> node : ring.getMap().entrySet()) {
+            if (!node.getValue().getNodeIpAndPort().equals(self)) {
+                continue;
+            }
+            String next = ring.getMap().higherKey(node.getKey());
+            String to = HashUtils.hashSubtractOne(next == null ? ring.getMap().firstKey() : next);
+
+            // hashing every key would take too long for a large storage, a sample shows the distribution as well
+            int every = Math.max(1, this.storage.size() / MAX_SPLIT_POINT_KEYS);
+            List<Long> positions = new ArrayList<>();
+            int[] visited = new int[1];
+            this.storage.forEachDigest((key, version, digest) -> {
+                if (visited[0]++ % every == 0) {
+                    positions.add(HashUtils.ringPosition(key));
+                }
+            });
+            long[] keys = positions.stream().mapToLong(Long::longValue).toArray();
+            return ServerStats.splitPoint(node.getKey(), to, this.stats.sampledPositions(), keys);
+        }
+        return null;
+    }
+
+    AtomicOperations getAtomicOperations() {
+        return this.atomicOperations;
+    }
+
+    /**
+     * Logs the requests handled from now on to a file of their own, see {@link AccessLog}.
+     *
+     * @param sampleEvery log one in this many requests, 1 to log all of them
+     */
+    public void enableAccessLog(String path, int sampleEvery) throws IOException {
+        AccessLog previous = this.accessLog;
+        this.accessLog = new AccessLog(path, AccessLog.DEFAULT_CAPACITY, sampleEvery);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Answers client requests with SERVER_BUSY beyond the given limits instead of queueing them, see
+     * {@link AdmissionControl}. A limit of 0 disables it, which is the default.
+     *
+     * @param maxConnections      connections with client requests open at a time
+     * @param maxInFlightRequests client requests being handled at a time
+     * @param maxQueuedBytes      bytes of the keys and values of the client requests being handled at a time
+     */
+    public void setAdmissionLimits(int maxConnections, int maxInFlightRequests, long maxQueuedBytes) {
+        this.admissionControl.setLimits(maxConnections, maxInFlightRequests, maxQueuedBytes);
+    }
+
+    AdmissionControl getAdmissionControl() {
+        return this.admissionControl;
+    }
+
+    /**
+     * Limits the requests per second of each client host and lets the clients take turns for the given
+     * number of slots to handle their requests in, see {@link FairScheduler}. Either is disabled at 0, which
+     * is the default.
+     *
+     * @param requestsPerSecond  requests each client host may send per second, answered with SERVER_BUSY beyond
+     * @param concurrentRequests client requests handled at a time
+     */
+    public void setClientLimits(double requestsPerSecond, int concurrentRequests) {
+        this.scheduler.setLimits(requestsPerSecond, concurrentRequests);
+    }
+
+    FairScheduler getScheduler() {
+        return this.scheduler;
+    }
+
+    /**
+     * Limits the bytes per second of the keys this server hands off and repairs in the background, see
+     * {@link TransferThrottle}. 0, the default, does not limit them; they yield to waiting client requests
+     * either way.
+     */
+    public void setTransferRate(long bytesPerSecond) {
+        this.transferThrottle.setRate(bytesPerSecond);
+    }
+
+    TransferThrottle getTransferThrottle() {
+        return this.transferThrottle;
+    }
+
+    LatencyBreakdown getLatencyBreakdown() {
+        return this.latencyBreakdown;
+    }
+
+    ServerStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * @return the live metrics of this server, as sent in response to STATS
+     */
+    public Metrics collectStats() {
+        return this.stats.collect();
+    }
+
+    void collectStorageStats(Metrics metrics) {
+        metrics.set("storage_keys", this.storage.size());
+        metrics.set("storage_off_heap_bytes", this.storage.offHeapBytes());
+        metrics.set("storage_unpersisted_writes", this.storage.unpersistedWrites());
+        metrics.set("hinted_writes", this.hintedHandoff.size());
+        metrics.set("subscribers", this.changeFeed.size());
+        AccessLog accessLog = this.accessLog;
+        if (accessLog != null) {
+            metrics.set("access_log_dropped_total", accessLog.dropped());
+        }
+    }
+
+    /**
+     * Serves the metrics of this server in the Prometheus text format on the loopback interface.
+     *
+     * @return the port the endpoint listens on
+     */
+    public synchronized int startMetricsEndpoint(int port) throws IOException {
+        if (this.metricsEndpoint == null) {
+            this.metricsEndpoint = new MetricsHttpServer(port, this::collectStats);
+        }
+        return this.metricsEndpoint.getPort();
+    }
+
+    /**
+     * Writes the latencies of the requests handled so far, split into stages, as CSV.
+     */
+    public void dumpLatencyBreakdown(File output) throws IOException {
+        this.latencyBreakdown.dump(output);
+    }
+
+    /**
+     * @return the access log, null if requests are not logged
+     */
+    AccessLog getAccessLog() {
+        return this.accessLog;
+    }
+
+    /**
+     * Keeps a write for the coordinator of the key, which the client could not reach, and hands it over
+     * once the coordinator is available again.
+     *
+     * @param value     UTF-8 encoded value, null for a delete
+     * @param expiresAt expiry time of the value, KVStorage.NO_EXPIRY if it never expires
+     * @return false if too many hinted writes are pending
+     */
+    public boolean hintKVBytes(String key, byte[] value, long expiresAt) {
+        ECSNode<Object> coordinator = this.metadata.ring.getNodeForKey(key);
+        if (coordinator == null) {
+            return false;
+        }
+        return this.hintedHandoff.hint(coordinator.getNodeIpAndPort(), key, value, expiresAt);
+    }
+
+    /**
+     * @return the number of writes waiting to be handed to their coordinators
+     */
+    public int pendingHints() {
+        return this.hintedHandoff.size();
+    }
+
+    /**
+     * Registers the connection for the writes applied on this server, see ChangeFeed. Messages are pushed
+     * until the connection is closed or the client falls too far behind.
+     */
+    ChangeFeed.Subscriber subscribe(Socket socket, SocketMessenger socketMessenger) {
+        return this.changeFeed.subscribe(socket, socketMessenger);
+    }
+
+    void unsubscribe(ChangeFeed.Subscriber subscriber) {
+        this.changeFeed.unsubscribe(subscriber);
+    }
+
+    /**
+     * @return the number of connections subscribed to invalidations or watching keys
+     */
+    public int subscriberCount() {
+        return this.changeFeed.size();
+    }
+
+    private List<ECSNode<Object>> otherReplicas(String key) {
+        Metadata metadata = this.metadata;
+        List<ECSNode<Object>> replicas = new ArrayList<>(metadata.ring.getReplicasForKey(key, metadata.replicationFactor));
+        replicas.removeIf(replica -> replica.getNodeIpAndPort().equals(getNodeIpAndPort()));
+        replicas.addAll(hotReplicas(key));
+        return replicas;
+    }
+
+    private List<ECSNode<Object>> downstreamReplicas(String key) {
+        Metadata metadata = this.metadata;
+        List<ECSNode<Object>> replicas = metadata.ring.getReplicasForKey(key, metadata.replicationFactor);
+        int position = chainPosition(replicas);
+        if (position == replicas.size()) {
+            return Collections.emptyList();
+        }
+        List<ECSNode<Object>> downstream = new ArrayList<>(metadata.replicationMode == ReplicationMode.CHAIN
+                ? replicas.subList(position + 1, Math.min(position + 2, replicas.size()))
+                : (position == 0 ? replicas.subList(1, replicas.size()) : Collections.emptyList()));
+        if (position == 0) {
+            // the extra replicas of a hot key are no part of the chain, the coordinator updates them directly
+            downstream.addAll(hotReplicas(key));
         }
+        return downstream;
+    }
+
+    /**
+     * @return the position of this server among the replicas of the key, 0 for its coordinator, which is the
+     * lane it forwards writes of the key on, see {@link Replicator}
+     */
+    private int chainPosition(String key) {
+        Metadata metadata = this.metadata;
+        return chainPosition(metadata.ring.getReplicasForKey(key, metadata.replicationFactor));
+    }
+
+    /**
+     * @return the index of this server in the replicas, their number if it is none of them
+     */
+    private int chainPosition(List<ECSNode<Object>> replicas) {
+        int position = 0;
+        while (position < replicas.size() && !replicas.get(position).getNodeIpAndPort().equals(getNodeIpAndPort())) {
+            position++;
+        }
+        return position;
+    }
+
+    AntiEntropy getAntiEntropy() {
+        return this.antiEntropy;
+    }
+
+    /**
+     * Compares the ranges this server coordinates with their replicas and repairs the differences right
+     * away, instead of waiting for the next background round.
+     *
+     * @return the number of keys that were sent to or fetched from replicas
+     */
+    public int repairReplicas() throws InterruptedException {
+        return this.antiEntropy.repair();
     }
 
     @Override
@@ -168,10 +942,7 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void clearStorage() {
-        File file = new File(this.storageFilePath);
-        if (file.isFile()) {
-            file.delete();
-        }
+        this.storage.clear();
     }
 
     @Override
@@ -184,28 +955,151 @@ public class KVServer implements IKVServer, Runnable {
 
         while (this.running) {
             try {
-                new KVThread(this.serverSocket.accept(), this).start();
+                KVThread connection = new KVThread(this.serverSocket.accept(), this);
+                this.connections.add(connection);
+                connection.start();
             } catch (IOException e) {
-                LOGGER.error("error accepting connection", e);
+                if (this.running) {
+                    LOGGER.error("error accepting connection", e);
+                }
             }
         }
     }
 
+    void connectionClosed(KVThread connection) {
+        this.connections.remove(connection);
+    }
+
+    /**
+     * Stops right away: connections are closed with their requests, and neither are the keys handed off nor
+     * is the log compacted into the storage file. Acknowledged writes are in the log already and are
+     * replayed on the next start. The ECS removes the server once its connection closed. Does nothing if
+     * the server was closed or killed before.
+     */
     @Override
     public void kill() {
-        // TODO Auto-generated method stub
+        if (this.stopped.compareAndSet(false, true)) {
+            stop();
+        }
     }
 
+    /**
+     * Leaves the ring within DEFAULT_DRAIN_MILLIS, see {@link #close(long)}.
+     */
     @Override
     public void close() {
+        close(DEFAULT_DRAIN_MILLIS);
+    }
+
+    /**
+     * Leaves the ring gracefully: stops accepting connections, asks the ECS to remove this server, lets the
+     * requests being handled finish, hands the keys to the servers that took over its ranges, writes the
+     * storage file and then stops like {@link #kill()}. Clients sending further requests are told the server
+     * is not responsible and move on to the new coordinators. Whatever is not done by the deadline is given
+     * up on; keys not handed off stay in the storage file and on their other replicas. Does nothing if the
+     * server was closed or killed before, e.g. when the shutdown hook runs after an explicit close.
+     *
+     * @param drainMillis time until the server stops regardless
+     */
+    public void close(long drainMillis) {
+        if (!this.stopped.compareAndSet(false, true)) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        this.running = false;
+        try {
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+
+            KVECSThread ecsThread = this.ecsThread;
+            boolean left = ecsThread != null && ecsThread.disconnect(remainingMillis(deadline));
+            while (!isIdle() && System.nanoTime() - deadline < 0) {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            }
+            if (left) {
+                int remaining = this.rangeHandoff.drain(deadline);
+                if (remaining > 0) {
+                    LOGGER.warn(remaining + " keys were not handed off before the server stopped");
+                }
+            } else {
+                LOGGER.warn("the ECS did not confirm that the server left the ring, keys are not handed off");
+            }
+        } catch (IOException e) {
+            LOGGER.error("error closing server socket", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            this.storage.compact();
+        } catch (IOException e) {
+            LOGGER.error("could not write the storage file", e);
+        }
+        stop();
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /**
+     * @return true if no connection has a request being handled
+     */
+    private boolean isIdle() {
+        for (KVThread connection : this.connections) {
+            if (!connection.isIdle()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stop() {
         this.running = false;
         this.runningLatch = new CountDownLatch(1);
+        if (this.expiryReaper != null) {
+            this.expiryReaper.interrupt();
+        }
+        this.antiEntropy.interrupt();
+        this.hintedHandoff.interrupt();
+        this.rangeHandoff.interrupt();
+        this.changeFeed.close();
+        this.replicator.close();
         try {
-            this.serverSocket.close();
-            this.ecsSocket.close();
+            // both are null if the server never started or could not reach the ECS
+            if (this.serverSocket != null) {
+                this.serverSocket.close();
+            }
+            if (this.ecsSocket != null) {
+                this.ecsSocket.close();
+            }
         } catch (IOException e) {
             LOGGER.error("error closing server socket", e);
         }
+        for (KVThread connection : this.connections) {
+            connection.close();
+        }
+        try {
+            this.storage.close();
+        } catch (IOException e) {
+            LOGGER.error("could not close the storage log", e);
+        }
+        synchronized (this) {
+            if (this.metricsEndpoint != null) {
+                this.metricsEndpoint.close();
+                this.metricsEndpoint = null;
+            }
+        }
+        AccessLog accessLog = this.accessLog;
+        this.accessLog = null;
+        if (accessLog != null) {
+            try {
+                accessLog.close();
+            } catch (IOException e) {
+                LOGGER.error("error closing access log", e);
+            }
+        }
     }
 
     private boolean initializeServer() {
@@ -213,27 +1107,31 @@ public class KVServer implements IKVServer, Runnable {
             KVECSThread kvecsThread = new KVECSThread(this.ecsSocketAddress, this);
 
             try {
-                kvecsThread.connect();
+                if (!kvecsThread.connect()) {
+                    return false;
+                }
             } catch (IOException e) {
                 LOGGER.error("could not open ECS socket", e);
                 return false;
             }
 
             this.ecsSocket = kvecsThread.getECSSocket();
+            this.ecsThread = kvecsThread;
+            kvecsThread.start();
 
             this.serverSocket = new ServerSocket(this.port);
             LOGGER.info("server listening on " + this.address.toString() + ":" + this.port);
             try {
-                File storageFile = new File(this.storageFilePath);
-                if (!storageFile.isFile()) {
-                    FileWriter fileWriter = new FileWriter(storageFile);
-                    fileWriter.write(EMPTY_KV_STORE);
-                    fileWriter.close();
-                }
+                this.storage.load();
             } catch (IOException e) {
                 LOGGER.error("could not initialize storage file", e);
                 return false;
             }
+            this.expiryReaper = new ExpiryReaper(this.storage);
+            this.expiryReaper.start();
+            this.antiEntropy.start();
+            this.hintedHandoff.start();
+            this.rangeHandoff.start();
             return true;
         } catch (IOException e) {
             LOGGER.error("could not open server socket", e);
@@ -246,6 +1144,27 @@ public class KVServer implements IKVServer, Runnable {
         formatter.printHelp("KVServer", options);
     }
 
+    /**
+     * @return the value of a limit option, 0 for no limit if it is missing
+     */
+    private static long parseLimit(CommandLine cmd, Options options, String option) {
+        if (!cmd.hasOption(option)) {
+            return 0;
+        }
+        long limit;
+        try {
+            limit = Long.parseLong(cmd.getOptionValue(option));
+        } catch (NumberFormatException e) {
+            limit = 0;
+        }
+        if (limit < 1 || (!option.equals("mb") && !option.equals("tr") && limit > Integer.MAX_VALUE)) {
+            System.out.println("argument " + option + " must be a positive integer");
+            printUsage(options);
+            System.exit(1);
+        }
+        return limit;
+    }
+
     private static Options initializeOptions() {
         Options options = new Options();
 
@@ -271,9 +1190,20 @@ public class KVServer implements IKVServer, Runnable {
                 .addOption("r", true, "Which address and port the server should listen to for its ring neighbours, e.g., “localhost:5002”.")
                 .addOption("d", true, "Directory for storing cache files. Default is current directory")
                 .addOption("l", true, "Relative path of the logfile, e.g., “echo.log”. Default is current directory")
-                .addOption("ll", true, "Loglevel, e.g., INFO, ALL, …. Default is ALL")
+                .addOption("ll", true, "Loglevel, e.g., INFO, ALL, …. Default is INFO")
+                .addOption("al", true, "Path of a file every request is logged to, e.g., “access.log”. Default is no access log")
+                .addOption("as", true, "Log only one in the given number of requests to the access log. Default is 1")
+                .addOption("mp", true, "Serve metrics in the Prometheus text format on localhost at this port. Default is no endpoint")
+                .addOption("mc", true, "Answer SERVER_BUSY to clients beyond this number of connections. Default is no limit")
+                .addOption("mr", true, "Answer SERVER_BUSY beyond this number of client requests handled at a time. Default is no limit")
+                .addOption("mb", true, "Answer SERVER_BUSY beyond this number of bytes of client requests handled at a time. Default is no limit")
+                .addOption("cr", true, "Answer SERVER_BUSY to a client host beyond this number of requests per second. Default is no limit")
+                .addOption("fq", true, "Handle this number of client requests at a time, taking turns between client hosts. Default is no limit")
+                .addOption("tr", true, "Hand off and repair keys at this number of bytes per second at most. Default is no limit")
+                .addOption("dt", true, "Milliseconds the server takes at most to hand off its keys when shut down. Default is " + DEFAULT_DRAIN_MILLIS)
                 .addOption("h", false, "Display the help")
-                .addOption("m", false, "Enable performance monitoring");
+                .addOption("m", false, "Enable performance monitoring")
+                .addOption("c", true, "Compress the storage file in blocks with the given level (0-9). Default is no compression");
 
         return options;
     }
@@ -351,9 +1281,59 @@ public class KVServer implements IKVServer, Runnable {
 
         String directory = cmd.getOptionValue("d", System.getProperty("user.dir"));
         String logfilePath = cmd.getOptionValue("l", String.valueOf(Paths.get(System.getProperty("user.dir"), "echo.log")));
-        String logLevel = cmd.getOptionValue("ll", "ALL");
+        String logLevel = cmd.getOptionValue("ll", "INFO");
         boolean perfEnabled = cmd.hasOption("m");
 
+        int compressionLevel = KVStorage.NO_COMPRESSION;
+        if (cmd.hasOption("c")) {
+            try {
+                compressionLevel = Integer.parseInt(cmd.getOptionValue("c"));
+            } catch (NumberFormatException e) {
+                compressionLevel = Integer.MIN_VALUE;
+            }
+            if (compressionLevel < 0 || compressionLevel > 9) {
+                System.out.println("argument c must be an integer between 0 and 9");
+                printUsage(options);
+                System.exit(1);
+            }
+        }
+
+        int accessLogSampling = 1;
+        if (cmd.hasOption("as")) {
+            try {
+                accessLogSampling = Integer.parseInt(cmd.getOptionValue("as"));
+            } catch (NumberFormatException e) {
+                accessLogSampling = 0;
+            }
+            if (accessLogSampling < 1) {
+                System.out.println("argument as must be a positive integer");
+                printUsage(options);
+                System.exit(1);
+            }
+        }
+
+        int metricsPort = -1;
+        if (cmd.hasOption("mp")) {
+            try {
+                metricsPort = Integer.parseInt(cmd.getOptionValue("mp"));
+            } catch (NumberFormatException e) {
+                metricsPort = -1;
+            }
+            if (metricsPort < 0 || metricsPort > 65535) {
+                System.out.println("argument mp must be a port number");
+                printUsage(options);
+                System.exit(1);
+            }
+        }
+
+        long maxConnections = parseLimit(cmd, options, "mc");
+        long maxInFlightRequests = parseLimit(cmd, options, "mr");
+        long maxQueuedBytes = parseLimit(cmd, options, "mb");
+        long clientRequestsPerSecond = parseLimit(cmd, options, "cr");
+        long concurrentRequests = parseLimit(cmd, options, "fq");
+        long transferRate = parseLimit(cmd, options, "tr");
+        long drainMillis = cmd.hasOption("dt") ? parseLimit(cmd, options, "dt") : DEFAULT_DRAIN_MILLIS;
+
         if (!LogSetup.isValidLevel(logLevel)) {
             System.out.println("invalid logLevel");
             System.out.println(LogSetup.getPossibleLogLevels());
@@ -380,22 +1360,50 @@ public class KVServer implements IKVServer, Runnable {
                     CACHE_SIZE,
                     CACHE_STRATEGY,
                     directory,
-                    perfEnabled
+                    perfEnabled,
+                    compressionLevel
             );
+            kvServer.setAdmissionLimits((int) maxConnections, (int) maxInFlightRequests, maxQueuedBytes);
+            kvServer.setClientLimits(clientRequestsPerSecond, (int) concurrentRequests);
+            kvServer.setTransferRate(transferRate);
+
+            if (cmd.hasOption("al")) {
+                try {
+                    kvServer.enableAccessLog(cmd.getOptionValue("al"), accessLogSampling);
+                } catch (IOException e) {
+                    System.out.println("unable to open the access log");
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+
+            if (metricsPort >= 0) {
+                try {
+                    kvServer.startMetricsEndpoint(metricsPort);
+                } catch (IOException e) {
+                    System.out.println("unable to start the metrics endpoint");
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
 
             Thread serverThread = new Thread(kvServer);
             serverThread.start();
 
-            // Add a signal handler for SIGUSR1 to dump performance statistics
-            if (perfEnabled) {
-                Signal.handle(new Signal("USR1"), signal -> {
-                    try {
+            // leave the ring gracefully on SIGTERM and SIGINT, SIGKILL stops the server like kill()
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> kvServer.close(drainMillis), "shutdown"));
+
+            // Add a signal handler for SIGUSR1 to dump performance statistics and request latencies
+            Signal.handle(new Signal("USR1"), signal -> {
+                try {
+                    if (perfEnabled) {
                         kvServer.performanceMonitor.dumpStatistics(new File("server_perf.log"));
-                    } catch (IOException e) {
-                        LOGGER.error("failed to dump stats", e);
                     }
-                });
-            }
+                    kvServer.dumpLatencyBreakdown(new File("server_latency.csv"));
+                } catch (IOException e) {
+                    LOGGER.error("failed to dump stats", e);
+                }
+            });
         } catch (NumberFormatException e) {
             System.out.println("port or cache_size was not a number");
             e.printStackTrace();
@@ -1,13 +1,19 @@
 package app_kvServer;
 
+import app_kvServer.LatencyBreakdown.Stage;
+import shared.HashUtils;
 import shared.PerformanceMonitor;
+import shared.jfr.RequestEvent;
 import shared.messages.IKVMessage.StatusType;
 import shared.messages.SocketMessenger;
 import org.apache.log4j.Logger;
 import shared.messages.KVMessage;
+import storage.KVStorage;
+import storage.VersionedValue;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
 
 import static shared.messages.IKVMessage.StatusType.*;
 
@@ -17,16 +23,57 @@ public class KVThread extends Thread {
     private final Socket socket;
     private final KVServer server;
     private final SocketMessenger socketMessenger;
+    private final String client;
+    /**
+     * System.nanoTime() when the first byte of the request being handled was read.
+     */
+    private long requestStart;
+    final LatencyBreakdown.Timer timer = new LatencyBreakdown.Timer();
+    private RequestEvent requestEvent;
+    /**
+     * Completes once the responses to all replicated writes received so far have been sent. Responses are
+     * sent in the order of the requests, which is the order the predecessor expects them in.
+     */
+    private volatile CompletableFuture<Void> pendingResponses = CompletableFuture.completedFuture(null);
+    /**
+     * True from receiving a request until it was answered, while the server waits for it to drain.
+     */
+    private volatile boolean handling;
+    /**
+     * Set once the server closed the connection, which ends the thread.
+     */
+    private volatile boolean closed;
+    /**
+     * Set once the client subscribed to invalidations or watched keys, which are sent on this connection
+     * from then on.
+     */
+    private ChangeFeed.Subscriber subscriber;
+    /**
+     * Set once the connection was counted against the connection limit, on its first client request.
+     */
+    private boolean admitted;
+    /**
+     * Bytes the client request being handled is counted with by the admission control, 0 if it is not, in
+     * which case it holds no slot of the scheduler either.
+     */
+    private long admittedBytes;
+    /**
+     * Usage and rate of the host of the client, looked up on its first client request.
+     */
+    private FairScheduler.Client clientUsage;
 
     public KVThread(Socket socket, KVServer server) throws IOException {
         LOGGER.info("thread alive: " + this.getId());
         this.socket = socket;
         this.server = server;
-        this.socketMessenger = new SocketMessenger(socket);
+        this.socketMessenger = new SocketMessenger(socket, KVMessage.MAX_REQUEST_BYTE_LENGTH);
+        this.client = String.valueOf(socket.getRemoteSocketAddress());
     }
 
     public void run() {
+        this.server.getStats().connectionOpened();
         while (true) {
+            this.handling = false;
             try {
                 KVMessage request = null;
                 try {
@@ -42,52 +89,273 @@ public class KVThread extends Thread {
                     break;
                 }
 
+                this.handling = true;
+                long requestStart = this.socketMessenger.getMessageStartNanos();
+                this.requestStart = requestStart;
+                this.requestEvent = new RequestEvent();
+                this.requestEvent.begin();
+                this.timer.add(Stage.READ, System.nanoTime() - requestStart);
+
+                if (request.getStatus() != REPLICATE) {
+                    long waitStart = System.nanoTime();
+                    this.pendingResponses.join();
+                    this.timer.add(Stage.QUEUE_WAIT, System.nanoTime() - waitStart);
+                }
+
+                if (AdmissionControl.isLimited(request.getStatus()) && !admit(request)) {
+                    if (!this.admitted) {
+                        // refused at the connection limit, closing it is what frees the server
+                        this.socket.close();
+                        break;
+                    }
+                    continue;
+                }
+
                 PerformanceMonitor.Operation perfOp = null;
                 long start = System.nanoTime();
                 switch (request.getStatus()) {
-                    case PUT: {
+                    case PUT:
+                    case PUT_TTL:
+                    case PUT_HINTED:
+                    case REPLICATE: {
                         perfOp = PerformanceMonitor.Operation.PUT;
-                        boolean isDeleteRequest = request.getValue() == null;
+                        boolean isDeleteRequest = request.getValueBytes() == null;
+                        // replicated writes were already accepted by the coordinator of the key
+                        boolean isReplicated = request.getStatus() == REPLICATE;
+                        long expiresAt = KVStorage.NO_EXPIRY;
+                        if (request.getStatus() == PUT_TTL || (request.getStatus() == PUT_HINTED && request.getParameter() > 0)) {
+                            expiresAt = expiresAt(request.getParameter());
+                        } else if (isReplicated) {
+                            expiresAt = request.getParameter();
+                        }
+
+                        if (!isReplicated && !this.server.isCoordinatorFor(request.getKey())) {
+                            if (request.getStatus() == PUT_HINTED) {
+                                StatusType status = this.server.hintKVBytes(request.getKey(), request.getValueBytes(), expiresAt)
+                                        ? (isDeleteRequest ? DELETE_SUCCESS : PUT_SUCCESS)
+                                        : (isDeleteRequest ? DELETE_ERROR : PUT_ERROR);
+                                respond(request, new KVMessage(request.getKey(), request.getValueBytes(), status));
+                                break;
+                            }
+                            respond(request, new KVMessage(SERVER_NOT_RESPONSIBLE));
+                            break;
+                        }
+
+                        KVMessage write = request;
+                        CompletableFuture<KVMessage> response;
                         try {
-                            LOGGER.info("Request received: PUT <" + request.getKey()  + "> <" + request.getValue() + ">");
-                            String previousValue = this.server.putKV(request.getKey(), request.getValue());
-                            StatusType status = isDeleteRequest ? (previousValue == null ? DELETE_ERROR : DELETE_SUCCESS) : (previousValue == null ? PUT_SUCCESS : PUT_UPDATE);
-                            KVMessage response = new KVMessage(request.getKey(), request.getValue(), status);
-                            LOGGER.info("Sending response: " + status.name() + " <" + request.getKey() + "> <" + request.getValue() + ">");
-                            this.socketMessenger.sendMessage(response);
+                            response = this.server.putAndReplicate(request.getKey(), request.getValueBytes(), expiresAt).thenApply(hadPreviousValue -> {
+                                StatusType status = isDeleteRequest ? (hadPreviousValue ? DELETE_SUCCESS : DELETE_ERROR) : (hadPreviousValue ? PUT_UPDATE : PUT_SUCCESS);
+                                return new KVMessage(write.getKey(), write.getValueBytes(), status);
+                            });
                         } catch (IOException e) {
                             // TODO: This block is not covered by tests. A mocking library is required to mock errors.
                             LOGGER.error("Unexpected error for PUT <" + request.getKey() + "> <" + request.getValue() + ">", e);
                             StatusType status = isDeleteRequest ? DELETE_ERROR : PUT_ERROR;
-                            KVMessage response = new KVMessage(request.getKey(), request.getValue(), status);
-                            this.socketMessenger.sendMessage(response);
+                            response = CompletableFuture.completedFuture(new KVMessage(request.getKey(), request.getValueBytes(), status));
+                        }
+
+                        long applied = System.nanoTime();
+                        if (isReplicated) {
+                            // In chain replication the write is acknowledged once the rest of the chain did,
+                            // meanwhile the next write from the predecessor can already be applied
+                            RequestEvent event = this.requestEvent;
+                            this.pendingResponses = this.pendingResponses.thenCombine(response, (ignored, message) -> {
+                                sendPendingResponse(write, message, requestStart, applied, event);
+                                return null;
+                            });
+                        } else {
+                            KVMessage message = response.join();
+                            this.timer.add(Stage.REPLICATION, System.nanoTime() - applied);
+                            respond(request, message);
                         }
                         break;
                     }
 
+                    case CAS:
+                    case CAS_VERSION:
+                    case INCREMENT:
+                    case APPEND:
+                    case HANDOFF: {
+                        perfOp = PerformanceMonitor.Operation.PUT;
+                        if (!this.server.isCoordinatorFor(request.getKey())) {
+                            respond(request, new KVMessage(SERVER_NOT_RESPONSIBLE));
+                            break;
+                        }
+                        long writtenAt = KVStorage.NO_WRITE_TIME;
+                        if (request.getStatus() == HANDOFF) {
+                            try {
+                                writtenAt = RangeHandoff.writtenAt(request);
+                            } catch (IllegalArgumentException e) {
+                                respond(request, new KVMessage(e.getMessage(), FAILED));
+                                break;
+                            }
+                        }
+                        KVMessage response;
+                        try {
+                            CompletableFuture<KVMessage> replicated = request.getStatus() == HANDOFF
+                                    ? this.server.handOffAndReplicate(request.getKey(), RangeHandoff.handedOffValue(request),
+                                    request.getParameter(), writtenAt)
+                                    : this.server.getAtomicOperations().apply(request);
+                            long applied = System.nanoTime();
+                            response = replicated.join();
+                            this.timer.add(Stage.REPLICATION, System.nanoTime() - applied);
+                        } catch (IOException e) {
+                            LOGGER.error("Unexpected error for " + request.getStatus().name() + " <" + request.getKey() + ">", e);
+                            response = new KVMessage(request.getKey(), request.getValueBytes(), PUT_ERROR);
+                        }
+                        respond(request, response);
+                        break;
+                    }
+
                     case GET: {
                         perfOp = PerformanceMonitor.Operation.GET;
+                        if (!this.server.isReplicaFor(request.getKey())) {
+                            respond(request, new KVMessage(SERVER_NOT_RESPONSIBLE));
+                            break;
+                        }
                         try {
-                            LOGGER.info("Request received: GET <" + request.getKey() + ">");
-                            String value = this.server.getKV(request.getKey());
+                            long storageStart = System.nanoTime();
+                            byte[] value = this.server.getKVBytes(request.getKey());
+                            this.timer.add(Stage.STORAGE, System.nanoTime() - storageStart);
                             StatusType status = value == null ? GET_ERROR : GET_SUCCESS;
                             KVMessage response = new KVMessage(request.getKey(), value, status);
-                            LOGGER.info("Sending response: " + status.name() + " <" + request.getKey()  + "> <" + value + ">");
-                            this.socketMessenger.sendMessage(response);
+                            respond(request, response);
                         } catch (IOException e) {
                             LOGGER.error("Unexpected error for GET <" + request.getKey() + ">", e);
-                            KVMessage response = new KVMessage(request.getKey(), GET_ERROR);
-                            this.socketMessenger.sendMessage(response);
+                            respond(request, new KVMessage(request.getKey(), GET_ERROR));
+                        }
+                        break;
+                    }
+
+                    case PUT_VERSIONED: {
+                        perfOp = PerformanceMonitor.Operation.PUT;
+                        boolean isDeleteRequest = request.getValueBytes() == null;
+                        if (!this.server.isReplicaFor(request.getKey())) {
+                            respond(request, new KVMessage(SERVER_NOT_RESPONSIBLE));
+                            break;
+                        }
+                        StatusType status;
+                        try {
+                            // a write that lost against a newer version is acknowledged all the same, the replica
+                            // holds a value at least as recent as the requested one
+                            long storageStart = System.nanoTime();
+                            this.server.putVersionedKVBytes(request.getKey(), request.getValueBytes(), request.getParameter());
+                            this.timer.add(Stage.STORAGE, System.nanoTime() - storageStart);
+                            status = isDeleteRequest ? DELETE_SUCCESS : PUT_SUCCESS;
+                        } catch (IOException e) {
+                            LOGGER.error("Unexpected error for PUT_VERSIONED <" + request.getKey() + ">", e);
+                            status = isDeleteRequest ? DELETE_ERROR : PUT_ERROR;
+                        }
+                        respond(request, new KVMessage(request.getKey(), request.getValueBytes(), status));
+                        break;
+                    }
+
+                    case GET_VERSIONED: {
+                        perfOp = PerformanceMonitor.Operation.GET;
+                        if (!this.server.isReplicaFor(request.getKey())) {
+                            respond(request, new KVMessage(SERVER_NOT_RESPONSIBLE));
+                            break;
+                        }
+                        long storageStart = System.nanoTime();
+                        VersionedValue value = this.server.getVersionedKVBytes(request.getKey());
+                        this.timer.add(Stage.STORAGE, System.nanoTime() - storageStart);
+                        KVMessage response = value == null
+                                ? new KVMessage(request.getKey(), GET_ERROR)
+                                : new KVMessage(request.getKey(), value.getVersion(), value.getValue(), GET_VERSIONED_SUCCESS);
+                        respond(request, response);
+                        break;
+                    }
+
+                    case SYNC_TREE: {
+                        respond(request, this.server.getAntiEntropy().treeHashes(request));
+                        break;
+                    }
+
+                    case SYNC_LEAF: {
+                        respond(request, this.server.getAntiEntropy().leafEntries(request));
+                        break;
+                    }
+
+                    case SYNC_PUT: {
+                        if (!this.server.isReplicaFor(request.getKey())) {
+                            respond(request, new KVMessage(SERVER_NOT_RESPONSIBLE));
+                            break;
+                        }
+                        long listedDigest;
+                        byte[] value;
+                        try {
+                            listedDigest = AntiEntropy.listedDigest(request);
+                            value = AntiEntropy.repairedValue(request);
+                        } catch (IllegalArgumentException e) {
+                            respond(request, new KVMessage(e.getMessage(), FAILED));
+                            break;
                         }
+                        boolean isDeleteRequest = value == null;
+                        StatusType status;
+                        try {
+                            long storageStart = System.nanoTime();
+                            boolean repaired = this.server.repairKVBytes(request.getKey(), value, request.getParameter(), listedDigest);
+                            this.timer.add(Stage.STORAGE, System.nanoTime() - storageStart);
+                            status = isDeleteRequest ? (repaired ? DELETE_SUCCESS : DELETE_ERROR) : (repaired ? PUT_SUCCESS : PUT_ERROR);
+                        } catch (IOException e) {
+                            LOGGER.error("Unexpected error for SYNC_PUT <" + request.getKey() + ">", e);
+                            status = isDeleteRequest ? DELETE_ERROR : PUT_ERROR;
+                        }
+                        respond(request, new KVMessage(request.getKey(), value, status));
+                        break;
+                    }
+
+                    case SUBSCRIBE: {
+                        subscriber().subscribeInvalidations();
+                        record(request, SUBSCRIBE_SUCCESS, 0, start, this.requestEvent);
+                        break;
+                    }
+
+                    case WATCH: {
+                        subscriber().watchKey(request.getKey());
+                        record(request, WATCH_SUCCESS, 0, start, this.requestEvent);
+                        break;
+                    }
+
+                    case WATCH_RANGE: {
+                        String[] range = request.getKey().split(",");
+                        if (range.length != 2 || !HashUtils.isHash(range[0]) || !HashUtils.isHash(range[1])) {
+                            respond(request, new KVMessage(request.getKey(), FAILED));
+                            break;
+                        }
+                        subscriber().watchRange(range[0], range[1]);
+                        record(request, WATCH_SUCCESS, 0, start, this.requestEvent);
+                        break;
+                    }
+
+                    case LATENCY: {
+                        respond(request, new KVMessage(this.server.getLatencyBreakdown().report(), LATENCY_SUCCESS));
+                        break;
+                    }
+
+                    case STATS: {
+                        respond(request, new KVMessage(this.server.collectStats().encode(), STATS_SUCCESS));
+                        break;
+                    }
+
+                    case SPLIT_POINT: {
+                        String splitPoint = this.server.splitPoint();
+                        respond(request, splitPoint == null
+                                ? new KVMessage(SERVER_NOT_RESPONSIBLE)
+                                : new KVMessage(splitPoint, SPLIT_POINT_SUCCESS));
                         break;
                     }
 
                     case KEYRANGE: {
-                        LOGGER.info("Request received: KEYRANGE");
-                        // TODO: populate key with actual metadata
-                        String key = "metadata";
-                        KVMessage response = new KVMessage(key, KEYRANGE_SUCCESS);
-                        this.socketMessenger.sendMessage(response);
+                        KVMessage response = new KVMessage(this.server.getMetadata(), KEYRANGE_SUCCESS);
+                        respond(request, response);
+                        break;
+                    }
+
+                    case KEYRANGE_READ: {
+                        KVMessage response = new KVMessage(this.server.getReadMetadata(), KEYRANGE_READ_SUCCESS);
+                        respond(request, response);
                         break;
                     }
 
@@ -100,7 +368,17 @@ public class KVThread extends Thread {
                 if (server.performanceMonitor != null && perfOp != null) {
                     server.performanceMonitor.storeOperation(perfOp, end - start);
                 }
+                this.timer.finish(this.server.getLatencyBreakdown(), request.getStatus());
+                this.server.getStats().requestHandled(request.getStatus());
+                // keys handed off by another server are no load of this one
+                if (perfOp != null && request.getStatus() != HANDOFF) {
+                    this.server.getStats().sampleKey(request.getKey(), request.getStatus() == GET);
+                }
+                releaseLimits();
             } catch (IOException socketMessengerException) {
+                if (this.closed) {
+                    break;
+                }
                 LOGGER.error("I/O error communicating via socket messenger: ", socketMessengerException);
                 try {
                     this.socket.close();
@@ -110,6 +388,147 @@ public class KVThread extends Thread {
                 break;
             }
         }
+        if (this.subscriber != null) {
+            this.server.unsubscribe(this.subscriber);
+        }
+        releaseLimits();
+        if (this.admitted) {
+            this.server.getAdmissionControl().connectionClosed();
+        }
+        this.handling = false;
+        this.server.getStats().connectionClosed();
+        this.server.connectionClosed(this);
         LOGGER.info("thread finished: " + this.getId());
     }
+
+    /**
+     * @return the time a value with the given time to live expires at, Long.MAX_VALUE rather than an
+     * overflowed time in the past
+     */
+    private static long expiresAt(long ttlMillis) {
+        try {
+            return Math.addExact(System.currentTimeMillis(), ttlMillis);
+        } catch (ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * @return true if no request of the connection is being handled or waits for its response
+     */
+    boolean isIdle() {
+        return !this.handling && this.pendingResponses.isDone();
+    }
+
+    /**
+     * Closes the connection, interrupting the request being handled if there is one.
+     */
+    void close() {
+        this.closed = true;
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            LOGGER.warn("I/O error when attempting to close socket: ", e);
+        }
+    }
+
+    /**
+     * Counts the connection and the request against the limits of the server and the rate of its client,
+     * answering SERVER_BUSY if any is exceeded, and waits for the turn of the client to handle it.
+     *
+     * @return true if the request is handled
+     */
+    private boolean admit(KVMessage request) throws IOException {
+        AdmissionControl admissionControl = this.server.getAdmissionControl();
+        if (!this.admitted) {
+            if (!admissionControl.tryOpenConnection()) {
+                respond(request, new KVMessage(SERVER_BUSY));
+                return false;
+            }
+            this.admitted = true;
+        }
+        long bytes = AdmissionControl.sizeOf(request);
+        if (!admissionControl.admit(bytes)) {
+            respond(request, new KVMessage(SERVER_BUSY));
+            return false;
+        }
+
+        FairScheduler scheduler = this.server.getScheduler();
+        if (this.clientUsage == null) {
+            this.clientUsage = scheduler.client(this.socket.getInetAddress().getHostAddress());
+        }
+        if (!scheduler.tryAcquire(this.clientUsage, bytes)) {
+            admissionControl.release(bytes);
+            respond(request, new KVMessage(SERVER_BUSY));
+            return false;
+        }
+        this.admittedBytes = bytes;
+        long waitStart = System.nanoTime();
+        scheduler.enter(this.clientUsage);
+        this.timer.add(Stage.QUEUE_WAIT, System.nanoTime() - waitStart);
+        return true;
+    }
+
+    private void releaseLimits() {
+        if (this.admittedBytes > 0) {
+            this.server.getAdmissionControl().release(this.admittedBytes);
+            this.server.getScheduler().exit();
+            this.admittedBytes = 0;
+        }
+    }
+
+    private ChangeFeed.Subscriber subscriber() {
+        if (this.subscriber == null) {
+            this.subscriber = this.server.subscribe(this.socket, this.socketMessenger);
+        }
+        return this.subscriber;
+    }
+
+    private void respond(KVMessage request, KVMessage response) throws IOException {
+        int size = send(response, this.timer, this.requestStart);
+        record(request, response.getStatus(), size, this.requestStart, this.requestEvent);
+    }
+
+    /**
+     * @return the size of the encoded response
+     */
+    private int send(KVMessage response, LatencyBreakdown.Timer timer, long requestStart) throws IOException {
+        long encodeStart = System.nanoTime();
+        byte[] bytes = KVMessage.writeToBytes(response);
+        long flushStart = System.nanoTime();
+        this.socketMessenger.sendBytes(bytes);
+        long flushed = System.nanoTime();
+        timer.add(Stage.ENCODE, flushStart - encodeStart);
+        timer.add(Stage.FLUSH, flushed - flushStart);
+        timer.add(Stage.TOTAL, flushed - requestStart);
+        this.server.getStats().responseSent(response.getStatus());
+        return bytes.length;
+    }
+
+    private void record(KVMessage request, StatusType response, int responseSize, long start, RequestEvent event) {
+        AccessLog accessLog = this.server.getAccessLog();
+        if (accessLog != null) {
+            accessLog.record(this.client, request, response, System.nanoTime() - start);
+        }
+        event.finish(this.client, request, response, responseSize);
+    }
+
+    /**
+     * Sends the response to a replicated write, on the thread that completed it.
+     *
+     * @param applied System.nanoTime() when the write was applied and forwarded
+     * @param event   started when the write was received
+     */
+    private void sendPendingResponse(KVMessage request, KVMessage response, long requestStart, long applied, RequestEvent event) {
+        // the timer of this thread belongs to the request it is handling meanwhile
+        LatencyBreakdown.Timer timer = new LatencyBreakdown.Timer();
+        timer.add(Stage.REPLICATION, System.nanoTime() - applied);
+        try {
+            int size = send(response, timer, requestStart);
+            record(request, response.getStatus(), size, requestStart, event);
+        } catch (IOException e) {
+            LOGGER.error("could not acknowledge replicated write <" + response.getKey() + ">", e);
+        }
+        timer.finish(this.server.getLatencyBreakdown(), request.getStatus());
+    }
 }
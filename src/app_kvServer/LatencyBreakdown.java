@@ -0,0 +1,148 @@
+package app_kvServer;
+
+import shared.LatencyHistogram;
+import shared.messages.IKVMessage.StatusType;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latencies of the requests handled by a server, split into the stages a request passes through, with a
+ * histogram per request type and stage. Dumped on SIGUSR1 and sent in response to LATENCY.
+ */
+class LatencyBreakdown {
+    static final String HEADER = "operation,stage,count,mean_us,p50_us,p99_us,p999_us,max_us";
+
+    enum Stage {
+        /**
+         * From the first byte of the request until it was decoded.
+         */
+        READ,
+        /**
+         * Waiting for the responses to earlier replicated writes of the connection, which are sent first.
+         */
+        QUEUE_WAIT,
+        /**
+         * Waiting for the write lock of the key.
+         */
+        LOCK_WAIT,
+        STORAGE,
+        /**
+         * Waiting for the replicas the write was forwarded to.
+         */
+        REPLICATION,
+        ENCODE,
+        /**
+         * Writing the response to the socket.
+         */
+        FLUSH,
+        /**
+         * From the first byte of the request until the response was written.
+         */
+        TOTAL,
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    // created on the first request of a type, indexed by request type and stage
+    private final AtomicReferenceArray<LatencyHistogram> histograms =
+            new AtomicReferenceArray<>(StatusType.values().length * STAGES.length);
+
+    /**
+     * Times of the stages of the request a KVThread is handling, recorded when it is done.
+     */
+    static final class Timer {
+        private final long[] nanos = new long[STAGES.length];
+
+        Timer() {
+            Arrays.fill(this.nanos, -1);
+        }
+
+        /**
+         * @return the timer of the request handled by the current thread, null outside of KVThreads
+         */
+        static Timer current() {
+            Thread thread = Thread.currentThread();
+            return thread instanceof KVThread ? ((KVThread) thread).timer : null;
+        }
+
+        void add(Stage stage, long nanos) {
+            int i = stage.ordinal();
+            this.nanos[i] = this.nanos[i] < 0 ? nanos : this.nanos[i] + nanos;
+        }
+
+        /**
+         * Records the stages the request passed through and starts over for the next one.
+         */
+        void finish(LatencyBreakdown breakdown, StatusType operation) {
+            for (int i = 0; i < this.nanos.length; i++) {
+                if (this.nanos[i] >= 0) {
+                    breakdown.record(operation, STAGES[i], this.nanos[i]);
+                    this.nanos[i] = -1;
+                }
+            }
+        }
+    }
+
+    void record(StatusType operation, Stage stage, long nanos) {
+        int i = operation.ordinal() * STAGES.length + stage.ordinal();
+        LatencyHistogram histogram = this.histograms.get(i);
+        if (histogram == null) {
+            this.histograms.compareAndSet(i, null, new LatencyHistogram());
+            histogram = this.histograms.get(i);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * @return the latencies of the stage of a request type, null if there was no such request yet
+     */
+    LatencyHistogram histogram(StatusType operation, Stage stage) {
+        return this.histograms.get(operation.ordinal() * STAGES.length + stage.ordinal());
+    }
+
+    /**
+     * @return a line as in HEADER for every request type and stage recorded, separated by semicolons
+     */
+    String report() {
+        StringBuilder report = new StringBuilder();
+        StatusType[] operations = StatusType.values();
+        for (int i = 0; i < this.histograms.length(); i++) {
+            LatencyHistogram histogram = this.histograms.get(i);
+            if (histogram == null || histogram.count() == 0) {
+                continue;
+            }
+            if (report.length() > 0) {
+                report.append(';');
+            }
+            report.append(operations[i / STAGES.length]).append(',')
+                    .append(STAGES[i % STAGES.length]).append(',')
+                    .append(histogram.count()).append(',')
+                    .append((long) histogram.mean() / 1000).append(',')
+                    .append(micros(histogram.percentile(0.5))).append(',')
+                    .append(micros(histogram.percentile(0.99))).append(',')
+                    .append(micros(histogram.percentile(0.999))).append(',')
+                    .append(micros(histogram.max()));
+        }
+        return report.toString();
+    }
+
+    void dump(File output) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+            writer.write(HEADER + "\n");
+            String report = report();
+            if (!report.isEmpty()) {
+                writer.write(report.replace(';', '\n') + "\n");
+            }
+        }
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
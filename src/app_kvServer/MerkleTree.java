@@ -0,0 +1,94 @@
+package app_kvServer;
+
+import shared.HashUtils;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hash tree over the keys of one range of the ring.
+ * <p>
+ * The leaves split the range into LEAF_COUNT equal parts of the MD5 space. A leaf holds the XOR of the
+ * digests of the keys hashing into it and every inner node the XOR of its children, so two servers storing
+ * the same keys have equal trees, and the first differing nodes lead to the parts of the range that differ.
+ * XOR also keeps the tree incremental: a changed key updates the path from its leaf to the root by the
+ * difference of its digests, in any order and without locking.
+ * <p>
+ * Nodes are numbered in heap order: the root is 1, the children of node i are 2i and 2i + 1, and the
+ * leaves are LEAF_COUNT to 2 * LEAF_COUNT - 1.
+ */
+class MerkleTree {
+    static final int DEPTH = 12;
+    static final int LEAF_COUNT = 1 << DEPTH;
+    static final int ROOT = 1;
+
+    private static final BigInteger RING_SIZE = BigInteger.ONE.shiftLeft(128);
+
+    private final String from;
+    private final String to;
+    private final BigInteger start;
+    private final BigInteger size;
+    private final AtomicLongArray nodes = new AtomicLongArray(2 * LEAF_COUNT);
+
+    /**
+     * @param from first hash of the range
+     * @param to   last hash of the range, which wraps around the ring if it is smaller than from
+     */
+    MerkleTree(String from, String to) {
+        this.from = from;
+        this.to = to;
+        this.start = new BigInteger(from, 16);
+        this.size = new BigInteger(to, 16).subtract(this.start).mod(RING_SIZE).add(BigInteger.ONE);
+    }
+
+    /**
+     * @return the range in the form sent in anti-entropy messages, "from,to"
+     */
+    String getRange() {
+        return this.from + "," + this.to;
+    }
+
+    String getFrom() {
+        return this.from;
+    }
+
+    boolean contains(String hash) {
+        return HashUtils.isInRange(hash, this.from, this.to);
+    }
+
+    /**
+     * @param hash MD5 hash within the range
+     * @return node number of the leaf the hash falls into
+     */
+    int leafOf(String hash) {
+        BigInteger offset = new BigInteger(hash, 16).subtract(this.start).mod(RING_SIZE);
+        return LEAF_COUNT + offset.shiftLeft(DEPTH).divide(this.size).intValue();
+    }
+
+    /**
+     * Replaces the digest of a key.
+     *
+     * @param hash MD5 hash of the key, within the range
+     */
+    void update(String hash, long previousDigest, long digest) {
+        long difference = previousDigest ^ digest;
+        if (difference == 0) {
+            return;
+        }
+        for (int node = leafOf(hash); node >= ROOT; node >>= 1) {
+            this.nodes.accumulateAndGet(node, difference, (a, b) -> a ^ b);
+        }
+    }
+
+    long hash(int node) {
+        return this.nodes.get(node);
+    }
+
+    static boolean isLeaf(int node) {
+        return node >= LEAF_COUNT;
+    }
+
+    static boolean isNode(int node) {
+        return node >= ROOT && node < 2 * LEAF_COUNT;
+    }
+}
@@ -0,0 +1,236 @@
+package app_kvServer;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.jfr.TransferEvent;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+import storage.KVStorage;
+import storage.VersionedValue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static shared.messages.IKVMessage.StatusType.*;
+
+/**
+ * Moves the keys this server stores but no longer replicates to their coordinator once the ring changed,
+ * e.g. because a server joined in the middle of a range of this server or the ECS moved a server.
+ * <p>
+ * Keys are sent as HANDOFF along with the time they were written at. The coordinator applies one unless its
+ * copy was written at the same time or later: a stale copy it came back with is replaced, a write it
+ * accepted in the meantime is kept and answered with HANDOFF_SKIPPED. Quorum writes are sent as
+ * PUT_VERSIONED, which keeps the newer version anyway. Either answer confirms that the coordinator holds
+ * this copy or a newer one, so the key is deleted here then, unless it was written again since it was
+ * sent. Keys that could not be handed off are retried every RETRY_INTERVAL_MILLIS.
+ */
+class RangeHandoff extends Thread {
+    static final long RETRY_INTERVAL_MILLIS = 1000;
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_TIMEOUT_SECONDS = 10;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final KVServer server;
+    private final KVStorage storage;
+    private final Replicator replicator = new Replicator();
+    private boolean metadataChanged;
+
+    RangeHandoff(KVServer server, KVStorage storage) {
+        super("range-handoff");
+        this.server = server;
+        this.storage = storage;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                synchronized (this) {
+                    while (!this.metadataChanged) {
+                        wait();
+                    }
+                    this.metadataChanged = false;
+                }
+                if (handOff(TimeUnit.SECONDS.toNanos(BATCH_TIMEOUT_SECONDS)) > 0) {
+                    Thread.sleep(RETRY_INTERVAL_MILLIS);
+                    metadataChanged();
+                }
+            }
+        } catch (InterruptedException e) {
+            // the server is closing
+        } finally {
+            this.replicator.close();
+        }
+    }
+
+    synchronized void metadataChanged() {
+        this.metadataChanged = true;
+        notifyAll();
+    }
+
+    /**
+     * Hands off the keys of a server that left the ring, in place of this thread, which is stopped, until
+     * none are left or the deadline passed.
+     *
+     * @param deadlineNanos System.nanoTime() by which the server stops
+     * @return the number of keys that are left
+     */
+    int drain(long deadlineNanos) throws InterruptedException {
+        interrupt();
+        join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
+        try {
+            // one pass even if the deadline passed, the keys sent are applied whether or not they are awaited
+            int left = handOff(batchTimeout(deadlineNanos));
+            while (left > 0 && deadlineNanos - System.nanoTime() > TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MILLIS)) {
+                Thread.sleep(RETRY_INTERVAL_MILLIS);
+                left = handOff(batchTimeout(deadlineNanos));
+            }
+            return left;
+        } finally {
+            this.replicator.close();
+        }
+    }
+
+    private static long batchTimeout(long deadlineNanos) {
+        return Math.max(1, Math.min(TimeUnit.SECONDS.toNanos(BATCH_TIMEOUT_SECONDS), deadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * Sends the keys this server does not replicate to their coordinators and deletes the acknowledged ones.
+     *
+     * @param batchTimeoutNanos time the coordinators have to acknowledge a batch
+     * @return the number of keys that are left
+     */
+    int handOff(long batchTimeoutNanos) throws InterruptedException {
+        List<String> keys = new ArrayList<>();
+        this.storage.forEachDigest((key, version, digest) -> {
+            if (!this.server.isReplicaFor(key)) {
+                keys.add(key);
+            }
+        });
+
+        int left = 0;
+        List<String> batch = new ArrayList<>();
+        List<VersionedValue> values = new ArrayList<>();
+        List<CompletableFuture<KVMessage>> responses = new ArrayList<>();
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            VersionedValue value = this.storage.getVersioned(key);
+            ECSNode<Object> coordinator = this.server.coordinatorOf(key);
+            // deletes are not handed off, the coordinator never had the key or deleted it itself
+            if (value != null && value.getValue() != null && coordinator != null
+                    && !coordinator.getNodeIpAndPort().equals(this.server.getNodeIpAndPort())) {
+                this.server.getTransferThrottle().acquire(value.getValue().length);
+                KVMessage write = value.getVersion() == KVStorage.NO_VERSION
+                        ? handOffRequest(key, value.getValue(), value.getExpiresAt(), value.getWrittenAt())
+                        : new KVMessage(key, value.getVersion(), value.getValue(), PUT_VERSIONED);
+                batch.add(key);
+                values.add(value);
+                responses.add(this.replicator.send(Collections.singletonList(coordinator), write).get(0));
+            }
+
+            if (responses.size() == BATCH_SIZE || (i == keys.size() - 1 && !batch.isEmpty())) {
+                // the writes of a batch are pipelined, the next batch is sent once all of them were answered
+                int acknowledged = 0;
+                long bytes = 0;
+                // the timeout covers the whole batch, a coordinator that does not answer is waited for once
+                long batchDeadline = System.nanoTime() + batchTimeoutNanos;
+                for (int j = 0; j < batch.size(); j++) {
+                    bytes += values.get(j).getValue().length;
+                    if (isAcknowledged(responses.get(j), batch.get(j), batchDeadline - System.nanoTime())) {
+                        drop(batch.get(j), values.get(j));
+                        acknowledged++;
+                    } else {
+                        left++;
+                    }
+                }
+                // the keys of a batch may go to several coordinators
+                event.finish(TransferEvent.RANGE_HANDOFF, null, batch.size(), acknowledged, bytes);
+                event = new TransferEvent();
+                event.begin();
+                batch.clear();
+                values.clear();
+                responses.clear();
+            }
+        }
+        return left;
+    }
+
+    /**
+     * @param value     UTF-8 encoded value, null for a delete
+     * @param writtenAt time the write was made at, see {@link VersionedValue#getWrittenAt()}
+     */
+    static KVMessage handOffRequest(String key, byte[] value, long expiresAt, long writtenAt) {
+        byte[] time = Long.toString(writtenAt).getBytes(StandardCharsets.UTF_8);
+        if (value == null) {
+            return new KVMessage(key, expiresAt, time, HANDOFF);
+        }
+        byte[] packed = Arrays.copyOf(time, time.length + 1 + value.length);
+        packed[time.length] = ' ';
+        System.arraycopy(value, 0, packed, time.length + 1, value.length);
+        return new KVMessage(key, expiresAt, packed, HANDOFF);
+    }
+
+    /**
+     * @return the time the write of a HANDOFF was made at
+     * @throws IllegalArgumentException if the request does not start with a write time
+     */
+    static long writtenAt(KVMessage request) {
+        byte[] packed = request.getValueBytes();
+        try {
+            return Long.parseLong(new String(packed, 0, writtenAtLength(packed), StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("HANDOFF should start with a write time", e);
+        }
+    }
+
+    /**
+     * @return the value of a HANDOFF, null if it deletes the key
+     */
+    static byte[] handedOffValue(KVMessage request) {
+        byte[] packed = request.getValueBytes();
+        int writtenAtLength = writtenAtLength(packed);
+        return writtenAtLength == packed.length ? null : Arrays.copyOfRange(packed, writtenAtLength + 1, packed.length);
+    }
+
+    private static int writtenAtLength(byte[] packed) {
+        for (int i = 0; i < packed.length; i++) {
+            if (packed[i] == ' ') {
+                return i;
+            }
+        }
+        return packed.length;
+    }
+
+    private void drop(String key, VersionedValue value) {
+        try {
+            this.server.dropHandedOff(key, value);
+        } catch (IOException e) {
+            // the coordinator has the key, this copy is only left behind
+            LOGGER.error("could not delete <" + key + "> after handing it off", e);
+        }
+    }
+
+    private static boolean isAcknowledged(CompletableFuture<KVMessage> response, String key, long timeoutNanos) throws InterruptedException {
+        try {
+            StatusType status = response.get(timeoutNanos, TimeUnit.NANOSECONDS).getStatus();
+            // PUT_VERSIONED is answered with PUT_SUCCESS as well when the coordinator holds a newer version,
+            // HANDOFF with HANDOFF_SKIPPED
+            return status == PUT_SUCCESS || status == HANDOFF_SKIPPED;
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("could not hand off <" + key + ">", e);
+            return false;
+        }
+    }
+}
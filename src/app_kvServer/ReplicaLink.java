@@ -0,0 +1,107 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Connection to a replica over which writes are pipelined.
+ * <p>
+ * Requests are sent without waiting for the responses to earlier ones. The replica answers the requests
+ * of a connection in order, so a receiver thread completes the pending requests first in first out.
+ */
+class ReplicaLink implements Closeable {
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final SocketMessenger socketMessenger;
+    private final Object sendLock = new Object();
+    private final Queue<CompletableFuture<KVMessage>> pending = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    ReplicaLink(InetSocketAddress address) throws IOException {
+        this.address = address;
+        this.socket = new Socket(address.getAddress(), address.getPort());
+        this.socketMessenger = new SocketMessenger(this.socket);
+
+        Thread receiver = new Thread(this::receiveResponses, "replica-link-" + address.getPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return completes with the response of the replica, or exceptionally if the connection broke
+     */
+    CompletableFuture<KVMessage> send(KVMessage request) {
+        CompletableFuture<KVMessage> response = new CompletableFuture<>();
+        synchronized (this.sendLock) {
+            if (this.closed) {
+                response.completeExceptionally(new IOException("connection to " + this.address + " is closed"));
+                return response;
+            }
+
+            // queued before sending, so the response cannot arrive before its request is pending
+            this.pending.add(response);
+            try {
+                this.socketMessenger.sendMessage(request);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return response;
+    }
+
+    InetSocketAddress getAddress() {
+        return this.address;
+    }
+
+    boolean isClosed() {
+        return this.closed;
+    }
+
+    private void receiveResponses() {
+        try {
+            while (!this.closed) {
+                KVMessage response = this.socketMessenger.receiveMessage();
+                CompletableFuture<KVMessage> request = this.pending.poll();
+                if (request == null) {
+                    LOGGER.warn("unexpected response from replica " + this.address + ": " + response.getStatus());
+                    continue;
+                }
+                request.complete(response);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException cause) {
+        if (!this.closed) {
+            this.closed = true;
+            LOGGER.error("connection to replica " + this.address + " broke", cause);
+        }
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            LOGGER.warn("could not close connection to " + this.address, e);
+        }
+        for (CompletableFuture<KVMessage> request = this.pending.poll(); request != null; request = this.pending.poll()) {
+            request.completeExceptionally(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        fail(new IOException("connection to " + this.address + " was closed"));
+    }
+}
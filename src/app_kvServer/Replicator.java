@@ -0,0 +1,79 @@
+package app_kvServer;
+
+import ecs.ECSNode;
+import org.apache.log4j.Logger;
+import shared.messages.KVMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Forwards writes to replicas over pipelined connections that are kept open between writes.
+ * <p>
+ * A broken connection fails the writes pending on it and is opened again for the next write.
+ * <p>
+ * A replica answers the writes of a connection in order, so in chain replication the response to a write
+ * it forwards holds back the responses to the writes behind it. Writes therefore travel on lanes, the
+ * position of the sender in the chain of the key, each with connections of its own: a replica answering
+ * on one lane only ever waits for the next lane, so the servers of a ring never wait for each other in a
+ * circle.
+ */
+class Replicator implements Closeable {
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final Map<Integer, Map<InetSocketAddress, ReplicaLink>> lanes = new HashMap<>();
+
+    /**
+     * Sends the request to every given replica on lane 0 without waiting for their responses.
+     *
+     * @return one future per replica, completing with its response or exceptionally if it was not reached
+     */
+    List<CompletableFuture<KVMessage>> send(List<ECSNode<Object>> replicas, KVMessage request) {
+        return send(replicas, request, 0);
+    }
+
+    /**
+     * Sends the request to every given replica on the given lane without waiting for their responses.
+     *
+     * @param lane position of this server in the chain of the key, 0 for its coordinator
+     * @return one future per replica, completing with its response or exceptionally if it was not reached
+     */
+    List<CompletableFuture<KVMessage>> send(List<ECSNode<Object>> replicas, KVMessage request, int lane) {
+        List<CompletableFuture<KVMessage>> responses = new ArrayList<>(replicas.size());
+        for (ECSNode<Object> replica : replicas) {
+            try {
+                responses.add(linkTo(replica.getSocketAddress(), lane).send(request));
+            } catch (IOException e) {
+                LOGGER.error("could not connect to replica " + replica.getNodeIpAndPort(), e);
+                responses.add(CompletableFuture.failedFuture(e));
+            }
+        }
+        return responses;
+    }
+
+    private synchronized ReplicaLink linkTo(InetSocketAddress address, int lane) throws IOException {
+        Map<InetSocketAddress, ReplicaLink> links = this.lanes.computeIfAbsent(lane, ignored -> new HashMap<>());
+        ReplicaLink link = links.get(address);
+        if (link == null || link.isClosed()) {
+            link = new ReplicaLink(address);
+            links.put(address, link);
+        }
+        return link;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Map<InetSocketAddress, ReplicaLink> links : this.lanes.values()) {
+            for (ReplicaLink link : links.values()) {
+                link.close();
+            }
+        }
+        this.lanes.clear();
+    }
+}
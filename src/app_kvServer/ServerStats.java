@@ -0,0 +1,237 @@
+package app_kvServer;
+
+import shared.HashUtils;
+import shared.LatencyHistogram;
+import shared.Metrics;
+import shared.messages.IKVMessage.StatusType;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of a server, collected into {@link Metrics} on STATS requests and by the metrics endpoint.
+ */
+class ServerStats {
+    /**
+     * Seconds the request rate is averaged over.
+     */
+    static final int RATE_WINDOW_SECONDS = 10;
+    /**
+     * One in this many requests for a key has the position of the key on the ring sampled.
+     */
+    static final int LOAD_SAMPLE_EVERY = 8;
+    /**
+     * Number of the most recent samples kept.
+     */
+    static final int LOAD_SAMPLES = 4096;
+    /**
+     * Length of the windows hot keys are detected in, see {@link HotKeyDetector}.
+     */
+    static final long HOT_KEY_WINDOW_MILLIS = 1000;
+    private static final StatusType[] STATUSES = StatusType.values();
+
+    private final KVServer server;
+    private final long startMillis = System.currentTimeMillis();
+    private final LongAdder[] requests = new LongAdder[STATUSES.length];
+    private final LongAdder[] responses = new LongAdder[STATUSES.length];
+    private final AtomicInteger connections = new AtomicInteger();
+    // requests per second of the last RATE_WINDOW_SECONDS, the slot of a second is reset when it comes round
+    private final AtomicLongArray secondOfSlot = new AtomicLongArray(RATE_WINDOW_SECONDS + 1);
+    private final AtomicLongArray requestsInSlot = new AtomicLongArray(RATE_WINDOW_SECONDS + 1);
+    // ring positions of sampled requests, overwritten oldest first
+    private final AtomicLongArray sampledPositions = new AtomicLongArray(LOAD_SAMPLES);
+    private final AtomicLong samples = new AtomicLong();
+    private final HotKeyDetector hotKeys = new HotKeyDetector(LOAD_SAMPLE_EVERY, HOT_KEY_WINDOW_MILLIS);
+
+    ServerStats(KVServer server) {
+        this.server = server;
+        for (int i = 0; i < STATUSES.length; i++) {
+            this.requests[i] = new LongAdder();
+            this.responses[i] = new LongAdder();
+        }
+    }
+
+    void connectionOpened() {
+        this.connections.incrementAndGet();
+    }
+
+    void connectionClosed() {
+        this.connections.decrementAndGet();
+    }
+
+    void requestHandled(StatusType request) {
+        this.requests[request.ordinal()].increment();
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % this.secondOfSlot.length());
+        long slotSecond = this.secondOfSlot.get(slot);
+        if (slotSecond != second && this.secondOfSlot.compareAndSet(slot, slotSecond, second)) {
+            // requests of this second counted meanwhile are lost, which is fine for a rate
+            this.requestsInSlot.set(slot, 0);
+        }
+        this.requestsInSlot.incrementAndGet(slot);
+    }
+
+    /**
+     * Samples where on the ring the requests go, to split the range of this server where the load is, and
+     * which keys GETs go to, to find the hot ones.
+     *
+     * @param read true for a GET
+     */
+    void sampleKey(String key, boolean read) {
+        if (ThreadLocalRandom.current().nextInt(LOAD_SAMPLE_EVERY) == 0) {
+            long sample = this.samples.getAndIncrement();
+            this.sampledPositions.set((int) (sample % LOAD_SAMPLES), HashUtils.ringPosition(key));
+            if (read) {
+                this.hotKeys.record(key);
+            }
+        }
+    }
+
+    HotKeyDetector hotKeys() {
+        return this.hotKeys;
+    }
+
+    /**
+     * @return the ring positions of the last LOAD_SAMPLES sampled requests
+     */
+    long[] sampledPositions() {
+        long[] positions = new long[(int) Math.min(this.samples.get(), LOAD_SAMPLES)];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = this.sampledPositions.get(i);
+        }
+        return positions;
+    }
+
+    /**
+     * Finds the hash splitting a range into two halves that each get about half of the sampled requests and
+     * hold about half of the keys, both weighing the same. Without samples or keys in the range, it is split
+     * in the middle.
+     *
+     * @param requests ring positions of requests, see {@link HashUtils#ringPosition}
+     * @param keys     ring positions of stored keys
+     * @return the first hash of the upper half, null if the range is a single position
+     */
+    static String splitPoint(String from, String to, long[] requests, long[] keys) {
+        long start = Long.parseUnsignedLong(from.substring(0, 16), 16);
+        // unsigned, a range wrapping around the end of the ring as well
+        long length = Long.parseUnsignedLong(to.substring(0, 16), 16) - start;
+        if (length == 0 && from.compareTo(to) > 0) {
+            // the whole ring, which ends just before its start
+            length = -1;
+        }
+        if (length == 0) {
+            return null;
+        }
+
+        long[] requestOffsets = offsetsInRange(requests, start, length);
+        long[] keyOffsets = offsetsInRange(keys, start, length);
+        double requestWeight = requestOffsets.length == 0 ? 0 : (keyOffsets.length == 0 ? 1.0 : 0.5) / requestOffsets.length;
+        double keyWeight = keyOffsets.length == 0 ? 0 : (requestOffsets.length == 0 ? 1.0 : 0.5) / keyOffsets.length;
+
+        // the lower half ends with the position at which half of the load is reached
+        long split = (length >>> 1) + 1;
+        double load = 0;
+        for (int r = 0, k = 0; r < requestOffsets.length || k < keyOffsets.length; ) {
+            long offset;
+            if (k == keyOffsets.length || (r < requestOffsets.length && Long.compareUnsigned(requestOffsets[r], keyOffsets[k]) <= 0)) {
+                offset = requestOffsets[r++];
+                load += requestWeight;
+            } else {
+                offset = keyOffsets[k++];
+                load += keyWeight;
+            }
+            if (load >= 0.5) {
+                if (Long.compareUnsigned(offset, length) < 0) {
+                    split = offset + 1;
+                }
+                break;
+            }
+        }
+        return String.format("%016x", start + split) + "0".repeat(16);
+    }
+
+    /**
+     * @return the unsigned offsets of the positions within the range from its start, in ascending order
+     */
+    private static long[] offsetsInRange(long[] positions, long start, long length) {
+        long[] offsets = new long[positions.length];
+        int count = 0;
+        for (long position : positions) {
+            long offset = position - start;
+            if (Long.compareUnsigned(offset, length) <= 0) {
+                // flipping the sign bit makes signed order unsigned order
+                offsets[count++] = offset ^ Long.MIN_VALUE;
+            }
+        }
+        offsets = Arrays.copyOf(offsets, count);
+        Arrays.sort(offsets);
+        for (int i = 0; i < count; i++) {
+            offsets[i] ^= Long.MIN_VALUE;
+        }
+        return offsets;
+    }
+
+    void responseSent(StatusType response) {
+        this.responses[response.ordinal()].increment();
+    }
+
+    /**
+     * @return the requests per second over the last RATE_WINDOW_SECONDS complete seconds
+     */
+    double requestsPerSecond() {
+        long second = System.currentTimeMillis() / 1000;
+        long requests = 0;
+        for (int slot = 0; slot < this.secondOfSlot.length(); slot++) {
+            long slotSecond = this.secondOfSlot.get(slot);
+            if (slotSecond < second && slotSecond >= second - RATE_WINDOW_SECONDS) {
+                requests += this.requestsInSlot.get(slot);
+            }
+        }
+        return (double) requests / RATE_WINDOW_SECONDS;
+    }
+
+    Metrics collect() {
+        Metrics metrics = new Metrics();
+        metrics.set("uptime_seconds", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - this.startMillis));
+        metrics.set("connections", this.connections.get());
+        AdmissionControl admissionControl = this.server.getAdmissionControl();
+        metrics.set("requests_in_flight", admissionControl.inFlight());
+        metrics.set("queued_bytes", admissionControl.queuedBytes());
+        metrics.set("requests_rejected_total", admissionControl.rejected());
+        this.server.getScheduler().collect(metrics);
+        metrics.set("transfer_wait_ms_total", this.server.getTransferThrottle().waitMillis());
+        metrics.set("requests_per_second", requestsPerSecond());
+        for (int i = 0; i < STATUSES.length; i++) {
+            long count = this.requests[i].sum();
+            if (count > 0) {
+                metrics.set("requests_total", STATUSES[i].name(), count);
+            }
+        }
+
+        long hits = this.responses[StatusType.GET_SUCCESS.ordinal()].sum();
+        long misses = this.responses[StatusType.GET_ERROR.ordinal()].sum();
+        metrics.set("get_hits_total", hits);
+        metrics.set("get_misses_total", misses);
+        metrics.set("get_hit_ratio", Metrics.hitRatio(hits, misses));
+        metrics.set("not_responsible_total", this.responses[StatusType.SERVER_NOT_RESPONSIBLE.ordinal()].sum());
+
+        LatencyBreakdown latencies = this.server.getLatencyBreakdown();
+        for (StatusType operation : STATUSES) {
+            LatencyHistogram total = latencies.histogram(operation, LatencyBreakdown.Stage.TOTAL);
+            if (total != null && total.count() > 0) {
+                metrics.set("latency_p50_us", operation.name(), TimeUnit.NANOSECONDS.toMicros(total.percentile(0.5)));
+                metrics.set("latency_p99_us", operation.name(), TimeUnit.NANOSECONDS.toMicros(total.percentile(0.99)));
+                metrics.set("latency_p999_us", operation.name(), TimeUnit.NANOSECONDS.toMicros(total.percentile(0.999)));
+            }
+        }
+
+        this.server.collectStorageStats(metrics);
+        return metrics;
+    }
+}
@@ -0,0 +1,66 @@
+package app_kvServer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Paces the keys a server sends in the background, handoffs and anti-entropy repairs, so moving a range
+ * does not starve the requests of clients. Transfers wait while client requests wait for a slot of the
+ * {@link FairScheduler}, for MAX_YIELD_MILLIS at most so they are not starved in turn, and are limited to
+ * a number of bytes per second shared by all of them, with bursts of a second's worth. The rate is not
+ * limited at 0.
+ */
+class TransferThrottle {
+    static final long MAX_YIELD_MILLIS = 100;
+    private static final long YIELD_STEP_MILLIS = 1;
+
+    private final FairScheduler scheduler;
+    private volatile long bytesPerSecond;
+    private final LongAdder waitNanos = new LongAdder();
+    // token bucket, may go into debt to reserve the bytes of a key larger than a burst; guarded by this
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    TransferThrottle(FairScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Waits until the given bytes may be sent.
+     */
+    void acquire(long bytes) throws InterruptedException {
+        long start = System.nanoTime();
+        long yieldUntil = start + TimeUnit.MILLISECONDS.toNanos(MAX_YIELD_MILLIS);
+        while (this.scheduler.hasWaiting() && System.nanoTime() - yieldUntil < 0) {
+            Thread.sleep(YIELD_STEP_MILLIS);
+        }
+
+        long rate = this.bytesPerSecond;
+        if (rate > 0) {
+            long delayNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                this.tokens = Math.min(rate, this.tokens + (now - this.refilledAt) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+                this.refilledAt = now;
+                this.tokens -= bytes;
+                // the bytes are reserved right away, so concurrent transfers queue up behind each other
+                delayNanos = this.tokens < 0 ? (long) (-this.tokens * TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            }
+            if (delayNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            }
+        }
+        this.waitNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * @return the milliseconds transfers waited so far
+     */
+    long waitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.sum());
+    }
+}
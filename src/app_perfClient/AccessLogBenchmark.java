@@ -0,0 +1,99 @@
+package app_perfClient;
+
+import app_kvServer.AccessLog;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the cost of logging requests for the request threads of a server, with an increasing number of
+ * threads as in {@link StorageBenchmark}. It compares no logging, a synchronous log4j line per request and
+ * response with the full value as the server used to write, and the asynchronous {@link AccessLog}.
+ */
+public class AccessLogBenchmark {
+    private interface RequestLogger {
+        void log(KVMessage request, KVMessage response, long durationNanos);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2) {
+            System.out.println("Usage: <requests_per_thread> <payload_size>");
+            System.exit(1);
+        }
+
+        int requestsPerThread = Integer.parseInt(args[0]);
+        int payloadSize = Integer.parseInt(args[1]);
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        byte[] payload = "a".repeat(payloadSize).getBytes(StandardCharsets.UTF_8);
+
+        File log4jFile = File.createTempFile("access_log_benchmark", ".log");
+        log4jFile.deleteOnExit();
+        Logger logger = Logger.getLogger(AccessLogBenchmark.class);
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(new FileAppender(new PatternLayout("%d{ISO8601} %-5p [%t] %c: %m%n"), log4jFile.getPath(), false));
+
+        File accessLogFile = File.createTempFile("access_log_benchmark", ".access.log");
+        accessLogFile.deleteOnExit();
+        AccessLog accessLog = new AccessLog(accessLogFile.getPath(), AccessLog.DEFAULT_CAPACITY, 1);
+
+        RequestLogger none = (request, response, durationNanos) -> {
+        };
+        RequestLogger log4j = (request, response, durationNanos) -> {
+            logger.info("Request received: " + request.getStatus().name() + " <" + request.getKey() + "> <" + request.getValue() + ">");
+            logger.info("Sending response: " + response.getStatus().name() + " <" + response.getKey() + "> <" + response.getValue() + ">");
+        };
+        RequestLogger async = (request, response, durationNanos) ->
+                accessLog.record("/127.0.0.1:50000", request, response.getStatus(), durationNanos);
+
+        System.out.println("logger,threads,requests_per_second");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.println("none," + threads + "," + (long) run(none, threads, requestsPerThread, payload));
+            System.out.println("log4j," + threads + "," + (long) run(log4j, threads, requestsPerThread, payload));
+            System.out.println("access_log," + threads + "," + (long) run(async, threads, requestsPerThread, payload));
+        }
+
+        accessLog.close();
+        System.out.println("access log entries dropped: " + accessLog.dropped());
+    }
+
+    private static double run(RequestLogger requestLogger, int threadCount, int requestsPerThread, byte[] payload)
+            throws InterruptedException {
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    for (int i = 0; i < requestsPerThread; i++) {
+                        long start = System.nanoTime();
+                        String key = "key" + (i % 10_000);
+                        KVMessage request = new KVMessage(key, payload, StatusType.PUT);
+                        KVMessage response = new KVMessage(key, payload, StatusType.PUT_SUCCESS);
+                        requestLogger.log(request, response, System.nanoTime() - start);
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[t].start();
+        }
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long end = System.nanoTime();
+
+        return (double) threadCount * requestsPerThread / ((end - start) / 1e9);
+    }
+}
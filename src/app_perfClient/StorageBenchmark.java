@@ -0,0 +1,86 @@
+package app_perfClient;
+
+import storage.KVStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the throughput of {@link KVStorage} with an increasing number of threads, doubling the thread
+ * count up to the number of available cores. Operations go straight to the storage so the results show
+ * how well the storage path scales without any network or protocol overhead. Every PUT appends to the log
+ * and waits for it to be synced, so PUT throughput is bound by the disk and grows with the threads as
+ * concurrent writers share a sync; compactions of the log are included.
+ */
+public class StorageBenchmark {
+    private static final int KEY_COUNT = 10_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3) {
+            System.out.println("Usage: <ops_per_thread> <get_percentage> <payload_size>");
+            System.exit(1);
+        }
+
+        int opsPerThread = Integer.parseInt(args[0]);
+        int getPercentage = Integer.parseInt(args[1]);
+        int payloadSize = Integer.parseInt(args[2]);
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        File storageFile = File.createTempFile("storage_benchmark", ".json");
+        storageFile.deleteOnExit();
+
+        KVStorage storage = new KVStorage(storageFile.getPath());
+        storage.clear();
+        storage.load();
+        byte[] payload = "a".repeat(payloadSize).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < KEY_COUNT; i++) {
+            storage.put("key" + i, payload);
+        }
+
+        System.out.println("threads,ops_per_second");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double opsPerSecond = run(storage, threads, opsPerThread, getPercentage, payload);
+            System.out.println(threads + "," + (long) opsPerSecond);
+        }
+
+        storage.clear();
+    }
+
+    private static double run(KVStorage storage, int threadCount, int opsPerThread, int getPercentage, byte[] payload)
+            throws InterruptedException {
+        CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final long seed = t;
+            threads[t] = new Thread(() -> {
+                Random random = new Random(seed);
+                try {
+                    startLatch.await();
+                    for (int i = 0; i < opsPerThread; i++) {
+                        String key = "key" + random.nextInt(KEY_COUNT);
+                        if (random.nextInt(100) < getPercentage) {
+                            storage.get(key);
+                        } else {
+                            storage.put(key, payload);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[t].start();
+        }
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long end = System.nanoTime();
+
+        return (double) threadCount * opsPerThread / ((end - start) / 1e9);
+    }
+}
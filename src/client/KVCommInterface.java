@@ -36,4 +36,47 @@ public interface KVCommInterface {
      *                   KV server).
      */
     public IKVMessage get(String key) throws Exception;
+
+    /**
+     * Sets the key to the value if it currently holds the expected value, atomically on the server.
+     *
+     * @param expected the value the key must hold, null if the key must not exist.
+     * @param value    the new value.
+     * @return CAS_SUCCESS if the value was set, CAS_FAILED with the current value otherwise.
+     * @throws Exception if the command cannot be executed (e.g. not connected to any
+     *                   KV server).
+     */
+    public IKVMessage compareAndSet(String key, String expected, String value) throws Exception;
+
+    /**
+     * Sets the key to the value if it currently holds the expected version, atomically on the server.
+     *
+     * @param expectedVersion the version the key must hold, as returned by a previous compareAndSet; 0 for
+     *                        a key that does not exist or was written without a version.
+     * @param value           the new value.
+     * @return CAS_SUCCESS with the new version if the value was set, CAS_FAILED with the current value and
+     * version otherwise.
+     * @throws Exception if the command cannot be executed (e.g. not connected to any
+     *                   KV server).
+     */
+    public IKVMessage compareAndSet(String key, long expectedVersion, String value) throws Exception;
+
+    /**
+     * Adds the delta to the number stored under the key, atomically on the server. A missing key counts as 0.
+     *
+     * @return INCREMENT_SUCCESS with the new number, PUT_ERROR if the stored value is not a number.
+     * @throws Exception if the command cannot be executed (e.g. not connected to any
+     *                   KV server).
+     */
+    public IKVMessage increment(String key, long delta) throws Exception;
+
+    /**
+     * Appends the value to the one stored under the key, atomically on the server. A missing key is created.
+     *
+     * @return PUT_SUCCESS if the key was created, PUT_UPDATE if the value was appended, PUT_ERROR if the
+     * result would be too large.
+     * @throws Exception if the command cannot be executed (e.g. not connected to any
+     *                   KV server).
+     */
+    public IKVMessage append(String key, String value) throws Exception;
 }
@@ -15,7 +15,22 @@ public class KVNodeComm implements Closeable {
     private final SocketMessenger socketMessenger;
 
     public KVNodeComm(InetSocketAddress address) throws IOException {
-        this.socket = new Socket(address.getAddress(), address.getPort());
+        this(address, 0);
+    }
+
+    /**
+     * @param timeoutMillis time connecting and each response may take before a SocketTimeoutException is
+     *                      thrown, 0 to wait indefinitely
+     */
+    public KVNodeComm(InetSocketAddress address, int timeoutMillis) throws IOException {
+        this.socket = new Socket();
+        try {
+            this.socket.connect(address, timeoutMillis);
+            this.socket.setSoTimeout(timeoutMillis);
+        } catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
         this.socketMessenger = new SocketMessenger(this.socket);
     }
 
@@ -37,4 +52,13 @@ public class KVNodeComm implements Closeable {
 
         return message;
     }
+
+    public IKVMessage getReadMetadata() throws UnexpectedMessageException, IOException {
+        IKVMessage message = sendAndReceiveMessage(new KVMessage(IKVMessage.StatusType.KEYRANGE_READ));
+        if (message.getStatus() != IKVMessage.StatusType.KEYRANGE_READ_SUCCESS) {
+            throw new UnexpectedMessageException(message, "expected KEYRANGE_READ_SUCCESS in response to KEYRANGE_READ");
+        }
+
+        return message;
+    }
 }
@@ -4,19 +4,163 @@ import org.apache.log4j.Logger;
 
 import ecs.ECSNode;
 import ecs.ECSRing;
+import shared.HashUtils;
 import shared.UnexpectedMessageException;
+import shared.jfr.MetadataUpdateEvent;
+import shared.jfr.RetryEvent;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
 
 import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 public class KVStore implements KVCommInterface {
     private static final Logger LOGGER = Logger.getRootLogger();
 
+    /**
+     * How GETs pick one of the servers storing a key.
+     */
+    public enum ReadPolicy {
+        PRIMARY,        /* always the server responsible for the key */
+        ROUND_ROBIN,    /* the replicas of the key in turn, including the extra replicas of a hot key */
+        LEAST_LOADED,   /* the replica with the fewest requests of this client in flight, including the extra replicas of a hot key */
+        TAIL,           /* the last replica of the key's chain, which only holds writes the whole chain applied */
+    }
+
+    /**
+     * How many of the N replicas of a key have to answer a quorum request before it returns (R for reads,
+     * W for writes). Reads and writes whose counts add up to more than N always overlap in a replica, so
+     * QUORUM reads see every acknowledged QUORUM write.
+     */
+    public enum Consistency {
+        ONE,            /* the fastest replica */
+        QUORUM,         /* a majority of the replicas */
+        ALL;            /* every replica */
+
+        int responsesRequired(int replicas) {
+            switch (this) {
+                case ONE:
+                    return 1;
+                case QUORUM:
+                    return replicas / 2 + 1;
+                default:
+                    return replicas;
+            }
+        }
+    }
+
+    /**
+     * Low bits of a version stamp, which hold the id of the client that wrote it.
+     */
+    private static final int CLIENT_ID_BITS = 16;
+    /**
+     * Time a request may take including its retries, long enough for the ECS to detect a failed server and
+     * hand its keys to the next one.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 10_000;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    private static final double RETRY_RATIO = 0.2;
+    private static final int MIN_RETRIES_PER_SECOND = 10;
+    private static final double MAX_SAVED_RETRIES = 100;
+    /**
+     * GETs are sent to a second replica once the first took longer than this share of recent GETs.
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 20;
+    private static final int LATENCY_WINDOW = 1000;
+    /**
+     * Time a value stays in the near cache without being read again from the servers, as a bound for values
+     * that expire on the servers and are therefore not invalidated.
+     */
+    public static final long DEFAULT_NEAR_CACHE_MAX_AGE_MILLIS = 60_000;
+    /**
+     * Time after which GETs fetch the read metadata again, so they are spread over the extra replicas of keys
+     * that became hot.
+     */
+    private static final long READ_METADATA_MAX_AGE_MILLIS = 1000;
+
     private final String address;
     private final int port;
+    private final ReadPolicy readPolicy;
 
     private final ECSRing<Object> ring;
+    /**
+     * Ranges each server answers GETs for, including the keys it replicates. Null until fetched.
+     */
+    private volatile List<ReadRange> readRanges;
+    private final AtomicLong readRangesFetchedAt = new AtomicLong(System.nanoTime());
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final Map<InetSocketAddress, AtomicInteger> requestsInFlight = new ConcurrentHashMap<>();
+
+    private volatile long requestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+    /**
+     * Shared by retries and hedged GETs, which both add load to servers that may already be overloaded.
+     */
+    private final RetryBudget retryBudget = new RetryBudget(RETRY_RATIO, MIN_RETRIES_PER_SECOND, MAX_SAVED_RETRIES);
+    private final LatencyTracker getLatencies = new LatencyTracker(LATENCY_WINDOW);
+    /**
+     * Null unless enabled.
+     */
+    private volatile NearCache nearCache;
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+
+    private final long clientId = ThreadLocalRandom.current().nextInt(1 << CLIENT_ID_BITS);
+    private final AtomicLong lastVersion = new AtomicLong();
+    /**
+     * Sends quorum requests and hedged GETs to the replicas of a key in parallel; requests that are still
+     * running once they are no longer needed finish in the background.
+     */
+    private final ExecutorService replicaExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kvstore-replica-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class ReplicaResponse {
+        final InetSocketAddress address;
+        final IKVMessage message;
+
+        ReplicaResponse(InetSocketAddress address, IKVMessage message) {
+            this.address = address;
+            this.message = message;
+        }
+
+        long version() {
+            return this.message.getStatus() == IKVMessage.StatusType.GET_VERSIONED_SUCCESS
+                    ? ((KVMessage) this.message).getParameter() : 0;
+        }
+    }
+
+    private static final class ReadRange {
+        final String from;
+        final String to;
+        final InetSocketAddress address;
+        /**
+         * True for the extra replica of a hot key, which only serves GETs.
+         */
+        final boolean hot;
+
+        ReadRange(String from, String to, InetSocketAddress address, boolean hot) {
+            this.from = from;
+            this.to = to;
+            this.address = address;
+            this.hot = hot;
+        }
+    }
 
     /**
      * Initialize KVStore with address and port of a KVServer
@@ -25,91 +169,824 @@ public class KVStore implements KVCommInterface {
      * @param port    the port of the KVServer
      */
     public KVStore(String address, int port) {
+        this(address, port, ReadPolicy.PRIMARY);
+    }
+
+    /**
+     * Initialize KVStore with address and port of a KVServer
+     *
+     * @param address    the address of the KVServer
+     * @param port       the port of the KVServer
+     * @param readPolicy how GETs pick one of the servers storing the key
+     */
+    public KVStore(String address, int port, ReadPolicy readPolicy) {
         this.address = address;
         this.port = port;
+        this.readPolicy = readPolicy;
 
         this.ring = new ECSRing<>();
     }
 
     @Override
     public void connect() throws IOException {
-        this.ring.addNode(address, port);
+        synchronized (this.ring) {
+            this.ring.addNode(address, port);
+        }
     }
 
     @Override
     public void disconnect() {
-        this.ring.clearNodes();
+        synchronized (this.ring) {
+            this.ring.clearNodes();
+        }
+        this.readRanges = null;
+        NearCache cache = this.nearCache;
+        if (cache != null) {
+            cache.close();
+        }
+        for (Watch watch : this.watches) {
+            watch.close();
+        }
+    }
+
+    /**
+     * Calls the listener with every change of the key until the returned watch is closed. The servers
+     * push the changes, so the key does not have to be polled with GETs.
+     *
+     * @throws IOException if the watch could not be registered on all servers
+     */
+    public Watch watch(String key, KeyChangeListener listener) throws IOException {
+        return startWatch(new KVMessage(key, IKVMessage.StatusType.WATCH), listener);
+    }
+
+    /**
+     * Calls the listener with every change of the keys whose hashes are in the range until the returned
+     * watch is closed.
+     *
+     * @param fromHash first hash of the range
+     * @param toHash   last hash of the range, a range whose start is greater than its end wraps around
+     * @throws IOException if the watch could not be registered on all servers
+     * @see #watch(String, KeyChangeListener)
+     */
+    public Watch watchRange(String fromHash, String toHash, KeyChangeListener listener) throws IOException {
+        if (!HashUtils.isHash(fromHash) || !HashUtils.isHash(toHash)) {
+            throw new IllegalArgumentException("fromHash and toHash must be MD5 hashes");
+        }
+        return startWatch(new KVMessage(fromHash + "," + toHash, IKVMessage.StatusType.WATCH_RANGE), listener);
+    }
+
+    private Watch startWatch(KVMessage request, KeyChangeListener listener) throws IOException {
+        List<InetSocketAddress> servers = refreshedServers();
+        Watch watch = new Watch(request, listener, this::refreshedServers, this.watches::remove);
+        this.watches.add(watch);
+        if (!watch.watchServers(servers)) {
+            watch.close();
+            throw new IOException("could not watch <" + request.getKey() + "> on all servers");
+        }
+        return watch;
+    }
+
+    /**
+     * Fetches the metadata from the first known server that answers.
+     *
+     * @return the servers of the ring
+     */
+    private List<InetSocketAddress> refreshedServers() {
+        for (InetSocketAddress server : knownServers()) {
+            try (KVNodeComm node = new KVNodeComm(server, remainingMillis(deadline()))) {
+                updateMetadata(node);
+                break;
+            } catch (IOException | UnexpectedMessageException e) {
+                LOGGER.warn("could not fetch metadata from " + server, e);
+            }
+        }
+        return knownServers();
+    }
+
+    /**
+     * Keeps up to the given number of values read by {@link #get(String)} in memory, so repeated GETs of
+     * a key are answered without a request as long as nobody wrote it. The servers push invalidations of
+     * written keys to this client over one extra connection each.
+     *
+     * @param capacity most values kept, the least recently used ones are evicted first
+     */
+    public void enableNearCache(int capacity) {
+        enableNearCache(capacity, DEFAULT_NEAR_CACHE_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param capacity     most values kept, the least recently used ones are evicted first
+     * @param maxAgeMillis time after which a cached value is read from the servers again, even if it was
+     *                     not invalidated
+     * @see #enableNearCache(int)
+     */
+    public void enableNearCache(int capacity, long maxAgeMillis) {
+        NearCache previous = this.nearCache;
+        this.nearCache = new NearCache(capacity, maxAgeMillis);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public void disableNearCache() {
+        NearCache previous = this.nearCache;
+        this.nearCache = null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Sets the time each following request may take, including its retries. A request that did not get a
+     * response in time fails with a SocketTimeoutException.
+     */
+    public void setRequestTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive");
+        }
+        this.requestTimeoutMillis = timeoutMillis;
+    }
+
+    public long getRequestTimeout() {
+        return this.requestTimeoutMillis;
     }
 
     @Override
     public IKVMessage put(String key, String value) throws UnexpectedMessageException, IOException {
         KVMessage putRequest = new KVMessage(key, value, IKVMessage.StatusType.PUT);
+        return invalidatingCachedValue(key, () -> tryAndReceiveWithExpBackoff(putRequest, false));
+    }
 
-        try (KVNodeComm node = getNodeForKey(key)) {
-            return tryAndReceiveWithExpBackoff(node, putRequest);
-        }
+    /**
+     * Inserts a key-value pair that expires after the given time to live.
+     *
+     * @param ttlMillis time to live in milliseconds, must be positive
+     */
+    public IKVMessage put(String key, String value, long ttlMillis) throws UnexpectedMessageException, IOException {
+        KVMessage putRequest = new KVMessage(key, ttlMillis, value.getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.PUT_TTL);
+        return invalidatingCachedValue(key, () -> tryAndReceiveWithExpBackoff(putRequest, false));
+    }
+
+    @Override
+    public IKVMessage compareAndSet(String key, String expected, String value) throws UnexpectedMessageException, IOException {
+        byte[] expectedBytes = expected == null ? new byte[0] : expected.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = Arrays.copyOf(expectedBytes, expectedBytes.length + valueBytes.length);
+        System.arraycopy(valueBytes, 0, bytes, expectedBytes.length, valueBytes.length);
+        KVMessage request = new KVMessage(key, expected == null ? 0 : expectedBytes.length + 1, bytes, IKVMessage.StatusType.CAS);
+        return invalidatingCachedValue(key, () -> tryAndReceiveWithExpBackoff(request, false));
+    }
+
+    @Override
+    public IKVMessage compareAndSet(String key, long expectedVersion, String value) throws UnexpectedMessageException, IOException {
+        KVMessage request = new KVMessage(key, expectedVersion, value.getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.CAS_VERSION);
+        return invalidatingCachedValue(key, () -> tryAndReceiveWithExpBackoff(request, false));
+    }
+
+    @Override
+    public IKVMessage increment(String key, long delta) throws UnexpectedMessageException, IOException {
+        KVMessage request = new KVMessage(key, Long.toString(delta), IKVMessage.StatusType.INCREMENT);
+        return invalidatingCachedValue(key, () -> tryAndReceiveWithExpBackoff(request, false));
     }
 
+    @Override
+    public IKVMessage append(String key, String value) throws UnexpectedMessageException, IOException {
+        KVMessage request = new KVMessage(key, value, IKVMessage.StatusType.APPEND);
+        return invalidatingCachedValue(key, () -> tryAndReceiveWithExpBackoff(request, false));
+    }
+
+    /**
+     * Answered from the near cache if it is enabled and holds the key.
+     */
     @Override
     public IKVMessage get(String key) throws UnexpectedMessageException, IOException {
+        NearCache cache = this.nearCache;
+        if (cache == null) {
+            return getFromServer(key);
+        }
+
+        byte[] cached = cache.get(key);
+        if (cached != null) {
+            return new KVMessage(key, cached, IKVMessage.StatusType.GET_SUCCESS);
+        }
+        // subscribed and taken before the GET is sent, so a write racing with it keeps its value out of the cache
+        Set<InetSocketAddress> subscribed = cache.subscribe(knownServers(), remainingMillis(deadline()));
+        long generation = cache.generation(key);
+        IKVMessage response = getFromServer(key);
+        // the GET may have fetched metadata naming servers that were not subscribed while it ran
+        if (response.getStatus() == IKVMessage.StatusType.GET_SUCCESS && subscribed.containsAll(knownServers())) {
+            cache.put(key, ((KVMessage) response).getValueBytes(), generation);
+        }
+        return response;
+    }
+
+    private IKVMessage getFromServer(String key) throws UnexpectedMessageException, IOException {
         KVMessage getRequest = new KVMessage(key, IKVMessage.StatusType.GET);
+        return tryAndReceiveWithExpBackoff(getRequest, this.readPolicy != ReadPolicy.PRIMARY);
+    }
+
+    private interface Request {
+        IKVMessage send() throws UnexpectedMessageException, IOException;
+    }
+
+    /**
+     * Drops the key from the near cache before and after the write, so neither the value it replaces nor
+     * one read while it is in flight is served from the cache afterwards.
+     */
+    private IKVMessage invalidatingCachedValue(String key, Request write) throws UnexpectedMessageException, IOException {
+        NearCache cache = this.nearCache;
+        if (cache == null) {
+            return write.send();
+        }
+        cache.invalidate(key);
+        try {
+            return write.send();
+        } finally {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * @return the number of values in the near cache, 0 if it is disabled
+     */
+    public int nearCacheSize() {
+        NearCache cache = this.nearCache;
+        return cache == null ? 0 : cache.size();
+    }
+
+    private List<InetSocketAddress> knownServers() {
+        List<InetSocketAddress> servers = new ArrayList<>();
+        synchronized (this.ring) {
+            for (ECSNode<Object> node : this.ring.getMap().values()) {
+                servers.add(node.getSocketAddress());
+            }
+        }
+        return servers;
+    }
+
+    /**
+     * Writes the key to all of its replicas and returns once the number of them required by the consistency
+     * level acknowledged the write. The write carries a version stamp, replicas holding a newer version keep
+     * theirs, so the last writer wins. A null value deletes the key.
+     *
+     * @return PUT_SUCCESS or DELETE_SUCCESS if enough replicas acknowledged, PUT_ERROR or DELETE_ERROR
+     * otherwise
+     */
+    public IKVMessage put(String key, String value, Consistency consistency) throws UnexpectedMessageException, IOException {
+        return invalidatingCachedValue(key, () -> putVersioned(key, value, consistency));
+    }
+
+    private IKVMessage putVersioned(String key, String value, Consistency consistency) throws UnexpectedMessageException, IOException {
+        byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+        KVMessage request = new KVMessage(key, nextVersion(), valueBytes, IKVMessage.StatusType.PUT_VERSIONED);
+        long deadline = deadline();
+        List<InetSocketAddress> replicas = getReplicasForKey(key);
+        int required = consistency.responsesRequired(replicas.size());
+        List<ReplicaResponse> acks = sendToReplicas(replicas, request, required, deadline, status ->
+                status == IKVMessage.StatusType.PUT_SUCCESS || status == IKVMessage.StatusType.DELETE_SUCCESS);
+
+        IKVMessage.StatusType status;
+        if (acks.size() >= required) {
+            status = value == null ? IKVMessage.StatusType.DELETE_SUCCESS : IKVMessage.StatusType.PUT_SUCCESS;
+        } else {
+            status = value == null ? IKVMessage.StatusType.DELETE_ERROR : IKVMessage.StatusType.PUT_ERROR;
+        }
+        return new KVMessage(key, valueBytes, status);
+    }
+
+    /**
+     * Reads the key from all of its replicas and returns the newest value once the number of them required by
+     * the consistency level answered. Replicas that answered with an older value are updated in the
+     * background (read repair).
+     *
+     * @return GET_SUCCESS with the newest value, GET_ERROR if the key does not exist or not enough replicas
+     * answered
+     */
+    public IKVMessage get(String key, Consistency consistency) throws UnexpectedMessageException, IOException {
+        long deadline = deadline();
+        List<InetSocketAddress> replicas = getReplicasForKey(key);
+        int required = consistency.responsesRequired(replicas.size());
+        List<ReplicaResponse> responses = sendToReplicas(replicas, new KVMessage(key, IKVMessage.StatusType.GET_VERSIONED),
+                required, deadline, status -> status == IKVMessage.StatusType.GET_VERSIONED_SUCCESS || status == IKVMessage.StatusType.GET_ERROR);
+        if (responses.size() < required) {
+            return new KVMessage(key, IKVMessage.StatusType.GET_ERROR);
+        }
+
+        ReplicaResponse newest = null;
+        for (ReplicaResponse response : responses) {
+            if (response.message.getStatus() == IKVMessage.StatusType.GET_VERSIONED_SUCCESS
+                    && (newest == null || response.version() > newest.version())) {
+                newest = response;
+            }
+        }
+        if (newest == null) {
+            return new KVMessage(key, IKVMessage.StatusType.GET_ERROR);
+        }
+
+        KVMessage newestMessage = (KVMessage) newest.message;
+        if (newest.version() > 0) {
+            // values written without a version cannot be repaired, as they would win against any versioned write
+            KVMessage repair = new KVMessage(key, newest.version(), newestMessage.getValueBytes(), IKVMessage.StatusType.PUT_VERSIONED);
+            for (ReplicaResponse response : responses) {
+                if (response.version() < newest.version()) {
+                    this.replicaExecutor.execute(() -> sendRepair(response.address, repair));
+                }
+            }
+        }
+
+        return newestMessage.getValueBytes() == null
+                ? new KVMessage(key, IKVMessage.StatusType.GET_ERROR)
+                : new KVMessage(key, newestMessage.getValueBytes(), IKVMessage.StatusType.GET_SUCCESS);
+    }
+
+    /**
+     * Version stamps are the wall clock time in milliseconds followed by the id of this client, so writes of
+     * different clients never share a version and the later one wins as long as the clocks are roughly in
+     * sync. Writes of this client always get increasing versions.
+     */
+    private long nextVersion() {
+        return this.lastVersion.updateAndGet(last -> {
+            long version = (System.currentTimeMillis() << CLIENT_ID_BITS) | this.clientId;
+            return version > last ? version : (((last >>> CLIENT_ID_BITS) + 1) << CLIENT_ID_BITS) | this.clientId;
+        });
+    }
+
+    /**
+     * Sends the request to all replicas in parallel and waits until the given number of them answered
+     * successfully, too many failed for that to happen or the deadline passed.
+     *
+     * @return the successful responses received so far, in the order they arrived
+     */
+    private List<ReplicaResponse> sendToReplicas(List<InetSocketAddress> replicas, KVMessage request, int required,
+                                                 long deadline, Predicate<IKVMessage.StatusType> isSuccess) throws IOException {
+        CompletionService<ReplicaResponse> completion = new ExecutorCompletionService<>(this.replicaExecutor);
+        for (InetSocketAddress replica : replicas) {
+            completion.submit(() -> new ReplicaResponse(replica, send(replica, request, remainingMillis(deadline))));
+        }
+
+        List<ReplicaResponse> successes = new ArrayList<>();
+        for (int received = 0; received < replicas.size() && successes.size() < required; received++) {
+            try {
+                Future<ReplicaResponse> done = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    LOGGER.warn("deadline passed waiting for replicas for " + request.getStatus().name() + " <" + request.getKey() + ">");
+                    break;
+                }
+                ReplicaResponse response = done.get();
+                if (isSuccess.test(response.message.getStatus())) {
+                    successes.add(response);
+                } else if (response.message.getStatus() == IKVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                    // the replicas changed, the next request fetches them again
+                    this.readRanges = null;
+                }
+            } catch (ExecutionException e) {
+                LOGGER.warn("no response from a replica for " + request.getStatus().name() + " <" + request.getKey() + ">", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for replicas");
+            }
+        }
+        return successes;
+    }
+
+    /**
+     * Sends the request over a new connection. Metadata is fetched again if the server is not responsible
+     * for the key.
+     *
+     * @param timeoutMillis time connecting and the response may take
+     */
+    private IKVMessage send(InetSocketAddress address, KVMessage request, int timeoutMillis) throws UnexpectedMessageException, IOException {
+        AtomicInteger requests = this.requestsInFlight.computeIfAbsent(address, a -> new AtomicInteger());
+        requests.incrementAndGet();
+        long start = System.nanoTime();
+        try (KVNodeComm node = new KVNodeComm(address, timeoutMillis)) {
+            IKVMessage response = node.sendAndReceiveMessage(request);
+            if (response.getStatus() == IKVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                updateMetadata(node);
+            } else if (response.getStatus() == IKVMessage.StatusType.GET_SUCCESS || response.getStatus() == IKVMessage.StatusType.GET_ERROR) {
+                this.getLatencies.record(System.nanoTime() - start);
+            }
+            return response;
+        } finally {
+            requests.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends a GET to one replica and, if it has not answered after the usual time of a GET, to a second one,
+     * returning the first answer. This cuts the latency caused by a single slow server at the price of a few
+     * percent more GETs, which are paid from the retry budget.
+     */
+    private IKVMessage sendHedged(KVMessage request, InetSocketAddress first, InetSocketAddress second, long deadline)
+            throws UnexpectedMessageException, IOException {
+        CompletionService<IKVMessage> completion = new ExecutorCompletionService<>(this.replicaExecutor);
+        completion.submit(() -> send(first, request, remainingMillis(deadline)));
+        int pending = 1;
+        long hedgeAt = System.nanoTime() + hedgeDelayNanos();
+        boolean hedged = false;
+        IKVMessage unanswered = null;
+        ExecutionException failure = null;
+        try {
+            while (pending > 0) {
+                long wakeUp = hedged ? deadline : Math.min(hedgeAt, deadline);
+                Future<IKVMessage> done = completion.poll(wakeUp - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (hedged || System.nanoTime() - deadline >= 0) {
+                        break;
+                    }
+                    hedged = true;
+                    if (this.retryBudget.tryWithdraw(System.nanoTime())) {
+                        completion.submit(() -> send(second, request, remainingMillis(deadline)));
+                        pending++;
+                    }
+                    continue;
+                }
+
+                pending--;
+                try {
+                    IKVMessage response = done.get();
+                    if (response.getStatus() == IKVMessage.StatusType.GET_SUCCESS || response.getStatus() == IKVMessage.StatusType.GET_ERROR) {
+                        return response;
+                    }
+                    unanswered = response;
+                } catch (ExecutionException e) {
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for replicas");
+        }
+
+        if (unanswered != null) {
+            return unanswered;
+        }
+        if (failure != null) {
+            if (failure.getCause() instanceof IOException) {
+                throw (IOException) failure.getCause();
+            }
+            if (failure.getCause() instanceof UnexpectedMessageException) {
+                throw (UnexpectedMessageException) failure.getCause();
+            }
+            throw new IOException(failure.getCause());
+        }
+        throw new SocketTimeoutException("no replica answered GET <" + request.getKey() + "> in time");
+    }
+
+    private long hedgeDelayNanos() {
+        long percentile = this.getLatencies.percentile(HEDGE_PERCENTILE);
+        return percentile < 0 ? TimeUnit.MILLISECONDS.toNanos(DEFAULT_HEDGE_DELAY_MILLIS) : percentile;
+    }
+
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.requestTimeoutMillis);
+    }
 
-        try (KVNodeComm node = getNodeForKey(key)) {
-            return tryAndReceiveWithExpBackoff(node, getRequest);
+    /**
+     * @return milliseconds until the deadline, at least 1 as socket timeouts of 0 never expire
+     */
+    private static int remainingMillis(long deadline) {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, remaining));
+    }
+
+    private void sendRepair(InetSocketAddress replica, KVMessage repair) {
+        try {
+            send(replica, repair, remainingMillis(deadline()));
+        } catch (IOException | UnexpectedMessageException e) {
+            LOGGER.warn("could not repair <" + repair.getKey() + "> on " + replica, e);
         }
     }
 
-    private KVNodeComm getNodeForKey(String key) throws IOException {
-        ECSNode<Object> node = this.ring.getNodeForKey(key);
+    private InetSocketAddress getNodeForKey(String key) throws IOException {
+        ECSNode<Object> node;
+        synchronized (this.ring) {
+            node = this.ring.getNodeForKey(key);
+        }
         if (node == null) {
             throw new IOException("no node exists");
         }
 
-        return new KVNodeComm(node.getSocketAddress());
+        return node.getSocketAddress();
+    }
+
+    /**
+     * Picks one of the servers storing the key according to the read policy, falling back to the server
+     * responsible for the key while the replicas are unknown. Round-robin and least loaded reads pick from
+     * the extra replicas of hot keys as well.
+     */
+    private InetSocketAddress getReplicaForKey(String key) throws UnexpectedMessageException, IOException {
+        if (this.readPolicy == ReadPolicy.TAIL) {
+            List<InetSocketAddress> replicas = getReplicasForKey(key);
+            List<ECSNode<Object>> chain;
+            synchronized (this.ring) {
+                chain = this.ring.getReplicasForKey(key, replicas.size());
+            }
+            return chain.isEmpty() ? replicas.get(0) : chain.get(chain.size() - 1).getSocketAddress();
+        }
+
+        List<InetSocketAddress> replicas = readReplicasForKey(key);
+        int first = Math.floorMod(this.nextReplica.getAndIncrement(), replicas.size());
+        if (this.readPolicy == ReadPolicy.ROUND_ROBIN) {
+            return replicas.get(first);
+        }
+
+        // least loaded, ties are broken in round-robin order
+        InetSocketAddress leastLoaded = null;
+        int leastRequests = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            InetSocketAddress replica = replicas.get((first + i) % replicas.size());
+            AtomicInteger requests = this.requestsInFlight.get(replica);
+            int count = requests == null ? 0 : requests.get();
+            if (count < leastRequests) {
+                leastLoaded = replica;
+                leastRequests = count;
+            }
+        }
+        return leastLoaded;
+    }
+
+    /**
+     * @return the servers storing the key, only the server responsible for it if it has no replicas
+     */
+    private List<InetSocketAddress> getReplicasForKey(String key) throws UnexpectedMessageException, IOException {
+        return replicasForKey(key, false);
+    }
+
+    /**
+     * @return the servers storing the key including the extra replicas of a hot key, which only serve GETs
+     */
+    private List<InetSocketAddress> readReplicasForKey(String key) throws UnexpectedMessageException, IOException {
+        return replicasForKey(key, true);
+    }
+
+    private List<InetSocketAddress> replicasForKey(String key, boolean hot) throws UnexpectedMessageException, IOException {
+        List<ReadRange> ranges = this.readRanges;
+        long fetchedAt = this.readRangesFetchedAt.get();
+        // a single GET fetches the read metadata again once it is outdated, the others go on with it meanwhile
+        boolean outdated = hot && System.nanoTime() - fetchedAt > TimeUnit.MILLISECONDS.toNanos(READ_METADATA_MAX_AGE_MILLIS)
+                && this.readRangesFetchedAt.compareAndSet(fetchedAt, System.nanoTime());
+        if (ranges == null || outdated) {
+            InetSocketAddress responsible = getNodeForKey(key);
+            try (KVNodeComm node = new KVNodeComm(responsible, remainingMillis(deadline()))) {
+                updateMetadata(node);
+                if (this.readPolicy == ReadPolicy.PRIMARY) {
+                    updateReadMetadata(node);
+                }
+            } catch (IOException e) {
+                forgetNode(responsible);
+                throw e;
+            }
+            ranges = this.readRanges;
+            if (ranges == null) {
+                // dropped again by a concurrent request that hit a stale replica
+                ranges = Collections.emptyList();
+            }
+        }
+
+        String hash = HashUtils.md5(key);
+        List<InetSocketAddress> replicas = new ArrayList<>();
+        for (ReadRange range : ranges) {
+            if ((hot || !range.hot) && HashUtils.isInRange(hash, range.from, range.to) && !replicas.contains(range.address)) {
+                replicas.add(range.address);
+            }
+        }
+        if (replicas.isEmpty()) {
+            replicas.add(getNodeForKey(key));
+        }
+        return replicas;
     }
 
     private void updateMetadata(KVNodeComm node) throws UnexpectedMessageException, IOException {
+        MetadataUpdateEvent event = new MetadataUpdateEvent();
+        event.begin();
         IKVMessage response = node.getMetadata();
-        String metadata = response.getValue();
+        boolean changed = false;
+        int serverCount;
+        synchronized (this.ring) {
+            try {
+                // empty until the server received metadata from the ECS, then the known nodes are kept
+                if (!response.getKey().isEmpty()) {
+                    String previous = this.ring.toMetadata(1);
+                    this.ring.loadMetadata(response.getKey());
+                    changed = !previous.equals(this.ring.toMetadata(1));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new UnexpectedMessageException(response, "improperly formatted node data in metadata");
+            }
+            serverCount = this.ring.getMap().size();
+        }
+        event.finish("client", serverCount, changed);
+        NearCache cache = this.nearCache;
+        if (changed && cache != null) {
+            // servers that joined may have taken writes this client was not subscribed to
+            cache.clear();
+        }
+        if (changed && !this.watches.isEmpty()) {
+            List<InetSocketAddress> servers = knownServers();
+            for (Watch watch : this.watches) {
+                watch.ringChanged(servers);
+            }
+        }
+
+        if (this.readPolicy != ReadPolicy.PRIMARY) {
+            updateReadMetadata(node);
+        }
+    }
+
+    private void updateReadMetadata(KVNodeComm node) throws UnexpectedMessageException, IOException {
+        IKVMessage response = node.getReadMetadata();
+        List<ReadRange> ranges = new ArrayList<>();
+        for (String nodeData : response.getKey().split(";")) {
+            if (nodeData.isEmpty()) {
+                continue;
+            }
 
-        String[] nodes = metadata.split(";");
-        this.ring.clearNodes();
-        for (String nodeData : nodes) {
-            // nodeData should look like: <from>,<to>,<address:port>
+            // nodeData should look like: <from>,<to>,<address:port>[,hot]
             String[] parts = nodeData.split(",");
             try {
-                String fromHash = parts[0];
                 String[] nodeAddress = parts[2].split(":");
-
-                this.ring.addNode(fromHash, nodeAddress[0], Integer.parseInt(nodeAddress[1]));
+                InetSocketAddress address = new InetSocketAddress(nodeAddress[0], Integer.parseInt(nodeAddress[1]));
+                if (address.isUnresolved()) {
+                    throw new UnknownHostException(nodeAddress[0]);
+                }
+                ranges.add(new ReadRange(parts[0], parts[1], address, parts.length > 3 && parts[3].equals("hot")));
             } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
-                throw new UnexpectedMessageException(response, "improperly formatted node data in metadata");
+                throw new UnexpectedMessageException(response, "improperly formatted node data in read metadata");
             }
         }
+        this.readRanges = ranges;
+        this.readRangesFetchedAt.set(System.nanoTime());
     }
 
-    private IKVMessage tryAndReceiveWithExpBackoff(KVNodeComm node, KVMessage request) throws UnexpectedMessageException, IOException {
-        for (int iteration = 0; ; iteration++) {
-            long milliseconds = (long) (Math.pow(2, iteration - 1));
-            try {
-                Thread.sleep(milliseconds);
-            } catch (InterruptedException e) {
-                LOGGER.warn("Thread.sleep interrupted", e);
+    /**
+     * Drops an unreachable server from the known ring, so requests go to the server taking over its keys
+     * until fresh metadata arrives.
+     */
+    private void forgetNode(InetSocketAddress address) {
+        synchronized (this.ring) {
+            List<String> hashes = new ArrayList<>();
+            for (Map.Entry<String, ECSNode<Object>> node : this.ring.getMap().entrySet()) {
+                if (node.getValue().getSocketAddress().equals(address)) {
+                    hashes.add(node.getKey());
+                }
             }
+            for (String hash : hashes) {
+                this.ring.removeNode(hash);
+            }
+        }
+        this.readRanges = null;
+    }
 
-            IKVMessage response = node.sendAndReceiveMessage(request);
+    /**
+     * @return the write as PUT_HINTED, other requests unchanged
+     */
+    private static KVMessage hinted(KVMessage request) {
+        switch (request.getStatus()) {
+            case PUT:
+                return new KVMessage(request.getKey(), 0, request.getValueBytes(), IKVMessage.StatusType.PUT_HINTED);
+            case PUT_TTL:
+                return new KVMessage(request.getKey(), request.getParameter(), request.getValueBytes(), IKVMessage.StatusType.PUT_HINTED);
+            default:
+                return request;
+        }
+    }
 
-            if (response.getStatus() == IKVMessage.StatusType.SERVER_STOPPED ||
-                    response.getStatus() == IKVMessage.StatusType.SERVER_WRITE_LOCK) {
-                continue;
+    /**
+     * Sends the request to the server storing its key, retrying with jittered exponential backoff while the
+     * servers are stopped, locked, busy or rebalancing, until the request timeout passed or the retry budget
+     * is used up. A read refused with SERVER_BUSY is retried on another replica of its key if there is one.
+     * An unreachable server is dropped from the known ring and the request retried on the next server, which
+     * serves the keys once the ECS detected the failure. Writes are sent to it as PUT_HINTED, so it accepts
+     * them right away and hands them over once their coordinator is back.
+     * <p>
+     * Atomic operations are not idempotent, so they are only retried if the server refused the connection or
+     * answered without applying them. Other failures are thrown, as the operation may have been applied.
+     *
+     * @param read true if the request may be sent to any replica of its key, in which case GETs are hedged
+     *             unless the read policy requires a particular replica
+     * @throws SocketTimeoutException if the request timeout passed
+     * @throws IOException            if no server is reachable or the retry budget is used up
+     */
+    private IKVMessage tryAndReceiveWithExpBackoff(KVMessage request, boolean read) throws UnexpectedMessageException, IOException {
+        long deadline = deadline();
+        boolean hedge = read && request.getStatus() == IKVMessage.StatusType.GET
+                && (this.readPolicy == ReadPolicy.ROUND_ROBIN || this.readPolicy == ReadPolicy.LEAST_LOADED);
+        this.retryBudget.deposit();
+        boolean idempotent = !isAtomic(request.getStatus());
+
+        KVMessage attempt = request;
+        IOException lastFailure = null;
+        // retries after SERVER_NOT_RESPONSIBLE only correct the routing and add no load, they are not budgeted
+        boolean rerouted = false;
+        InetSocketAddress address = null;
+        String retryReason = null;
+        // the replica that answered SERVER_BUSY last, avoided by reads
+        InetSocketAddress busy = null;
+        for (int iteration = 0; ; iteration++) {
+            if (iteration > 0) {
+                if (!rerouted && !this.retryBudget.tryWithdraw(System.nanoTime())) {
+                    throw new IOException("retry budget used up, " + request.getStatus() + " <" + request.getKey() + "> failed", lastFailure);
+                }
+                RetryEvent event = new RetryEvent();
+                event.begin();
+                backoff(iteration, deadline);
+                event.finish(request.getStatus().name(), request.getKey(), iteration, address, retryReason);
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                SocketTimeoutException timeout = new SocketTimeoutException(request.getStatus() + " <" + request.getKey()
+                        + "> did not complete within " + this.requestTimeoutMillis + "ms");
+                timeout.initCause(lastFailure);
+                throw timeout;
             }
 
-            if (response.getStatus() == IKVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
-                updateMetadata(node);
-                continue;
+            address = null;
+            rerouted = false;
+            try {
+                address = read ? getReplicaForKey(attempt.getKey()) : getNodeForKey(attempt.getKey());
+                if (read && address.equals(busy)) {
+                    InetSocketAddress other = otherReplicaForKey(attempt.getKey(), busy);
+                    address = other == null ? address : other;
+                }
+                InetSocketAddress second = hedge ? otherReplicaForKey(attempt.getKey(), address) : null;
+                IKVMessage response = second == null
+                        ? send(address, attempt, remainingMillis(deadline))
+                        : sendHedged(attempt, address, second, deadline);
+
+                if (response.getStatus() == IKVMessage.StatusType.SERVER_STOPPED ||
+                        response.getStatus() == IKVMessage.StatusType.SERVER_WRITE_LOCK) {
+                    retryReason = response.getStatus().name();
+                    continue;
+                }
+                if (response.getStatus() == IKVMessage.StatusType.SERVER_BUSY) {
+                    // the request was refused before it was processed, so even atomic operations are retried
+                    retryReason = response.getStatus().name();
+                    busy = address;
+                    continue;
+                }
+                if (response.getStatus() == IKVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+                    retryReason = response.getStatus().name();
+                    rerouted = true;
+                    continue;
+                }
+                return response;
+            } catch (SocketTimeoutException e) {
+                if (!idempotent) {
+                    throw e;
+                }
+                // the server is slow rather than gone, so it is kept; the deadline has passed anyway
+                lastFailure = e;
+                retryReason = e.toString();
+            } catch (IOException e) {
+                if (!idempotent && !(e instanceof ConnectException)) {
+                    throw e;
+                }
+                lastFailure = e;
+                retryReason = e.toString();
+                if (address != null) {
+                    LOGGER.warn("could not reach " + address + ", retrying on another server", e);
+                    forgetNode(address);
+                    attempt = hinted(attempt);
+                }
+                synchronized (this.ring) {
+                    if (this.ring.getMap().isEmpty()) {
+                        // no known server is left to try
+                        throw e;
+                    }
+                }
             }
+        }
+    }
 
-            return response;
+    private static boolean isAtomic(IKVMessage.StatusType status) {
+        return status == IKVMessage.StatusType.CAS || status == IKVMessage.StatusType.CAS_VERSION
+                || status == IKVMessage.StatusType.INCREMENT || status == IKVMessage.StatusType.APPEND;
+    }
+
+    /**
+     * Full jitter: sleeps a random time up to an exponentially growing cap, so clients retrying after the
+     * same failure spread out instead of hitting the server in waves.
+     */
+    private static void backoff(int iteration, long deadline) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, 1L << Math.min(iteration - 1, 20));
+        long milliseconds = Math.min(ThreadLocalRandom.current().nextLong(cap + 1),
+                TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime())));
+        try {
+            Thread.sleep(milliseconds);
+        } catch (InterruptedException e) {
+            LOGGER.warn("Thread.sleep interrupted", e);
+        }
+    }
+
+    /**
+     * @return another replica of the key to hedge a GET sent to the given one with, null if there is none
+     */
+    private InetSocketAddress otherReplicaForKey(String key, InetSocketAddress address) throws UnexpectedMessageException, IOException {
+        for (InetSocketAddress replica : readReplicasForKey(key)) {
+            if (!replica.equals(address)) {
+                return replica;
+            }
         }
+        return null;
     }
 }
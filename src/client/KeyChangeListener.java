@@ -0,0 +1,22 @@
+package client;
+
+/**
+ * Receives the changes of keys watched with {@link KVStore#watch} or {@link KVStore#watchRange}.
+ * <p>
+ * Changes of a key arrive in the order they were applied, changes of different keys may arrive
+ * concurrently on different threads. Listeners should return quickly, as the changes of a server are
+ * delivered one after the other.
+ */
+public interface KeyChangeListener {
+    /**
+     * @param value new value of the key, null if it was deleted
+     */
+    void changed(String key, String value);
+
+    /**
+     * Called when changes may have been missed, e.g. because a server failed or the keys moved to another
+     * server. Listeners that need every change should read the watched keys again.
+     */
+    default void missedChanges() {
+    }
+}
@@ -0,0 +1,50 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * Percentiles of the latest latencies of a kind of request.
+ * <p>
+ * The latencies are kept in a ring buffer and sorted again after a tenth of the window was replaced, so
+ * reading a percentile is cheap and lags at most that many requests behind.
+ */
+class LatencyTracker {
+    /**
+     * Latencies required before percentiles are reported, fewer do not give a meaningful tail.
+     */
+    static final int MIN_SAMPLES = 20;
+
+    private final long[] window;
+    private int count;
+    private int next;
+    private long[] sorted = new long[0];
+    private int recordedSinceSort;
+
+    LatencyTracker(int windowSize) {
+        this.window = new long[windowSize];
+    }
+
+    synchronized void record(long nanos) {
+        this.window[this.next] = nanos;
+        this.next = (this.next + 1) % this.window.length;
+        this.count = Math.min(this.count + 1, this.window.length);
+        this.recordedSinceSort++;
+    }
+
+    /**
+     * @param percentile between 0 and 1, e.g. 0.95
+     * @return the latency in nanoseconds, -1 while fewer than MIN_SAMPLES were recorded
+     */
+    synchronized long percentile(double percentile) {
+        if (this.count < MIN_SAMPLES) {
+            return -1;
+        }
+        if (this.sorted.length != this.count || this.recordedSinceSort > this.window.length / 10) {
+            this.sorted = Arrays.copyOf(this.window, this.count);
+            Arrays.sort(this.sorted);
+            this.recordedSinceSort = 0;
+        }
+        int index = (int) Math.ceil(percentile * this.sorted.length) - 1;
+        return this.sorted[Math.max(0, Math.min(index, this.sorted.length - 1))];
+    }
+}
@@ -0,0 +1,230 @@
+package client;
+
+import org.apache.log4j.Logger;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Values recently read by this client, evicted in least recently used order once the capacity is reached.
+ * <p>
+ * Every server the values come from pushes an INVALIDATE for each key written on it over a subscription
+ * connection, which drops the key here. Values are only cached while all servers of the ring are
+ * subscribed, and the whole cache is dropped whenever a subscription breaks, since invalidations may have
+ * been missed. Entries also expire after maxAgeMillis, which bounds the staleness of values that expire on
+ * the servers, as the server drops those without a write.
+ * <p>
+ * A GET that races with a write could otherwise cache the value the write replaced: the servers are
+ * subscribed to and the generation of the key is read before the GET is sent, and its value is only cached
+ * if no invalidation arrived since.
+ */
+class NearCache {
+    private static final int GENERATION_STRIPES = 256;
+    private static final int SUBSCRIBE_TIMEOUT_MILLIS = 1000;
+    private static final long SUBSCRIBE_RETRY_MILLIS = 1000;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final int capacity;
+    private final long maxAgeNanos;
+    private final LinkedHashMap<String, CachedValue> entries;
+    private final long[] generations = new long[GENERATION_STRIPES];
+    private final Map<InetSocketAddress, Subscription> subscriptions = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Long> retryAt = new ConcurrentHashMap<>();
+
+    private static final class CachedValue {
+        final byte[] value;
+        final long cachedAtNanos;
+
+        CachedValue(byte[] value, long cachedAtNanos) {
+            this.value = value;
+            this.cachedAtNanos = cachedAtNanos;
+        }
+    }
+
+    /**
+     * Receives the invalidations of one server.
+     */
+    private final class Subscription extends Thread {
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final SocketMessenger socketMessenger;
+
+        Subscription(InetSocketAddress address, int timeoutMillis) throws IOException {
+            super("near-cache-" + address);
+            this.address = address;
+            this.socket = new Socket();
+            try {
+                this.socket.connect(address, timeoutMillis);
+                this.socket.setSoTimeout(timeoutMillis);
+                this.socketMessenger = new SocketMessenger(this.socket);
+                this.socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.SUBSCRIBE));
+                KVMessage response = this.socketMessenger.receiveMessage();
+                if (response.getStatus() != IKVMessage.StatusType.SUBSCRIBE_SUCCESS) {
+                    throw new IOException("expected SUBSCRIBE_SUCCESS in response to SUBSCRIBE, got " + response.getStatus());
+                }
+                this.socket.setSoTimeout(0);
+            } catch (IOException e) {
+                this.socket.close();
+                throw e;
+            }
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    KVMessage message = this.socketMessenger.receiveMessage();
+                    if (message.getStatus() == IKVMessage.StatusType.INVALIDATE) {
+                        invalidate(message.getKey());
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                // subscriptions closed on purpose were removed already
+                if (NearCache.this.subscriptions.remove(this.address, this)) {
+                    LOGGER.warn("lost the invalidations of " + this.address + ", clearing the near cache", e);
+                }
+            } finally {
+                close();
+                clear();
+            }
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                LOGGER.error("I/O error when attempting to close socket: ", e);
+            }
+        }
+    }
+
+    /**
+     * @param capacity    most values kept
+     * @param maxAgeMillis time after which a value is read from the servers again, even if it was not
+     *                    invalidated
+     */
+    NearCache(int capacity, long maxAgeMillis) {
+        if (capacity <= 0 || maxAgeMillis <= 0) {
+            throw new IllegalArgumentException("capacity and maxAgeMillis must be positive");
+        }
+        this.capacity = capacity;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.entries = new LinkedHashMap<String, CachedValue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedValue> eldest) {
+                return size() > NearCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value of the key, null if it is not cached or too old
+     */
+    synchronized byte[] get(String key) {
+        CachedValue entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.cachedAtNanos > this.maxAgeNanos) {
+            this.entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * @return the generation of the key, to be passed to {@link #put} with the value read afterwards
+     */
+    synchronized long generation(String key) {
+        return this.generations[stripe(key)];
+    }
+
+    /**
+     * Caches the value unless the key was invalidated after its generation was taken.
+     */
+    synchronized void put(String key, byte[] value, long generation) {
+        if (this.generations[stripe(key)] == generation) {
+            this.entries.put(key, new CachedValue(value, System.nanoTime()));
+        }
+    }
+
+    synchronized void invalidate(String key) {
+        this.generations[stripe(key)]++;
+        this.entries.remove(key);
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            this.generations[i]++;
+        }
+        this.entries.clear();
+    }
+
+    synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Subscribes to the invalidations of the servers that are not subscribed yet. A server that could not
+     * be subscribed to is not tried again for SUBSCRIBE_RETRY_MILLIS.
+     *
+     * @param timeoutMillis time connecting to a server and its acknowledgement may take
+     * @return the servers subscribed to
+     */
+    Set<InetSocketAddress> subscribe(Collection<InetSocketAddress> servers, int timeoutMillis) {
+        Set<InetSocketAddress> subscribed = new HashSet<>();
+        for (InetSocketAddress server : servers) {
+            if (this.subscriptions.containsKey(server)) {
+                subscribed.add(server);
+                continue;
+            }
+            Long retryAt = this.retryAt.get(server);
+            if (retryAt != null && System.nanoTime() - retryAt < 0) {
+                continue;
+            }
+            try {
+                Subscription subscription = new Subscription(server, Math.min(timeoutMillis, SUBSCRIBE_TIMEOUT_MILLIS));
+                if (this.subscriptions.putIfAbsent(server, subscription) == null) {
+                    subscription.start();
+                } else {
+                    subscription.close();
+                }
+                this.retryAt.remove(server);
+                subscribed.add(server);
+            } catch (IOException e) {
+                LOGGER.warn("could not subscribe to the invalidations of " + server, e);
+                this.retryAt.put(server, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SUBSCRIBE_RETRY_MILLIS));
+            }
+        }
+        return subscribed;
+    }
+
+    /**
+     * Closes all subscriptions and drops the cached values.
+     */
+    void close() {
+        for (InetSocketAddress server : this.subscriptions.keySet()) {
+            Subscription subscription = this.subscriptions.remove(server);
+            if (subscription != null) {
+                subscription.close();
+            }
+        }
+        clear();
+    }
+
+    private static int stripe(String key) {
+        return Math.floorMod(key.hashCode(), GENERATION_STRIPES);
+    }
+}
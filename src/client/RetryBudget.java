@@ -0,0 +1,55 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits retries to a share of the requests, so servers that are already struggling are not buried under
+ * retries of the requests they failed.
+ * <p>
+ * Every request deposits a fraction of a retry and every retry withdraws a whole one. On top of that, a
+ * few retries per second are always allowed, so a client sending few requests can still retry them.
+ */
+class RetryBudget {
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double retryRatio;
+    private final int minRetriesPerSecond;
+    private final double maxBalance;
+    private double balance;
+    private long secondStartNanos;
+    private int reserveUsed;
+
+    /**
+     * @param retryRatio          retries allowed per request, e.g. 0.2 for one retry in five requests
+     * @param minRetriesPerSecond retries allowed every second regardless of the number of requests
+     * @param maxBalance          most retries that can be saved up while requests succeed
+     */
+    RetryBudget(double retryRatio, int minRetriesPerSecond, double maxBalance) {
+        this.retryRatio = retryRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxBalance = maxBalance;
+    }
+
+    synchronized void deposit() {
+        this.balance = Math.min(this.maxBalance, this.balance + this.retryRatio);
+    }
+
+    /**
+     * @return true if a retry may be sent, which is then taken from the budget
+     */
+    synchronized boolean tryWithdraw(long nowNanos) {
+        if (nowNanos - this.secondStartNanos >= SECOND_NANOS) {
+            this.secondStartNanos = nowNanos;
+            this.reserveUsed = 0;
+        }
+        if (this.reserveUsed < this.minRetriesPerSecond) {
+            this.reserveUsed++;
+            return true;
+        }
+        if (this.balance >= 1) {
+            this.balance -= 1;
+            return true;
+        }
+        return false;
+    }
+}
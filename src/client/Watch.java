@@ -0,0 +1,221 @@
+package client;
+
+import org.apache.log4j.Logger;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Changes of a key or hash range pushed by the servers, until the watch is closed.
+ * <p>
+ * The watch is registered on every server of the ring, and each server reports the writes of the keys it
+ * coordinates. A connection that breaks is opened again once per RECONNECT_INTERVAL_MILLIS against the
+ * servers of fresh metadata, and the listener is told that it may have missed changes.
+ */
+public class Watch implements Closeable {
+    private static final long RECONNECT_INTERVAL_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final KVMessage request;
+    private final KeyChangeListener listener;
+    private final Supplier<List<InetSocketAddress>> refreshServers;
+    private final Consumer<Watch> onClose;
+    private final Map<InetSocketAddress, Connection> connections = new HashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * Receives the changes of one server.
+     */
+    private final class Connection extends Thread {
+        private final InetSocketAddress address;
+        private final Socket socket;
+        private final SocketMessenger socketMessenger;
+
+        Connection(InetSocketAddress address) throws IOException {
+            super("watch-" + address);
+            this.address = address;
+            this.socket = new Socket();
+            try {
+                this.socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                this.socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                this.socketMessenger = new SocketMessenger(this.socket);
+                this.socketMessenger.sendMessage(Watch.this.request);
+                KVMessage response = this.socketMessenger.receiveMessage();
+                if (response.getStatus() != IKVMessage.StatusType.WATCH_SUCCESS) {
+                    throw new IOException("expected WATCH_SUCCESS in response to " + Watch.this.request.getStatus()
+                            + ", got " + response.getStatus());
+                }
+                this.socket.setSoTimeout(0);
+            } catch (IOException e) {
+                this.socket.close();
+                throw e;
+            }
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    KVMessage change = this.socketMessenger.receiveMessage();
+                    if (change.getStatus() == IKVMessage.StatusType.WATCH_PUT) {
+                        deliver(change.getKey(), change.getValue());
+                    } else if (change.getStatus() == IKVMessage.StatusType.WATCH_DELETE) {
+                        deliver(change.getKey(), null);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                close();
+                broken(this, e);
+            }
+        }
+
+        void close() {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                LOGGER.error("I/O error when attempting to close socket: ", e);
+            }
+        }
+    }
+
+    /**
+     * @param request        WATCH or WATCH_RANGE sent to every server
+     * @param refreshServers fetches fresh metadata and returns the servers of the ring
+     * @param onClose        called once the watch was closed
+     */
+    Watch(KVMessage request, KeyChangeListener listener, Supplier<List<InetSocketAddress>> refreshServers,
+          Consumer<Watch> onClose) {
+        this.request = request;
+        this.listener = listener;
+        this.refreshServers = refreshServers;
+        this.onClose = onClose;
+    }
+
+    /**
+     * Registers the watch on the servers it is not registered on yet and closes the connections to servers
+     * that are no longer given.
+     *
+     * @return true if the watch is registered on all servers
+     */
+    synchronized boolean watchServers(Collection<InetSocketAddress> servers) {
+        if (this.closed) {
+            return false;
+        }
+
+        Set<InetSocketAddress> wanted = new HashSet<>(servers);
+        for (Iterator<Map.Entry<InetSocketAddress, Connection>> it = this.connections.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<InetSocketAddress, Connection> connection = it.next();
+            if (!wanted.contains(connection.getKey())) {
+                it.remove();
+                connection.getValue().close();
+            }
+        }
+
+        boolean watched = !wanted.isEmpty();
+        for (InetSocketAddress server : wanted) {
+            if (this.connections.containsKey(server)) {
+                continue;
+            }
+            try {
+                Connection connection = new Connection(server);
+                this.connections.put(server, connection);
+                connection.start();
+            } catch (IOException e) {
+                LOGGER.warn("could not watch " + this.request.getKey() + " on " + server, e);
+                watched = false;
+            }
+        }
+        return watched;
+    }
+
+    /**
+     * Follows the servers of changed metadata, whose keys may have moved.
+     */
+    void ringChanged(Collection<InetSocketAddress> servers) {
+        if (this.closed) {
+            return;
+        }
+        missedChanges();
+        if (!watchServers(servers)) {
+            Thread repair = new Thread(this::repair, "watch-repair");
+            repair.setDaemon(true);
+            repair.start();
+        }
+    }
+
+    private void broken(Connection connection, Exception cause) {
+        synchronized (this) {
+            // connections closed on purpose were removed already
+            if (!this.connections.remove(connection.address, connection)) {
+                return;
+            }
+        }
+        LOGGER.warn("lost the watch of " + this.request.getKey() + " on " + connection.address, cause);
+        missedChanges();
+        repair();
+    }
+
+    private void repair() {
+        try {
+            while (!this.closed) {
+                Thread.sleep(RECONNECT_INTERVAL_MILLIS);
+                if (watchServers(this.refreshServers.get())) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliver(String key, String value) {
+        try {
+            this.listener.changed(key, value);
+        } catch (RuntimeException e) {
+            LOGGER.error("listener failed on the change of <" + key + ">", e);
+        }
+    }
+
+    private void missedChanges() {
+        try {
+            this.listener.missedChanges();
+        } catch (RuntimeException e) {
+            LOGGER.error("listener failed on missed changes", e);
+        }
+    }
+
+    /**
+     * @return true until the watch is closed
+     */
+    public boolean isOpen() {
+        return !this.closed;
+    }
+
+    /**
+     * Stops watching, no changes are delivered after this returns except those already being delivered.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            for (Connection connection : this.connections.values()) {
+                connection.close();
+            }
+            this.connections.clear();
+        }
+        this.onClose.accept(this);
+    }
+}
@@ -1,7 +1,9 @@
 package ecs;
 
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
@@ -31,10 +33,37 @@ public class ECSRing<E> {
         this.hashRing.put(hash, new ECSNode<E>(host, port));
     }
 
+    public void removeNode(String hash) {
+        this.hashRing.remove(hash);
+    }
+
     public void clearNodes() {
         this.hashRing.clear();
     }
 
+    /**
+     * Replaces all nodes with the ones described by the metadata.
+     *
+     * @param metadata semicolon separated triples kr-from, kr-to, ip:port
+     * @throws IllegalArgumentException if a triple is not properly formatted
+     */
+    public void loadMetadata(String metadata) throws IllegalArgumentException, UnknownHostException {
+        this.hashRing.clear();
+        for (String nodeData : metadata.split(";")) {
+            if (nodeData.isEmpty()) {
+                continue;
+            }
+
+            // nodeData should look like: <from>,<to>,<address:port>
+            String[] parts = nodeData.split(",");
+            String[] nodeAddress = parts.length == 3 ? parts[2].split(":") : new String[0];
+            if (nodeAddress.length != 2) {
+                throw new IllegalArgumentException("improperly formatted node data in metadata: " + nodeData);
+            }
+            addNode(parts[0], nodeAddress[0], Integer.parseInt(nodeAddress[1]));
+        }
+    }
+
     public NavigableMap<String, ECSNode<E>> getMap() {
         return Collections.unmodifiableNavigableMap(this.hashRing);
     }
@@ -51,4 +80,58 @@ public class ECSRing<E> {
         Map.Entry<String, ECSNode<E>> floorEntry = this.hashRing.floorEntry(hash);
         return floorEntry != null ? floorEntry.getValue() : this.hashRing.lastEntry().getValue();
     }
+
+    /**
+     * Describes the range of every node. Given a replication factor above one, each range is extended by
+     * the ranges of the replicationFactor - 1 predecessors of the node, whose keys it replicates.
+     *
+     * @return semicolon separated triples kr-from, kr-to, ip:port
+     */
+    public String toMetadata(int replicationFactor) {
+        StringBuilder metadata = new StringBuilder();
+        String[] keys = this.hashRing.keySet().toArray(new String[0]);
+        int replicas = Math.min(replicationFactor, keys.length);
+
+        for (int i = 0; i < keys.length; i++) {
+            String firstKey = keys[(i - (replicas - 1) + keys.length) % keys.length];
+            String nextKey = i + 1 < keys.length ? keys[i + 1] : keys[0]; // handle wrap around
+            metadata.append(firstKey + ",");
+            metadata.append(HashUtils.hashSubtractOne(nextKey) + ",");
+            metadata.append(this.hashRing.get(keys[i]).getNodeIpAndPort() + ";");
+        }
+
+        return metadata.toString();
+    }
+
+    /**
+     * @return the node responsible for the key followed by its successors on the ring, replicationFactor
+     * nodes in total or all nodes if the ring is smaller; empty if the ring is empty
+     */
+    public List<ECSNode<E>> getReplicasForKey(String key, int replicationFactor) {
+        if (this.hashRing.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String hash = HashUtils.md5(key);
+        String startHash = this.hashRing.floorKey(hash);
+        return getReplicas(startHash != null ? startHash : this.hashRing.lastKey(), replicationFactor);
+    }
+
+    /**
+     * @param startHash hash of a node on the ring
+     * @return the node followed by its successors, replicationFactor nodes in total or all nodes if the
+     * ring is smaller
+     */
+    public List<ECSNode<E>> getReplicas(String startHash, int replicationFactor) {
+        int count = Math.min(replicationFactor, this.hashRing.size());
+        List<ECSNode<E>> replicas = new ArrayList<>(count);
+        String hash = startHash;
+        for (int i = 0; i < count; i++) {
+            replicas.add(this.hashRing.get(hash));
+            hash = this.hashRing.higherKey(hash);
+            if (hash == null) {
+                hash = this.hashRing.firstKey(); // handle wrap around
+            }
+        }
+        return replicas;
+    }
 }
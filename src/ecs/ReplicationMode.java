@@ -0,0 +1,9 @@
+package ecs;
+
+/**
+ * How the servers storing a key keep their copies up to date.
+ */
+public enum ReplicationMode {
+    PRIMARY_BACKUP, /* the server responsible for a key forwards each write to all of its successors */
+    CHAIN,          /* writes travel from the server responsible for a key along its successors, the last one acknowledges */
+}
@@ -37,6 +37,45 @@ public class HashUtils {
         return null;
     }
 
+    /**
+     * @return the first 64 bits of the MD5 hash of the key as an unsigned number, which orders keys as
+     * their position on the ring does
+     */
+    public static long ringPosition(String key) {
+        return Long.parseUnsignedLong(md5(key).substring(0, 16), 16);
+    }
+
+    /**
+     * @return true if the value is an MD5 hash in lowercase hexadecimal (length-32 string)
+     */
+    public static boolean isHash(String value) {
+        if (value.length() != MD5_EXPECTED_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a hash lies within an inclusive range of the ring. A range whose start is greater
+     * than its end wraps around from MAX_MD5_HASH to MIN_MD5_HASH.
+     *
+     * @param hash MD5 hash in hexadecimal (length-32 string)
+     * @param from first hash of the range
+     * @param to   last hash of the range
+     */
+    public static boolean isInRange(String hash, String from, String to) {
+        if (from.compareTo(to) <= 0) {
+            return from.compareTo(hash) <= 0 && hash.compareTo(to) <= 0;
+        }
+        return from.compareTo(hash) <= 0 || hash.compareTo(to) <= 0;
+    }
+
     /**
      * Computes previous hash (hexadecimal value minus one) of a given MD5 hash.
      *
@@ -0,0 +1,137 @@
+package shared;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the metrics of a server, or of the whole ring, as sent in response to STATS.
+ * <p>
+ * A metric is named like "requests_total", or "requests_total:PUT" for one operation. Metrics starting
+ * with client_ are labelled with the host of a client instead, like "client_requests_total:10.0.0.7".
+ * Metrics ending in _total are counters, all others gauges. On the wire they are encoded as "name=value" pairs separated
+ * by semicolons, which fits into the key of a message.
+ */
+public class Metrics {
+    public static final String PROMETHEUS_PREFIX = "kv_";
+    private static final char LABEL_SEPARATOR = ':';
+
+    private final Map<String, Double> values = new LinkedHashMap<>();
+
+    public Metrics set(String name, double value) {
+        this.values.put(name, value);
+        return this;
+    }
+
+    public Metrics set(String name, String operation, double value) {
+        return set(name + LABEL_SEPARATOR + operation, value);
+    }
+
+    /**
+     * @return the value of the metric, NaN if there is none
+     */
+    public double get(String name) {
+        return this.values.getOrDefault(name, Double.NaN);
+    }
+
+    public double get(String name, String operation) {
+        return get(name + LABEL_SEPARATOR + operation);
+    }
+
+    public Map<String, Double> asMap() {
+        return this.values;
+    }
+
+    public String encode() {
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, Double> metric : this.values.entrySet()) {
+            if (encoded.length() > 0) {
+                encoded.append(';');
+            }
+            encoded.append(metric.getKey()).append('=').append(format(metric.getValue()));
+        }
+        return encoded.toString();
+    }
+
+    public static Metrics decode(String encoded) throws IllegalArgumentException {
+        Metrics metrics = new Metrics();
+        if (encoded.isEmpty()) {
+            return metrics;
+        }
+        for (String metric : encoded.split(";")) {
+            int separator = metric.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("metric should be name=value, got " + metric);
+            }
+            try {
+                metrics.set(metric.substring(0, separator), Double.parseDouble(metric.substring(separator + 1)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("value of metric " + metric + " should be a number", e);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format, operations as label "operation" and
+     * client hosts as label "client"
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<String, Double> metric : this.values.entrySet()) {
+            String key = metric.getKey();
+            int separator = key.indexOf(LABEL_SEPARATOR);
+            String name = PROMETHEUS_PREFIX + (separator == -1 ? key : key.substring(0, separator));
+            if (!name.equals(lastName)) {
+                text.append("# TYPE ").append(name).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+                lastName = name;
+            }
+            text.append(name);
+            if (separator != -1) {
+                String label = key.startsWith("client_") ? "client" : "operation";
+                text.append('{').append(label).append("=\"").append(key.substring(separator + 1)).append("\"}");
+            }
+            text.append(' ').append(format(metric.getValue())).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Combines the metrics of several servers: counters, rates and sizes are summed, latencies and uptimes
+     * are the highest of any server, and the hit ratio is computed from the summed hits and misses.
+     */
+    public static Metrics aggregate(Collection<Metrics> servers) {
+        Metrics total = new Metrics();
+        total.set("servers", servers.size());
+        for (Metrics server : servers) {
+            for (Map.Entry<String, Double> metric : server.values.entrySet()) {
+                String name = metric.getKey();
+                double value = metric.getValue();
+                Double current = total.values.get(name);
+                if (current == null) {
+                    total.values.put(name, value);
+                } else if (name.startsWith("latency_") || name.startsWith("uptime_")) {
+                    total.values.put(name, Math.max(current, value));
+                } else {
+                    total.values.put(name, current + value);
+                }
+            }
+        }
+        if (total.values.containsKey("get_hit_ratio")) {
+            total.set("get_hit_ratio", hitRatio(total.get("get_hits_total"), total.get("get_misses_total")));
+        }
+        return total;
+    }
+
+    public static double hitRatio(double hits, double misses) {
+        return hits + misses == 0 ? 0 : hits / (hits + misses);
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
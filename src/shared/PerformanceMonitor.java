@@ -4,7 +4,9 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.function.DoubleSupplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -15,6 +17,10 @@ public class PerformanceMonitor {
     }
 
     private final HashMap<Operation, ArrayList<Long>> operationTimes;
+    /**
+     * Values sampled when the statistics are dumped, e.g. sizes and ratios.
+     */
+    private final LinkedHashMap<String, DoubleSupplier> gauges = new LinkedHashMap<>();
 
     public PerformanceMonitor() {
         this.operationTimes = new HashMap<>();
@@ -27,6 +33,10 @@ public class PerformanceMonitor {
         operationTimes.get(op).add(duration);
     }
 
+    public synchronized void registerGauge(String name, DoubleSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
     public synchronized void dumpStatistics(File output) throws IOException {
         BufferedWriter writer = new BufferedWriter(new FileWriter(output));
         for (Operation op : Operation.values()) {
@@ -35,6 +45,9 @@ public class PerformanceMonitor {
             double average = (double) times.stream().reduce(Long::sum).orElse(0L) / times.size();
             writer.write(op.name() + "," + average + "\n");
         }
+        for (String name : gauges.keySet()) {
+            writer.write(name + "," + gauges.get(name).getAsDouble() + "\n");
+        }
         writer.close();
     }
 }
@@ -0,0 +1,15 @@
+package shared.jfr;
+
+import shared.HashUtils;
+
+final class KeyHash {
+    private KeyHash() {
+    }
+
+    /**
+     * @return the position of the key on the ring, 0 for requests without a key
+     */
+    static long of(String key) {
+        return key == null || key.isEmpty() ? 0 : HashUtils.ringPosition(key);
+    }
+}
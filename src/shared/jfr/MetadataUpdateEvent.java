@@ -0,0 +1,43 @@
+package shared.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Metadata replaced by a server on METADATA_UPDATE, or fetched by a client.
+ */
+@Name(MetadataUpdateEvent.NAME)
+@Label("Metadata Update")
+@Category("KV Store")
+@StackTrace(false)
+public class MetadataUpdateEvent extends Event {
+    public static final String NAME = "kv.MetadataUpdate";
+
+    @Label("Node")
+    @Description("Server or client that updated its metadata")
+    String node;
+
+    @Label("Servers")
+    int servers;
+
+    @Label("Changed")
+    @Description("Whether the ranges differ from the previous metadata")
+    boolean changed;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    public void finish(String node, int servers, boolean changed) {
+        end();
+        if (shouldCommit()) {
+            this.node = node;
+            this.servers = servers;
+            this.changed = changed;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package shared.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Unsigned;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+/**
+ * A request handled by a server, from decoding it until its response was written.
+ */
+@Name(RequestEvent.NAME)
+@Label("Request")
+@Category({"KV Store", "Server"})
+@StackTrace(false)
+public class RequestEvent extends Event {
+    public static final String NAME = "kv.Request";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Response")
+    String response;
+
+    @Label("Key Hash")
+    @Description("First 64 bits of the MD5 hash of the key")
+    @Unsigned
+    long keyHash;
+
+    @Label("Value Size")
+    @DataAmount
+    int valueSize;
+
+    @Label("Response Size")
+    @DataAmount
+    int responseSize;
+
+    @Label("Client")
+    String client;
+
+    /**
+     * Ends the event and commits it if it is recorded. The fields are only filled in then, so nothing is
+     * computed while no recording is running.
+     */
+    public void finish(String client, KVMessage request, StatusType response, int responseSize) {
+        end();
+        if (shouldCommit()) {
+            this.operation = request.getStatus().name();
+            this.response = response.name();
+            this.keyHash = KeyHash.of(request.getKey());
+            this.valueSize = request.getValueBytes() == null ? 0 : request.getValueBytes().length;
+            this.responseSize = responseSize;
+            this.client = client;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package shared.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Unsigned;
+
+/**
+ * A request retried by a client, lasting as long as it backed off before the retry.
+ */
+@Name(RetryEvent.NAME)
+@Label("Retry")
+@Category({"KV Store", "Client"})
+@StackTrace(false)
+public class RetryEvent extends Event {
+    public static final String NAME = "kv.Retry";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Key Hash")
+    @Description("First 64 bits of the MD5 hash of the key")
+    @Unsigned
+    long keyHash;
+
+    @Label("Attempt")
+    @Description("Number of the attempt that follows, 1 for the first retry")
+    int attempt;
+
+    @Label("Server")
+    @Description("Server the previous attempt was sent to")
+    String server;
+
+    @Label("Reason")
+    @Description("Status the server answered with, or the exception if it was not reached")
+    String reason;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    public void finish(String operation, String key, int attempt, Object server, String reason) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.keyHash = KeyHash.of(key);
+            this.attempt = attempt;
+            this.server = server == null ? null : server.toString();
+            this.reason = reason;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package shared.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Unsigned;
+
+/**
+ * A read or write of the storage of a server.
+ */
+@Name(StorageEvent.NAME)
+@Label("Storage Operation")
+@Category({"KV Store", "Server"})
+@StackTrace(false)
+public class StorageEvent extends Event {
+    public static final String NAME = "kv.Storage";
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Key Hash")
+    @Description("First 64 bits of the MD5 hash of the key")
+    @Unsigned
+    long keyHash;
+
+    @Label("Value Size")
+    @Description("Size of the value read or written, 0 for a missing key or a delete")
+    @DataAmount
+    int valueSize;
+
+    @Label("Found")
+    @Description("Whether the key had a value before, or for a versioned write whether it was newer and stored")
+    boolean found;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    public void finish(String operation, String key, byte[] value, boolean found) {
+        end();
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.keyHash = KeyHash.of(key);
+            this.valueSize = value == null ? 0 : value.length;
+            this.found = found;
+            commit();
+        }
+    }
+}
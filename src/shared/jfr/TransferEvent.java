@@ -0,0 +1,58 @@
+package shared.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A batch of entries moved between servers, from sending the first until the last was answered.
+ */
+@Name(TransferEvent.NAME)
+@Label("Transfer Chunk")
+@Category({"KV Store", "Server"})
+@StackTrace(false)
+public class TransferEvent extends Event {
+    public static final String NAME = "kv.TransferChunk";
+    public static final String ANTI_ENTROPY = "anti_entropy";
+    public static final String HINTED_HANDOFF = "hinted_handoff";
+    public static final String RANGE_HANDOFF = "range_handoff";
+
+    @Label("Kind")
+    @Description("What moved the entries, anti_entropy, hinted_handoff or range_handoff")
+    String kind;
+
+    @Label("Target")
+    @Description("Server the entries were exchanged with, absent if they went to several")
+    String target;
+
+    @Label("Entries")
+    int entries;
+
+    @Label("Acknowledged")
+    @Description("Entries that were applied by the receiving server")
+    int acknowledged;
+
+    @Label("Bytes")
+    @Description("Size of the values sent")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Ends the event and commits it if it is recorded.
+     */
+    public void finish(String kind, String target, int entries, int acknowledged, long bytes) {
+        end();
+        if (shouldCommit()) {
+            this.kind = kind;
+            this.target = target;
+            this.entries = entries;
+            this.acknowledged = acknowledged;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
@@ -10,6 +10,7 @@ public interface IKVMessage {
         GET_ERROR,              /* requested tuple (i.e. value) not found */
         GET_SUCCESS,            /* requested tuple (i.e. value) found */
         PUT,                    /* Put - request */
+        PUT_TTL,                /* Put - request with a time to live in milliseconds, after which the value expires */
         PUT_SUCCESS,            /* Put - request successful, tuple inserted */
         PUT_UPDATE,             /* Put - request successful, i.e. value updated */
         PUT_ERROR,              /* Put - request not successful */
@@ -19,8 +20,34 @@ public interface IKVMessage {
         SERVER_STOPPED,         /* Server is stopped, no requests are processed */
         SERVER_WRITE_LOCK,      /* Server is locked for write, only get possible */
         SERVER_NOT_RESPONSIBLE, /* Request not successful, server not responsible for key */
+        SERVER_BUSY,            /* Request not processed, the server is overloaded; retry later or on another replica */
         KEYRANGE,               /* Keyrange - request */
         KEYRANGE_SUCCESS,       /* Keyrange - request successful, list of ranges and the corresponding servers are returned as a list of semicolon separated triples */
+        KEYRANGE_READ,          /* Keyrange read - request */
+        KEYRANGE_READ_SUCCESS,  /* Keyrange read - request successful, same as KEYRANGE_SUCCESS but the ranges include the keys each server replicates */
+        PUT_VERSIONED,          /* Put - request of a quorum write to a single replica, the parameter is the version; applied unless the replica holds a newer one, a missing value deletes */
+        GET_VERSIONED,          /* Get - request of a quorum read from a single replica */
+        GET_VERSIONED_SUCCESS,  /* Get versioned - request successful, the parameter is the version; a missing value means the key was deleted */
+        PUT_HINTED,             /* Put - request sent to the next server when the coordinator is unreachable, kept for the coordinator; the parameter is the time to live in milliseconds, 0 if the value never expires */
+        SUBSCRIBE,              /* Subscribe - request, the server sends an INVALIDATE on this connection for every key written on it from now on */
+        SUBSCRIBE_SUCCESS,      /* Subscribe - request successful, sent before the first INVALIDATE */
+        INVALIDATE,             /* Invalidate - the key was written on the server, copies cached by the client are stale */
+        WATCH,                  /* Watch - request, the server sends a WATCH_PUT or WATCH_DELETE on this connection for every write of the key it coordinates from now on */
+        WATCH_RANGE,            /* Watch - request, same as WATCH for all keys whose hash is in the range, the key is "from,to" */
+        WATCH_SUCCESS,          /* Watch - request successful, sent before the first change of the watched keys */
+        WATCH_PUT,              /* Watch - a watched key was set to the value */
+        WATCH_DELETE,           /* Watch - a watched key was deleted */
+        CAS,                    /* Compare-and-set - request, the parameter is 0 if the key must be absent, otherwise the length of the expected value plus one; the value is the expected value followed by the new one */
+        CAS_VERSION,            /* Compare-and-set - request, the value is set if the key holds the version in the parameter, 0 for a missing key or a value without version */
+        CAS_SUCCESS,            /* Compare-and-set - request successful, the parameter is the version of the new value */
+        CAS_FAILED,             /* Compare-and-set - request not successful, the key holds another value; the parameter is its version and the value the current one, missing if the key is absent */
+        INCREMENT,              /* Increment - request, adds the value, a signed decimal number, to the number stored under the key (0 if absent) */
+        INCREMENT_SUCCESS,      /* Increment - request successful, the value is the new number; PUT_ERROR if the stored value is not a number */
+        APPEND,                 /* Append - request, appends the value to the one stored under the key and responds like PUT */
+        LATENCY,                /* Latency - request for the latencies of the requests the server handled so far */
+        LATENCY_SUCCESS,        /* Latency - request successful, the key holds semicolon separated lines of request type, stage, count, mean, p50, p99, p99.9 and max in microseconds */
+        STATS,                  /* Stats - request for the live metrics of the server */
+        STATS_SUCCESS,          /* Stats - request successful, the key holds semicolon separated name=value pairs, see shared.Metrics */
 
         /**
          * KVServer <-> ECS Messages
@@ -32,7 +59,24 @@ public interface IKVMessage {
         TRANSFER,               /* Transfer - request, ECS requests KVServer to begin transfer of data */
         TRANSFER_SUCCESS,       /* Transfer - request successful, KVServer has completed transferring data */
         TRANSFER_END,           /* Transfer - KVServer can safely delete data */
-        METADATA_UPDATE,        /* Metadata - KVServer must update metadata */
+        METADATA_UPDATE,        /* Metadata - KVServer must update metadata, the parameter is the replication factor and the value the replication mode */
+        HEARTBEAT,              /* Heartbeat - KVServer is alive, sent periodically without a reply */
+        SPLIT_POINT,            /* Split point - request sent by the ECS to the client port of a KVServer, for the hash that splits the range the server coordinates into halves with about the same load */
+        SPLIT_POINT_SUCCESS,    /* Split point - request successful, the key is the hash; SERVER_NOT_RESPONSIBLE if the server coordinates no range that can be split */
+        HOT_KEYS,               /* Hot keys - KVServer reports the keys it got the most GETs for in the last second, the key is a space separated list of keys each followed by its GETs per second */
+        HOT_KEYS_UPDATE,        /* Hot keys - KVServer must replicate the hot keys to extra servers, the key is the number of extra servers followed by the space separated hot keys */
+
+        /**
+         * KVServer <-> KVServer Messages
+         **/
+        REPLICATE,              /* Replicate - request, a replica applies a PUT forwarded by the coordinator of the key, the parameter is the expiry time */
+        SYNC_TREE,              /* Anti-entropy - request, the key is a range "from,to" and the value a comma separated list of Merkle tree nodes */
+        SYNC_TREE_SUCCESS,      /* Anti-entropy - request successful, the value holds the hashes of the requested nodes in the same order */
+        SYNC_LEAF,              /* Anti-entropy - request, the key is a range and the value a comma separated list of Merkle tree leaves */
+        SYNC_LEAF_SUCCESS,      /* Anti-entropy - request successful, the value holds a space separated key, version and digest for every key of the leaves */
+        SYNC_PUT,               /* Anti-entropy - request, a replica applies a write repairing its copy of the key without forwarding it unless its copy changed since it listed the key; the parameter is the expiry time, the value the digest the replica listed in hex, followed by a space and the value unless the key is deleted */
+        HANDOFF,                /* Handoff - request, the coordinator of the key stores and replicates a write another server made unless its copy was written at the same time or later; the parameter is the expiry time, the value the write time in milliseconds followed by a space and the value unless the key is deleted */
+        HANDOFF_SKIPPED,        /* Handoff - request not applied, the coordinator holds a copy of the key written at the same time or later */
     }
 
     /**
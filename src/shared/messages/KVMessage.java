@@ -1,6 +1,7 @@
 package shared.messages;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import static shared.messages.IKVMessage.StatusType.*;
 
@@ -8,16 +9,81 @@ public class KVMessage implements IKVMessage {
     public static final String SERIALIZATION_FOOTER = "\r\n";
     public static final int MAX_KEY_BYTE_LENGTH = 20;
     public static final int MAX_VAL_BYTE_LENGTH = 122_880; // 120 kBytes
+    public static final long NO_PARAMETER = -1;
+    /**
+     * Longest time to live of PUT_TTL and PUT_HINTED, ten years; far enough off that the expiry time stays
+     * well within a long.
+     */
+    public static final long MAX_TTL_MILLIS = 10L * 365 * 24 * 60 * 60 * 1000;
+    /**
+     * Longest prefix of the value of SYNC_PUT, a digest in hex followed by a space.
+     */
+    public static final int SYNC_PUT_DIGEST_BYTE_LENGTH = 2 * Long.BYTES + 1;
+    /**
+     * Longest prefix of the value of HANDOFF, a write time in decimal followed by a space.
+     */
+    public static final int HANDOFF_WRITTEN_AT_BYTE_LENGTH = String.valueOf(Long.MAX_VALUE).length() + 1;
+    /**
+     * Longest encoded request a server reads: status, key, parameter, value and footer. The value of CAS holds
+     * the expected and the new value, and anti-entropy requests carry a hash range as key.
+     */
+    public static final int MAX_REQUEST_BYTE_LENGTH = 2 * MAX_VAL_BYTE_LENGTH + 256;
+
+    private static final byte SEPARATOR = ' ';
+    private static final byte[] FOOTER_BYTES = SERIALIZATION_FOOTER.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL_VALUE_BYTES = "null".getBytes(StandardCharsets.UTF_8);
 
     private final String key;
-    private final String value;
+    /**
+     * The value is kept UTF-8 encoded, as it is sent over the wire and held in storage.
+     */
+    private final byte[] value;
     private final StatusType statusType;
+    /**
+     * Numeric argument of requests that take one, sent between the key and the value
+     * (e.g. the time to live of PUT_TTL). NO_PARAMETER for all other messages.
+     */
+    private final long parameter;
 
-    public KVMessage(String key, String value, StatusType statusType) {
+    public KVMessage(String key, long parameter, byte[] value, StatusType statusType) {
         this.key = key;
+        this.parameter = parameter;
         this.value = value;
         this.statusType = statusType;
 
+        if (hasParameter(statusType) != (parameter != NO_PARAMETER)) {
+            throw new IllegalArgumentException(statusType.name() + (hasParameter(statusType) ? " requires" : " cannot contain") + " a parameter");
+        }
+        if (statusType == PUT_TTL && (parameter <= 0 || value == null)) {
+            throw new IllegalArgumentException("PUT_TTL requires a positive time to live and a value");
+        }
+        if (statusType == PUT_HINTED && parameter < 0) {
+            throw new IllegalArgumentException("PUT_HINTED requires a time to live of at least 0");
+        }
+        if ((statusType == PUT_TTL || statusType == PUT_HINTED) && parameter > MAX_TTL_MILLIS) {
+            throw new IllegalArgumentException(statusType.name() + " time to live cannot be longer than " + MAX_TTL_MILLIS + " ms");
+        }
+        if (statusType == PUT_VERSIONED && parameter <= 0) {
+            throw new IllegalArgumentException("PUT_VERSIONED requires a positive version");
+        }
+        if ((statusType == CAS || statusType == CAS_VERSION) && (parameter < 0 || value == null)) {
+            throw new IllegalArgumentException(statusType.name() + " requires a parameter of at least 0 and a value");
+        }
+        if (statusType == CAS) {
+            // the value holds both the expected and the new value
+            if (parameter > value.length + 1) {
+                throw new IllegalArgumentException("CAS expected value is longer than the value");
+            }
+            int expectedLength = parameter == 0 ? 0 : (int) parameter - 1;
+            if (expectedLength > MAX_VAL_BYTE_LENGTH || value.length - expectedLength > MAX_VAL_BYTE_LENGTH) {
+                throw new IllegalArgumentException("value cannot be larger than " + MAX_VAL_BYTE_LENGTH + " bytes");
+            }
+            if (key != null && key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTE_LENGTH) {
+                throw new IllegalArgumentException("key cannot be larger than " + MAX_KEY_BYTE_LENGTH + " bytes");
+            }
+            return;
+        }
+
         // In a FAILED message, the key is an error description which does not have a maximum length
         if (statusType == FAILED) {
             if (value != null) {
@@ -25,21 +91,58 @@ public class KVMessage implements IKVMessage {
             }
             return;
         }
+        // Metadata, addresses, hashes, latency reports, metrics and lists of keys are sent in the key as well
+        if (statusType == KEYRANGE_SUCCESS || statusType == KEYRANGE_READ_SUCCESS || statusType == METADATA_UPDATE
+                || statusType == CONNECT || statusType == LATENCY_SUCCESS || statusType == STATS_SUCCESS
+                || statusType == SPLIT_POINT_SUCCESS || statusType == HOT_KEYS || statusType == HOT_KEYS_UPDATE) {
+            return;
+        }
+        // Anti-entropy messages carry a range in the key and may list more than a value's worth of hashes
+        if (statusType == SYNC_TREE || statusType == SYNC_TREE_SUCCESS || statusType == SYNC_LEAF || statusType == SYNC_LEAF_SUCCESS) {
+            return;
+        }
+        // a repair carries the digest the replica listed for the key ahead of the value, a handoff the write time
+        if (statusType == SYNC_PUT || statusType == HANDOFF) {
+            int prefixLength = statusType == SYNC_PUT ? SYNC_PUT_DIGEST_BYTE_LENGTH : HANDOFF_WRITTEN_AT_BYTE_LENGTH;
+            if (value == null || value.length > MAX_VAL_BYTE_LENGTH + prefixLength) {
+                throw new IllegalArgumentException(statusType.name() + " requires a " + (statusType == SYNC_PUT ? "digest" : "write time")
+                        + " and a value of at most " + MAX_VAL_BYTE_LENGTH + " bytes");
+            }
+            if (key != null && key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTE_LENGTH) {
+                throw new IllegalArgumentException("key cannot be larger than " + MAX_KEY_BYTE_LENGTH + " bytes");
+            }
+            return;
+        }
+        // a watched hash range is sent in the key as "from,to"
+        if (statusType == WATCH_RANGE) {
+            if (value != null) {
+                throw new IllegalArgumentException("WATCH_RANGE messages cannot contain a value");
+            }
+            return;
+        }
 
         if (this.key != null && this.key.getBytes(StandardCharsets.UTF_8).length > MAX_KEY_BYTE_LENGTH) {
             throw new IllegalArgumentException("key cannot be larger than " + MAX_KEY_BYTE_LENGTH + " bytes");
         }
-        if (this.value != null && this.value.getBytes(StandardCharsets.UTF_8).length > MAX_VAL_BYTE_LENGTH) {
+        if (this.value != null && this.value.length > MAX_VAL_BYTE_LENGTH) {
             throw new IllegalArgumentException("value cannot be larger than " + MAX_VAL_BYTE_LENGTH + " bytes");
         }
     }
 
+    public KVMessage(String key, byte[] value, StatusType statusType) {
+        this(key, NO_PARAMETER, value, statusType);
+    }
+
+    public KVMessage(String key, String value, StatusType statusType) {
+        this(key, value == null ? null : value.getBytes(StandardCharsets.UTF_8), statusType);
+    }
+
     public KVMessage(String key, StatusType statusType) {
-        this(key, null, statusType);
+        this(key, (byte[]) null, statusType);
     }
 
     public KVMessage(StatusType statusType) {
-        this(null, null, statusType);
+        this(null, (byte[]) null, statusType);
     }
 
     @Override
@@ -49,6 +152,13 @@ public class KVMessage implements IKVMessage {
 
     @Override
     public String getValue() {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the UTF-8 encoded value, null if no value is associated.
+     */
+    public byte[] getValueBytes() {
         return value;
     }
 
@@ -57,32 +167,78 @@ public class KVMessage implements IKVMessage {
         return statusType;
     }
 
+    /**
+     * @return the numeric argument of the request, NO_PARAMETER if it does not take one
+     */
+    public long getParameter() {
+        return parameter;
+    }
+
+    private static boolean hasParameter(StatusType statusType) {
+        return statusType == PUT_TTL || statusType == METADATA_UPDATE || statusType == REPLICATE
+                || statusType == PUT_VERSIONED || statusType == GET_VERSIONED_SUCCESS || statusType == SYNC_PUT
+                || statusType == PUT_HINTED || statusType == CAS || statusType == CAS_VERSION || statusType == CAS_SUCCESS
+                || statusType == CAS_FAILED || statusType == HANDOFF;
+    }
+
     public static byte[] writeToBytes(KVMessage message) {
-        StringBuilder builder = new StringBuilder();
-        builder.append(message.statusType.name().toLowerCase());
-        if (message.key != null) {
-            builder.append(" ");
-            builder.append(message.key);
+        byte[] status = message.statusType.name().toLowerCase().getBytes(StandardCharsets.UTF_8);
+        byte[] key = message.key == null ? null : message.key.getBytes(StandardCharsets.UTF_8);
+        byte[] parameter = message.parameter == NO_PARAMETER ? null : Long.toString(message.parameter).getBytes(StandardCharsets.UTF_8);
+
+        int length = status.length + FOOTER_BYTES.length;
+        if (key != null) {
+            length += 1 + key.length;
+        }
+        if (parameter != null) {
+            length += 1 + parameter.length;
+        }
+        if (message.value != null) {
+            length += 1 + message.value.length;
+        }
+
+        byte[] bytes = new byte[length];
+        int position = 0;
+        System.arraycopy(status, 0, bytes, position, status.length);
+        position += status.length;
+        if (key != null) {
+            bytes[position++] = SEPARATOR;
+            System.arraycopy(key, 0, bytes, position, key.length);
+            position += key.length;
+        }
+        if (parameter != null) {
+            bytes[position++] = SEPARATOR;
+            System.arraycopy(parameter, 0, bytes, position, parameter.length);
+            position += parameter.length;
         }
         if (message.value != null) {
-            builder.append(" ");
-            builder.append(message.value);
+            bytes[position++] = SEPARATOR;
+            System.arraycopy(message.value, 0, bytes, position, message.value.length);
+            position += message.value.length;
         }
-        builder.append(SERIALIZATION_FOOTER);
-        return builder.toString().getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(FOOTER_BYTES, 0, bytes, position, FOOTER_BYTES.length);
+        return bytes;
     }
 
     public static KVMessage readFromBytes(byte[] bytes) throws IllegalArgumentException {
-        String payload = new String(bytes, StandardCharsets.UTF_8);
+        return readFromBytes(bytes, bytes.length);
+    }
 
-        if (!payload.endsWith(SERIALIZATION_FOOTER)) {
+    /**
+     * Parses a message from the first length bytes of the given buffer. The message is parsed without
+     * decoding the value, which is copied out as UTF-8 bytes.
+     */
+    public static KVMessage readFromBytes(byte[] bytes, int length) throws IllegalArgumentException {
+        if (!endsWithFooter(bytes, length)) {
             throw new IllegalArgumentException("the string should end with \\r\\n");
         }
 
-        int payloadAdjustedLength = payload.length() - 2; // -2 adjustment for \r\n
-        int statusIdx = payload.contains(" ") ? payload.indexOf(" ") : payloadAdjustedLength;
+        // Splitting on the ASCII space is safe on UTF-8 bytes since it never occurs inside a multibyte sequence
+        int payloadAdjustedLength = length - FOOTER_BYTES.length;
+        int separatorIdx = indexOf(bytes, SEPARATOR, 0, payloadAdjustedLength);
+        int statusIdx = separatorIdx != -1 ? separatorIdx : payloadAdjustedLength;
 
-        StatusType statusType = StatusType.valueOf(payload.substring(0, statusIdx).toUpperCase());
+        StatusType statusType = StatusType.valueOf(decode(bytes, 0, statusIdx).toUpperCase());
         switch (statusType) {
             case PUT:
             case PUT_SUCCESS:
@@ -91,51 +247,137 @@ public class KVMessage implements IKVMessage {
             case GET_SUCCESS:
             case CONNECT:
             case TRANSFER:
-            case TRANSFER_SUCCESS: {
+            case TRANSFER_SUCCESS:
+            case SYNC_TREE:
+            case SYNC_TREE_SUCCESS:
+            case SYNC_LEAF:
+            case SYNC_LEAF_SUCCESS:
+            case WATCH_PUT:
+            case INCREMENT:
+            case INCREMENT_SUCCESS:
+            case APPEND: {
                 boolean valueCanContainNull = statusType == PUT || statusType == PUT_ERROR;
-                int keyIdx = payload.indexOf(" ", statusIdx + 1);
+                if (statusIdx == payloadAdjustedLength) {
+                    throw new IllegalArgumentException(statusType.name() + " should have space-delimited status type and key");
+                }
+
+                int keyIdx = indexOf(bytes, SEPARATOR, statusIdx + 1, payloadAdjustedLength);
                 if (keyIdx == -1) {
                     // If there is no " " following the status, then the value is null
                     if (!valueCanContainNull) {
                         throw new IllegalArgumentException(statusType.name() + " should have space-delimited key and value");
                     }
 
-                    String key = payload.substring(statusIdx + 1, payloadAdjustedLength);
+                    String key = decode(bytes, statusIdx + 1, payloadAdjustedLength);
                     return new KVMessage(key, statusType);
                 }
 
-                String key = payload.substring(statusIdx + 1, keyIdx);
-                String value = payload.substring(keyIdx + 1, payloadAdjustedLength);
-                if (valueCanContainNull && value.equals("null")) {
+                String key = decode(bytes, statusIdx + 1, keyIdx);
+                byte[] value = Arrays.copyOfRange(bytes, keyIdx + 1, payloadAdjustedLength);
+                if (valueCanContainNull && Arrays.equals(value, NULL_VALUE_BYTES)) {
                     value = null;
                 }
                 return new KVMessage(key, value, statusType);
             }
+            case PUT_TTL:
+            case METADATA_UPDATE:
+            case REPLICATE:
+            case PUT_VERSIONED:
+            case GET_VERSIONED_SUCCESS:
+            case SYNC_PUT:
+            case PUT_HINTED:
+            case CAS:
+            case CAS_VERSION:
+            case CAS_SUCCESS:
+            case CAS_FAILED:
+            case HANDOFF: {
+                // status key parameter [value]
+                int keyIdx = statusIdx == payloadAdjustedLength ? -1 : indexOf(bytes, SEPARATOR, statusIdx + 1, payloadAdjustedLength);
+                if (keyIdx == -1) {
+                    throw new IllegalArgumentException(statusType.name() + " should have space-delimited key and parameter");
+                }
+                int parameterIdx = indexOf(bytes, SEPARATOR, keyIdx + 1, payloadAdjustedLength);
+
+                String key = decode(bytes, statusIdx + 1, keyIdx);
+                long parameter;
+                try {
+                    parameter = Long.parseLong(decode(bytes, keyIdx + 1, parameterIdx == -1 ? payloadAdjustedLength : parameterIdx));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(statusType.name() + " parameter should be a number", e);
+                }
+                byte[] value = parameterIdx == -1 ? null : Arrays.copyOfRange(bytes, parameterIdx + 1, payloadAdjustedLength);
+                return new KVMessage(key, parameter, value, statusType);
+            }
             case GET:
+            case GET_VERSIONED:
             case GET_ERROR:
             case DELETE_ERROR:
             case DELETE_SUCCESS:
             case KEYRANGE_SUCCESS:
+            case KEYRANGE_READ_SUCCESS:
             case FAILED:
             case TRANSFER_END:
-            case METADATA_UPDATE: {
+            case INVALIDATE:
+            case WATCH:
+            case WATCH_RANGE:
+            case WATCH_DELETE:
+            case LATENCY_SUCCESS:
+            case STATS_SUCCESS:
+            case SPLIT_POINT_SUCCESS:
+            case HOT_KEYS:
+            case HOT_KEYS_UPDATE:
+            case HANDOFF_SKIPPED: {
                 if (statusIdx == payloadAdjustedLength) {
                     throw new IllegalArgumentException(statusType.name() + " should have space-delimited status type and key");
                 }
-                String key = payload.substring(statusIdx + 1, payloadAdjustedLength);
+                String key = decode(bytes, statusIdx + 1, payloadAdjustedLength);
                 return new KVMessage(key, statusType);
             }
             case SERVER_STOPPED:
             case SERVER_WRITE_LOCK:
             case SERVER_NOT_RESPONSIBLE:
+            case SERVER_BUSY:
             case KEYRANGE:
+            case KEYRANGE_READ:
             case CONNECT_SUCCESS:
             case DISCONNECT:
             case DISCONNECT_SUCCESS:
+            case HEARTBEAT:
+            case SUBSCRIBE:
+            case SUBSCRIBE_SUCCESS:
+            case WATCH_SUCCESS:
+            case LATENCY:
+            case STATS:
+            case SPLIT_POINT:
                 return new KVMessage(statusType);
             default: {
                 throw new IllegalArgumentException("unsupported StatusType " + statusType.name());
             }
         }
     }
+
+    private static boolean endsWithFooter(byte[] bytes, int length) {
+        if (length < FOOTER_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < FOOTER_BYTES.length; i++) {
+            if (bytes[length - FOOTER_BYTES.length + i] != FOOTER_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, byte target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String decode(byte[] bytes, int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
 }
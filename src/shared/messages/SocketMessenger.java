@@ -2,47 +2,110 @@ package shared.messages;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
-
-import static shared.messages.KVMessage.SERIALIZATION_FOOTER;
+import java.util.Arrays;
 
 public class SocketMessenger {
-    private final Object lock = new Object();
-    private final Scanner input;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * Sending and receiving are locked separately, so one thread can push messages while another one is
+     * blocked waiting for the next message.
+     */
+    private final Object sendLock = new Object();
+    private final Object receiveLock = new Object();
+    private final InputStream input;
     private final DataOutputStream output;
+    private final int maxMessageLength;
+
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readPosition;
+    private int readLimit;
+    /**
+     * Holds the bytes of the message currently being received, grows up to the largest message seen but
+     * never beyond maxMessageLength.
+     */
+    private byte[] messageBuffer = new byte[READ_BUFFER_SIZE];
+    /**
+     * System.nanoTime() when the first byte of the message last received was read.
+     */
+    private long messageStartNanos;
 
     public SocketMessenger(Socket socket) throws IOException {
-        this.input = new Scanner(socket.getInputStream());
-        this.input.useDelimiter(SERIALIZATION_FOOTER);
+        this(socket, Integer.MAX_VALUE);
+    }
 
+    /**
+     * @param maxMessageLength length of the longest message accepted, footer included; receiving a longer one
+     *                         fails, so a peer cannot make the buffer grow without bound
+     */
+    public SocketMessenger(Socket socket, int maxMessageLength) throws IOException {
+        this.input = socket.getInputStream();
         this.output = new DataOutputStream(socket.getOutputStream());
+        this.maxMessageLength = maxMessageLength;
     }
 
     public void sendMessage(KVMessage message) throws IOException {
-        synchronized (lock) {
-            byte[] byteMessage = KVMessage.writeToBytes(message);
+        sendBytes(KVMessage.writeToBytes(message));
+    }
+
+    /**
+     * Sends a message already encoded with {@link KVMessage#writeToBytes}.
+     */
+    public void sendBytes(byte[] byteMessage) throws IOException {
+        synchronized (sendLock) {
             output.write(byteMessage);
             output.flush();
         }
     }
 
+    /**
+     * @throws IOException if the connection closed or the message is longer than the maximum length, after
+     *                     which no further message can be received
+     */
     public KVMessage receiveMessage() throws IOException {
-        synchronized (lock) {
-            try {
-                // The Scanner will strip the message delimiter \r\n, thus we need to
-                // re-append it to the message since we want KVMessage's readFromBytes
-                // and writeToBytes to use a consistent serialization format.
-                return KVMessage.readFromBytes((input.nextLine() + SERIALIZATION_FOOTER).getBytes());
-            } catch (NoSuchElementException e) {
-                // This is thrown when the scanner has reached EOF which will only happen if the Socket has closed
-                if (input.ioException() != null) {
-                    throw input.ioException();
+        synchronized (receiveLock) {
+            // Messages are read as raw bytes up to and including the \r\n footer so that
+            // the value reaches KVMessage still UTF-8 encoded.
+            int length = 0;
+            while (true) {
+                if (readPosition == readLimit) {
+                    readLimit = input.read(readBuffer);
+                    readPosition = 0;
+                    if (readLimit == -1) {
+                        // EOF will only happen if the Socket has closed
+                        readLimit = 0;
+                        throw new IOException("no message was received");
+                    }
+                }
+
+                if (length == 0) {
+                    messageStartNanos = System.nanoTime();
+                }
+                byte b = readBuffer[readPosition++];
+                if (length == maxMessageLength) {
+                    throw new IOException("message is longer than " + maxMessageLength + " bytes");
                 }
+                if (length == messageBuffer.length) {
+                    messageBuffer = Arrays.copyOf(messageBuffer, (int) Math.min(maxMessageLength, messageBuffer.length * 2L));
+                }
+                messageBuffer[length++] = b;
 
-				throw new IOException("no message was received");
+                if (b == '\n' && length >= 2 && messageBuffer[length - 2] == '\r') {
+                    return KVMessage.readFromBytes(messageBuffer, length);
+                }
             }
         }
     }
+
+    /**
+     * @return System.nanoTime() when the first byte of the message last received was read, which excludes
+     * the time spent waiting for the message
+     */
+    public long getMessageStartNanos() {
+        synchronized (receiveLock) {
+            return messageStartNanos;
+        }
+    }
 }
@@ -0,0 +1,136 @@
+package storage;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Log the changes to the storage are appended to between two snapshots. Each record holds the entry a key
+ * was left with, so replaying the records in order over the snapshot they follow restores the storage.
+ * Layout:
+ * <pre>
+ * repeated: int length, int crc32, byte[length] entry
+ * </pre>
+ * Entries are encoded like those of a {@link BlockFile}; a removed key is written as a tombstone without a
+ * version. A record cut short by a crash, or one whose checksum does not match, ends the log.
+ * <p>
+ * Records are encoded into a buffer by {@link #append} and written out by {@link #write()}; neither is
+ * thread-safe. {@link #sync()} forces what was written to the disk and may run alongside both.
+ */
+class AppendLog implements Closeable {
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final int HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final int MAX_ENTRY_LENGTH = BlockFile.entryLength(CompactKeyIndex.MAX_KEY_LENGTH, 0, 0, ValueArena.SLAB_SIZE);
+
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+    private byte[] buffer = new byte[64 * 1024];
+    private int bufferLength;
+    private long size;
+
+    AppendLog(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.size = this.channel.size();
+    }
+
+    /**
+     * @param value the value, null if the key was removed or left a tombstone
+     */
+    void append(byte[] key, byte[] value, long expiresAt, long version) {
+        int valueLength = value == null ? -1 : value.length;
+        int entryLength = BlockFile.entryLength(key.length, expiresAt, version, valueLength);
+        if (this.bufferLength + HEADER_LENGTH + entryLength > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.bufferLength + HEADER_LENGTH + entryLength));
+        }
+
+        int entryOffset = this.bufferLength + HEADER_LENGTH;
+        BlockFile.encodeEntry(this.buffer, entryOffset, key, key.length, expiresAt, version, value, valueLength);
+        this.crc.reset();
+        this.crc.update(this.buffer, entryOffset, entryLength);
+        ByteBuffer.wrap(this.buffer, this.bufferLength, HEADER_LENGTH).putInt(entryLength).putInt((int) this.crc.getValue());
+        this.bufferLength = entryOffset + entryLength;
+        this.size += HEADER_LENGTH + entryLength;
+    }
+
+    /**
+     * Writes the appended records to the file, without waiting for them to reach the disk.
+     */
+    void write() throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(this.buffer, 0, this.bufferLength);
+        while (records.hasRemaining()) {
+            this.channel.write(records);
+        }
+        this.bufferLength = 0;
+    }
+
+    void sync() throws IOException {
+        this.channel.force(false);
+    }
+
+    /**
+     * @return bytes of all records appended, including those not written yet
+     */
+    long size() {
+        return this.size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    /**
+     * Passes the entries of the log to the consumer in order and cuts off whatever follows the last intact
+     * record, so records appended later are not hidden behind a torn one.
+     *
+     * @return false if the file does not exist
+     */
+    static boolean replay(File file, BlockFile.EntryConsumer consumer) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+
+        long validLength = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int entryLength;
+                byte[] entry;
+                int checksum;
+                try {
+                    entryLength = input.readInt();
+                    checksum = input.readInt();
+                    if (entryLength <= 0 || entryLength > MAX_ENTRY_LENGTH) {
+                        break;
+                    }
+                    entry = new byte[entryLength];
+                    input.readFully(entry);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(entry);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                BlockFile.readEntry(new DataInputStream(new ByteArrayInputStream(entry)), consumer);
+                validLength += HEADER_LENGTH + entryLength;
+            }
+        }
+
+        if (validLength < file.length()) {
+            LOGGER.warn("discarding " + (file.length() - validLength) + " bytes of incomplete records at the end of " + file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);
+            }
+        }
+        return true;
+    }
+}
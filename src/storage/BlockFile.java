@@ -0,0 +1,247 @@
+package storage;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage file format that groups key-value pairs into independently deflated blocks.
+ * <p>
+ * The file starts with a header holding a preset dictionary sampled from the stored values. Every block
+ * is compressed with that dictionary, which lets small blocks of similar values compress nearly as well
+ * as one large stream while each block can still be inflated on its own. Layout:
+ * <pre>
+ * int MAGIC, int level, int dictionaryLength, byte[dictionaryLength] dictionary
+ * repeated: int rawLength, int compressedLength, byte[compressedLength] block
+ * int END_OF_BLOCKS
+ * </pre>
+ * A raw block is a sequence of entries: byte keyLength, key, [long expiresAt], [long version], int valueLength,
+ * value. The expiry time and version are only present if they are set, which is flagged by the EXPIRY_FLAG and
+ * VERSION_FLAG bits of keyLength. Tombstones have a valueLength of -1 and no value.
+ */
+class BlockFile {
+    static final int MAGIC = 0x4b56424b; // "KVBK"
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int DICTIONARY_SIZE = 16 * 1024;
+    /**
+     * Bytes taken from the start of a sampled value when building the dictionary.
+     */
+    static final int DICTIONARY_SAMPLE_SIZE = 64;
+
+    private static final int END_OF_BLOCKS = -1;
+    private static final int EXPIRY_FLAG = 0x80;
+    private static final int VERSION_FLAG = 0x40;
+    private static final int TOMBSTONE_LENGTH = -1;
+
+    interface EntryConsumer {
+        /**
+         * @param value the value, null for a tombstone
+         */
+        void accept(byte[] key, byte[] value, long expiresAt, long version) throws IOException;
+    }
+
+    /**
+     * @return true if the file starts with the block file header
+     */
+    static boolean isBlockFile(File file) throws IOException {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            return input.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    static class Writer implements Closeable {
+        private final FileOutputStream fileOutput;
+        private final DataOutputStream output;
+        private final Deflater deflater;
+        private final byte[] dictionary;
+        private final CompressionStats stats;
+
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int blockLength;
+        private byte[] compressed = new byte[BLOCK_SIZE];
+
+        Writer(File file, int level, byte[] dictionary, CompressionStats stats) throws IOException {
+            this.fileOutput = new FileOutputStream(file);
+            this.output = new DataOutputStream(new BufferedOutputStream(this.fileOutput));
+            this.deflater = new Deflater(level);
+            this.dictionary = dictionary;
+            this.stats = stats;
+
+            output.writeInt(MAGIC);
+            output.writeInt(level);
+            output.writeInt(dictionary.length);
+            output.write(dictionary);
+        }
+
+        /**
+         * @param valueLength length of the value, -1 for a tombstone
+         */
+        void append(byte[] key, int keyLength, long expiresAt, long version, byte[] value, int valueLength) throws IOException {
+            int entryLength = entryLength(keyLength, expiresAt, version, valueLength);
+            if (blockLength + entryLength > block.length) {
+                // a single entry may be larger than a block, in which case it gets a block of its own
+                block = Arrays.copyOf(block, Math.max(block.length, blockLength + entryLength));
+            }
+            blockLength = encodeEntry(block, blockLength, key, keyLength, expiresAt, version, value, valueLength);
+
+            if (blockLength >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            long start = CompressionStats.cpuNanos();
+            deflater.reset();
+            if (dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            stats.recordCompression(blockLength, compressedLength, CompressionStats.cpuNanos() - start);
+
+            output.writeInt(blockLength);
+            output.writeInt(compressedLength);
+            output.write(compressed, 0, compressedLength);
+            blockLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (blockLength > 0) {
+                    writeBlock();
+                }
+                output.writeInt(END_OF_BLOCKS);
+                output.flush();
+                fileOutput.getFD().sync();
+            } finally {
+                deflater.end();
+                output.close();
+            }
+        }
+    }
+
+    static void read(File file, CompressionStats stats, EntryConsumer consumer) throws IOException {
+        Inflater inflater = new Inflater();
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException(file + " is not a block storage file");
+            }
+            input.readInt(); // level, only informational
+            byte[] dictionary = new byte[input.readInt()];
+            input.readFully(dictionary);
+
+            for (int rawLength = input.readInt(); rawLength != END_OF_BLOCKS; rawLength = input.readInt()) {
+                byte[] compressed = new byte[input.readInt()];
+                input.readFully(compressed);
+
+                long start = CompressionStats.cpuNanos();
+                byte[] raw = inflate(inflater, compressed, rawLength, dictionary);
+                stats.recordDecompression(CompressionStats.cpuNanos() - start);
+
+                DataInputStream entries = new DataInputStream(new ByteArrayInputStream(raw));
+                while (entries.available() > 0) {
+                    readEntry(entries, consumer);
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param valueLength length of the value, -1 for a tombstone
+     * @return the number of bytes the entry is encoded in
+     */
+    static int entryLength(int keyLength, long expiresAt, long version, int valueLength) {
+        return 1 + keyLength + (expiresAt != ValueArena.NO_EXPIRY ? Long.BYTES : 0)
+                + (version != ValueArena.NO_VERSION ? Long.BYTES : 0) + Integer.BYTES + Math.max(0, valueLength);
+    }
+
+    /**
+     * Encodes an entry into the buffer, which has to have room for {@link #entryLength} bytes.
+     *
+     * @param valueLength length of the value, -1 for a tombstone
+     * @return the offset after the entry
+     */
+    static int encodeEntry(byte[] buffer, int offset, byte[] key, int keyLength, long expiresAt, long version,
+                           byte[] value, int valueLength) {
+        boolean expires = expiresAt != ValueArena.NO_EXPIRY;
+        boolean versioned = version != ValueArena.NO_VERSION;
+        buffer[offset++] = (byte) (keyLength | (expires ? EXPIRY_FLAG : 0) | (versioned ? VERSION_FLAG : 0));
+        System.arraycopy(key, 0, buffer, offset, keyLength);
+        offset += keyLength;
+        if (expires) {
+            offset = encodeLong(buffer, offset, expiresAt);
+        }
+        if (versioned) {
+            offset = encodeLong(buffer, offset, version);
+        }
+        buffer[offset++] = (byte) (valueLength >>> 24);
+        buffer[offset++] = (byte) (valueLength >>> 16);
+        buffer[offset++] = (byte) (valueLength >>> 8);
+        buffer[offset++] = (byte) valueLength;
+        if (valueLength != TOMBSTONE_LENGTH) {
+            System.arraycopy(value, 0, buffer, offset, valueLength);
+            offset += valueLength;
+        }
+        return offset;
+    }
+
+    private static int encodeLong(byte[] buffer, int offset, long value) {
+        for (int shift = Long.SIZE - Byte.SIZE; shift >= 0; shift -= Byte.SIZE) {
+            buffer[offset++] = (byte) (value >>> shift);
+        }
+        return offset;
+    }
+
+    static void readEntry(DataInputStream entries, EntryConsumer consumer) throws IOException {
+        int keyLength = entries.readUnsignedByte();
+        byte[] key = new byte[keyLength & ~(EXPIRY_FLAG | VERSION_FLAG)];
+        entries.readFully(key);
+        long expiresAt = (keyLength & EXPIRY_FLAG) != 0 ? entries.readLong() : ValueArena.NO_EXPIRY;
+        long version = (keyLength & VERSION_FLAG) != 0 ? entries.readLong() : ValueArena.NO_VERSION;
+        int valueLength = entries.readInt();
+        byte[] value = null;
+        if (valueLength != TOMBSTONE_LENGTH) {
+            value = new byte[valueLength];
+            entries.readFully(value);
+        }
+        consumer.accept(key, value, expiresAt, version);
+    }
+
+    private static byte[] inflate(Inflater inflater, byte[] compressed, int rawLength, byte[] dictionary) throws IOException {
+        inflater.reset();
+        inflater.setInput(compressed);
+        byte[] raw = new byte[rawLength];
+        try {
+            int inflated = 0;
+            while (inflated < rawLength) {
+                int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("block is shorter than its header states");
+                    }
+                }
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt block in storage file", e);
+        }
+        return raw;
+    }
+}
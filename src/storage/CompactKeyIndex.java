@@ -0,0 +1,231 @@
+package storage;
+
+import shared.messages.KVMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash index from short UTF-8 keys to long values (e.g. {@link ValueArena} handles).
+ * <p>
+ * Keys are at most {@link KVMessage#MAX_KEY_BYTE_LENGTH} bytes, so every slot stores its key inline in a
+ * shared byte array next to the key length, the key's hash and the value. There are no per-entry objects,
+ * an entry costs 33 bytes of primitive arrays (plus the unused slots kept by the load factor).
+ * <p>
+ * Collisions are resolved by linear probing; removed entries leave a tombstone that is dropped on the
+ * next resize. The index is not thread-safe.
+ */
+public class CompactKeyIndex {
+    public static final long MISSING = -1L;
+    public static final int MAX_KEY_LENGTH = KVMessage.MAX_KEY_BYTE_LENGTH;
+
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final byte EMPTY = 0;
+    private static final byte TOMBSTONE = -1;
+
+    /**
+     * Key length plus one for occupied slots, EMPTY or TOMBSTONE otherwise.
+     */
+    private byte[] states;
+    private byte[] keys;
+    private int[] hashes;
+    private long[] values;
+    private int size;
+    /**
+     * Occupied slots plus tombstones, which both lengthen probe sequences.
+     */
+    private int used;
+
+    public CompactKeyIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial number of slots, rounded up to a power of two
+     */
+    public CompactKeyIndex(int capacity) {
+        allocate(Math.max(DEFAULT_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1));
+    }
+
+    /**
+     * @return UTF-8 encoding of the key
+     * @throws IllegalArgumentException if the key is longer than {@link #MAX_KEY_LENGTH} bytes
+     */
+    public static byte[] encode(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("key cannot be larger than " + MAX_KEY_LENGTH + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * FNV-1a over the key bytes followed by a final avalanche, so both the high bits (used by
+     * {@link KVStorage} to pick a segment) and the low bits (used to pick a slot) are well mixed.
+     */
+    public static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+
+    public long get(byte[] key, int hash) {
+        int slot = find(key, hash);
+        return slot == -1 ? MISSING : values[slot];
+    }
+
+    /**
+     * @return the previous value of the key, MISSING if there was none
+     */
+    public long put(byte[] key, int hash, long value) {
+        int slot = find(key, hash);
+        if (slot != -1) {
+            long previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        if (used + 1 > states.length * LOAD_FACTOR) {
+            resize(size + 1 > states.length * LOAD_FACTOR / 2 ? states.length * 2 : states.length);
+        }
+
+        int mask = states.length - 1;
+        slot = hash & mask;
+        while (states[slot] > 0) {
+            slot = (slot + 1) & mask;
+        }
+        if (states[slot] == EMPTY) {
+            used++;
+        }
+        store(slot, key, hash, value);
+        size++;
+        return MISSING;
+    }
+
+    /**
+     * @return the removed value, MISSING if the key was not present
+     */
+    public long remove(byte[] key, int hash) {
+        int slot = find(key, hash);
+        if (slot == -1) {
+            return MISSING;
+        }
+
+        removeAt(slot);
+        return values[slot];
+    }
+
+    /**
+     * Removes the entry of an occupied slot. Other slots keep their entries, so iterating over the slots
+     * while removing is safe.
+     */
+    public void removeAt(int slot) {
+        states[slot] = TOMBSTONE;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Slots can be iterated from 0 to slotCount() - 1, skipping those that are not occupied.
+     */
+    public int slotCount() {
+        return states.length;
+    }
+
+    public boolean isOccupied(int slot) {
+        return states[slot] > 0;
+    }
+
+    public String keyAt(int slot) {
+        return new String(keys, slot * MAX_KEY_LENGTH, states[slot] - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the UTF-8 encoded key into the given buffer of at least {@link #MAX_KEY_LENGTH} bytes.
+     *
+     * @return the length of the key
+     */
+    public int copyKeyAt(int slot, byte[] destination) {
+        int length = states[slot] - 1;
+        System.arraycopy(keys, slot * MAX_KEY_LENGTH, destination, 0, length);
+        return length;
+    }
+
+    public long valueAt(int slot) {
+        return values[slot];
+    }
+
+    private int find(byte[] key, int hash) {
+        int mask = states.length - 1;
+        for (int slot = hash & mask; states[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (states[slot] == key.length + 1 && hashes[slot] == hash && keyEquals(slot, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int slot, byte[] key) {
+        int offset = slot * MAX_KEY_LENGTH;
+        return Arrays.equals(keys, offset, offset + key.length, key, 0, key.length);
+    }
+
+    private void store(int slot, byte[] key, int hash, long value) {
+        states[slot] = (byte) (key.length + 1);
+        System.arraycopy(key, 0, keys, slot * MAX_KEY_LENGTH, key.length);
+        hashes[slot] = hash;
+        values[slot] = value;
+    }
+
+    /**
+     * Rehashes all entries into a table of the given capacity, dropping tombstones.
+     */
+    private void resize(int capacity) {
+        byte[] oldStates = states;
+        byte[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        long[] oldValues = values;
+
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldStates.length; oldSlot++) {
+            if (oldStates[oldSlot] <= 0) {
+                continue;
+            }
+
+            int slot = oldHashes[oldSlot] & mask;
+            while (states[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            states[slot] = oldStates[oldSlot];
+            System.arraycopy(oldKeys, oldSlot * MAX_KEY_LENGTH, keys, slot * MAX_KEY_LENGTH, oldStates[oldSlot] - 1);
+            hashes[slot] = oldHashes[oldSlot];
+            values[slot] = oldValues[oldSlot];
+            size++;
+            used++;
+        }
+    }
+
+    private void allocate(int capacity) {
+        states = new byte[capacity];
+        keys = new byte[capacity * MAX_KEY_LENGTH];
+        hashes = new int[capacity];
+        values = new long[capacity];
+        size = 0;
+        used = 0;
+    }
+}
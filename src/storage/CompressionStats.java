@@ -0,0 +1,73 @@
+package storage;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how well the blocks of the storage file compress and how much CPU time it costs.
+ */
+public class CompressionStats {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    void recordCompression(int raw, int compressed, long nanos) {
+        blocks.incrementAndGet();
+        rawBytes.addAndGet(raw);
+        compressedBytes.addAndGet(compressed);
+        compressNanos.addAndGet(nanos);
+    }
+
+    void recordDecompression(long nanos) {
+        decompressNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, or the wall-clock time where the JVM does not
+     * measure it
+     */
+    static long cpuNanos() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    public long getBlocks() {
+        return blocks.get();
+    }
+
+    public long getRawBytes() {
+        return rawBytes.get();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * @return raw bytes per compressed byte over all blocks written so far, 0 if none were written
+     */
+    public double getRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 0 : (double) rawBytes.get() / compressed;
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getDecompressNanos() {
+        return decompressNanos.get();
+    }
+
+    /**
+     * @return compression throughput in raw megabytes per CPU second, 0 if nothing was compressed
+     */
+    public double getCompressMegabytesPerSecond() {
+        long nanos = compressNanos.get();
+        return nanos == 0 ? 0 : rawBytes.get() / 1e6 / (nanos / 1e9);
+    }
+}
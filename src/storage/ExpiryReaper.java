@@ -0,0 +1,51 @@
+package storage;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Background thread removing expired values from a {@link KVStorage}.
+ * <p>
+ * Every interval a bounded number of slots is scanned, so the reaper never holds a segment lock for long.
+ * If many of the scanned values had expired, more are likely waiting and the next batch is scanned right
+ * away instead of after the interval.
+ */
+public class ExpiryReaper extends Thread {
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_SLOTS_PER_BATCH = 4096;
+    private static final Logger LOGGER = Logger.getRootLogger();
+
+    private final KVStorage storage;
+    private final long intervalMillis;
+    private final int slotsPerBatch;
+
+    public ExpiryReaper(KVStorage storage) {
+        this(storage, DEFAULT_INTERVAL_MILLIS, DEFAULT_SLOTS_PER_BATCH);
+    }
+
+    public ExpiryReaper(KVStorage storage, long intervalMillis, int slotsPerBatch) {
+        super("expiry-reaper");
+        this.storage = storage;
+        this.intervalMillis = intervalMillis;
+        this.slotsPerBatch = slotsPerBatch;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                Thread.sleep(this.intervalMillis);
+
+                int reaped;
+                do {
+                    reaped = this.storage.reapExpired(this.slotsPerBatch);
+                    if (reaped > 0) {
+                        LOGGER.debug("reaped " + reaped + " expired values");
+                    }
+                } while (reaped > this.slotsPerBatch / 4 && !isInterrupted());
+            }
+        } catch (InterruptedException e) {
+            // the server is closing
+        }
+    }
+}
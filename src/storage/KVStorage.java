@@ -0,0 +1,919 @@
+package storage;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+
+/**
+ * In-memory key-value storage backed by a JSON snapshot file and an {@link AppendLog} of the changes since.
+ * <p>
+ * Keys are spread over a fixed number of segments, each guarded by its own read/write lock, so GETs
+ * proceed in parallel and PUTs only contend with operations on keys of the same segment. Every
+ * modification is appended to the log and synced to the disk before the PUT returns; concurrent writers
+ * share a single sync (group commit). Once the log outgrows the snapshot, the writer that noticed compacts
+ * the two into a new snapshot, while the others keep appending to a fresh log.
+ * <p>
+ * Values are kept UTF-8 encoded in an off-heap {@link ValueArena} per segment; the segment's
+ * {@link CompactKeyIndex} only maps keys to arena handles, without any per-entry objects, which keeps
+ * large datasets out of the garbage collector's way.
+ * <p>
+ * Given a compression level, the snapshot is written as deflated blocks (see {@link BlockFile}) instead of JSON.
+ * <p>
+ * Values may carry an expiry time. Expired values are treated as absent right away, removed lazily when
+ * they are read and eventually reclaimed by {@link #reapExpired(int)}; they are skipped when loading.
+ * <p>
+ * Writes coming from quorum clients carry a version and are only applied if they are newer than the stored
+ * value (see {@link #putIfNewer(String, byte[], long)}). A versioned delete leaves a tombstone holding its
+ * version, so an older write arriving late cannot resurrect the key. Tombstones read as absent and expire
+ * after TOMBSTONE_LIFETIME_MILLIS.
+ * <p>
+ * Every entry also records the time it was written at, which servers handing keys to each other compare
+ * to keep the newer copy. It is not persisted: entries loaded from the storage file count as older than
+ * any write made since, with NO_WRITE_TIME.
+ * <p>
+ * A {@link ChangeListener} can follow every change to the entries by their digests, which is how the
+ * Merkle trees of anti-entropy are kept up to date without rescanning the storage.
+ */
+public class KVStorage {
+    public static final int DEFAULT_SEGMENT_COUNT = 64;
+    public static final int NO_COMPRESSION = -1;
+    public static final long NO_EXPIRY = ValueArena.NO_EXPIRY;
+    public static final long NO_VERSION = ValueArena.NO_VERSION;
+    public static final long NO_WRITE_TIME = ValueArena.NO_WRITE_TIME;
+    public static final long TOMBSTONE_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /**
+     * Appended to the path of the snapshot for the log, which is renamed to LOG_SUFFIX + COMPACTING_SUFFIX
+     * while a compaction writes a new snapshot.
+     */
+    public static final String LOG_SUFFIX = ".log";
+    private static final String COMPACTING_SUFFIX = ".compacting";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    /**
+     * The log is compacted once it is larger than the snapshot, but not before it reached this size.
+     */
+    public static final long MIN_COMPACTION_LOG_BYTES = 4 * 1024 * 1024;
+    private static final Logger LOGGER = Logger.getRootLogger();
+    private static final byte[] NO_VALUE = new byte[0];
+    private static final String JSON_VALUE_FIELD = "value";
+    private static final String JSON_EXPIRES_AT_FIELD = "expiresAt";
+    private static final String JSON_VERSION_FIELD = "version";
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final File file;
+    private final File logFile;
+    private final File compactingLogFile;
+    private final File temporaryFile;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int compressionLevel;
+    private final CompressionStats compressionStats = new CompressionStats();
+
+    /**
+     * Guards the log, which is opened on the first write; taken while holding the write lock of a segment,
+     * so the records of a key are appended in the order its changes were applied.
+     */
+    private final Object logLock = new Object();
+    private AppendLog log;
+    /**
+     * Incremented for every record appended to the log. Written under logLock.
+     */
+    private final AtomicLong writeSequence = new AtomicLong();
+    /**
+     * Held while syncing the log; taken before logLock.
+     */
+    private final Object syncLock = new Object();
+    /**
+     * Highest write sequence synced to the disk. Written under syncLock.
+     */
+    private volatile long persistedSequence;
+    private final ReentrantLock compactLock = new ReentrantLock();
+    private volatile long snapshotBytes;
+    /**
+     * Scratch buffer values are copied into while writing a snapshot. Guarded by compactLock.
+     */
+    private final byte[] persistBuffer = new byte[ValueArena.SLAB_SIZE];
+    private final byte[] persistKeyBuffer = new byte[CompactKeyIndex.MAX_KEY_LENGTH];
+    /**
+     * Position of the incremental scan for expired values. Guarded by reapLock.
+     */
+    private final Object reapLock = new Object();
+    private int reapSegment;
+    private int reapSlot;
+
+    /**
+     * Notified of every change to an entry while the lock of its segment is held, so the changes of a key
+     * arrive in the order they were applied. Entries include expired values until they are removed, and
+     * tombstones.
+     */
+    public interface ChangeListener {
+        /**
+         * @param previousDigest digest of the replaced entry, 0 if the key had none
+         * @param digest         digest of the new entry, 0 if the entry was removed
+         */
+        void changed(String key, long previousDigest, long digest);
+    }
+
+    public interface DigestVisitor {
+        void visit(String key, long version, long digest);
+    }
+
+    private static class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final CompactKeyIndex index = new CompactKeyIndex();
+        final ValueArena arena = new ValueArena();
+        /**
+         * Guarded by the write lock, null if changes are not followed.
+         */
+        ChangeListener listener;
+
+        void notifyChanged(byte[] key, long previousHandle, long handle) {
+            if (this.listener != null) {
+                long previousDigest = previousHandle == CompactKeyIndex.MISSING ? 0 : this.arena.digest(previousHandle, key, key.length);
+                long digest = handle == CompactKeyIndex.MISSING ? 0 : this.arena.digest(handle, key, key.length);
+                this.listener.changed(new String(key, StandardCharsets.UTF_8), previousDigest, digest);
+            }
+        }
+    }
+
+    public KVStorage(String filePath) {
+        this(filePath, DEFAULT_SEGMENT_COUNT);
+    }
+
+    public KVStorage(String filePath, int segmentCount) {
+        this(filePath, segmentCount, NO_COMPRESSION);
+    }
+
+    /**
+     * @param filePath         path of the file the storage is persisted to
+     * @param segmentCount     number of independently locked segments, must be a power of two
+     * @param compressionLevel deflate level (0-9) for the blocks of the file, NO_COMPRESSION to write JSON
+     */
+    public KVStorage(String filePath, int segmentCount, int compressionLevel) {
+        if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("segmentCount must be a power of two");
+        }
+        if (compressionLevel != NO_COMPRESSION
+                && (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("compressionLevel must be between 0 and 9");
+        }
+
+        this.file = new File(filePath);
+        this.logFile = new File(filePath + LOG_SUFFIX);
+        this.compactingLogFile = new File(filePath + LOG_SUFFIX + COMPACTING_SUFFIX);
+        this.temporaryFile = new File(filePath + TEMPORARY_SUFFIX);
+        this.segments = new Segment[segmentCount];
+        this.segmentShift = Integer.SIZE - Integer.numberOfTrailingZeros(segmentCount);
+        this.compressionLevel = compressionLevel;
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Loads the snapshot and replays the log on top of it, then compacts the two, creating an empty snapshot
+     * if none exists. Both JSON and block snapshots are recognized, regardless of the configured compression
+     * level.
+     */
+    public void load() throws IOException {
+        boolean loaded = false;
+        if (this.file.isFile()) {
+            loadSnapshot();
+            loaded = true;
+        }
+        // a compaction that did not finish leaves the log it was folding in
+        boolean replayed = AppendLog.replay(this.compactingLogFile, this::loadEntry);
+        replayed |= AppendLog.replay(this.logFile, this::loadEntry);
+        this.snapshotBytes = this.file.length();
+        if (loaded || replayed) {
+            LOGGER.info("loaded " + size() + " key-value pairs from " + this.file);
+        }
+        if (!loaded || replayed) {
+            compact();
+        }
+    }
+
+    private void loadSnapshot() throws IOException {
+        if (BlockFile.isBlockFile(this.file)) {
+            BlockFile.read(this.file, this.compressionStats, this::loadEntry);
+            return;
+        }
+
+        try (JsonParser parser = this.jsonFactory.createParser(this.file)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("storage file " + this.file + " does not contain a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                byte[] key = CompactKeyIndex.encode(name);
+                String value = null;
+                long expiresAt = NO_EXPIRY;
+                long version = NO_VERSION;
+                if (parser.nextToken() == JsonToken.START_OBJECT) {
+                    // expiring and versioned values are stored as {"value": ..., "expiresAt": ..., "version": ...},
+                    // tombstones have a null value
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        JsonToken token = parser.nextToken();
+                        if (field.equals(JSON_VALUE_FIELD)) {
+                            value = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                        } else if (field.equals(JSON_EXPIRES_AT_FIELD)) {
+                            expiresAt = parser.getLongValue();
+                        } else if (field.equals(JSON_VERSION_FIELD)) {
+                            version = parser.getLongValue();
+                        }
+                    }
+                } else {
+                    value = parser.getText();
+                }
+
+                if (value == null && version == NO_VERSION) {
+                    throw new IOException("entry " + name + " in " + this.file + " has no value");
+                }
+                loadEntry(key, value == null ? null : value.getBytes(StandardCharsets.UTF_8), expiresAt, version);
+            }
+        }
+    }
+
+    /**
+     * Applies an entry of the snapshot or the log. An entry without value and version is a key removed
+     * from the log; an expired entry removes the key as well, as it supersedes any earlier one.
+     */
+    private void loadEntry(byte[] key, byte[] value, long expiresAt, long version) {
+        long now = System.currentTimeMillis();
+        int hash = CompactKeyIndex.hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.writeLock().lock();
+        try {
+            if ((value == null && version == NO_VERSION) || (expiresAt != NO_EXPIRY && expiresAt <= now)) {
+                replace(segment, key, hash, null, NO_EXPIRY, NO_VERSION, NO_WRITE_TIME, false, now);
+            } else if (value == null) {
+                storeTombstone(segment, key, hash, version, expiresAt, NO_WRITE_TIME);
+            } else {
+                replace(segment, key, hash, value, expiresAt, version, NO_WRITE_TIME, false, now);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the UTF-8 encoded value associated with the key, null if there is none
+     */
+    public byte[] get(String key) {
+        byte[] keyBytes = CompactKeyIndex.encode(key);
+        int hash = CompactKeyIndex.hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        long now = System.currentTimeMillis();
+        segment.lock.readLock().lock();
+        try {
+            long handle = segment.index.get(keyBytes, hash);
+            if (handle == CompactKeyIndex.MISSING) {
+                return null;
+            }
+            if (!segment.arena.isExpired(handle, now)) {
+                // null for tombstones
+                return segment.arena.read(handle);
+            }
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+
+        expire(segment, keyBytes, hash, now);
+        return null;
+    }
+
+    /**
+     * Removes the value of a key if it is (still) expired. Nothing is logged, expired values are skipped when
+     * the storage is loaded.
+     */
+    private static void expire(Segment segment, byte[] key, int hash, long now) {
+        segment.lock.writeLock().lock();
+        try {
+            long handle = segment.index.get(key, hash);
+            if (handle != CompactKeyIndex.MISSING && segment.arena.isExpired(handle, now)) {
+                segment.index.remove(key, hash);
+                segment.notifyChanged(key, handle, CompactKeyIndex.MISSING);
+                segment.arena.free(handle);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    public boolean contains(String key) {
+        byte[] keyBytes = CompactKeyIndex.encode(key);
+        int hash = CompactKeyIndex.hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            long handle = segment.index.get(keyBytes, hash);
+            return handle != CompactKeyIndex.MISSING && !segment.arena.isTombstone(handle)
+                    && !segment.arena.isExpired(handle, System.currentTimeMillis());
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the value of the key, its version and write time, a null value for a tombstone; null if the key
+     * is absent
+     */
+    public VersionedValue getVersioned(String key) {
+        byte[] keyBytes = CompactKeyIndex.encode(key);
+        int hash = CompactKeyIndex.hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            long handle = segment.index.get(keyBytes, hash);
+            if (handle == CompactKeyIndex.MISSING || segment.arena.isExpired(handle, System.currentTimeMillis())) {
+                return null;
+            }
+            return new VersionedValue(segment.arena.read(handle), segment.arena.version(handle), segment.arena.expiresAt(handle),
+                    segment.arena.writtenAt(handle));
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the value with the given version unless the key already holds the same or a newer version.
+     * A null value leaves a tombstone. Values without a version are always overwritten.
+     *
+     * @param version positive version of the value
+     * @return true if the value was stored, false if it was older than the stored one
+     */
+    public boolean putIfNewer(String key, byte[] value, long version) throws IOException {
+        if (version <= NO_VERSION) {
+            throw new IllegalArgumentException("version must be positive");
+        }
+
+        byte[] keyBytes = CompactKeyIndex.encode(key);
+        int hash = CompactKeyIndex.hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        long now = System.currentTimeMillis();
+        long sequence;
+        segment.lock.writeLock().lock();
+        try {
+            long handle = segment.index.get(keyBytes, hash);
+            if (handle != CompactKeyIndex.MISSING && !segment.arena.isExpired(handle, now)
+                    && segment.arena.version(handle) >= version) {
+                return false;
+            }
+
+            if (value == null) {
+                storeTombstone(segment, keyBytes, hash, version, now + TOMBSTONE_LIFETIME_MILLIS, now);
+                sequence = append(keyBytes, null, now + TOMBSTONE_LIFETIME_MILLIS, version);
+            } else {
+                replace(segment, keyBytes, hash, value, NO_EXPIRY, version, now, false, now);
+                sequence = append(keyBytes, value, NO_EXPIRY, version);
+            }
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        persist(sequence);
+        return true;
+    }
+
+    private static void storeTombstone(Segment segment, byte[] key, int hash, long version, long expiresAt,
+                                       long writtenAt) {
+        long handle = segment.arena.allocate(null, expiresAt, version, writtenAt);
+        long previousHandle = segment.index.put(key, hash, handle);
+        segment.notifyChanged(key, previousHandle, handle);
+        if (previousHandle != CompactKeyIndex.MISSING) {
+            segment.arena.free(previousHandle);
+        }
+    }
+
+    /**
+     * Inserts, updates or (given a null value) deletes a key and persists the change.
+     *
+     * @param value UTF-8 encoded value
+     * @return true if the key was associated with a value before
+     */
+    public boolean put(String key, byte[] value) throws IOException {
+        return put(key, value, NO_EXPIRY, System.currentTimeMillis(), false) != null;
+    }
+
+    /**
+     * Same as {@link #put(String, byte[])}, but the value expires at the given time.
+     *
+     * @param expiresAt time in milliseconds since the epoch after which the value is treated as absent,
+     *                  NO_EXPIRY if it never expires
+     */
+    public boolean put(String key, byte[] value, long expiresAt) throws IOException {
+        return put(key, value, expiresAt, System.currentTimeMillis(), false) != null;
+    }
+
+    /**
+     * Same as {@link #put(String, byte[], long)}, but records the given write time instead of the current one,
+     * e.g. for a write another server made and hands over.
+     *
+     * @param writtenAt time in milliseconds since the epoch the value was written at
+     */
+    public boolean put(String key, byte[] value, long expiresAt, long writtenAt) throws IOException {
+        return put(key, value, expiresAt, writtenAt, false) != null;
+    }
+
+    /**
+     * Same as {@link #put(String, byte[])}, but copies out the value that gets replaced.
+     *
+     * @return the previous value associated with the key, null if there was none
+     */
+    public byte[] getAndPut(String key, byte[] value) throws IOException {
+        return put(key, value, NO_EXPIRY, System.currentTimeMillis(), true);
+    }
+
+    private byte[] put(String key, byte[] value, long expiresAt, long writtenAt, boolean returnPrevious) throws IOException {
+        byte[] keyBytes = CompactKeyIndex.encode(key);
+        int hash = CompactKeyIndex.hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        byte[] previousValue;
+        long sequence;
+        segment.lock.writeLock().lock();
+        try {
+            previousValue = replace(segment, keyBytes, hash, value, expiresAt, NO_VERSION, writtenAt, returnPrevious,
+                    System.currentTimeMillis());
+            if (value == null && previousValue == null) {
+                // nothing was deleted, so there is nothing to persist
+                return null;
+            }
+            sequence = append(keyBytes, value, expiresAt, NO_VERSION);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+
+        persist(sequence);
+        return previousValue;
+    }
+
+    /**
+     * Replaces the value of a key within a segment whose write lock is held.
+     *
+     * @return the previous value if returnPrevious is set, otherwise an empty array if there was a previous
+     * value; null if there was none, it had expired or it was a tombstone
+     */
+    private static byte[] replace(Segment segment, byte[] key, int hash, byte[] value, long expiresAt, long version,
+                                  long writtenAt, boolean returnPrevious, long now) {
+        long handle = value == null ? CompactKeyIndex.MISSING : segment.arena.allocate(value, expiresAt, version, writtenAt);
+        long previousHandle = value == null ? segment.index.remove(key, hash) : segment.index.put(key, hash, handle);
+        if (previousHandle != CompactKeyIndex.MISSING || handle != CompactKeyIndex.MISSING) {
+            segment.notifyChanged(key, previousHandle, handle);
+        }
+        if (previousHandle == CompactKeyIndex.MISSING) {
+            return null;
+        }
+
+        byte[] previousValue = null;
+        if (!segment.arena.isTombstone(previousHandle) && !segment.arena.isExpired(previousHandle, now)) {
+            previousValue = returnPrevious ? segment.arena.read(previousHandle) : NO_VALUE;
+        }
+        segment.arena.free(previousHandle);
+        return previousValue;
+    }
+
+    /**
+     * Removes expired values, scanning at most the given number of slots from where the previous call
+     * stopped. Only the lock of the segment being scanned is held, so the scan can run alongside requests.
+     *
+     * @return the number of removed values
+     */
+    public int reapExpired(int maxSlots) {
+        synchronized (this.reapLock) {
+            long now = System.currentTimeMillis();
+            int reaped = 0;
+            int scanned = 0;
+            int startSegment = this.reapSegment;
+            while (scanned < maxSlots) {
+                Segment segment = this.segments[this.reapSegment];
+                segment.lock.writeLock().lock();
+                try {
+                    CompactKeyIndex index = segment.index;
+                    for (; this.reapSlot < index.slotCount() && scanned < maxSlots; this.reapSlot++, scanned++) {
+                        if (index.isOccupied(this.reapSlot) && segment.arena.isExpired(index.valueAt(this.reapSlot), now)) {
+                            if (segment.listener != null) {
+                                segment.notifyChanged(CompactKeyIndex.encode(index.keyAt(this.reapSlot)), index.valueAt(this.reapSlot), CompactKeyIndex.MISSING);
+                            }
+                            segment.arena.free(index.valueAt(this.reapSlot));
+                            index.removeAt(this.reapSlot);
+                            reaped++;
+                        }
+                    }
+                    if (this.reapSlot < index.slotCount()) {
+                        break;
+                    }
+                } finally {
+                    segment.lock.writeLock().unlock();
+                }
+
+                this.reapSlot = 0;
+                this.reapSegment = (this.reapSegment + 1) & (this.segments.length - 1);
+                if (this.reapSegment == startSegment) {
+                    // scanned the whole storage
+                    break;
+                }
+            }
+            return reaped;
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.index.size();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Removes all key-value pairs and deletes the snapshot and the log.
+     */
+    public void clear() {
+        this.compactLock.lock();
+        try {
+            for (Segment segment : this.segments) {
+                segment.lock.writeLock().lock();
+                try {
+                    if (segment.listener != null) {
+                        for (int slot = 0; slot < segment.index.slotCount(); slot++) {
+                            if (segment.index.isOccupied(slot)) {
+                                segment.notifyChanged(CompactKeyIndex.encode(segment.index.keyAt(slot)), segment.index.valueAt(slot), CompactKeyIndex.MISSING);
+                            }
+                        }
+                    }
+                    segment.index.clear();
+                    segment.arena.clear();
+                } finally {
+                    segment.lock.writeLock().unlock();
+                }
+            }
+
+            synchronized (this.syncLock) {
+                synchronized (this.logLock) {
+                    closeLog();
+                    for (File file : new File[]{this.file, this.logFile, this.compactingLogFile, this.temporaryFile}) {
+                        if (file.isFile()) {
+                            file.delete();
+                        }
+                    }
+                    this.persistedSequence = this.writeSequence.get();
+                    this.snapshotBytes = 0;
+                }
+            }
+        } finally {
+            this.compactLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the listener that is notified of changes. The new listener first receives every stored entry
+     * as added; as this happens under the lock of each segment in turn, no change is missed or seen twice.
+     * The previous listener keeps being notified of changes to the segments not handed over yet.
+     *
+     * @param listener the new listener, null to stop following changes
+     */
+    public void setChangeListener(ChangeListener listener) {
+        for (Segment segment : this.segments) {
+            segment.lock.writeLock().lock();
+            try {
+                segment.listener = listener;
+                for (int slot = 0; listener != null && slot < segment.index.slotCount(); slot++) {
+                    if (segment.index.isOccupied(slot)) {
+                        segment.notifyChanged(CompactKeyIndex.encode(segment.index.keyAt(slot)), CompactKeyIndex.MISSING, segment.index.valueAt(slot));
+                    }
+                }
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the digest {@link #forEachDigest} visits the key with, 0 if it has no entry
+     */
+    public long digest(String key) {
+        byte[] keyBytes = CompactKeyIndex.encode(key);
+        int hash = CompactKeyIndex.hash(keyBytes);
+        Segment segment = segmentFor(hash);
+        segment.lock.readLock().lock();
+        try {
+            long handle = segment.index.get(keyBytes, hash);
+            return handle == CompactKeyIndex.MISSING ? 0 : segment.arena.digest(handle, keyBytes, keyBytes.length);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits the digest of every entry, including tombstones and expired values not removed yet, holding the
+     * read lock of one segment at a time.
+     */
+    public void forEachDigest(DigestVisitor visitor) {
+        byte[] key = new byte[CompactKeyIndex.MAX_KEY_LENGTH];
+        for (Segment segment : this.segments) {
+            segment.lock.readLock().lock();
+            try {
+                CompactKeyIndex index = segment.index;
+                for (int slot = 0; slot < index.slotCount(); slot++) {
+                    if (index.isOccupied(slot)) {
+                        long handle = index.valueAt(slot);
+                        int keyLength = index.copyKeyAt(slot, key);
+                        visitor.visit(new String(key, 0, keyLength, StandardCharsets.UTF_8), segment.arena.version(handle),
+                                segment.arena.digest(handle, key, keyLength));
+                    }
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * @return statistics of the blocks written and read, empty if compression is disabled
+     */
+    public CompressionStats getCompressionStats() {
+        return this.compressionStats;
+    }
+
+    /**
+     * @return bytes of off-heap memory occupied by values
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            segment.lock.readLock().lock();
+            try {
+                bytes += segment.arena.usedBytes();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the number of modifications not yet synced to the disk
+     */
+    public long unpersistedWrites() {
+        return Math.max(0, this.writeSequence.get() - this.persistedSequence);
+    }
+
+    /**
+     * Syncs all modifications that are not yet persisted to the disk.
+     */
+    public void flush() throws IOException {
+        persist(this.writeSequence.get());
+    }
+
+    /**
+     * Syncs the log and closes it. A later write opens it again.
+     */
+    public void close() throws IOException {
+        synchronized (this.syncLock) {
+            synchronized (this.logLock) {
+                syncAndCloseLog();
+            }
+        }
+    }
+
+    /**
+     * Appends the entry a key was left with to the log, with the write lock of its segment held.
+     *
+     * @return the sequence number of the record, to be passed to {@link #persist(long)}
+     */
+    private long append(byte[] key, byte[] value, long expiresAt, long version) throws IOException {
+        synchronized (this.logLock) {
+            if (this.log == null) {
+                this.log = new AppendLog(this.logFile);
+            }
+            this.log.append(key, value, expiresAt, version);
+            return this.writeSequence.incrementAndGet();
+        }
+    }
+
+    /**
+     * Ensures the log on the disk contains at least the record with the given sequence number. Records
+     * appended while a sync is running are synced together by the next one, and a writer that finds its
+     * record already covered returns right away. Compacts the log if it outgrew the snapshot.
+     */
+    private void persist(long sequence) throws IOException {
+        synchronized (this.syncLock) {
+            if (this.persistedSequence < sequence) {
+                AppendLog log;
+                long coveredSequence;
+                synchronized (this.logLock) {
+                    log = this.log;
+                    log.write();
+                    coveredSequence = this.writeSequence.get();
+                }
+                log.sync();
+                this.persistedSequence = coveredSequence;
+            }
+        }
+
+        if (logBytes() > Math.max(MIN_COMPACTION_LOG_BYTES, this.snapshotBytes) && this.compactLock.tryLock()) {
+            try {
+                if (logBytes() > Math.max(MIN_COMPACTION_LOG_BYTES, this.snapshotBytes)) {
+                    compact();
+                }
+            } finally {
+                this.compactLock.unlock();
+            }
+        }
+    }
+
+    private long logBytes() {
+        synchronized (this.logLock) {
+            return this.log == null ? 0 : this.log.size();
+        }
+    }
+
+    /**
+     * Writes all key-value pairs to a new snapshot and deletes the log it replaces. Writers are only held up
+     * while the log is set aside; the snapshot is written from the segments, one at a time, while they keep
+     * appending to a new log. Changes made in the meantime may end up in both, which is harmless as the log
+     * is replayed over the snapshot.
+     */
+    public void compact() throws IOException {
+        this.compactLock.lock();
+        try {
+            synchronized (this.syncLock) {
+                synchronized (this.logLock) {
+                    syncAndCloseLog();
+                    // the log set aside by a compaction that failed is still needed, the current one is
+                    // kept as well then
+                    if (this.logFile.isFile() && !this.compactingLogFile.exists()) {
+                        Files.move(this.logFile.toPath(), this.compactingLogFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                }
+            }
+
+            writeSnapshot();
+            Files.move(this.temporaryFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            this.snapshotBytes = this.file.length();
+            Files.deleteIfExists(this.compactingLogFile.toPath());
+        } finally {
+            this.compactLock.unlock();
+        }
+    }
+
+    /**
+     * Called with syncLock and logLock held.
+     */
+    private void syncAndCloseLog() throws IOException {
+        if (this.log != null) {
+            this.log.write();
+            this.log.sync();
+            this.persistedSequence = this.writeSequence.get();
+            closeLog();
+        }
+    }
+
+    /**
+     * Closes the log with logLock held; records not written yet are lost.
+     */
+    private void closeLog() {
+        if (this.log == null) {
+            return;
+        }
+        try {
+            this.log.close();
+        } catch (IOException e) {
+            LOGGER.warn("could not close " + this.logFile, e);
+        }
+        this.log = null;
+    }
+
+    private interface SlotVisitor {
+        void visit(CompactKeyIndex index, int slot, ValueArena arena) throws IOException;
+    }
+
+    /**
+     * Visits every occupied slot whose value has not expired, tombstones included, holding the read lock of
+     * one segment at a time.
+     */
+    private void forEachSlot(SlotVisitor visitor) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Segment segment : this.segments) {
+            segment.lock.readLock().lock();
+            try {
+                CompactKeyIndex index = segment.index;
+                for (int slot = 0; slot < index.slotCount(); slot++) {
+                    if (index.isOccupied(slot) && !segment.arena.isExpired(index.valueAt(slot), now)) {
+                        visitor.visit(index, slot, segment.arena);
+                    }
+                }
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Writes all key-value pairs to the temporary snapshot file and syncs it, copying each value from the
+     * arena straight into the output without decoding it. Called with compactLock held.
+     */
+    private void writeSnapshot() throws IOException {
+        if (this.compressionLevel == NO_COMPRESSION) {
+            writeJsonSnapshot();
+        } else {
+            writeBlockSnapshot();
+        }
+    }
+
+    private void writeJsonSnapshot() throws IOException {
+        try (FileOutputStream output = new FileOutputStream(this.temporaryFile);
+             JsonGenerator generator = this.jsonFactory.createGenerator(output, JsonEncoding.UTF8)) {
+            generator.writeStartObject();
+            forEachSlot((index, slot, arena) -> {
+                long handle = index.valueAt(slot);
+                int length = arena.read(handle, this.persistBuffer);
+                long expiresAt = arena.expiresAt(handle);
+                long version = arena.version(handle);
+                generator.writeFieldName(index.keyAt(slot));
+                if (expiresAt == NO_EXPIRY && version == NO_VERSION) {
+                    generator.writeUTF8String(this.persistBuffer, 0, length);
+                    return;
+                }
+
+                generator.writeStartObject();
+                generator.writeFieldName(JSON_VALUE_FIELD);
+                if (length == -1) {
+                    generator.writeNull();
+                } else {
+                    generator.writeUTF8String(this.persistBuffer, 0, length);
+                }
+                if (expiresAt != NO_EXPIRY) {
+                    generator.writeNumberField(JSON_EXPIRES_AT_FIELD, expiresAt);
+                }
+                if (version != NO_VERSION) {
+                    generator.writeNumberField(JSON_VERSION_FIELD, version);
+                }
+                generator.writeEndObject();
+            });
+            generator.writeEndObject();
+            generator.flush();
+            output.getFD().sync();
+        }
+    }
+
+    private void writeBlockSnapshot() throws IOException {
+        try (BlockFile.Writer writer = new BlockFile.Writer(this.temporaryFile, this.compressionLevel, sampleDictionary(), this.compressionStats)) {
+            forEachSlot((index, slot, arena) -> {
+                int keyLength = index.copyKeyAt(slot, this.persistKeyBuffer);
+                long handle = index.valueAt(slot);
+                int valueLength = arena.read(handle, this.persistBuffer);
+                writer.append(this.persistKeyBuffer, keyLength, arena.expiresAt(handle), arena.version(handle),
+                        this.persistBuffer, valueLength);
+            });
+        }
+    }
+
+    /**
+     * Builds a preset dictionary from the beginnings of values spread evenly over the storage.
+     */
+    private byte[] sampleDictionary() throws IOException {
+        int stride = Math.max(1, size() / (BlockFile.DICTIONARY_SIZE / BlockFile.DICTIONARY_SAMPLE_SIZE));
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(BlockFile.DICTIONARY_SIZE);
+        int[] visited = new int[1];
+        forEachSlot((index, slot, arena) -> {
+            if (visited[0]++ % stride != 0 || dictionary.size() >= BlockFile.DICTIONARY_SIZE) {
+                return;
+            }
+            int length = arena.read(index.valueAt(slot), this.persistBuffer);
+            if (length > 0) {
+                dictionary.write(this.persistBuffer, 0, Math.min(length, BlockFile.DICTIONARY_SAMPLE_SIZE));
+            }
+        });
+        return dictionary.toByteArray();
+    }
+
+    /**
+     * Segments are picked by the high bits of the hash, the index of the segment uses the low bits.
+     */
+    private Segment segmentFor(int hash) {
+        return this.segments[(hash >>> this.segmentShift) & (this.segments.length - 1)];
+    }
+}
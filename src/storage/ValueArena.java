@@ -0,0 +1,252 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * Slab allocator keeping UTF-8 encoded values in direct (off-heap) memory.
+ * <p>
+ * Values are carved out of fixed-size slabs and addressed by a handle that packs the slab index and the
+ * offset within the slab. Chunks are rounded up to size classes (four per power of two) and freed chunks
+ * are reused for values of the same class, so the heap only ever holds the handles. Each chunk starts with
+ * a header holding the value length, the time the value expires at, its version and the time it was
+ * written. A chunk without a value is a tombstone, which records the version of a delete.
+ * <p>
+ * The arena is not thread-safe; {@link KVStorage} guards each arena with the lock of its segment.
+ */
+class ValueArena {
+    static final int SLAB_SIZE = 256 * 1024;
+    /**
+     * Expiry time of values that never expire.
+     */
+    static final long NO_EXPIRY = 0;
+    /**
+     * Version of values written without one.
+     */
+    static final long NO_VERSION = 0;
+    /**
+     * Write time of values loaded from the storage file, which count as older than any write made since.
+     */
+    static final long NO_WRITE_TIME = 0;
+
+    private static final int TOMBSTONE_LENGTH = -1;
+    private static final int EXPIRY_OFFSET = Integer.BYTES;
+    private static final int VERSION_OFFSET = EXPIRY_OFFSET + Long.BYTES;
+    private static final int WRITTEN_AT_OFFSET = VERSION_OFFSET + Long.BYTES;
+    private static final int HEADER_BYTES = WRITTEN_AT_OFFSET + Long.BYTES;
+    private static final int DIGESTED_HEADER_BYTES = Integer.BYTES + 2 * Long.BYTES;
+    private static final int MIN_CHUNK_SHIFT = 4;
+    private static final int MIN_CHUNK_SIZE = 1 << MIN_CHUNK_SHIFT;
+    private static final int CLASSES_PER_DOUBLING = 4;
+    private static final int CLASS_COUNT = sizeClassOf(SLAB_SIZE) + 1;
+
+    private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+    private final long[][] freeLists = new long[CLASS_COUNT][];
+    private final int[] freeCounts = new int[CLASS_COUNT];
+    private int slabOffset = SLAB_SIZE;
+    private long usedBytes;
+
+    /**
+     * Copies the value into the arena.
+     *
+     * @param value     the value, null to allocate a tombstone
+     * @param expiresAt time in milliseconds since the epoch after which the value is expired, NO_EXPIRY if
+     *                  it never expires
+     * @param writtenAt time in milliseconds since the epoch the value was written at, NO_WRITE_TIME if unknown
+     * @return handle to pass to {@link #read(long)} and {@link #free(long)}
+     */
+    long allocate(byte[] value, long expiresAt, long version, long writtenAt) {
+        int length = value == null ? 0 : value.length;
+        int sizeClass = sizeClassOf(HEADER_BYTES + length);
+        if (sizeClass >= CLASS_COUNT) {
+            throw new IllegalArgumentException("value cannot be larger than " + (SLAB_SIZE - HEADER_BYTES) + " bytes");
+        }
+
+        long handle;
+        if (freeCounts[sizeClass] > 0) {
+            handle = freeLists[sizeClass][--freeCounts[sizeClass]];
+        } else {
+            int chunkSize = chunkSizeOf(sizeClass);
+            if (slabOffset + chunkSize > SLAB_SIZE) {
+                slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+                slabOffset = 0;
+            }
+            handle = ((long) (slabs.size() - 1) << 32) | slabOffset;
+            slabOffset += chunkSize;
+        }
+
+        ByteBuffer slab = slabs.get(slabOf(handle));
+        slab.putInt(offsetOf(handle), value == null ? TOMBSTONE_LENGTH : value.length);
+        slab.putLong(offsetOf(handle) + EXPIRY_OFFSET, expiresAt);
+        slab.putLong(offsetOf(handle) + VERSION_OFFSET, version);
+        slab.putLong(offsetOf(handle) + WRITTEN_AT_OFFSET, writtenAt);
+        if (value != null) {
+            slab.position(offsetOf(handle) + HEADER_BYTES);
+            slab.put(value);
+        }
+        usedBytes += chunkSizeOf(sizeClass);
+        return handle;
+    }
+
+    /**
+     * @return the value, null for a tombstone
+     */
+    byte[] read(long handle) {
+        // Readers share the slab, so they work on a duplicate to leave the slab's position untouched
+        ByteBuffer slab = slabs.get(slabOf(handle)).duplicate();
+        int offset = offsetOf(handle);
+        int length = slab.getInt(offset);
+        if (length == TOMBSTONE_LENGTH) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        slab.position(offset + HEADER_BYTES);
+        slab.get(value);
+        return value;
+    }
+
+    /**
+     * Copies the value into the given buffer, which must be large enough to hold it.
+     *
+     * @return the length of the value, -1 for a tombstone
+     */
+    int read(long handle, byte[] destination) {
+        ByteBuffer slab = slabs.get(slabOf(handle)).duplicate();
+        int offset = offsetOf(handle);
+        int length = slab.getInt(offset);
+        if (length == TOMBSTONE_LENGTH) {
+            return -1;
+        }
+        slab.position(offset + HEADER_BYTES);
+        slab.get(destination, 0, length);
+        return length;
+    }
+
+    int length(long handle) {
+        return Math.max(0, slabs.get(slabOf(handle)).getInt(offsetOf(handle)));
+    }
+
+    boolean isTombstone(long handle) {
+        return slabs.get(slabOf(handle)).getInt(offsetOf(handle)) == TOMBSTONE_LENGTH;
+    }
+
+    long version(long handle) {
+        return slabs.get(slabOf(handle)).getLong(offsetOf(handle) + VERSION_OFFSET);
+    }
+
+    long writtenAt(long handle) {
+        return slabs.get(slabOf(handle)).getLong(offsetOf(handle) + WRITTEN_AT_OFFSET);
+    }
+
+    /**
+     * Checksums the key together with the value, its expiry time, version and whether it is a tombstone,
+     * reading the value straight from the slab. Equal entries have equal digests on every server; as each
+     * server sets the expiry of its tombstones itself, it is left out for them, and so is the local write time.
+     *
+     * @return 64-bit digest made of a CRC-32 and a CRC-32C, never 0
+     */
+    long digest(long handle, byte[] key, int keyLength) {
+        ByteBuffer slab = slabs.get(slabOf(handle)).duplicate();
+        int offset = offsetOf(handle);
+        boolean tombstone = isTombstone(handle);
+        ByteBuffer header = ByteBuffer.allocate(DIGESTED_HEADER_BYTES);
+        header.putInt(slab.getInt(offset));
+        header.putLong(tombstone ? NO_EXPIRY : slab.getLong(offset + EXPIRY_OFFSET));
+        header.putLong(slab.getLong(offset + VERSION_OFFSET));
+        header.flip();
+        slab.limit(offset + HEADER_BYTES + length(handle));
+        slab.position(offset + HEADER_BYTES);
+
+        CRC32 high = new CRC32();
+        CRC32C low = new CRC32C();
+        high.update(key, 0, keyLength);
+        low.update(key, 0, keyLength);
+        high.update(header.duplicate());
+        low.update(header);
+        high.update(slab.duplicate());
+        low.update(slab);
+        long digest = (high.getValue() << 32) | low.getValue();
+        return digest == 0 ? 1 : digest;
+    }
+
+    long expiresAt(long handle) {
+        return slabs.get(slabOf(handle)).getLong(offsetOf(handle) + EXPIRY_OFFSET);
+    }
+
+    boolean isExpired(long handle, long now) {
+        long expiresAt = expiresAt(handle);
+        return expiresAt != NO_EXPIRY && expiresAt <= now;
+    }
+
+    void free(long handle) {
+        int sizeClass = sizeClassOf(HEADER_BYTES + length(handle));
+        if (freeLists[sizeClass] == null) {
+            freeLists[sizeClass] = new long[16];
+        } else if (freeCounts[sizeClass] == freeLists[sizeClass].length) {
+            freeLists[sizeClass] = Arrays.copyOf(freeLists[sizeClass], freeLists[sizeClass].length * 2);
+        }
+        freeLists[sizeClass][freeCounts[sizeClass]++] = handle;
+        usedBytes -= chunkSizeOf(sizeClass);
+    }
+
+    /**
+     * Releases all slabs; every handle handed out before becomes invalid.
+     */
+    void clear() {
+        slabs.clear();
+        Arrays.fill(freeLists, null);
+        Arrays.fill(freeCounts, 0);
+        slabOffset = SLAB_SIZE;
+        usedBytes = 0;
+    }
+
+    /**
+     * @return bytes occupied by live chunks
+     */
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return bytes of direct memory held by the arena
+     */
+    long reservedBytes() {
+        return (long) slabs.size() * SLAB_SIZE;
+    }
+
+    private static int slabOf(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offsetOf(long handle) {
+        return (int) handle;
+    }
+
+    /**
+     * Size classes start at 16 bytes and then step by a quarter of the enclosing power of two
+     * (20, 24, 28, 32, 40, 48, ...), which bounds the internal fragmentation to 25%.
+     */
+    private static int sizeClassOf(int size) {
+        if (size <= MIN_CHUNK_SIZE) {
+            return 0;
+        }
+        int shift = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int base = 1 << shift;
+        int step = base / CLASSES_PER_DOUBLING;
+        int stepsAboveBase = (size - base + step - 1) / step;
+        return 1 + (shift - MIN_CHUNK_SHIFT) * CLASSES_PER_DOUBLING + stepsAboveBase - 1;
+    }
+
+    private static int chunkSizeOf(int sizeClass) {
+        if (sizeClass == 0) {
+            return MIN_CHUNK_SIZE;
+        }
+        int shift = (sizeClass - 1) / CLASSES_PER_DOUBLING + MIN_CHUNK_SHIFT;
+        int stepsAboveBase = (sizeClass - 1) % CLASSES_PER_DOUBLING + 1;
+        int base = 1 << shift;
+        return base + stepsAboveBase * (base / CLASSES_PER_DOUBLING);
+    }
+}
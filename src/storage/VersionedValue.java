@@ -0,0 +1,47 @@
+package storage;
+
+/**
+ * A value as returned by {@link KVStorage#getVersioned(String)}.
+ */
+public class VersionedValue {
+    private final byte[] value;
+    private final long version;
+    private final long expiresAt;
+    private final long writtenAt;
+
+    public VersionedValue(byte[] value, long version, long expiresAt, long writtenAt) {
+        this.value = value;
+        this.version = version;
+        this.expiresAt = expiresAt;
+        this.writtenAt = writtenAt;
+    }
+
+    /**
+     * @return the UTF-8 encoded value, null if the key was deleted
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * @return the version of the value, KVStorage.NO_VERSION if it was written without one
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the time the value expires at, KVStorage.NO_EXPIRY if it never expires
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return the time this server wrote the value at, KVStorage.NO_WRITE_TIME if it was loaded from the
+     * storage file
+     */
+    public long getWrittenAt() {
+        return writtenAt;
+    }
+}
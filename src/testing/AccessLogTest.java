@@ -0,0 +1,98 @@
+package testing;
+
+import app_kvServer.AccessLog;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage.StatusType;
+import shared.messages.KVMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AccessLogTest {
+    private static final String ACCESS_LOG_FILE = "access_log_test.log";
+
+    @BeforeClass
+    public static void beforeAll() {
+        try {
+            new LogSetup("logs/testing/test.log", Level.ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Before
+    @After
+    public void deleteLog() {
+        new File(ACCESS_LOG_FILE).delete();
+    }
+
+    @Test
+    public void testEntriesAreWrittenOnClose() throws IOException {
+        AccessLog accessLog = new AccessLog(ACCESS_LOG_FILE, AccessLog.DEFAULT_CAPACITY, 1);
+        for (int i = 0; i < 100; i++) {
+            accessLog.record("/127.0.0.1:1234", new KVMessage("key" + i, StatusType.GET), StatusType.GET_ERROR, 1000);
+        }
+        accessLog.close();
+
+        List<String> lines = readLog();
+        assertEquals(100, lines.size());
+        assertTrue(lines.get(0).endsWith(" /127.0.0.1:1234 GET key0 GET_ERROR 1us"));
+        assertTrue(lines.get(99).contains(" GET key99 "));
+    }
+
+    @Test
+    public void testLongValuesAreTruncated() throws IOException {
+        AccessLog accessLog = new AccessLog(ACCESS_LOG_FILE, AccessLog.DEFAULT_CAPACITY, 1);
+        byte[] value = "a".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        accessLog.record("client", new KVMessage("key", value, StatusType.PUT), StatusType.PUT_SUCCESS,
+                TimeUnit.MILLISECONDS.toNanos(2));
+        accessLog.record("client", new KVMessage("short", "multi\nline".getBytes(StandardCharsets.UTF_8), StatusType.PUT),
+                null, 0);
+        accessLog.close();
+
+        List<String> lines = readLog();
+        assertEquals(2, lines.size());
+        String prefix = "a".repeat(AccessLog.MAX_LOGGED_VALUE_BYTES);
+        assertTrue(lines.get(0).endsWith(" PUT key 1000 \"" + prefix + "...\" PUT_SUCCESS 2000us"));
+        assertTrue(lines.get(1).endsWith(" PUT short 10 \"multi?line\" - 0us"));
+    }
+
+    @Test
+    public void testEntriesAreDroppedWhenTheBufferIsFull() throws IOException {
+        AccessLog accessLog = new AccessLog(ACCESS_LOG_FILE, 4, 1);
+        for (int i = 0; i < 100_000; i++) {
+            accessLog.record("client", new KVMessage("key", StatusType.GET), StatusType.GET_ERROR, 0);
+        }
+        accessLog.close();
+
+        long written = readLog().stream().filter(line -> line.contains(" GET key ")).count();
+        assertEquals(100_000, written + accessLog.dropped());
+    }
+
+    @Test
+    public void testSampling() throws IOException {
+        AccessLog accessLog = new AccessLog(ACCESS_LOG_FILE, AccessLog.DEFAULT_CAPACITY, 10);
+        for (int i = 0; i < 1000; i++) {
+            accessLog.record("client", new KVMessage("key", StatusType.GET), StatusType.GET_ERROR, 0);
+        }
+        accessLog.close();
+
+        int written = readLog().size();
+        assertTrue("wrote " + written + " of 1000 entries", written > 20 && written < 300);
+    }
+
+    private static List<String> readLog() throws IOException {
+        return Files.readAllLines(new File(ACCESS_LOG_FILE).toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,179 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class AdmissionControlTest {
+    private static final int ECS_PORT = freePort();
+    private static final int SERVER_PORT = freePort();
+
+    private static ECSClient ecsClient;
+    private static KVServer kvServer;
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        kvServer = startServer(SERVER_PORT, ECS_PORT, "admission_control_test");
+        assertTrue(waitFor(() -> !kvServer.getMetadata().isEmpty(), 2000));
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServer);
+    }
+
+    @After
+    public void removeLimits() {
+        kvServer.setAdmissionLimits(0, 0, 0);
+    }
+
+    private static KVMessage request(SocketMessenger socketMessenger, KVMessage request) throws IOException {
+        socketMessenger.sendMessage(request);
+        return socketMessenger.receiveMessage();
+    }
+
+    /**
+     * @return a connection the server admitted, once the connections of earlier tests were noticed as closed
+     */
+    private static Socket admittedConnection() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (true) {
+            Socket socket = new Socket("localhost", SERVER_PORT);
+            KVMessage response = request(new SocketMessenger(socket), new KVMessage("absent", IKVMessage.StatusType.GET));
+            if (response.getStatus() != IKVMessage.StatusType.SERVER_BUSY) {
+                return socket;
+            }
+            socket.close();
+            assertTrue("connection should be admitted", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static double rejected() {
+        return kvServer.collectStats().get("requests_rejected_total");
+    }
+
+    @Test
+    public void testConnectionsBeyondTheLimitAreRefused() throws Exception {
+        kvServer.setAdmissionLimits(1, 0, 0);
+        try (Socket admitted = admittedConnection();
+             Socket refused = new Socket("localhost", SERVER_PORT)) {
+            SocketMessenger admittedMessenger = new SocketMessenger(admitted);
+            double rejectedBefore = rejected();
+            SocketMessenger refusedMessenger = new SocketMessenger(refused);
+            assertEquals(IKVMessage.StatusType.SERVER_BUSY, request(refusedMessenger, new KVMessage("absent", IKVMessage.StatusType.GET)).getStatus());
+            // the server closes the connection it refused
+            try {
+                refusedMessenger.receiveMessage();
+                fail("connection should be closed");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(rejectedBefore + 1, rejected(), 0);
+
+            // the admitted connection keeps being served
+            assertEquals(IKVMessage.StatusType.GET_ERROR, request(admittedMessenger, new KVMessage("absent", IKVMessage.StatusType.GET)).getStatus());
+        }
+    }
+
+    @Test
+    public void testRingTrafficIsNotLimited() throws Exception {
+        kvServer.setAdmissionLimits(1, 0, 0);
+        // the admitted connection takes up the only slot while the ring requests are sent
+        Socket admitted = admittedConnection();
+        try (Socket ecs = new Socket("localhost", SERVER_PORT)) {
+            SocketMessenger ecsMessenger = new SocketMessenger(ecs);
+            assertEquals(IKVMessage.StatusType.STATS_SUCCESS, request(ecsMessenger, new KVMessage(IKVMessage.StatusType.STATS)).getStatus());
+            assertEquals(IKVMessage.StatusType.KEYRANGE_SUCCESS, request(ecsMessenger, new KVMessage(IKVMessage.StatusType.KEYRANGE)).getStatus());
+        } finally {
+            admitted.close();
+        }
+    }
+
+    @Test
+    public void testConnectionSendingAnOverlongMessageIsClosed() throws Exception {
+        try (Socket socket = new Socket("localhost", SERVER_PORT)) {
+            socket.setSoTimeout(2000);
+            byte[] chunk = new byte[8192];
+            Arrays.fill(chunk, (byte) 'a');
+            try {
+                for (int sent = 0; sent <= KVMessage.MAX_REQUEST_BYTE_LENGTH; sent += chunk.length) {
+                    socket.getOutputStream().write(chunk);
+                }
+            } catch (IOException e) {
+                // the server may close the connection before all of it was sent
+            }
+            try {
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (SocketException e) {
+                // reset by the server, which did not read the rest of the message
+            }
+        }
+    }
+
+    @Test
+    public void testClosedConnectionsAreNoLongerCounted() throws Exception {
+        kvServer.setAdmissionLimits(1, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            // admitted once the server noticed that the previous connection was closed
+            admittedConnection().close();
+        }
+        assertTrue(waitFor(() -> kvServer.collectStats().get("requests_in_flight") == 0, 1000));
+        assertEquals(0, kvServer.collectStats().get("queued_bytes"), 0);
+    }
+
+    @Test
+    public void testClientBacksOffWhileTheServerIsBusy() throws Exception {
+        kvServer.setAdmissionLimits(1, 0, 0);
+        Socket admitted = admittedConnection();
+
+        KVStore kvClient = new KVStore("localhost", SERVER_PORT);
+        kvClient.setRequestTimeout(5000);
+        kvClient.connect();
+        double rejectedBefore = rejected();
+        Thread release = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+                admitted.close();
+            } catch (InterruptedException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        release.start();
+
+        // refused while the other connection is open, then retried until it closed
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put("admitted", "value").getStatus());
+        release.join();
+        assertTrue(rejected() > rejectedBefore);
+        assertEquals("value", kvClient.get("admitted").getValue());
+        kvClient.disconnect();
+    }
+}
@@ -0,0 +1,121 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+import storage.KVStorage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class AntiEntropyTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 2);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "anti_entropy_test");
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    private static KVServer coordinatorOf(String key) {
+        return kvServers[0].isCoordinatorFor(key) ? kvServers[0] : kvServers[1];
+    }
+
+    private static KVServer replicaOf(String key) {
+        return kvServers[0].isCoordinatorFor(key) ? kvServers[1] : kvServers[0];
+    }
+
+    private static int repairAll() throws InterruptedException {
+        int repaired = 0;
+        for (KVServer kvServer : kvServers) {
+            repaired += kvServer.repairReplicas();
+        }
+        return repaired;
+    }
+
+    @Test
+    public void testRepairSendsOnlyDifferingKeys() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+        for (int i = 0; i < 50; i++) {
+            kvClient.put("entropy" + i, "value" + i);
+        }
+        assertEquals(0, repairAll());
+
+        // the replicas missed an update, a delete and a delete of a key only they still hold
+        replicaOf("entropy1").putKVBytes("entropy1", "stale".getBytes(StandardCharsets.UTF_8));
+        replicaOf("entropy2").putKVBytes("entropy2", null);
+        replicaOf("stray").putKVBytes("stray", "value".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(3, repairAll());
+        assertEquals("value1", replicaOf("entropy1").getKV("entropy1"));
+        assertEquals("value2", replicaOf("entropy2").getKV("entropy2"));
+        assertFalse(replicaOf("stray").inStorage("stray"));
+        assertEquals(0, repairAll());
+    }
+
+    @Test
+    public void testRepairIsSkippedIfTheReplicaChangedSinceListingTheKey() throws Exception {
+        KVServer replica = replicaOf("overtaken");
+        replica.putKVBytes("overtaken", "new".getBytes(StandardCharsets.UTF_8));
+        // a repair based on a listing from before the replica had the key, overtaken by a replicated write
+        try (Socket socket = new Socket("localhost", replica.getPort())) {
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage("overtaken", KVStorage.NO_EXPIRY,
+                    "0 old".getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.SYNC_PUT));
+            assertEquals(IKVMessage.StatusType.PUT_ERROR, socketMessenger.receiveMessage().getStatus());
+        }
+        assertEquals("new", replica.getKV("overtaken"));
+        replica.putKVBytes("overtaken", null);
+    }
+
+    @Test
+    public void testRepairFetchesNewerVersionFromReplica() throws Exception {
+        coordinatorOf("versioned").putVersionedKVBytes("versioned", "old".getBytes(StandardCharsets.UTF_8), 1);
+        replicaOf("versioned").putVersionedKVBytes("versioned", "new".getBytes(StandardCharsets.UTF_8), 2);
+
+        assertEquals(1, repairAll());
+        assertEquals("new", coordinatorOf("versioned").getKV("versioned"));
+        assertEquals(0, repairAll());
+    }
+}
@@ -0,0 +1,144 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class AtomicOperationsTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 2, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "atomic_operations_test");
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    private static KVStore client() throws IOException {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+        return kvClient;
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        int clients = 4;
+        int increments = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            futures.add(executor.submit(() -> {
+                KVStore kvClient = client();
+                for (int j = 0; j < increments; j++) {
+                    assertEquals(IKVMessage.StatusType.INCREMENT_SUCCESS, kvClient.increment("counter", 1).getStatus());
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        KVStore kvClient = client();
+        assertEquals(String.valueOf(clients * increments), kvClient.get("counter").getValue());
+        IKVMessage response = kvClient.increment("counter", -clients * increments - 5);
+        assertEquals(IKVMessage.StatusType.INCREMENT_SUCCESS, response.getStatus());
+        assertEquals("-5", response.getValue());
+
+        // the result is replicated like a PUT
+        for (KVServer kvServer : kvServers) {
+            assertEquals("-5", new String(kvServer.getKVBytes("counter"), StandardCharsets.UTF_8));
+        }
+
+        kvClient.put("text", "not a number");
+        assertEquals(IKVMessage.StatusType.PUT_ERROR, kvClient.increment("text", 1).getStatus());
+        assertEquals("not a number", kvClient.get("text").getValue());
+    }
+
+    @Test
+    public void testAppend() throws Exception {
+        KVStore kvClient = client();
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.append("list", "a").getStatus());
+        assertEquals(IKVMessage.StatusType.PUT_UPDATE, kvClient.append("list", ",b").getStatus());
+        assertEquals(IKVMessage.StatusType.PUT_UPDATE, kvClient.append("list", ",c").getStatus());
+        assertEquals("a,b,c", kvClient.get("list").getValue());
+    }
+
+    @Test
+    public void testCompareAndSetValue() throws Exception {
+        KVStore kvClient = client();
+        assertEquals(IKVMessage.StatusType.CAS_SUCCESS, kvClient.compareAndSet("cas", null, "first").getStatus());
+        assertEquals(IKVMessage.StatusType.CAS_FAILED, kvClient.compareAndSet("cas", null, "again").getStatus());
+
+        IKVMessage response = kvClient.compareAndSet("cas", "stale", "second");
+        assertEquals(IKVMessage.StatusType.CAS_FAILED, response.getStatus());
+        assertEquals("first", response.getValue());
+        assertEquals("first", kvClient.get("cas").getValue());
+
+        assertEquals(IKVMessage.StatusType.CAS_SUCCESS, kvClient.compareAndSet("cas", "first", "second").getStatus());
+        assertEquals("second", kvClient.get("cas").getValue());
+    }
+
+    @Test
+    public void testCompareAndSetVersion() throws Exception {
+        KVStore kvClient = client();
+        KVMessage created = (KVMessage) kvClient.compareAndSet("casv", 0, "first");
+        assertEquals(IKVMessage.StatusType.CAS_SUCCESS, created.getStatus());
+        assertTrue(created.getParameter() > 0);
+
+        KVMessage stale = (KVMessage) kvClient.compareAndSet("casv", 0, "lost");
+        assertEquals(IKVMessage.StatusType.CAS_FAILED, stale.getStatus());
+        assertEquals(created.getParameter(), stale.getParameter());
+        assertEquals("first", stale.getValue());
+
+        KVMessage updated = (KVMessage) kvClient.compareAndSet("casv", created.getParameter(), "second");
+        assertEquals(IKVMessage.StatusType.CAS_SUCCESS, updated.getStatus());
+        assertTrue(updated.getParameter() > created.getParameter());
+        assertEquals("second", kvClient.get("casv", KVStore.Consistency.ALL).getValue());
+    }
+}
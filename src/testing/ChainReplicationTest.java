@@ -0,0 +1,114 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage.StatusType;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class ChainReplicationTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(3);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, SERVER_PORTS.length, ReplicationMode.CHAIN);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "chain_replication_test");
+        }
+
+        // wait until every server received the metadata containing all of them
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    @Test
+    public void testAcknowledgedPutIsStoredOnWholeChain() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(StatusType.PUT_SUCCESS, kvClient.put("chained" + i, "value" + i).getStatus());
+            for (KVServer kvServer : kvServers) {
+                assertEquals("value" + i, kvServer.getKV("chained" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testTailReadsReturnLatestWrite() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[1], KVStore.ReadPolicy.TAIL);
+        kvClient.connect();
+
+        for (int i = 0; i < 20; i++) {
+            kvClient.put("tail", "value" + i);
+            assertEquals("value" + i, kvClient.get("tail").getValue());
+        }
+    }
+
+    @Test
+    public void testConcurrentWritesLeaveReplicasIdentical() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            int writer = thread;
+            futures.add(executor.submit(() -> {
+                KVStore kvClient = new KVStore("localhost", SERVER_PORTS[writer % SERVER_PORTS.length]);
+                kvClient.connect();
+                for (int i = 0; i < 50; i++) {
+                    kvClient.put("contended" + i % 5, "writer" + writer + "-" + i);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        for (int key = 0; key < 5; key++) {
+            String expected = kvServers[0].getKV("contended" + key);
+            assertNotNull(expected);
+            for (KVServer kvServer : kvServers) {
+                assertEquals(expected, kvServer.getKV("contended" + key));
+            }
+        }
+    }
+}
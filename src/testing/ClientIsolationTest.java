@@ -0,0 +1,144 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.Metrics;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class ClientIsolationTest {
+    private static final int ECS_PORT = freePort();
+    private static final int SERVER_PORT = freePort();
+
+    private static ECSClient ecsClient;
+    private static KVServer kvServer;
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        kvServer = startServer(SERVER_PORT, ECS_PORT, "client_isolation_test");
+        assertTrue(waitFor(() -> !kvServer.getMetadata().isEmpty(), 2000));
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServer);
+    }
+
+    @After
+    public void removeLimits() {
+        kvServer.setClientLimits(0, 0);
+    }
+
+    /**
+     * @param host loopback address the client connects from, which is its identity on the server
+     */
+    private static Socket connectFrom(String host) throws IOException {
+        return new Socket("localhost", SERVER_PORT, InetAddress.getByName(host), 0);
+    }
+
+    private static IKVMessage.StatusType get(SocketMessenger socketMessenger) throws IOException {
+        socketMessenger.sendMessage(new KVMessage("absent", IKVMessage.StatusType.GET));
+        return socketMessenger.receiveMessage().getStatus();
+    }
+
+    @Test
+    public void testNoisyClientIsThrottledWithoutAffectingOthers() throws Exception {
+        kvServer.setClientLimits(5, 0);
+        int busy = 0;
+        try (Socket noisy = connectFrom("127.0.0.2")) {
+            SocketMessenger socketMessenger = new SocketMessenger(noisy);
+            for (int i = 0; i < 20; i++) {
+                if (get(socketMessenger) == IKVMessage.StatusType.SERVER_BUSY) {
+                    busy++;
+                }
+            }
+        }
+        // a burst of five and about five more per second
+        assertTrue("noisy client should be throttled, got " + busy, busy >= 10);
+
+        try (Socket quiet = connectFrom("127.0.0.3")) {
+            SocketMessenger socketMessenger = new SocketMessenger(quiet);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(IKVMessage.StatusType.GET_ERROR, get(socketMessenger));
+            }
+        }
+
+        Metrics metrics = kvServer.collectStats();
+        assertEquals(20, metrics.get("client_requests_total", "127.0.0.2"), 0);
+        assertEquals(busy, metrics.get("client_throttled_total", "127.0.0.2"), 0);
+        assertEquals(5, metrics.get("client_requests_total", "127.0.0.3"), 0);
+        assertEquals(0, metrics.get("client_throttled_total", "127.0.0.3"), 0);
+        assertTrue(metrics.toPrometheus().contains("kv_client_requests_total{client=\"127.0.0.3\"} 5"));
+    }
+
+    @Test
+    public void testClientsTakeTurns() throws Exception {
+        kvServer.setClientLimits(0, 1);
+        long end = System.currentTimeMillis() + 500;
+        AtomicInteger noisyRequests = new AtomicInteger();
+        List<Thread> noisy = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                try (Socket socket = connectFrom("127.0.0.4")) {
+                    SocketMessenger socketMessenger = new SocketMessenger(socket);
+                    while (System.currentTimeMillis() < end) {
+                        assertEquals(IKVMessage.StatusType.GET_ERROR, get(socketMessenger));
+                        noisyRequests.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            noisy.add(thread);
+        }
+
+        // the single connection of the quiet client is not starved by the four of the noisy one
+        int quietRequests = 0;
+        try (Socket quiet = connectFrom("127.0.0.5")) {
+            SocketMessenger socketMessenger = new SocketMessenger(quiet);
+            while (System.currentTimeMillis() < end) {
+                assertEquals(IKVMessage.StatusType.GET_ERROR, get(socketMessenger));
+                quietRequests++;
+            }
+        }
+        for (Thread thread : noisy) {
+            thread.join();
+        }
+        assertTrue(quietRequests > 0 && noisyRequests.get() > 0);
+        assertTrue("quiet client got " + quietRequests + " turns, noisy " + noisyRequests.get(),
+                quietRequests * 4 >= noisyRequests.get() / 2);
+
+        // all slots were handed back
+        try (Socket socket = connectFrom("127.0.0.5")) {
+            assertEquals(IKVMessage.StatusType.GET_ERROR, get(new SocketMessenger(socket)));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package testing;
+
+import org.junit.Before;
+import org.junit.Test;
+import storage.CompactKeyIndex;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static storage.CompactKeyIndex.MISSING;
+
+public class CompactKeyIndexTest {
+    private CompactKeyIndex index;
+
+    @Before
+    public void beforeEach() {
+        index = new CompactKeyIndex();
+    }
+
+    private long get(String key) {
+        byte[] bytes = CompactKeyIndex.encode(key);
+        return index.get(bytes, CompactKeyIndex.hash(bytes));
+    }
+
+    private long put(String key, long value) {
+        byte[] bytes = CompactKeyIndex.encode(key);
+        return index.put(bytes, CompactKeyIndex.hash(bytes), value);
+    }
+
+    private long remove(String key) {
+        byte[] bytes = CompactKeyIndex.encode(key);
+        return index.remove(bytes, CompactKeyIndex.hash(bytes));
+    }
+
+    @Test
+    public void testGetReturnsMissingForUnknownKey() {
+        assertEquals(MISSING, get("key"));
+    }
+
+    @Test
+    public void testPutReturnsPreviousValue() {
+        assertEquals(MISSING, put("key", 1));
+        assertEquals(1, put("key", 2));
+        assertEquals(2, get("key"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testRemoveLeavesOtherKeysReachable() {
+        put("a", 1);
+        put("b", 2);
+        assertEquals(1, remove("a"));
+        assertEquals(MISSING, remove("a"));
+        assertEquals(MISSING, get("a"));
+        assertEquals(2, get("b"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testEmptyAndMaxLengthKeys() {
+        String maxLengthKey = "k".repeat(CompactKeyIndex.MAX_KEY_LENGTH);
+        put("", 1);
+        put(maxLengthKey, 2);
+        assertEquals(1, get(""));
+        assertEquals(2, get(maxLengthKey));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncodeRejectsLongKeys() {
+        CompactKeyIndex.encode("k".repeat(CompactKeyIndex.MAX_KEY_LENGTH + 1));
+    }
+
+    @Test
+    public void testGrowsAndMatchesHashMapUnderRandomOperations() {
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(419);
+        for (int i = 0; i < 50_000; i++) {
+            String key = "key" + random.nextInt(5_000);
+            if (random.nextInt(4) == 0) {
+                Long removed = expected.remove(key);
+                assertEquals(removed == null ? MISSING : removed, remove(key));
+            } else {
+                Long previous = expected.put(key, (long) i);
+                assertEquals(previous == null ? MISSING : previous, put(key, i));
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), get(entry.getKey()));
+        }
+
+        int occupied = 0;
+        for (int slot = 0; slot < index.slotCount(); slot++) {
+            if (index.isOccupied(slot)) {
+                occupied++;
+                assertEquals((long) expected.get(index.keyAt(slot)), index.valueAt(slot));
+            }
+        }
+        assertEquals(expected.size(), occupied);
+    }
+}
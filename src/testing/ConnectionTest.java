@@ -16,12 +16,14 @@ import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
 
 
 public class ConnectionTest {
     private static KVServer kvServer;
     private static ECSClient ecsClient;
-    private static final int KV_SERVER_PORT = 50000;
+    private static final int KV_SERVER_PORT = freePort();
 
     @BeforeClass
     public static void beforeAll() throws InterruptedException {
@@ -44,8 +46,7 @@ public class ConnectionTest {
 
     @AfterClass
     public static void afterAll() {
-        kvServer.close();
-        ecsClient.stop();
+        shutDown(ecsClient, kvServer);
     }
 
 
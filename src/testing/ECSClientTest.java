@@ -93,5 +93,24 @@ public class ECSClientTest {
         String actual = ecsClient.buildMetadata();
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testBuildReadMetadataIncludesReplicatedRanges() throws IOException {
+        ECSClient replicatingEcsClient = new ECSClient(InetAddress.getByName("localhost"), 6001, 2);
+        replicatingEcsClient.addNode("localhost", 7000); // hashes to 13e0e6d7567a2fc9a167633e7bf6366e
+        replicatingEcsClient.addNode("localhost", 9000); // hashes to 838bcdaf3ed53ea3f32c338861088ddb
+        replicatingEcsClient.addNode("localhost", 8080); // hashes to 9f5ffc7a10e0bad054458b089947ce2f
+
+        String expected = "9f5ffc7a10e0bad054458b089947ce2f" + "," // hash of localhost:8080 (predecessor)
+                + "838bcdaf3ed53ea3f32c338861088dda" + "," // hash of localhost:9000 - 1
+                + "localhost:7000" + ";"
+                + "13e0e6d7567a2fc9a167633e7bf6366e" + "," // hash of localhost:7000 (predecessor)
+                + "9f5ffc7a10e0bad054458b089947ce2e" + "," // hash of localhost:8080 - 1
+                + "localhost:9000" + ";"
+                + "838bcdaf3ed53ea3f32c338861088ddb" + "," // hash of localhost:9000 (predecessor)
+                + "13e0e6d7567a2fc9a167633e7bf6366d" + "," // hash of localhost:7000 - 1 (wrap around)
+                + "localhost:8080" + ";";
+        assertEquals(expected, replicatingEcsClient.buildReadMetadata());
+    }
 }
 
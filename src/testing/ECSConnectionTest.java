@@ -18,24 +18,26 @@ import shared.messages.SocketMessenger;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
 
 
 public class ECSConnectionTest {
     private static ECSClient ecs;
     private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
-    private static final int PORT = 50005;
+    private static final int PORT = freePort();
 
     @BeforeClass
     public static void beforeAll() throws IOException {
         new LogSetup("logs/testing/test.log", Level.WARN);
-        ecs = new ECSClient(ADDRESS, 50005);
+        ecs = new ECSClient(ADDRESS, PORT);
         Thread ecsThread = new Thread(ecs);
         ecsThread.start();
     }
 
     @AfterClass
     public static void afterAll() {
-        ecs.stop();
+        shutDown(ecs);
     }
 
     @Test
@@ -7,13 +7,14 @@ import org.junit.*;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.util.List;
 
 public class ECSRingTest {
-    private static ECSRing ring;
+    private static ECSRing<Object> ring;
 
     @BeforeClass
     public static void beforeAll() {
-        ring = new ECSRing();
+        ring = new ECSRing<>();
     }
 
     @Before
@@ -31,7 +32,7 @@ public class ECSRingTest {
         String exactKeyOfNode = "localhost:5000";
         ring.addNode("localhost", 5000);
 
-        ECSNode node = ring.getNodeForKey(exactKeyOfNode);
+        ECSNode<Object> node = ring.getNodeForKey(exactKeyOfNode);
         assertNotNull(node);
         assertEquals(exactKeyOfNode, node.getNodeIpAndPort());
     }
@@ -43,7 +44,7 @@ public class ECSRingTest {
         ring.addNode("localhost", 5001);
         ring.addNode("localhost", 5002);
 
-        ECSNode node = ring.getNodeForKey(exactKeyOfNode);
+        ECSNode<Object> node = ring.getNodeForKey(exactKeyOfNode);
         assertNotNull(node);
         assertEquals(exactKeyOfNode, node.getNodeIpAndPort());
     }
@@ -54,7 +55,7 @@ public class ECSRingTest {
         ring.addNode("localhost", 5000); // localhost:5000 hashes to b18c9873dcbbe400e116c6e3d9644375
         String key = "abcd"; // hashes to e2fc714c4727ee9395f324cd2e7f331f (e > b)
 
-        ECSNode node = ring.getNodeForKey(key);
+        ECSNode<Object> node = ring.getNodeForKey(key);
         assertEquals(expectedNodeAddress, node.getNodeIpAndPort());
     }
 
@@ -64,7 +65,7 @@ public class ECSRingTest {
         ring.addNode("localhost", 5000); // localhost:5000 hashes to b18c9873dcbbe400e116c6e3d9644375
         String key = "abc"; // hashes to 900150983cd24fb0d6963f7d28e17f72  (9 < b)
 
-        ECSNode node = ring.getNodeForKey(key);
+        ECSNode<Object> node = ring.getNodeForKey(key);
         assertEquals(expectedNodeAddress, node.getNodeIpAndPort());
     }
 
@@ -79,7 +80,7 @@ public class ECSRingTest {
 
         String key = "ben"; // hashes to 13e0e6d7567a2fc9a167633e7bf6366e
 
-        ECSNode node = ring.getNodeForKey(key);
+        ECSNode<Object> node = ring.getNodeForKey(key);
         assertEquals(expectedNodeAddress, node.getNodeIpAndPort());
     }
 
@@ -94,10 +95,65 @@ public class ECSRingTest {
 
         String key = "jon"; // hashes to 006cb570acdab0e0bfc8e3dcb7bb4edf
 
-        ECSNode node = ring.getNodeForKey(key);
+        ECSNode<Object> node = ring.getNodeForKey(key);
         assertEquals(expectedNodeAddress, node.getNodeIpAndPort());
     }
 
+    @Test
+    public void testGetReplicasForKeyReturnsResponsibleNodeAndSuccessors() throws IOException {
+        ring.addNode("localhost", 7000); // hashes to 13e0e6d7567a2fc9a167633e7bf6366e
+        ring.addNode("localhost", 8080); // hashes to 9f5ffc7a10e0bad054458b089947ce2f
+        ring.addNode("localhost", 9000); // hashes to 838bcdaf3ed53ea3f32c338861088ddb
+        ring.addNode("localhost", 10002); // hashes to edb2af1bf318e60ed47d857bd6542391
+
+        String key = "jon"; // hashes to 006cb570acdab0e0bfc8e3dcb7bb4edf
+
+        List<ECSNode<Object>> replicas = ring.getReplicasForKey(key, 3);
+        assertEquals(3, replicas.size());
+        assertEquals("localhost:10002", replicas.get(0).getNodeIpAndPort());
+        assertEquals("localhost:7000", replicas.get(1).getNodeIpAndPort());
+        assertEquals("localhost:9000", replicas.get(2).getNodeIpAndPort());
+    }
+
+    @Test
+    public void testGetReplicasForKeyIsLimitedBySizeOfRing() throws IOException {
+        ring.addNode("localhost", 7000);
+        ring.addNode("localhost", 8080);
+
+        assertEquals(2, ring.getReplicasForKey("key", 3).size());
+        assertTrue(new ECSRing<>().getReplicasForKey("key", 3).isEmpty());
+    }
+
+    @Test
+    public void testLoadMetadataRestoresRing() throws IOException {
+        ring.addNode("localhost", 7000);
+        ring.addNode("localhost", 8080);
+        ring.addNode("localhost", 9000);
+
+        ECSRing<Object> loaded = new ECSRing<>();
+        loaded.loadMetadata(ring.toMetadata(1));
+        assertEquals(ring.getMap().keySet(), loaded.getMap().keySet());
+        assertEquals(ring.toMetadata(2), loaded.toMetadata(2));
+    }
+
+    @Test
+    public void testToMetadataExtendsRangesByReplicatedPredecessors() throws IOException {
+        ring.addNode("localhost", 7000); // hashes to 13e0e6d7567a2fc9a167633e7bf6366e
+        ring.addNode("localhost", 9000); // hashes to 838bcdaf3ed53ea3f32c338861088ddb
+        ring.addNode("localhost", 8080); // hashes to 9f5ffc7a10e0bad054458b089947ce2f
+
+        String expected = "838bcdaf3ed53ea3f32c338861088ddb" + "," // hash of localhost:9000
+                + "838bcdaf3ed53ea3f32c338861088dda" + "," // hash of localhost:9000 - 1 (entire ring)
+                + "localhost:7000" + ";"
+                + "9f5ffc7a10e0bad054458b089947ce2f" + "," // hash of localhost:8080
+                + "9f5ffc7a10e0bad054458b089947ce2e" + "," // hash of localhost:8080 - 1 (entire ring)
+                + "localhost:9000" + ";"
+                + "13e0e6d7567a2fc9a167633e7bf6366e" + "," // hash of localhost:7000
+                + "13e0e6d7567a2fc9a167633e7bf6366d" + "," // hash of localhost:7000 - 1 (entire ring)
+                + "localhost:8080" + ";";
+        assertEquals(expected, ring.toMetadata(3));
+    }
+
     @Test
     public void testAddNodeReturnsCorrectHash() throws IOException {
         String expected = "13e0e6d7567a2fc9a167633e7bf6366e";
@@ -0,0 +1,128 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECSNode;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.nodeCount;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class FailureDetectionTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+    // ports on which servers join the ring, but nothing listens
+    private static final int[] SILENT_PORTS = freePorts(2);
+    private static final int UNREACHABLE_PORT = freePort();
+    private static final long ACCEPTABLE_HEARTBEAT_PAUSE_MILLIS = 200;
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP, ACCEPTABLE_HEARTBEAT_PAUSE_MILLIS);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "failure_detection_test");
+        }
+        assertTrue(waitFor(() -> nodeCount(kvServers[0].getMetadata()) == SERVER_PORTS.length, 2000));
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    /**
+     * Joins the ring as a server listening on the given port, which never sends a heartbeat and accepts no
+     * connections.
+     */
+    private static Socket joinSilently(int port) throws IOException, InterruptedException {
+        Socket socket = new Socket(InetAddress.getLocalHost(), ECS_PORT);
+        SocketMessenger messenger = new SocketMessenger(socket);
+        messenger.sendMessage(new KVMessage("localhost:" + port, "localhost:" + (port + 1), IKVMessage.StatusType.CONNECT));
+        assertEquals(IKVMessage.StatusType.CONNECT_SUCCESS, messenger.receiveMessage().getStatus());
+        assertTrue(waitFor(() -> nodeCount(kvServers[0].getMetadata()) == SERVER_PORTS.length + 1, 1000));
+        return socket;
+    }
+
+    @Test
+    public void testSilentServerIsRemoved() throws Exception {
+        Socket silent = joinSilently(SILENT_PORTS[0]);
+        try {
+            assertTrue("silent server should be removed",
+                    waitFor(() -> nodeCount(ecsClient.buildMetadata()) == SERVER_PORTS.length, 3000));
+            for (KVServer kvServer : kvServers) {
+                assertTrue("remaining servers should receive the new metadata",
+                        waitFor(() -> nodeCount(kvServer.getMetadata()) == SERVER_PORTS.length, 1000));
+            }
+            assertFalse(ecsClient.buildMetadata().contains(":" + SILENT_PORTS[0]));
+
+            // servers sending heartbeats stay
+            Thread.sleep(1000);
+            assertEquals(SERVER_PORTS.length, nodeCount(ecsClient.buildMetadata()));
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testClientFailsOverToNextServer() throws Exception {
+        Socket silent = joinSilently(SILENT_PORTS[1]);
+        try {
+            ECSRing<Object> ring = new ECSRing<>();
+            ring.loadMetadata(kvServers[0].getMetadata());
+            String key = null;
+            for (int i = 0; key == null; i++) {
+                ECSNode<Object> node = ring.getNodeForKey("failover" + i);
+                if (node.getSocketAddress().getPort() == SILENT_PORTS[1]) {
+                    key = "failover" + i;
+                }
+            }
+
+            KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+            kvClient.connect();
+            assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put(key, "value").getStatus());
+            assertEquals("value", kvClient.get(key).getValue());
+            assertEquals(SERVER_PORTS.length, nodeCount(ecsClient.buildMetadata()));
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void testUnreachableServerFailsFast() throws Exception {
+        KVStore kvClient = new KVStore("localhost", UNREACHABLE_PORT);
+        kvClient.connect();
+        try {
+            kvClient.put("key", "value");
+            fail("put should fail without a reachable server");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.HashUtils;
+import shared.jfr.MetadataUpdateEvent;
+import shared.jfr.RequestEvent;
+import shared.jfr.StorageEvent;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class FlightRecorderTest {
+    private static final int ECS_PORT = freePort();
+    private static final int SERVER_PORT = freePort();
+
+    private static ECSClient ecsClient;
+    private static KVServer kvServer;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        kvServer = startServer(SERVER_PORT, ECS_PORT, "flight_recorder_test");
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServer);
+    }
+
+    @Test
+    public void testRingPosition() {
+        assertEquals(0x900150983cd24fb0L, HashUtils.ringPosition("abc"));
+        assertTrue(Long.compareUnsigned(HashUtils.ringPosition("jk8ssl"), 1L << 32) < 0);
+    }
+
+    @Test
+    public void testServerEvents() throws Exception {
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(RequestEvent.NAME);
+            recording.enable(StorageEvent.NAME);
+            recording.enable(MetadataUpdateEvent.NAME);
+            recording.start();
+
+            KVStore kvClient = new KVStore("localhost", SERVER_PORT);
+            kvClient.connect();
+            kvClient.put("recorded", "value");
+            kvClient.get("recorded");
+            // the event of a request is committed after its response was sent, so only the last one may be missing
+            kvClient.get("recorded");
+            kvClient.disconnect();
+            // as sent by the ECS again
+            kvServer.updateMetadata(kvServer.getMetadata(), 1, ReplicationMode.PRIMARY_BACKUP);
+
+            recording.stop();
+            events = readEvents(recording);
+        }
+
+        long keyHash = HashUtils.ringPosition("recorded");
+        RecordedEvent put = only(events, RequestEvent.NAME, "PUT");
+        assertEquals("PUT_SUCCESS", put.getString("response"));
+        assertEquals(keyHash, put.getLong("keyHash"));
+        assertEquals(5, put.getInt("valueSize"));
+        assertTrue(put.getInt("responseSize") > 0);
+        assertFalse(put.getDuration().isNegative());
+
+        RecordedEvent stored = only(events, StorageEvent.NAME, "put");
+        assertEquals(keyHash, stored.getLong("keyHash"));
+        assertEquals(5, stored.getInt("valueSize"));
+        assertFalse(stored.getBoolean("found"));
+
+        List<RecordedEvent> reads = select(events, StorageEvent.NAME, "get");
+        assertFalse(reads.isEmpty());
+        assertTrue(reads.get(0).getBoolean("found"));
+
+        List<RecordedEvent> metadataUpdates = events.stream()
+                .filter(event -> event.getEventType().getName().equals(MetadataUpdateEvent.NAME))
+                .collect(Collectors.toList());
+        assertEquals(1, metadataUpdates.size());
+        assertEquals(kvServer.getNodeIpAndPort(), metadataUpdates.get(0).getString("node"));
+        assertEquals(1, metadataUpdates.get(0).getInt("servers"));
+        assertFalse(metadataUpdates.get(0).getBoolean("changed"));
+    }
+
+    private static List<RecordedEvent> readEvents(Recording recording) throws IOException {
+        Path file = Files.createTempFile("flight_recorder_test", ".jfr");
+        try {
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> select(List<RecordedEvent> events, String name, String operation) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(name))
+                .filter(event -> event.getString("operation").equals(operation))
+                .collect(Collectors.toList());
+    }
+
+    private static RecordedEvent only(List<RecordedEvent> events, String name, String operation) {
+        List<RecordedEvent> selected = select(events, name, operation);
+        assertEquals(name + " " + operation, 1, selected.size());
+        return selected.get(0);
+    }
+}
@@ -0,0 +1,103 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.newServer;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class GracefulShutdownTest {
+    private static final int ECS_PORT = freePort();
+    private static final int STAYING_PORT = freePort();
+    private static final int LEAVING_PORT = freePort();
+    private static final int KILLED_PORT = freePort();
+    private static final int NEVER_STARTED_PORT = freePort();
+    private static final int KEYS = 50;
+
+    private static ECSClient ecsClient;
+    private static KVServer staying;
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        staying = startServer(STAYING_PORT, ECS_PORT, "graceful_shutdown_test");
+        assertTrue(waitFor(() -> !staying.getMetadata().isEmpty(), 2000));
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, staying);
+    }
+
+    @Test
+    public void testClosedServerHandsOffItsKeys() throws Exception {
+        KVServer leaving = startServer(LEAVING_PORT, ECS_PORT, "graceful_shutdown_test");
+        assertTrue(waitFor(() -> staying.getMetadata().split(";").length == 2, 2000));
+
+        KVStore kvClient = new KVStore("localhost", STAYING_PORT);
+        kvClient.connect();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put("leaving" + i, "value" + i).getStatus());
+        }
+        int onLeaving = 0;
+        for (int i = 0; i < KEYS; i++) {
+            onLeaving += leaving.inStorage("leaving" + i) ? 1 : 0;
+        }
+        assertTrue(onLeaving > 0);
+
+        leaving.close();
+        assertTrue(waitFor(() -> staying.getMetadata().split(";").length == 1, 2000));
+        for (int i = 0; i < KEYS; i++) {
+            String key = "leaving" + i;
+            assertTrue(key + " should be handed off", staying.inStorage(key));
+            assertFalse(leaving.inStorage(key));
+            assertEquals("value" + i, kvClient.get(key).getValue());
+        }
+        kvClient.disconnect();
+    }
+
+    @Test
+    public void testKilledServerStopsAtOnce() throws Exception {
+        KVServer killed = startServer(KILLED_PORT, ECS_PORT, "graceful_shutdown_test");
+        assertTrue(waitFor(() -> staying.getMetadata().split(";").length == 2, 2000));
+
+        long start = System.nanoTime();
+        killed.kill();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        // the ECS notices the closed connection and removes the server
+        assertTrue(waitFor(() -> staying.getMetadata().split(";").length == 1, 5000));
+
+        // the shutdown hook closes the server once more when the process exits
+        start = System.nanoTime();
+        killed.close();
+        killed.kill();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 100);
+    }
+
+    @Test
+    public void testServerThatNeverStartedCanBeStopped() throws Exception {
+        KVServer kvServer = newServer(NEVER_STARTED_PORT, ECS_PORT, "graceful_shutdown_test");
+        kvServer.close(0);
+        kvServer.kill();
+    }
+}
@@ -0,0 +1,161 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECSNode;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class HedgedRequestTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+    private static final int SLOW_PORT = freePort();
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+    private static ServerSocket slowServer;
+    private static final List<Socket> slowConnections = new ArrayList<>();
+    private static String slowAddress;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        // the slow server never sends heartbeats, but stays on the ring for the duration of the test
+        ecsClient = new ECSClient(address, ECS_PORT, 2, ReplicationMode.PRIMARY_BACKUP, 60_000);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "hedged_request_test");
+        }
+
+        // accepts connections, but never answers
+        slowServer = new ServerSocket(SLOW_PORT, 50, address);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = slowServer.accept();
+                    synchronized (slowConnections) {
+                        slowConnections.add(socket);
+                    }
+                }
+            } catch (IOException e) {
+                // closed after the tests
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        slowAddress = address.getHostName() + ":" + SLOW_PORT;
+        Socket ecsConnection = new Socket(address, ECS_PORT);
+        slowConnections.add(ecsConnection);
+        SocketMessenger messenger = new SocketMessenger(ecsConnection);
+        messenger.sendMessage(new KVMessage(slowAddress, "localhost:" + (SLOW_PORT + 1), IKVMessage.StatusType.CONNECT));
+        assertEquals(IKVMessage.StatusType.CONNECT_SUCCESS, messenger.receiveMessage().getStatus());
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length + 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length + 1, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() throws IOException {
+        shutDown(ecsClient, kvServers);
+        slowServer.close();
+        synchronized (slowConnections) {
+            for (Socket socket : slowConnections) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * @return keys stored by the slow server, either as coordinator or as replica, stored on the other
+     * servers directly
+     */
+    private static List<String> keysOnSlowServer(int count, boolean coordinatedBySlowServer) throws IOException {
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(kvServers[0].getMetadata());
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "hedge" + i;
+            List<ECSNode<Object>> replicas = ring.getReplicasForKey(key, 2);
+            boolean onSlowServer = replicas.get(coordinatedBySlowServer ? 0 : 1).getNodeIpAndPort().equals(slowAddress);
+            if (onSlowServer) {
+                keys.add(key);
+                for (KVServer kvServer : kvServers) {
+                    kvServer.putKVBytes(key, ("value" + i).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void testHedgedGetsAvoidSlowReplica() throws Exception {
+        List<String> keys = keysOnSlowServer(10, false);
+        keys.addAll(keysOnSlowServer(10, true));
+
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0], KVStore.ReadPolicy.ROUND_ROBIN);
+        kvClient.connect();
+        kvClient.setRequestTimeout(5000);
+        for (String key : keys) {
+            long start = System.currentTimeMillis();
+            IKVMessage response = kvClient.get(key);
+            assertEquals(IKVMessage.StatusType.GET_SUCCESS, response.getStatus());
+            assertEquals("value" + key.substring("hedge".length()), response.getValue());
+            assertTrue("GET <" + key + "> should not wait for the slow replica", System.currentTimeMillis() - start < 1000);
+        }
+    }
+
+    @Test
+    public void testDeadlineBoundsRequestsToSlowServer() throws Exception {
+        String key = keysOnSlowServer(1, true).get(0);
+        // the server that does not replicate the key cannot answer it and sends the client to the slow server
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(kvServers[0].getMetadata());
+        String replica = ring.getReplicasForKey(key, 2).get(1).getNodeIpAndPort();
+        KVServer other = kvServers[0].getNodeIpAndPort().equals(replica) ? kvServers[1] : kvServers[0];
+
+        KVStore kvClient = new KVStore("localhost", other.getPort());
+        kvClient.connect();
+        kvClient.setRequestTimeout(300);
+        long start = System.currentTimeMillis();
+        try {
+            kvClient.get(key);
+            fail("GET from a server that never answers should time out");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+}
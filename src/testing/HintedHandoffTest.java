@@ -0,0 +1,123 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.HashUtils;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+import storage.KVStorage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.newServer;
+import static testing.ServerFixture.nodeCount;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.start;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class HintedHandoffTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+    private static final int RESTARTED_PORT = freePort();
+    private static final long ACCEPTABLE_HEARTBEAT_PAUSE_MILLIS = 200;
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+    private static KVServer restarted;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP, ACCEPTABLE_HEARTBEAT_PAUSE_MILLIS);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "hinted_handoff_test");
+        }
+        assertTrue(waitFor(() -> nodeCount(kvServers[0].getMetadata()) == SERVER_PORTS.length, 2000));
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        if (restarted != null) {
+            restarted.close();
+        }
+        shutDown(ecsClient, kvServers);
+    }
+
+    private static String value(KVServer kvServer, String key) {
+        byte[] value = kvServer.getKVBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWritesAreHandedToRestartedOwner() throws Exception {
+        // the owner joins the ring and goes down before it sends a heartbeat or accepts a connection
+        String owner = InetAddress.getLocalHost().getHostName() + ":" + RESTARTED_PORT;
+        Socket ownerConnection = new Socket(InetAddress.getLocalHost(), ECS_PORT);
+        SocketMessenger messenger = new SocketMessenger(ownerConnection);
+        messenger.sendMessage(new KVMessage(owner, "localhost:" + (RESTARTED_PORT + 1), IKVMessage.StatusType.CONNECT));
+        assertEquals(IKVMessage.StatusType.CONNECT_SUCCESS, messenger.receiveMessage().getStatus());
+        assertTrue(waitFor(() -> nodeCount(kvServers[0].getMetadata()) == SERVER_PORTS.length + 1, 1000));
+
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(kvServers[0].getMetadata());
+        String[] keys = new String[2];
+        for (int i = 0, found = 0; found < keys.length; i++) {
+            if (ring.getNodeForKey("hint" + i).getNodeIpAndPort().equals(owner)) {
+                keys[found++] = "hint" + i;
+            }
+        }
+        ring.removeNode(HashUtils.md5(owner));
+        KVServer heir = ring.getNodeForKey(keys[0]).getSocketAddress().getPort() == SERVER_PORTS[0] ? kvServers[0] : kvServers[1];
+
+        // accepted by the next server right away, instead of waiting for the ECS to remove the owner
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+        long start = System.currentTimeMillis();
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put(keys[0], "hinted").getStatus());
+        assertTrue(System.currentTimeMillis() - start < 500);
+        assertEquals(1, heir.pendingHints());
+        assertNull(value(heir, keys[0]));
+
+        // once the owner is removed, the heir serves the hinted write and keeps the writes for the owner
+        assertTrue(waitFor(() -> "hinted".equals(value(heir, keys[0])), 3000));
+        assertEquals("hinted", kvClient.get(keys[0]).getValue());
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put(keys[1], "direct").getStatus());
+        assertEquals(2, heir.pendingHints());
+        ownerConnection.close();
+
+        // the owner restarts with the values it held before the writes and receives the writes from the heir
+        Path directory = Files.createTempDirectory("hinted_handoff_test");
+        KVStorage storage = new KVStorage(directory.resolve("store.json").toString());
+        storage.put(keys[0], "old".getBytes(StandardCharsets.UTF_8));
+        storage.put(keys[1], "old".getBytes(StandardCharsets.UTF_8));
+        storage.close();
+        restarted = start(newServer(RESTARTED_PORT, ECS_PORT, directory));
+        assertEquals(owner, restarted.getNodeIpAndPort());
+        assertTrue("hints should be handed off", waitFor(() -> heir.pendingHints() == 0, 3000));
+        assertEquals("hinted", value(restarted, keys[0]));
+        assertEquals("direct", value(restarted, keys[1]));
+        assertEquals("direct", kvClient.get(keys[1]).getValue());
+    }
+}
@@ -0,0 +1,138 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class HotKeyTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(3);
+    private static final long HOT_KEY_THRESHOLD = 50;
+    private static final String HOT_KEY = "viral";
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        ecsClient.enableHotKeyReplication(HOT_KEY_THRESHOLD, 2);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "hot_key_test");
+        }
+        for (KVServer kvServer : kvServers) {
+            assertTrue(waitFor(() -> kvServer.getMetadata().split(";").length == SERVER_PORTS.length, 2000));
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    private static String value(KVServer kvServer, String key) {
+        byte[] value = kvServer.getKVBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static double gets(KVServer kvServer) {
+        double gets = kvServer.collectStats().get("requests_total", "GET");
+        return Double.isNaN(gets) ? 0 : gets;
+    }
+
+    @Test
+    public void testHotKeyIsReplicatedAndCooledDown() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0], KVStore.ReadPolicy.ROUND_ROBIN);
+        kvClient.connect();
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put(HOT_KEY, "first").getStatus());
+        KVServer coordinator = null;
+        for (KVServer kvServer : kvServers) {
+            if (kvServer.isCoordinatorFor(HOT_KEY)) {
+                coordinator = kvServer;
+            }
+        }
+
+        // reported by the coordinator along with its heartbeats until the ECS finds it hot
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!ecsClient.getHotKeys().contains(HOT_KEY) && System.currentTimeMillis() < deadline) {
+            assertEquals("first", kvClient.get(HOT_KEY).getValue());
+        }
+        assertTrue("key should become hot", ecsClient.getHotKeys().contains(HOT_KEY));
+
+        // the coordinator copies it to the two other servers, which serve GETs of it from then on
+        for (KVServer kvServer : kvServers) {
+            assertTrue(waitFor(() -> kvServer.getHotKeys().contains(HOT_KEY) && "first".equals(value(kvServer, HOT_KEY)), 2000));
+            assertTrue(kvServer.isReplicaFor(HOT_KEY));
+        }
+        try (Socket socket = new Socket("localhost", SERVER_PORTS[0])) {
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.KEYRANGE_READ));
+            String readMetadata = socketMessenger.receiveMessage().getKey();
+            int extraReplicas = 0;
+            for (String range : readMetadata.split(";")) {
+                if (range.endsWith(",hot")) {
+                    extraReplicas++;
+                }
+            }
+            assertEquals(readMetadata, SERVER_PORTS.length - 1, extraReplicas);
+        }
+
+        // the client learns about the extra replicas from the read metadata and spreads its GETs over them
+        double[] before = new double[kvServers.length];
+        for (int i = 0; i < kvServers.length; i++) {
+            before[i] = gets(kvServers[i]);
+        }
+        long end = System.currentTimeMillis() + 1500;
+        while (System.currentTimeMillis() < end) {
+            assertEquals("first", kvClient.get(HOT_KEY).getValue());
+        }
+        for (int i = 0; i < kvServers.length; i++) {
+            assertTrue("server " + i + " should serve GETs of the hot key", gets(kvServers[i]) > before[i]);
+        }
+
+        // writes reach the extra replicas before they are acknowledged
+        assertEquals(IKVMessage.StatusType.PUT_UPDATE, kvClient.put(HOT_KEY, "second").getStatus());
+        for (KVServer kvServer : kvServers) {
+            assertEquals("second", value(kvServer, HOT_KEY));
+        }
+
+        // without GETs the reports expire, and the extra replicas hand the key back
+        KVServer owner = coordinator;
+        assertTrue("key should cool down", waitFor(() -> ecsClient.getHotKeys().isEmpty(), 6000));
+        for (KVServer kvServer : kvServers) {
+            assertTrue(waitFor(() -> kvServer.getHotKeys().isEmpty(), 2000));
+            if (kvServer != owner) {
+                assertTrue(waitFor(() -> !kvServer.inStorage(HOT_KEY), 3000));
+                assertFalse(kvServer.isReplicaFor(HOT_KEY));
+            }
+        }
+        assertEquals("second", value(owner, HOT_KEY));
+        assertEquals("second", kvClient.get(HOT_KEY).getValue());
+        kvClient.disconnect();
+    }
+}
@@ -19,13 +19,15 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
 
 public class InteractionTest {
 
     private static KVServer kvServer;
     private static ECSClient ecsClient;
     private KVStore kvClient;
-    private static final int KV_SERVER_PORT = 50010;
+    private static final int KV_SERVER_PORT = freePort();
 
     @BeforeClass
     public static void beforeAll() throws InterruptedException {
@@ -48,8 +50,7 @@ public class InteractionTest {
 
     @AfterClass
     public static void afterAll() {
-        kvServer.close();
-        ecsClient.stop();
+        shutDown(ecsClient, kvServer);
     }
 
     @Before
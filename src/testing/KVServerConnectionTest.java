@@ -14,11 +14,14 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 
 import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
 
 
 public class KVServerConnectionTest {
     private static ECSClient ecsClient;
-    private static final int ECS_PORT = 50020;
+    // a server started with the address of the ECS serves on the port below it
+    private static final int ECS_PORT = freePort() + 1;
     private static InetAddress ecsAddress;
     private static InetSocketAddress ecsSocketAddress;
 
@@ -44,7 +47,7 @@ public class KVServerConnectionTest {
 
     @AfterClass
     public static void afterAll() {
-        ecsClient.stop();
+        shutDown(ecsClient);
     }
 
 
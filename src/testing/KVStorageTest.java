@@ -0,0 +1,338 @@
+package testing;
+
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.KVMessage;
+import storage.KVStorage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class KVStorageTest {
+    private static final String STORAGE_FILE = "kv_storage_test.json";
+
+    private KVStorage storage;
+
+    @BeforeClass
+    public static void beforeAll() {
+        try {
+            new LogSetup("logs/testing/test.log", Level.ERROR);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Before
+    public void beforeEach() throws IOException {
+        storage = new KVStorage(STORAGE_FILE);
+        storage.clear();
+        storage.load();
+    }
+
+    @After
+    public void afterEach() {
+        storage.clear();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPutReturnsWhetherKeyExisted() throws IOException {
+        assertFalse(storage.put("key", bytes("first")));
+        assertTrue(storage.put("key", bytes("second")));
+        assertArrayEquals(bytes("second"), storage.get("key"));
+    }
+
+    @Test
+    public void testGetAndPutReturnsPreviousValue() throws IOException {
+        assertNull(storage.getAndPut("key", bytes("first")));
+        assertArrayEquals(bytes("first"), storage.getAndPut("key", bytes("second")));
+    }
+
+    @Test
+    public void testPutNullDeletesKey() throws IOException {
+        storage.put("key", bytes("value"));
+        assertTrue(storage.put("key", null));
+        assertFalse(storage.contains("key"));
+        assertNull(storage.get("key"));
+        assertFalse(storage.put("key", null));
+    }
+
+    @Test
+    public void testValuesArePersisted() throws IOException {
+        String value = "value with \"quotes\", \r\n and ümlauts";
+        storage.put("persisted", bytes(value));
+        storage.put("deleted", bytes("value"));
+        storage.put("deleted", null);
+
+        KVStorage reloaded = new KVStorage(STORAGE_FILE);
+        reloaded.load();
+        assertArrayEquals(bytes(value), reloaded.get("persisted"));
+        assertFalse(reloaded.contains("deleted"));
+    }
+
+    @Test
+    public void testLogIsReplayedAndCompacted() throws IOException {
+        File snapshot = new File(STORAGE_FILE);
+        File log = new File(STORAGE_FILE + KVStorage.LOG_SUFFIX);
+        long emptySnapshotLength = snapshot.length();
+        for (int i = 0; i < 100; i++) {
+            storage.put("key" + i, bytes("value" + i));
+        }
+        storage.put("key0", null);
+        // writes only go to the log
+        assertEquals(emptySnapshotLength, snapshot.length());
+        assertTrue(log.length() > 0);
+
+        KVStorage reloaded = new KVStorage(STORAGE_FILE);
+        reloaded.load();
+        assertEquals(99, reloaded.size());
+        assertNull(reloaded.get("key0"));
+        assertArrayEquals(bytes("value99"), reloaded.get("key99"));
+        // loading folded the log into the snapshot
+        assertFalse(log.exists());
+        assertTrue(snapshot.length() > emptySnapshotLength);
+    }
+
+    @Test
+    public void testLogIsCompactedOnceItOutgrowsTheSnapshot() throws IOException {
+        File log = new File(STORAGE_FILE + KVStorage.LOG_SUFFIX);
+        byte[] value = new byte[KVMessage.MAX_VAL_BYTE_LENGTH];
+        for (int i = 0; i * value.length <= 2 * KVStorage.MIN_COMPACTION_LOG_BYTES; i++) {
+            storage.put("key" + i % 4, value);
+            assertTrue(log.length() <= KVStorage.MIN_COMPACTION_LOG_BYTES + value.length + 64);
+        }
+
+        KVStorage reloaded = new KVStorage(STORAGE_FILE);
+        reloaded.load();
+        assertEquals(4, reloaded.size());
+    }
+
+    @Test
+    public void testTornLogRecordIsDiscarded() throws IOException {
+        storage.put("complete", bytes("value"));
+        storage.close();
+        try (FileOutputStream log = new FileOutputStream(STORAGE_FILE + KVStorage.LOG_SUFFIX, true)) {
+            // the start of a record cut short by a crash
+            log.write(new byte[]{0, 0, 0, 42, 1, 2});
+        }
+
+        KVStorage reloaded = new KVStorage(STORAGE_FILE);
+        reloaded.load();
+        assertArrayEquals(bytes("value"), reloaded.get("complete"));
+        reloaded.put("later", bytes("value"));
+        reloaded.close();
+
+        KVStorage again = new KVStorage(STORAGE_FILE);
+        again.load();
+        assertEquals(2, again.size());
+    }
+
+    @Test
+    public void testOverwritingValuesReusesOffHeapMemory() throws IOException {
+        storage.put("key", new byte[KVMessage.MAX_VAL_BYTE_LENGTH]);
+        long usedBytes = storage.offHeapBytes();
+        assertTrue(usedBytes >= KVMessage.MAX_VAL_BYTE_LENGTH);
+
+        for (int i = 0; i < 10; i++) {
+            storage.put("key", new byte[KVMessage.MAX_VAL_BYTE_LENGTH]);
+        }
+        assertEquals(usedBytes, storage.offHeapBytes());
+
+        storage.put("key", null);
+        assertEquals(0, storage.offHeapBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSegmentCountMustBePowerOfTwo() {
+        new KVStorage(STORAGE_FILE, 3);
+    }
+
+    @Test
+    public void testConcurrentPutsToDifferentKeysAreAllPersisted() throws Exception {
+        final int NUMBER_OF_KEYS = 200;
+        ExecutorService service = Executors.newFixedThreadPool(8);
+
+        IntStream.range(0, NUMBER_OF_KEYS).forEach(i -> service.submit(() -> {
+            try {
+                storage.put("key" + i, bytes(String.valueOf(i)));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }));
+
+        service.shutdown();
+        assertTrue(service.awaitTermination(30_000, TimeUnit.MILLISECONDS));
+        assertEquals(NUMBER_OF_KEYS, storage.size());
+
+        KVStorage reloaded = new KVStorage(STORAGE_FILE);
+        reloaded.load();
+        assertEquals(NUMBER_OF_KEYS, reloaded.size());
+        IntStream.range(0, NUMBER_OF_KEYS).forEach(i -> assertArrayEquals(bytes(String.valueOf(i)), reloaded.get("key" + i)));
+    }
+
+    @Test
+    public void testCompressedValuesArePersisted() throws IOException {
+        KVStorage compressed = new KVStorage(STORAGE_FILE, KVStorage.DEFAULT_SEGMENT_COUNT, 6);
+        compressed.clear();
+        compressed.load();
+
+        String text = "the quick brown fox jumps over the lazy dog ";
+        for (int i = 0; i < 500; i++) {
+            compressed.put("key" + i, bytes(text.repeat(1 + i % 20) + i));
+        }
+        compressed.put("large", new byte[KVMessage.MAX_VAL_BYTE_LENGTH]);
+        // only the snapshot is compressed, not the log
+        assertEquals(0, compressed.getCompressionStats().getBlocks());
+        compressed.compact();
+        assertTrue(compressed.getCompressionStats().getRatio() > 2);
+
+        // load detects the block format even though this instance is configured to write JSON
+        KVStorage reloaded = new KVStorage(STORAGE_FILE);
+        reloaded.load();
+        assertEquals(501, reloaded.size());
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(bytes(text.repeat(1 + i % 20) + i), reloaded.get("key" + i));
+        }
+        assertArrayEquals(new byte[KVMessage.MAX_VAL_BYTE_LENGTH], reloaded.get("large"));
+        compressed.clear();
+    }
+
+    @Test
+    public void testExpiredValuesAreAbsent() throws IOException {
+        long past = System.currentTimeMillis() - 1;
+        storage.put("expired", bytes("value"), past);
+        assertFalse(storage.contains("expired"));
+        assertNull(storage.get("expired"));
+
+        // an expired value is not reported as replaced
+        storage.put("replaced", bytes("value"), past);
+        assertFalse(storage.put("replaced", bytes("value")));
+        assertArrayEquals(bytes("value"), storage.get("replaced"));
+    }
+
+    @Test
+    public void testReapExpiredRemovesOnlyExpiredValues() throws IOException {
+        long past = System.currentTimeMillis() - 1;
+        long future = System.currentTimeMillis() + 60_000;
+        for (int i = 0; i < 100; i++) {
+            storage.put("expired" + i, bytes("value"), past);
+            storage.put("expiring" + i, bytes("value"), future);
+        }
+        storage.put("permanent", bytes("value"));
+
+        int reaped = 0;
+        for (int i = 0; i < 1000; i++) {
+            reaped += storage.reapExpired(16);
+        }
+        assertEquals(100, reaped);
+        assertEquals(101, storage.size());
+        assertArrayEquals(bytes("value"), storage.get("expiring0"));
+    }
+
+    @Test
+    public void testExpiryIsPersisted() throws IOException {
+        long future = System.currentTimeMillis() + 60_000;
+        storage.put("expiring", bytes("value"), future);
+        storage.put("expired", bytes("value"), System.currentTimeMillis() - 1);
+        storage.put("permanent", bytes("value"));
+        storage.close();
+
+        for (int compressionLevel : new int[]{KVStorage.NO_COMPRESSION, 6}) {
+            KVStorage rewritten = new KVStorage(STORAGE_FILE, KVStorage.DEFAULT_SEGMENT_COUNT, compressionLevel);
+            rewritten.load();
+            // the snapshot is written in the configured format
+            rewritten.compact();
+
+            KVStorage reloaded = new KVStorage(STORAGE_FILE);
+            reloaded.load();
+            assertEquals(2, reloaded.size());
+            assertArrayEquals(bytes("value"), reloaded.get("expiring"));
+            assertNull(reloaded.get("expired"));
+
+            // an expired write in the log hides the value of the snapshot
+            reloaded.put("expiring", bytes("value"), System.currentTimeMillis() - 1);
+            reloaded.close();
+            KVStorage expired = new KVStorage(STORAGE_FILE);
+            expired.load();
+            assertNull(expired.get("expiring"));
+            expired.put("expiring", bytes("value"), future);
+            expired.close();
+        }
+    }
+
+    @Test
+    public void testPutIfNewerKeepsNewestVersion() throws IOException {
+        assertTrue(storage.putIfNewer("key", bytes("second"), 2));
+        assertFalse(storage.putIfNewer("key", bytes("first"), 1));
+        assertArrayEquals(bytes("second"), storage.get("key"));
+        assertEquals(2, storage.getVersioned("key").getVersion());
+
+        // values written without a version are replaced by any versioned write
+        storage.put("unversioned", bytes("value"));
+        assertEquals(KVStorage.NO_VERSION, storage.getVersioned("unversioned").getVersion());
+        assertTrue(storage.putIfNewer("unversioned", bytes("versioned"), 1));
+    }
+
+    @Test
+    public void testVersionedDeleteLeavesPersistedTombstone() throws IOException {
+        storage.putIfNewer("key", bytes("value"), 1);
+        assertTrue(storage.putIfNewer("key", null, 2));
+        assertNull(storage.get("key"));
+        assertFalse(storage.contains("key"));
+        assertFalse(storage.putIfNewer("key", bytes("late"), 1));
+        storage.close();
+
+        for (int compressionLevel : new int[]{KVStorage.NO_COMPRESSION, 6}) {
+            KVStorage rewritten = new KVStorage(STORAGE_FILE, KVStorage.DEFAULT_SEGMENT_COUNT, compressionLevel);
+            rewritten.load();
+            rewritten.putIfNewer("other", bytes("value"), 1);
+            rewritten.compact();
+
+            KVStorage reloaded = new KVStorage(STORAGE_FILE);
+            reloaded.load();
+            assertNull(reloaded.get("key"));
+            assertNull(reloaded.getVersioned("key").getValue());
+            assertEquals(2, reloaded.getVersioned("key").getVersion());
+            assertEquals(1, reloaded.getVersioned("other").getVersion());
+        }
+    }
+
+    @Test
+    public void testChangeListenerFollowsDigests() throws IOException {
+        storage.put("existing", bytes("value"));
+        storage.put("deleted", bytes("value"));
+
+        long[] combined = new long[1];
+        storage.setChangeListener((key, previousDigest, digest) -> combined[0] ^= previousDigest ^ digest);
+        storage.put("existing", bytes("updated"));
+        storage.put("deleted", null);
+        storage.put("expiring", bytes("value"), System.currentTimeMillis() - 1);
+        storage.reapExpired(Integer.MAX_VALUE);
+        storage.putIfNewer("versioned", null, 1);
+
+        long[] expected = new long[1];
+        storage.forEachDigest((key, version, digest) -> expected[0] ^= digest);
+        assertNotEquals(0, expected[0]);
+        assertEquals(expected[0], combined[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompressionLevelMustBeValid() {
+        new KVStorage(STORAGE_FILE, KVStorage.DEFAULT_SEGMENT_COUNT, 10);
+    }
+}
@@ -0,0 +1,121 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.LatencyHistogram;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class LatencyBreakdownTest {
+    private static final int ECS_PORT = freePort();
+    private static final int SERVER_PORT = freePort();
+
+    private static ECSClient ecsClient;
+    private static KVServer kvServer;
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        kvServer = startServer(SERVER_PORT, ECS_PORT, "latency_breakdown_test");
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServer);
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.99));
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        assertEquals(1000, histogram.count());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.max());
+        assertEquals(500_500, histogram.mean(), 1);
+        // buckets are at most an eighth of their value wide
+        assertEquals(500_000, histogram.percentile(0.5), 500_000 / 8.0);
+        assertEquals(990_000, histogram.percentile(0.99), 990_000 / 8.0);
+        assertEquals(histogram.max(), histogram.percentile(1));
+    }
+
+    @Test
+    public void testStagesAreReportedPerRequestType() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORT);
+        kvClient.connect();
+        for (int i = 0; i < 20; i++) {
+            kvClient.put("latency" + i, "value" + i);
+            kvClient.get("latency" + i);
+        }
+        kvClient.disconnect();
+
+        // the stages of a request are recorded right after its response was sent
+        Map<String, Long> counts = queryLatencies();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (counts.getOrDefault("GET,READ", 0L) < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            counts = queryLatencies();
+        }
+
+        for (String stage : new String[]{"READ", "LOCK_WAIT", "STORAGE", "REPLICATION", "ENCODE", "FLUSH", "TOTAL"}) {
+            assertTrue("PUT," + stage, counts.getOrDefault("PUT," + stage, 0L) >= 20);
+        }
+        for (String stage : new String[]{"READ", "STORAGE", "ENCODE", "FLUSH", "TOTAL"}) {
+            assertTrue("GET," + stage, counts.getOrDefault("GET," + stage, 0L) >= 20);
+        }
+        assertFalse(counts.containsKey("GET,LOCK_WAIT"));
+
+        File dump = File.createTempFile("latency_breakdown_test", ".csv");
+        dump.deleteOnExit();
+        kvServer.dumpLatencyBreakdown(dump);
+        List<String> lines = Files.readAllLines(dump.toPath());
+        assertEquals("operation,stage,count,mean_us,p50_us,p99_us,p999_us,max_us", lines.get(0));
+        assertTrue(lines.stream().anyMatch(line -> line.startsWith("PUT,TOTAL,")));
+    }
+
+    private static Map<String, Long> queryLatencies() throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        try (Socket socket = new Socket("localhost", SERVER_PORT)) {
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.LATENCY));
+            KVMessage response = socketMessenger.receiveMessage();
+            assertEquals(IKVMessage.StatusType.LATENCY_SUCCESS, response.getStatus());
+            for (String line : response.getKey().split(";")) {
+                String[] fields = line.split(",");
+                assertEquals(line, 8, fields.length);
+                counts.put(fields[0] + "," + fields[1], Long.parseLong(fields[2]));
+            }
+        }
+        return counts;
+    }
+}
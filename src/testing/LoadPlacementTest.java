@@ -0,0 +1,172 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.HashUtils;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+import storage.KVStorage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.nodeCount;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+import static testing.ServerFixture.waitFor;
+
+public class LoadPlacementTest {
+    private static final int ECS_PORT = freePort();
+    private static final int FIRST_PORT = freePort();
+    private static final int JOINING_PORT = freePort();
+    private static final int KEYS = 200;
+
+    private static ECSClient ecsClient;
+    private static KVServer first;
+    private static KVServer joining;
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        ecsClient.setLoadAwarePlacement(true);
+        new Thread(ecsClient).start();
+
+        first = startServer(FIRST_PORT, ECS_PORT, "load_placement_test");
+        assertTrue(waitFor(() -> nodeCount(first.getMetadata()) == 1, 2000));
+
+        // the keys are written with the first server alone, so it holds all of them
+        KVStore kvClient = new KVStore("localhost", FIRST_PORT);
+        kvClient.connect();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put("load" + i, "value" + i).getStatus());
+        }
+        kvClient.disconnect();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, first, joining);
+    }
+
+    private static String requestSplitPoint(int port) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.SPLIT_POINT));
+            KVMessage response = socketMessenger.receiveMessage();
+            assertEquals(IKVMessage.StatusType.SPLIT_POINT_SUCCESS, response.getStatus());
+            return response.getKey();
+        }
+    }
+
+    private static int storedKeys(KVServer kvServer) {
+        int stored = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (kvServer.inStorage("load" + i)) {
+                stored++;
+            }
+        }
+        return stored;
+    }
+
+    @Test
+    public void testJoiningServerTakesOverHalfOfTheLoad() throws Exception {
+        String splitPoint = requestSplitPoint(FIRST_PORT);
+        assertTrue(HashUtils.isHash(splitPoint));
+
+        joining = startServer(JOINING_PORT, ECS_PORT, "load_placement_test");
+        assertTrue(waitFor(() -> nodeCount(first.getMetadata()) == 2, 2000));
+
+        // placed where the first server split its range rather than at the hash of its address
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(first.getMetadata());
+        assertEquals(joining.getNodeIpAndPort(), ring.getNodeByHash(splitPoint).getNodeIpAndPort());
+        assertNull(ring.getNodeByHash(HashUtils.md5(joining.getNodeIpAndPort())));
+
+        // the keys of the range the joining server took over are handed to it and deleted on the first one
+        assertTrue("keys should be handed off", waitFor(() -> {
+            for (int i = 0; i < KEYS; i++) {
+                String key = "load" + i;
+                boolean joined = ring.getNodeForKey(key).getSocketAddress().getPort() == JOINING_PORT;
+                if (joining.inStorage(key) != joined || first.inStorage(key) == joined) {
+                    return false;
+                }
+            }
+            return true;
+        }, 5000));
+        int handedOff = storedKeys(joining);
+        assertTrue(handedOff > KEYS / 4 && handedOff < KEYS * 3 / 4);
+
+        KVStore kvClient = new KVStore("localhost", FIRST_PORT);
+        kvClient.connect();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("value" + i, kvClient.get("load" + i).getValue());
+        }
+        kvClient.disconnect();
+    }
+
+    @Test
+    public void testHandOffKeepsTheNewerWrite() throws Exception {
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(first.getMetadata());
+        String key = null;
+        for (int i = 0; key == null; i++) {
+            if (ring.getNodeForKey("handoff" + i).getSocketAddress().getPort() == FIRST_PORT) {
+                key = "handoff" + i;
+            }
+        }
+        KVStore kvClient = new KVStore("localhost", FIRST_PORT);
+        kvClient.connect();
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put(key, "current").getStatus());
+        kvClient.disconnect();
+
+        try (Socket socket = new Socket("localhost", FIRST_PORT)) {
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            // a copy written before the one the coordinator holds is not applied
+            socketMessenger.sendMessage(new KVMessage(key, KVStorage.NO_EXPIRY, "1 stale".getBytes(StandardCharsets.UTF_8),
+                    IKVMessage.StatusType.HANDOFF));
+            assertEquals(IKVMessage.StatusType.HANDOFF_SKIPPED, socketMessenger.receiveMessage().getStatus());
+            assertEquals("current", new String(first.getKVBytes(key), StandardCharsets.UTF_8));
+
+            long later = System.currentTimeMillis() + 60_000;
+            socketMessenger.sendMessage(new KVMessage(key, KVStorage.NO_EXPIRY, (later + " newer").getBytes(StandardCharsets.UTF_8),
+                    IKVMessage.StatusType.HANDOFF));
+            assertEquals(IKVMessage.StatusType.PUT_SUCCESS, socketMessenger.receiveMessage().getStatus());
+            assertEquals("newer", new String(first.getKVBytes(key), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testSplitPointLiesInTheRangeOfTheServer() throws Exception {
+        assertTrue(waitFor(() -> nodeCount(first.getMetadata()) >= 1, 1000));
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(first.getMetadata());
+        // the range of the first server is the whole ring until the other one joins
+        String from = null;
+        for (String hash : ring.getMap().keySet()) {
+            if (ring.getNodeByHash(hash).getSocketAddress().getPort() == FIRST_PORT) {
+                from = hash;
+            }
+        }
+        String next = ring.getMap().higherKey(from);
+        String to = HashUtils.hashSubtractOne(next == null ? ring.getMap().firstKey() : next);
+        String splitPoint = requestSplitPoint(FIRST_PORT);
+        assertTrue(HashUtils.isInRange(splitPoint, from, to));
+        assertNotEquals(from, splitPoint);
+    }
+}
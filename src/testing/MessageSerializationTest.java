@@ -4,6 +4,7 @@ import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import shared.HashUtils;
 import shared.messages.IKVMessage;
 import shared.messages.KVMessage;
 
@@ -225,4 +226,172 @@ public class MessageSerializationTest {
         assertEquals(original.getKey(), output.getKey());
         assertEquals(original.getValue(), output.getValue());
     }
+
+    @Test
+    public void testWriteToAndReadFromBytesKeepsMultibyteValueBytes() {
+        byte[] value = "välue with ✓ and spaces".getBytes(StandardCharsets.UTF_8);
+        KVMessage original = new KVMessage(TEST_KEY, value, IKVMessage.StatusType.PUT);
+        byte[] bytes = KVMessage.writeToBytes(original);
+        KVMessage output = KVMessage.readFromBytes(bytes);
+
+        assertArrayEquals(value, output.getValueBytes());
+        assertEquals(original.getValue(), output.getValue());
+    }
+
+    @Test
+    public void testWriteToAndReadFromBytesPutTtl() {
+        KVMessage original = new KVMessage(TEST_KEY, 5000, TEST_VALUE.getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.PUT_TTL);
+        byte[] bytes = KVMessage.writeToBytes(original);
+        assertArrayEquals(("put_ttl " + TEST_KEY + " 5000 " + TEST_VALUE + "\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+
+        KVMessage output = KVMessage.readFromBytes(bytes);
+        assertEquals(IKVMessage.StatusType.PUT_TTL, output.getStatus());
+        assertEquals(TEST_KEY, output.getKey());
+        assertEquals(5000, output.getParameter());
+        assertEquals(TEST_VALUE, output.getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutTtlLongerThanMaximumIsRejected() {
+        KVMessage.readFromBytes(("put_ttl " + TEST_KEY + " " + Long.MAX_VALUE + " " + TEST_VALUE + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutHintedLongerThanMaximumIsRejected() {
+        new KVMessage(TEST_KEY, KVMessage.MAX_TTL_MILLIS + 1, null, IKVMessage.StatusType.PUT_HINTED);
+    }
+
+    @Test
+    public void testWriteToAndReadFromBytesReplicateDelete() {
+        KVMessage original = new KVMessage(TEST_KEY, 0, null, IKVMessage.StatusType.REPLICATE);
+        byte[] bytes = KVMessage.writeToBytes(original);
+        assertArrayEquals(("replicate " + TEST_KEY + " 0\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+
+        KVMessage output = KVMessage.readFromBytes(bytes);
+        assertEquals(IKVMessage.StatusType.REPLICATE, output.getStatus());
+        assertEquals(0, output.getParameter());
+        assertNull(output.getValueBytes());
+    }
+
+    @Test
+    public void testWriteToAndReadFromBytesMetadataUpdateAllowsLongMetadata() {
+        String metadata = "13e0e6d7567a2fc9a167633e7bf6366e,13e0e6d7567a2fc9a167633e7bf6366d,localhost:7000;";
+        KVMessage output = KVMessage.readFromBytes(KVMessage.writeToBytes(
+                new KVMessage(metadata, 3, null, IKVMessage.StatusType.METADATA_UPDATE)));
+
+        assertEquals(metadata, output.getKey());
+        assertEquals(3, output.getParameter());
+    }
+
+    @Test
+    public void testWriteToAndReadFromBytesGetVersionedSuccess() {
+        KVMessage original = new KVMessage(TEST_KEY, 42, TEST_VALUE.getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.GET_VERSIONED_SUCCESS);
+        byte[] bytes = KVMessage.writeToBytes(original);
+        assertArrayEquals(("get_versioned_success " + TEST_KEY + " 42 " + TEST_VALUE + "\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+
+        KVMessage output = KVMessage.readFromBytes(bytes);
+        assertEquals(42, output.getParameter());
+        assertEquals(TEST_VALUE, output.getValue());
+
+        // a deleted key is sent without a value
+        KVMessage tombstone = KVMessage.readFromBytes(KVMessage.writeToBytes(
+                new KVMessage(TEST_KEY, 43, null, IKVMessage.StatusType.GET_VERSIONED_SUCCESS)));
+        assertEquals(43, tombstone.getParameter());
+        assertNull(tombstone.getValueBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadFromBytesPutVersionedRequiresPositiveVersion() {
+        KVMessage.readFromBytes(("put_versioned " + TEST_KEY + " 0 " + TEST_VALUE + "\r\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testPutHintedRoundTrip() {
+        byte[] bytes = KVMessage.writeToBytes(new KVMessage(TEST_KEY, 0, TEST_VALUE.getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.PUT_HINTED));
+        assertArrayEquals(("put_hinted " + TEST_KEY + " 0 " + TEST_VALUE + "\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+
+        KVMessage output = KVMessage.readFromBytes(bytes);
+        assertEquals(IKVMessage.StatusType.PUT_HINTED, output.getStatus());
+        assertEquals(0, output.getParameter());
+        assertEquals(TEST_VALUE, output.getValue());
+
+        // a hinted delete is sent without a value
+        assertNull(KVMessage.readFromBytes(("put_hinted " + TEST_KEY + " 0\r\n").getBytes(StandardCharsets.UTF_8)).getValueBytes());
+    }
+
+    @Test
+    public void testSubscriptionRoundTrip() {
+        byte[] bytes = KVMessage.writeToBytes(new KVMessage(IKVMessage.StatusType.SUBSCRIBE));
+        assertArrayEquals("subscribe\r\n".getBytes(StandardCharsets.UTF_8), bytes);
+        assertEquals(IKVMessage.StatusType.SUBSCRIBE, KVMessage.readFromBytes(bytes).getStatus());
+
+        bytes = KVMessage.writeToBytes(new KVMessage(TEST_KEY, IKVMessage.StatusType.INVALIDATE));
+        assertArrayEquals(("invalidate " + TEST_KEY + "\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+        KVMessage output = KVMessage.readFromBytes(bytes);
+        assertEquals(IKVMessage.StatusType.INVALIDATE, output.getStatus());
+        assertEquals(TEST_KEY, output.getKey());
+    }
+
+    @Test
+    public void testCasRoundTrip() {
+        // the parameter is the length of the expected value plus one, the value the expected and new value
+        byte[] bytes = KVMessage.writeToBytes(new KVMessage(TEST_KEY, 4, "oldnew".getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.CAS));
+        assertArrayEquals(("cas " + TEST_KEY + " 4 oldnew\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+        KVMessage output = KVMessage.readFromBytes(bytes);
+        assertEquals(IKVMessage.StatusType.CAS, output.getStatus());
+        assertEquals(4, output.getParameter());
+        assertEquals("oldnew", output.getValue());
+
+        // a failed CAS of a missing key has no current value
+        output = KVMessage.readFromBytes(("cas_failed " + TEST_KEY + " 0\r\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(IKVMessage.StatusType.CAS_FAILED, output.getStatus());
+        assertNull(output.getValueBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCasExpectedValueLongerThanValue() {
+        new KVMessage(TEST_KEY, 10, "old".getBytes(StandardCharsets.UTF_8), IKVMessage.StatusType.CAS);
+    }
+
+    @Test
+    public void testWatchRoundTrip() {
+        String range = HashUtils.MIN_MD5_HASH + "," + HashUtils.MAX_MD5_HASH;
+        byte[] bytes = KVMessage.writeToBytes(new KVMessage(range, IKVMessage.StatusType.WATCH_RANGE));
+        assertArrayEquals(("watch_range " + range + "\r\n").getBytes(StandardCharsets.UTF_8), bytes);
+        assertEquals(range, KVMessage.readFromBytes(bytes).getKey());
+
+        KVMessage output = KVMessage.readFromBytes(KVMessage.writeToBytes(new KVMessage(TEST_KEY, TEST_VALUE, IKVMessage.StatusType.WATCH_PUT)));
+        assertEquals(IKVMessage.StatusType.WATCH_PUT, output.getStatus());
+        assertEquals(TEST_VALUE, output.getValue());
+
+        output = KVMessage.readFromBytes(("watch_delete " + TEST_KEY + "\r\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(IKVMessage.StatusType.WATCH_DELETE, output.getStatus());
+        assertNull(output.getValueBytes());
+    }
+
+    @Test
+    public void testLatencyRoundTrip() {
+        assertEquals(IKVMessage.StatusType.LATENCY, KVMessage.readFromBytes("latency\r\n".getBytes(StandardCharsets.UTF_8)).getStatus());
+
+        // the report is longer than a key may be
+        String report = "PUT,TOTAL,10,120,100,250,250,300;GET,STORAGE,10,2,1,5,5,6";
+        KVMessage output = KVMessage.readFromBytes(KVMessage.writeToBytes(new KVMessage(report, IKVMessage.StatusType.LATENCY_SUCCESS)));
+        assertEquals(IKVMessage.StatusType.LATENCY_SUCCESS, output.getStatus());
+        assertEquals(report, output.getKey());
+    }
+
+    @Test
+    public void testStatsRoundTrip() {
+        assertEquals(IKVMessage.StatusType.STATS, KVMessage.readFromBytes("stats\r\n".getBytes(StandardCharsets.UTF_8)).getStatus());
+
+        String metrics = "uptime_seconds=12;requests_total:PUT=30;get_hit_ratio=0.75";
+        KVMessage output = KVMessage.readFromBytes(KVMessage.writeToBytes(new KVMessage(metrics, IKVMessage.StatusType.STATS_SUCCESS)));
+        assertEquals(IKVMessage.StatusType.STATS_SUCCESS, output.getStatus());
+        assertEquals(metrics, output.getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReadFromBytesPutTtlRequiresValue() {
+        KVMessage.readFromBytes(("put_ttl " + TEST_KEY + " 5000\r\n").getBytes(StandardCharsets.UTF_8));
+    }
 }
@@ -0,0 +1,150 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class NearCacheTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "near_cache_test");
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    private static KVStore cachingClient(int capacity) throws IOException {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+        kvClient.enableNearCache(capacity);
+        return kvClient;
+    }
+
+    @Test
+    public void testRepeatedGetIsCached() throws Exception {
+        KVStore kvClient = cachingClient(100);
+        // keys that do not exist are not cached, asked for first, as learning the servers of the ring on
+        // the way drops what was cached before
+        assertEquals(IKVMessage.StatusType.GET_ERROR, kvClient.get("missing").getStatus());
+        assertEquals(0, kvClient.nearCacheSize());
+        assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put("cached", "value").getStatus());
+
+        for (int i = 0; i < 3; i++) {
+            IKVMessage response = kvClient.get("cached");
+            assertEquals(IKVMessage.StatusType.GET_SUCCESS, response.getStatus());
+            assertEquals("value", response.getValue());
+        }
+        assertEquals(1, kvClient.nearCacheSize());
+        assertTrue("client should subscribe to the servers", kvServers[0].subscriberCount() > 0);
+
+        assertEquals(IKVMessage.StatusType.GET_ERROR, kvClient.get("missing").getStatus());
+        assertEquals(1, kvClient.nearCacheSize());
+        kvClient.disconnect();
+    }
+
+    @Test
+    public void testWriteOfOtherClientInvalidates() throws Exception {
+        KVStore reader = cachingClient(100);
+        KVStore writer = new KVStore("localhost", SERVER_PORTS[0]);
+        writer.connect();
+
+        for (int i = 0; i < 10; i++) {
+            writer.put("shared" + i, "old");
+        }
+        // learning the servers of the ring on the way drops what was cached before
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals("old", reader.get("shared" + i).getValue());
+            }
+        }
+        assertEquals(10, reader.nearCacheSize());
+
+        for (int i = 0; i < 10; i++) {
+            writer.put("shared" + i, "new");
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        for (int i = 0; i < 10; i++) {
+            String key = "shared" + i;
+            while (!"new".equals(reader.get(key).getValue()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("cached <" + key + "> should be invalidated", "new", reader.get(key).getValue());
+        }
+
+        writer.put("shared0", null);
+        deadline = System.currentTimeMillis() + 2000;
+        while (reader.get("shared0").getStatus() != IKVMessage.StatusType.GET_ERROR && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(IKVMessage.StatusType.GET_ERROR, reader.get("shared0").getStatus());
+        reader.disconnect();
+    }
+
+    @Test
+    public void testOwnWriteInvalidates() throws Exception {
+        KVStore kvClient = cachingClient(100);
+        kvClient.put("own", "old");
+        kvClient.get("own");
+        assertEquals("old", kvClient.get("own").getValue());
+
+        kvClient.put("own", "new");
+        assertEquals("new", kvClient.get("own").getValue());
+        kvClient.disconnect();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        KVStore kvClient = cachingClient(2);
+        for (String key : new String[]{"lru0", "lru1", "lru2"}) {
+            kvClient.put(key, key);
+        }
+        kvClient.get("lru0");
+        kvClient.get("lru0");
+        kvClient.get("lru1");
+        kvClient.get("lru0");
+        kvClient.get("lru2");
+        assertEquals(2, kvClient.nearCacheSize());
+        kvClient.disconnect();
+        assertEquals(0, kvClient.nearCacheSize());
+    }
+}
@@ -0,0 +1,66 @@
+package testing;
+
+import app_kvECS.PhiAccrualFailureDetector;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PhiAccrualFailureDetectorTest {
+    private static final double THRESHOLD = PhiAccrualFailureDetector.DEFAULT_THRESHOLD;
+
+    private static PhiAccrualFailureDetector detector(long acceptablePauseMillis) {
+        return new PhiAccrualFailureDetector(500, 100, acceptablePauseMillis, 200, 0);
+    }
+
+    @Test
+    public void testPhiGrowsWithSilence() {
+        PhiAccrualFailureDetector detector = detector(0);
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            time += 500;
+            detector.heartbeat(time);
+        }
+
+        assertTrue(detector.phi(time) < 1);
+        assertTrue(detector.phi(time + 500) < 1);
+        assertTrue(detector.phi(time + 800) < detector.phi(time + 1000));
+        assertTrue(detector.phi(time + 1500) > THRESHOLD);
+    }
+
+    @Test
+    public void testRegularHeartbeatsAreNotSuspected() {
+        PhiAccrualFailureDetector detector = detector(200);
+        long time = 0;
+        for (int i = 0; i < 1000; i++) {
+            time += 450 + (i % 3) * 50;
+            assertTrue("phi before heartbeat " + i, detector.phi(time) < THRESHOLD);
+            detector.heartbeat(time);
+        }
+    }
+
+    @Test
+    public void testJitteryHeartbeatsGetMoreTime() {
+        PhiAccrualFailureDetector regular = detector(0);
+        PhiAccrualFailureDetector jittery = detector(0);
+        long time = 0;
+        for (int i = 0; i < 100; i++) {
+            // both average 500ms, but one alternates between 200ms and 800ms
+            time += 500;
+            regular.heartbeat(time);
+            jittery.heartbeat(time + (i % 2 == 0 ? -300 : 0));
+        }
+
+        assertTrue(regular.phi(time + 1500) > THRESHOLD);
+        assertTrue(jittery.phi(time + 1500) < THRESHOLD);
+    }
+
+    @Test
+    public void testAcceptablePauseDelaysSuspicion() {
+        PhiAccrualFailureDetector strict = detector(0);
+        PhiAccrualFailureDetector lenient = detector(2000);
+
+        assertTrue(strict.phi(2000) > THRESHOLD);
+        assertTrue(lenient.phi(2000) < THRESHOLD);
+        assertTrue(lenient.phi(4000) > THRESHOLD);
+    }
+}
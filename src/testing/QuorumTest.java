@@ -0,0 +1,105 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import client.KVStore.Consistency;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage.StatusType;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class QuorumTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(3);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 3);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "quorum_test");
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    @Test
+    public void testQuorumReadSeesQuorumWrite() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(StatusType.PUT_SUCCESS, kvClient.put("quorum" + i, "first" + i, Consistency.QUORUM).getStatus());
+            assertEquals(StatusType.PUT_SUCCESS, kvClient.put("quorum" + i, "second" + i, Consistency.QUORUM).getStatus());
+        }
+        for (int i = 0; i < 20; i++) {
+            assertEquals("second" + i, kvClient.get("quorum" + i, Consistency.QUORUM).getValue());
+        }
+    }
+
+    @Test
+    public void testQuorumDeleteIsNotUndoneByOlderWrite() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[1]);
+        kvClient.connect();
+
+        kvClient.put("deleted", "value", Consistency.ALL);
+        assertEquals(StatusType.DELETE_SUCCESS, kvClient.put("deleted", null, Consistency.ALL).getStatus());
+        for (KVServer kvServer : kvServers) {
+            assertFalse(kvServer.inStorage("deleted"));
+            // a write that lost the race against the delete
+            kvServer.putVersionedKVBytes("deleted", "stale".getBytes(StandardCharsets.UTF_8), 1);
+        }
+        assertEquals(StatusType.GET_ERROR, kvClient.get("deleted", Consistency.ALL).getStatus());
+    }
+
+    @Test
+    public void testReadRepairsStaleReplica() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[2]);
+        kvClient.connect();
+
+        kvClient.put("repaired", "old", Consistency.ALL);
+        kvClient.put("repaired", "new", Consistency.ALL);
+        // roll one replica back to the old version, as if it had missed the second write
+        long newVersion = kvServers[0].getVersionedKVBytes("repaired").getVersion();
+        kvServers[0].putKVBytes("repaired", null);
+        kvServers[0].putVersionedKVBytes("repaired", "old".getBytes(StandardCharsets.UTF_8), newVersion - 1);
+
+        assertEquals("new", kvClient.get("repaired", Consistency.ALL).getValue());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!"new".equals(kvServers[0].getKV("repaired")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("new", kvServers[0].getKV("repaired"));
+    }
+}
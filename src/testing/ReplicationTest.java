@@ -0,0 +1,98 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage.StatusType;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class ReplicationTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 2);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "replication_test");
+        }
+
+        // wait until both servers received the metadata containing both of them
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    @Test
+    public void testPutIsStoredOnEveryReplica() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(StatusType.PUT_SUCCESS, kvClient.put("replicated" + i, "value" + i).getStatus());
+        }
+
+        for (KVServer kvServer : kvServers) {
+            for (int i = 0; i < 20; i++) {
+                assertEquals("value" + i, kvServer.getKV("replicated" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteIsReplicated() throws Exception {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[1]);
+        kvClient.connect();
+
+        kvClient.put("deleted", "value");
+        assertEquals(StatusType.DELETE_SUCCESS, kvClient.put("deleted", null).getStatus());
+        for (KVServer kvServer : kvServers) {
+            assertFalse(kvServer.inStorage("deleted"));
+        }
+    }
+
+    @Test
+    public void testGetsCanBeServedByAnyReplica() throws Exception {
+        for (KVStore.ReadPolicy readPolicy : KVStore.ReadPolicy.values()) {
+            KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0], readPolicy);
+            kvClient.connect();
+
+            for (int i = 0; i < 20; i++) {
+                kvClient.put("read" + i, "value" + i);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals("value" + i, kvClient.get("read" + i).getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Starts the servers of the tests that run against a live ECS and waits for the state they reach asynchronously.
+ * Each server serves on {@code port}, joins the ring on {@code port + 1} and stores its keys in a directory of its own.
+ * The ports are picked by the operating system rather than fixed, so that the test classes can run one after another
+ * in the same JVM without running into a port that is still bound or was handed out to a client connection.
+ */
+final class ServerFixture {
+    /**
+     * Ports kept free from each port returned, enough for a server started with
+     * {@code new KVServer(port, cacheSize, strategy)}, which expects the ECS on {@code port + 1} and joins the
+     * ring on {@code port + 2}.
+     */
+    private static final int PORT_BLOCK = 3;
+    private static final Set<Integer> handedOut = new HashSet<>();
+
+    private ServerFixture() {
+    }
+
+    /**
+     * Returns a port that is free together with the two ports above it, to be used by the ECS or as the port of a
+     * server.
+     */
+    static int freePort() {
+        return freePorts(1)[0];
+    }
+
+    /**
+     * Returns {@code count} ports that are free together with the two ports above each of them. The ports are taken
+     * by binding to port 0, so they are free when this returns, but another socket may still bind them before the
+     * test does. No two ports returned to the tests of a JVM share a port, including the ones above them.
+     */
+    static synchronized int[] freePorts(int count) {
+        int[] ports = new int[count];
+        // the sockets stay bound until all ports are found, so the operating system does not hand out one twice
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            int found = 0;
+            while (found < count) {
+                ServerSocket socket = new ServerSocket(0);
+                sockets.add(socket);
+                int port = socket.getLocalPort();
+                if (isFree(port, sockets)) {
+                    handedOut.add(port);
+                    ports[found++] = port;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (ServerSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // the port is released all the same
+                }
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Binds the ports above the given one, which is bound already, adding the sockets to those to close.
+     *
+     * @return false if one of them is bound by another socket or out of range, or overlaps a block handed out before
+     */
+    private static boolean isFree(int port, List<ServerSocket> sockets) {
+        for (int handedOutPort : handedOut) {
+            if (Math.abs(port - handedOutPort) < PORT_BLOCK) {
+                return false;
+            }
+        }
+        for (int above = port + 1; above < port + PORT_BLOCK; above++) {
+            try {
+                sockets.add(new ServerSocket(above));
+            } catch (IOException | IllegalArgumentException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates a server that registers with the ECS on {@code ecsPort} and stores its keys in a new temporary
+     * directory named after {@code directoryPrefix}. The server is not started yet, so it can still be configured.
+     */
+    static KVServer newServer(int port, int ecsPort, String directoryPrefix) throws IOException {
+        return newServer(port, ecsPort, Files.createTempDirectory(directoryPrefix));
+    }
+
+    /**
+     * Creates a server that registers with the ECS on {@code ecsPort} and stores its keys in {@code directory}.
+     */
+    static KVServer newServer(int port, int ecsPort, Path directory) throws IOException {
+        InetAddress address = InetAddress.getLocalHost();
+        return new KVServer(address, port, new InetSocketAddress(address, ecsPort),
+                new InetSocketAddress(address, port + 1), 0, "None", directory.toString(), false);
+    }
+
+    /**
+     * Creates a server like {@link #newServer(int, int, String)} and starts it.
+     */
+    static KVServer startServer(int port, int ecsPort, String directoryPrefix) throws IOException, InterruptedException {
+        return start(newServer(port, ecsPort, directoryPrefix));
+    }
+
+    /**
+     * Runs the server on a thread of its own and waits until it accepts connections.
+     */
+    static KVServer start(KVServer kvServer) throws InterruptedException {
+        new Thread(kvServer).start();
+        assertTrue("server should start up", kvServer.getRunningLatch().await(500, TimeUnit.MILLISECONDS));
+        return kvServer;
+    }
+
+    /**
+     * Closes the servers and stops the ECS, skipping those that a failed setup left unassigned.
+     *
+     * @param ecsClient the ECS, null if there is none
+     */
+    static void shutDown(ECSClient ecsClient, KVServer... kvServers) {
+        for (KVServer kvServer : kvServers) {
+            if (kvServer != null) {
+                kvServer.close();
+            }
+        }
+        if (ecsClient != null) {
+            ecsClient.stop();
+        }
+    }
+
+    /**
+     * Returns the number of servers in the metadata a server received from the ECS.
+     */
+    static int nodeCount(String metadata) {
+        return metadata.isEmpty() ? 0 : metadata.split(";").length;
+    }
+
+    /**
+     * Polls the condition until it holds, returning false if it still does not after {@code timeoutMillis}.
+     */
+    static boolean waitFor(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,160 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.Metrics;
+import shared.MetricsHttpServer;
+import shared.messages.IKVMessage;
+import shared.messages.KVMessage;
+import shared.messages.SocketMessenger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class StatsTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "stats_test");
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+
+        // half of the keys are coordinated by each server, wherever the servers sit on the ring
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(kvServers[0].getMetadata());
+        int[] keysPerServer = new int[SERVER_PORTS.length];
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+        for (int i = 0, stored = 0; stored < 30; i++) {
+            int server = ring.getNodeForKey("stats" + i).getNodeIpAndPort().equals(kvServers[0].getNodeIpAndPort()) ? 0 : 1;
+            if (keysPerServer[server] < 30 / SERVER_PORTS.length) {
+                keysPerServer[server]++;
+                stored++;
+                kvClient.put("stats" + i, "value" + i);
+                kvClient.get("stats" + i);
+            }
+        }
+        kvClient.get("missing");
+        kvClient.disconnect();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    @Test
+    public void testMetricsEncoding() {
+        Metrics metrics = new Metrics().set("connections", 2).set("requests_total", "PUT", 10).set("get_hit_ratio", 0.5);
+        assertEquals("connections=2;requests_total:PUT=10;get_hit_ratio=0.5", metrics.encode());
+        assertEquals(metrics.asMap(), Metrics.decode(metrics.encode()).asMap());
+        assertTrue(Metrics.decode("").asMap().isEmpty());
+
+        String prometheus = metrics.toPrometheus();
+        assertTrue(prometheus.contains("# TYPE kv_requests_total counter\nkv_requests_total{operation=\"PUT\"} 10\n"));
+        assertTrue(prometheus.contains("# TYPE kv_connections gauge\nkv_connections 2\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeRejectsMalformedMetrics() {
+        Metrics.decode("connections");
+    }
+
+    @Test
+    public void testAggregation() {
+        Metrics first = new Metrics().set("storage_keys", 3).set("latency_p99_us", "GET", 100)
+                .set("get_hits_total", 3).set("get_misses_total", 1).set("get_hit_ratio", 0.75);
+        Metrics second = new Metrics().set("storage_keys", 4).set("latency_p99_us", "GET", 300)
+                .set("get_hits_total", 1).set("get_misses_total", 3).set("get_hit_ratio", 0.25);
+
+        Metrics total = Metrics.aggregate(Arrays.asList(first, second));
+        assertEquals(2, total.get("servers"), 0);
+        assertEquals(7, total.get("storage_keys"), 0);
+        assertEquals(300, total.get("latency_p99_us", "GET"), 0);
+        assertEquals(0.5, total.get("get_hit_ratio"), 1e-9);
+    }
+
+    @Test
+    public void testStatsRequest() throws IOException {
+        Metrics metrics;
+        try (Socket socket = new Socket("localhost", SERVER_PORTS[0])) {
+            SocketMessenger socketMessenger = new SocketMessenger(socket);
+            socketMessenger.sendMessage(new KVMessage(IKVMessage.StatusType.STATS));
+            KVMessage response = socketMessenger.receiveMessage();
+            assertEquals(IKVMessage.StatusType.STATS_SUCCESS, response.getStatus());
+            metrics = Metrics.decode(response.getKey());
+        }
+
+        assertTrue(metrics.get("connections") >= 1);
+        // the keys are spread over both servers
+        assertTrue(metrics.get("requests_total", "GET") >= 1);
+        assertTrue(metrics.get("get_hits_total") >= 1);
+        assertTrue(metrics.get("latency_p99_us", "GET") >= 0);
+        assertEquals(kvServers[0].collectStats().get("storage_keys"), metrics.get("storage_keys"), 0);
+        assertFalse(Double.isNaN(metrics.get("storage_unpersisted_writes")));
+    }
+
+    @Test
+    public void testRingAggregation() {
+        Metrics total = ecsClient.collectStats();
+        assertEquals(SERVER_PORTS.length, total.get("servers"), 0);
+        assertEquals(0, total.get("unreachable_servers"), 0);
+        // every key is stored once with a replication factor of 1
+        assertEquals(30, total.get("storage_keys"), 0);
+        assertEquals(30, total.get("get_hits_total"), 0);
+        assertEquals(1, total.get("get_misses_total"), 0);
+    }
+
+    @Test
+    public void testPrometheusEndpoint() throws IOException {
+        int port = kvServers[0].startMetricsEndpoint(0);
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + MetricsHttpServer.PATH).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        String body;
+        try (InputStream input = connection.getInputStream()) {
+            body = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(body, body.contains("# TYPE kv_requests_total counter"));
+        assertTrue(body, body.contains("kv_requests_total{operation=\"PUT\"}"));
+        assertTrue(body, body.contains("kv_storage_keys "));
+    }
+}
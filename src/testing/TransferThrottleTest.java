@@ -0,0 +1,113 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import ecs.ECSRing;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.messages.IKVMessage;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.newServer;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.start;
+import static testing.ServerFixture.waitFor;
+
+public class TransferThrottleTest {
+    private static final int ECS_PORT = freePort();
+    private static final int FIRST_PORT = freePort();
+    private static final int JOINING_PORT = freePort();
+    private static final int KEYS = 100;
+    private static final int VALUE_BYTES = 1000;
+    private static final long TRANSFER_RATE = 20_000;
+
+    private static ECSClient ecsClient;
+    private static KVServer first;
+    private static KVServer joining;
+    private static String value;
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        ecsClient = new ECSClient(address, ECS_PORT, 1, ReplicationMode.PRIMARY_BACKUP);
+        // the joining server takes over about half of the keys
+        ecsClient.setLoadAwarePlacement(true);
+        new Thread(ecsClient).start();
+
+        first = startSingleSlotServer(FIRST_PORT);
+        assertTrue(waitFor(() -> !first.getMetadata().isEmpty(), 2000));
+
+        char[] chars = new char[VALUE_BYTES];
+        Arrays.fill(chars, 'x');
+        value = new String(chars);
+        KVStore kvClient = new KVStore("localhost", FIRST_PORT);
+        kvClient.connect();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(IKVMessage.StatusType.PUT_SUCCESS, kvClient.put("transfer" + i, value).getStatus());
+        }
+        kvClient.disconnect();
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, first, joining);
+    }
+
+    private static KVServer startSingleSlotServer(int port) throws IOException, InterruptedException {
+        KVServer kvServer = newServer(port, ECS_PORT, "transfer_throttle_test");
+        // metadata updates take priority over the client requests waiting for the single slot
+        kvServer.setClientLimits(0, 1);
+        return start(kvServer);
+    }
+
+    @Test
+    public void testHandoffIsPacedAtTheTransferRate() throws Exception {
+        first.setTransferRate(TRANSFER_RATE);
+        long start = System.nanoTime();
+        joining = startSingleSlotServer(JOINING_PORT);
+        assertTrue(waitFor(() -> first.getMetadata().split(";").length == 2, 2000));
+
+        ECSRing<Object> ring = new ECSRing<>();
+        ring.loadMetadata(first.getMetadata());
+        int[] handedOff = {0};
+        assertTrue("keys should be handed off", waitFor(() -> {
+            handedOff[0] = 0;
+            for (int i = 0; i < KEYS; i++) {
+                String key = "transfer" + i;
+                boolean joined = ring.getNodeForKey(key).getSocketAddress().getPort() == JOINING_PORT;
+                if (joining.inStorage(key) != joined || first.inStorage(key) == joined) {
+                    return false;
+                }
+                handedOff[0] += joined ? 1 : 0;
+            }
+            return true;
+        }, 10000));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // a second's worth is sent right away
+        long expectedMillis = (handedOff[0] * VALUE_BYTES - TRANSFER_RATE) * 1000L / TRANSFER_RATE;
+        assertTrue(handedOff[0] > KEYS / 4);
+        assertTrue("handoff took " + elapsedMillis + "ms, at least " + expectedMillis + "ms expected",
+                elapsedMillis >= expectedMillis * 3 / 4);
+        assertTrue(first.collectStats().get("transfer_wait_ms_total") > 0);
+
+        KVStore kvClient = new KVStore("localhost", FIRST_PORT);
+        kvClient.connect();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(value, kvClient.get("transfer" + i).getValue());
+        }
+        kvClient.disconnect();
+    }
+}
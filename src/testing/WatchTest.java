@@ -0,0 +1,143 @@
+package testing;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import client.KVStore;
+import client.KeyChangeListener;
+import client.Watch;
+import ecs.ReplicationMode;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.HashUtils;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static testing.ServerFixture.freePort;
+import static testing.ServerFixture.freePorts;
+import static testing.ServerFixture.shutDown;
+import static testing.ServerFixture.startServer;
+
+public class WatchTest {
+    private static final int ECS_PORT = freePort();
+    private static final int[] SERVER_PORTS = freePorts(2);
+
+    private static ECSClient ecsClient;
+    private static final KVServer[] kvServers = new KVServer[SERVER_PORTS.length];
+
+    /**
+     * Records the changes it receives.
+     */
+    private static final class RecordingListener implements KeyChangeListener {
+        final List<String> changes = new ArrayList<>();
+
+        @Override
+        public synchronized void changed(String key, String value) {
+            this.changes.add(key + "=" + value);
+            notifyAll();
+        }
+
+        synchronized List<String> awaitChanges(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (this.changes.size() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+            return new ArrayList<>(this.changes);
+        }
+    }
+
+    @BeforeClass
+    public static void beforeAll() throws IOException, InterruptedException {
+        new LogSetup("logs/testing/test.log", Level.ERROR);
+
+        InetAddress address = InetAddress.getLocalHost();
+        // with two replicas each write is applied on both servers, but reported once
+        ecsClient = new ECSClient(address, ECS_PORT, 2, ReplicationMode.PRIMARY_BACKUP);
+        new Thread(ecsClient).start();
+
+        for (int i = 0; i < SERVER_PORTS.length; i++) {
+            kvServers[i] = startServer(SERVER_PORTS[i], ECS_PORT, "watch_test");
+        }
+
+        long deadline = System.currentTimeMillis() + 2000;
+        for (KVServer kvServer : kvServers) {
+            while (kvServer.getMetadata().split(";").length < SERVER_PORTS.length && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(SERVER_PORTS.length, kvServer.getMetadata().split(";").length);
+        }
+    }
+
+    @AfterClass
+    public static void afterAll() {
+        shutDown(ecsClient, kvServers);
+    }
+
+    private static KVStore client() throws IOException {
+        KVStore kvClient = new KVStore("localhost", SERVER_PORTS[0]);
+        kvClient.connect();
+        return kvClient;
+    }
+
+    @Test
+    public void testWatchKey() throws Exception {
+        KVStore watcher = client();
+        KVStore writer = client();
+        RecordingListener listener = new RecordingListener();
+        Watch watch = watcher.watch("watched", listener);
+
+        writer.put("watched", "first");
+        writer.put("unwatched", "other");
+        writer.put("watched", "second");
+        writer.put("watched", null);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("watched=first");
+        expected.add("watched=second");
+        expected.add("watched=null");
+        assertEquals(expected, listener.awaitChanges(3));
+        Thread.sleep(100);
+        assertEquals("changes should be reported once", expected, listener.awaitChanges(3));
+
+        watch.close();
+        assertFalse(watch.isOpen());
+        writer.put("watched", "after close");
+        Thread.sleep(100);
+        assertEquals(expected, listener.awaitChanges(3));
+        watcher.disconnect();
+    }
+
+    @Test
+    public void testWatchRange() throws Exception {
+        KVStore watcher = client();
+        KVStore writer = client();
+        RecordingListener listener = new RecordingListener();
+        watcher.watchRange(HashUtils.MIN_MD5_HASH, HashUtils.MAX_MD5_HASH, listener);
+
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20; i++) {
+            writer.put("range" + i, "value" + i);
+            expected.put("range" + i + "=value" + i, 1);
+        }
+
+        Map<String, Integer> received = new HashMap<>();
+        for (String change : listener.awaitChanges(20)) {
+            received.merge(change, 1, Integer::sum);
+        }
+        assertEquals("every change should be reported once", expected, received);
+        watcher.disconnect();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWatchRangeRequiresHashes() throws Exception {
+        client().watchRange("a", HashUtils.MAX_MD5_HASH, new RecordingListener());
+    }
+}
@@ -26,4 +26,24 @@ public class PutSuccessKVStore implements KVCommInterface {
     public IKVMessage get(String key) throws Exception {
         return null;
     }
+
+    @Override
+    public IKVMessage compareAndSet(String key, String expected, String value) throws Exception {
+        return new KVMessage(key, 0, null, IKVMessage.StatusType.CAS_SUCCESS);
+    }
+
+    @Override
+    public IKVMessage compareAndSet(String key, long expectedVersion, String value) throws Exception {
+        return new KVMessage(key, expectedVersion + 1, null, IKVMessage.StatusType.CAS_SUCCESS);
+    }
+
+    @Override
+    public IKVMessage increment(String key, long delta) throws Exception {
+        return new KVMessage(key, Long.toString(delta), IKVMessage.StatusType.INCREMENT_SUCCESS);
+    }
+
+    @Override
+    public IKVMessage append(String key, String value) throws Exception {
+        return new KVMessage(key, value, IKVMessage.StatusType.PUT_SUCCESS);
+    }
 }